@@ -0,0 +1,42 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Counts the allocations made on a hot path, so that a path expected to be allocation-free in
+ * steady state can be checked and its allocation rate reported.
+ */
+public final class AllocationCounter {
+    private long mCount;
+    private long mBytes;
+    private long mRateTimeNs = -1;
+    private long mRateCount;
+
+    /** Records one allocation of {@code bytes} bytes. */
+    public synchronized void record(int bytes) {
+        mCount++;
+        mBytes += bytes;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of allocations per second since the previous call, or 0 on the first
+     * call, which only starts the measurement.
+     *
+     * @param nowNs The current time, in the same time base as {@link System#nanoTime()}.
+     */
+    public synchronized float getCountPerSecond(long nowNs) {
+        float rate = 0;
+        if (mRateTimeNs != -1 && nowNs > mRateTimeNs) {
+            rate = (mCount - mRateCount) * 1000000000f / (nowNs - mRateTimeNs);
+        }
+        mRateTimeNs = nowNs;
+        mRateCount = mCount;
+        return rate;
+    }
+}
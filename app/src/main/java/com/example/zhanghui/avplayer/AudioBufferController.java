@@ -0,0 +1,133 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Sizes the audio output at runtime: the AudioTrack's buffer, in frames, and how much decoded
+ * audio may wait for it, as a duration. Both start small, for low latency and little heap,
+ * and grow by a step whenever the AudioTrack reports an underrun; the queue cap also grows
+ * when the queue runs dry while playing, as the decoder fell behind. After a while without
+ * trouble both shrink back a step at a time. Everything stays within the bounds given to the
+ * constructor. Not thread safe.
+ */
+public final class AudioBufferController {
+    /** Default bounds of the queue cap. */
+    public static final long DEFAULT_MIN_QUEUE_US = 200000;
+    public static final long DEFAULT_MAX_QUEUE_US = 2000000;
+    // time without underruns or a dry queue after which the sizes shrink a step
+    private static final long STABLE_PERIOD_US = 20000000;
+    // the queue cap grows by half and shrinks by a quarter
+    private static final int QUEUE_GROW_PERCENT = 150;
+    private static final int QUEUE_SHRINK_PERCENT = 75;
+
+    private final int mMinBufferFrames;
+    private final int mMaxBufferFrames;
+    private final int mBufferStepFrames;
+    private final long mMinQueueUs;
+    private final long mMaxQueueUs;
+
+    private int mBufferFrames;
+    private long mQueueCapUs;
+    private long mUnderrunCount;
+    private long mLastChangeUs = -1;
+    private boolean mQueueWasFilled;
+    private int mIncreases;
+    private int mDecreases;
+
+    /**
+     * @param minBufferFrames smallest AudioTrack buffer, e.g. its minimum buffer size; also
+     *     the step the buffer changes by
+     * @param maxBufferFrames largest AudioTrack buffer, at most its capacity
+     * @param initialBufferFrames buffer size the AudioTrack was opened with
+     */
+    public AudioBufferController(int minBufferFrames, int maxBufferFrames,
+            int initialBufferFrames, long minQueueUs, long maxQueueUs) {
+        if (minBufferFrames <= 0 || maxBufferFrames < minBufferFrames
+                || minQueueUs <= 0 || maxQueueUs < minQueueUs) {
+            throw new IllegalArgumentException("invalid bounds");
+        }
+        mMinBufferFrames = minBufferFrames;
+        mMaxBufferFrames = maxBufferFrames;
+        mBufferStepFrames = minBufferFrames;
+        mMinQueueUs = minQueueUs;
+        mMaxQueueUs = maxQueueUs;
+        mBufferFrames = clamp(initialBufferFrames, minBufferFrames, maxBufferFrames);
+        mQueueCapUs = minQueueUs;
+    }
+
+    /**
+     * Takes one measurement of the output.
+     *
+     * @param underrunCount underruns reported by the AudioTrack since it was created
+     * @param queuedUs decoded audio waiting for the AudioTrack
+     * @param playing whether the AudioTrack is playing; a paused one leaves its queue alone
+     * @return true if {@link #getBufferSizeFrames()} changed and should be applied.
+     */
+    public boolean update(long nowUs, long underrunCount, long queuedUs, boolean playing) {
+        if (mLastChangeUs == -1) {
+            mLastChangeUs = nowUs;
+        }
+        boolean underrun = underrunCount > mUnderrunCount;
+        mUnderrunCount = Math.max(mUnderrunCount, underrunCount);
+        // only a queue that had something in it can run dry
+        boolean ranDry = playing && mQueueWasFilled && queuedUs == 0;
+        if (queuedUs > 0) {
+            mQueueWasFilled = true;
+        } else if (playing) {
+            mQueueWasFilled = false;
+        }
+
+        int bufferFrames = mBufferFrames;
+        long queueCapUs = mQueueCapUs;
+        if (underrun || ranDry) {
+            if (underrun) {
+                bufferFrames = Math.min(mMaxBufferFrames, bufferFrames + mBufferStepFrames);
+            }
+            queueCapUs = Math.min(mMaxQueueUs, queueCapUs * QUEUE_GROW_PERCENT / 100);
+            mLastChangeUs = nowUs;
+        } else if (nowUs - mLastChangeUs >= STABLE_PERIOD_US) {
+            bufferFrames = Math.max(mMinBufferFrames, bufferFrames - mBufferStepFrames);
+            queueCapUs = Math.max(mMinQueueUs, queueCapUs * QUEUE_SHRINK_PERCENT / 100);
+            mLastChangeUs = nowUs;
+        }
+
+        if (bufferFrames > mBufferFrames || queueCapUs > mQueueCapUs) {
+            mIncreases++;
+        } else if (bufferFrames < mBufferFrames || queueCapUs < mQueueCapUs) {
+            mDecreases++;
+        }
+        mQueueCapUs = queueCapUs;
+        boolean bufferChanged = bufferFrames != mBufferFrames;
+        mBufferFrames = bufferFrames;
+        return bufferChanged;
+    }
+
+    /**
+     * Tells the controller the buffer size the AudioTrack actually took, which may differ from
+     * the one asked for.
+     */
+    public void onBufferSizeApplied(int bufferFrames) {
+        mBufferFrames = bufferFrames;
+    }
+
+    public int getBufferSizeFrames() {
+        return mBufferFrames;
+    }
+
+    /** Returns how much decoded audio may wait for the AudioTrack before input is held back. */
+    public long getQueueCapUs() {
+        return mQueueCapUs;
+    }
+
+    /** Returns the number of times the sizes grew. */
+    public int getIncreaseCount() {
+        return mIncreases;
+    }
+
+    /** Returns the number of times the sizes shrank. */
+    public int getDecreaseCount() {
+        return mDecreases;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
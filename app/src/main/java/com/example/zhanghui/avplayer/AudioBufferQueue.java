@@ -0,0 +1,104 @@
+package com.example.zhanghui.avplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-capacity ring of decoded audio waiting to be written to the AudioTrack. Elements and
+ * their direct buffers are reused, so once every slot has grown to the codec's output size
+ * queuing audio does not allocate. A buffer is only allocated when a slot is first used or
+ * has to hold a larger chunk than before; those allocations are recorded in
+ * {@link #getAllocationCounter()}.
+ */
+public final class AudioBufferQueue {
+
+    public static final class QueueElement {
+        ByteBuffer data;
+        int size;
+        long pts;
+    }
+
+    private final QueueElement[] mElements;
+    private final AllocationCounter mAllocationCounter = new AllocationCounter();
+    private int mHead;
+    private int mCount;
+
+    public AudioBufferQueue(int capacity) {
+        mElements = new QueueElement[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mElements[i] = new QueueElement();
+        }
+    }
+
+    public int capacity() {
+        return mElements.length;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public boolean isFull() {
+        return mCount == mElements.length;
+    }
+
+    /**
+     * Copies {@code size} bytes from the current position of {@code src} into the next free
+     * slot, leaving {@code src} positioned after them.
+     *
+     * @return false if the queue is full and nothing was copied.
+     */
+    public boolean offer(ByteBuffer src, int size, long pts) {
+        if (isFull()) {
+            return false;
+        }
+
+        QueueElement element = mElements[(mHead + mCount) % mElements.length];
+        if (element.data == null || element.data.capacity() < size) {
+            // round up so that slightly larger chunks later on still fit
+            int capacity = Math.max(1, Integer.highestOneBit(Math.max(size, 1) - 1) << 1);
+            element.data = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            mAllocationCounter.record(capacity);
+        }
+
+        int srcLimit = src.limit();
+        src.limit(src.position() + size);
+        element.data.clear();
+        element.data.put(src);
+        element.data.flip();
+        src.limit(srcLimit);
+
+        element.size = size;
+        element.pts = pts;
+        mCount++;
+        return true;
+    }
+
+    /** Returns the oldest element, or null if the queue is empty. */
+    public QueueElement peek() {
+        return mCount == 0 ? null : mElements[mHead];
+    }
+
+    /** Releases the oldest element back to the pool. */
+    public void remove() {
+        if (mCount == 0) {
+            throw new IllegalStateException("queue is empty");
+        }
+        mHead = (mHead + 1) % mElements.length;
+        mCount--;
+    }
+
+    /** Drops all queued elements, keeping their buffers for reuse. */
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    public AllocationCounter getAllocationCounter() {
+        return mAllocationCounter;
+    }
+}
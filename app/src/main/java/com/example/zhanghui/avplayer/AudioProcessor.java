@@ -0,0 +1,43 @@
+package com.example.zhanghui.avplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One stage of the audio path between the codec and the AudioTrack; see
+ * {@link AudioProcessorChain}. Stages work on interleaved PCM in native byte order and keep
+ * any buffers they need across calls, so that processing does not allocate in steady state.
+ * Not thread safe unless a stage says otherwise.
+ */
+public interface AudioProcessor {
+    /**
+     * Sets the format of the input to come, an AudioFormat.ENCODING_* encoding, and drops
+     * any state carried over from earlier input.
+     *
+     * @return false if the stage leaves audio in this format unchanged and can be skipped.
+     * @throws IllegalArgumentException if the stage cannot take audio in this format.
+     */
+    boolean configure(int sampleRate, int channelCount, int encoding);
+
+    int getOutputSampleRate();
+
+    int getOutputChannelCount();
+
+    int getOutputEncoding();
+
+    /**
+     * Returns true if the next process() call would change the audio. A configured stage may
+     * be idle for a while, e.g. volume at unity gain.
+     */
+    boolean isActive();
+
+    /**
+     * Processes all of the audio between the position and limit of {@code buffer}, which
+     * belongs to the caller and may be overwritten. Returns the output between its position and
+     * limit: either {@code buffer} itself, changed in place, or a buffer of the stage that
+     * stays valid until the next call.
+     */
+    ByteBuffer process(ByteBuffer buffer);
+
+    /** Drops any state carried between buffers, e.g. for a seek. */
+    void flush();
+}
@@ -0,0 +1,107 @@
+package com.example.zhanghui.avplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Runs decoded audio through a fixed list of {@link AudioProcessor}s, each taking the output
+ * format of the one before. Stages that would not change the audio are skipped; if none is
+ * left the codec's buffer is passed on as it is. Otherwise the audio is copied once into a
+ * pooled buffer, since codec output buffers are read-only, and the stages work on that in
+ * place. The pooled buffer only grows, and its allocations are recorded in
+ * {@link #getAllocationCounter()}.
+ */
+public final class AudioProcessorChain {
+    private final AudioProcessor[] mProcessors;
+    // the stages that change audio in the configured format, in order
+    private final AudioProcessor[] mConfigured;
+    private final AllocationCounter mAllocationCounter = new AllocationCounter();
+    private int mConfiguredCount;
+    private int mOutputSampleRate;
+    private int mOutputChannelCount;
+    private int mOutputEncoding;
+    private ByteBuffer mBuffer;
+
+    public AudioProcessorChain(AudioProcessor... processors) {
+        mProcessors = processors.clone();
+        mConfigured = new AudioProcessor[processors.length];
+    }
+
+    /**
+     * Sets the format of the codec's output and works out the output format.
+     *
+     * @throws IllegalArgumentException if a stage cannot take the audio.
+     */
+    public void configure(int sampleRate, int channelCount, int encoding) {
+        mConfiguredCount = 0;
+        for (AudioProcessor processor : mProcessors) {
+            if (processor.configure(sampleRate, channelCount, encoding)) {
+                mConfigured[mConfiguredCount++] = processor;
+                sampleRate = processor.getOutputSampleRate();
+                channelCount = processor.getOutputChannelCount();
+                encoding = processor.getOutputEncoding();
+            }
+        }
+        mOutputSampleRate = sampleRate;
+        mOutputChannelCount = channelCount;
+        mOutputEncoding = encoding;
+    }
+
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    public int getOutputChannelCount() {
+        return mOutputChannelCount;
+    }
+
+    public int getOutputEncoding() {
+        return mOutputEncoding;
+    }
+
+    /**
+     * Processes the audio between the position and limit of {@code input}, which is not
+     * written to. Returns the output between its position and limit, valid until the next
+     * call; that is {@code input} itself if no stage is active.
+     */
+    public ByteBuffer process(ByteBuffer input) {
+        ByteBuffer buffer = input;
+        for (int i = 0; i < mConfiguredCount; i++) {
+            AudioProcessor processor = mConfigured[i];
+            if (!processor.isActive()) {
+                continue;
+            }
+            if (buffer == input) {
+                buffer = copyToPool(input);
+            }
+            buffer = processor.process(buffer);
+        }
+        return buffer;
+    }
+
+    /** Drops the state of all stages, e.g. for a seek. */
+    public void flush() {
+        for (int i = 0; i < mConfiguredCount; i++) {
+            mConfigured[i].flush();
+        }
+    }
+
+    /** Returns the allocations made by the pooled buffer. */
+    public AllocationCounter getAllocationCounter() {
+        return mAllocationCounter;
+    }
+
+    private ByteBuffer copyToPool(ByteBuffer input) {
+        int size = input.remaining();
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            // round up so that slightly larger codec buffers later on still fit
+            int capacity = Math.max(1, Integer.highestOneBit(Math.max(size, 1) - 1) << 1);
+            mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            mAllocationCounter.record(capacity);
+        }
+        mBuffer.clear();
+        mBuffer.put(input);
+        mBuffer.flip();
+        return mBuffer;
+    }
+}
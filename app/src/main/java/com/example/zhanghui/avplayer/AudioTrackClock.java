@@ -0,0 +1,24 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Clock following the playback position of an audio track, so video is slaved to audio. Reads
+ * the track's NonBlockingAudioTrack through its CodecState, as the AudioTrack is only created
+ * once the codec reports its output format; until then the clock stays at 0.
+ */
+public class AudioTrackClock implements MediaClock {
+    private final CodecState mAudioState;
+
+    public AudioTrackClock(CodecState audioState) {
+        mAudioState = audioState;
+    }
+
+    @Override
+    public long getTimeUs() {
+        return mAudioState.getAudioTimeUs();
+    }
+
+    @Override
+    public void setSpeed(float speed) {
+        // the AudioTrack plays at the speed set by CodecState.setPlaybackSpeed()
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * FIFO of codec buffer indices, kept in primitive ring arrays so queuing a buffer neither
+ * boxes the index nor allocates a list node or a {@code MediaCodec.BufferInfo}. Output
+ * buffers carry their buffer info in parallel arrays. The queue is sized from the codec's
+ * buffer count and only grows if the codec hands out more buffers than that.
+ */
+public final class BufferIndexQueue {
+    private int[] mIndices;
+    private int[] mOffsets;
+    private int[] mSizes;
+    private int[] mFlags;
+    private long[] mPresentationTimesUs;
+    private int mHead;
+    private int mCount;
+
+    public BufferIndexQueue(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /** Makes room for at least {@code capacity} entries, keeping the queued ones. */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mIndices.length) {
+            return;
+        }
+
+        int[] indices = mIndices;
+        int[] offsets = mOffsets;
+        int[] sizes = mSizes;
+        int[] flags = mFlags;
+        long[] presentationTimesUs = mPresentationTimesUs;
+        allocate(capacity);
+        for (int i = 0; i < mCount; i++) {
+            int from = (mHead + i) % indices.length;
+            mIndices[i] = indices[from];
+            mOffsets[i] = offsets[from];
+            mSizes[i] = sizes[from];
+            mFlags[i] = flags[from];
+            mPresentationTimesUs[i] = presentationTimesUs[from];
+        }
+        mHead = 0;
+    }
+
+    private void allocate(int capacity) {
+        mIndices = new int[capacity];
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mFlags = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+    }
+
+    public int capacity() {
+        return mIndices.length;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /** Queues an input buffer index. */
+    public void add(int index) {
+        add(index, 0, 0, 0, 0);
+    }
+
+    /** Queues an output buffer index together with its buffer info. */
+    public void add(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (mCount == mIndices.length) {
+            ensureCapacity(2 * mIndices.length);
+        }
+        int tail = (mHead + mCount) % mIndices.length;
+        mIndices[tail] = index;
+        mOffsets[tail] = offset;
+        mSizes[tail] = size;
+        mFlags[tail] = flags;
+        mPresentationTimesUs[tail] = presentationTimeUs;
+        mCount++;
+    }
+
+    /** Returns the oldest buffer index; the queue must not be empty. */
+    public int peekIndex() {
+        checkNotEmpty();
+        return mIndices[mHead];
+    }
+
+    public int peekOffset() {
+        checkNotEmpty();
+        return mOffsets[mHead];
+    }
+
+    public int peekSize() {
+        checkNotEmpty();
+        return mSizes[mHead];
+    }
+
+    public int peekFlags() {
+        checkNotEmpty();
+        return mFlags[mHead];
+    }
+
+    public long peekPresentationTimeUs() {
+        checkNotEmpty();
+        return mPresentationTimesUs[mHead];
+    }
+
+    public void removeFirst() {
+        checkNotEmpty();
+        mHead = (mHead + 1) % mIndices.length;
+        mCount--;
+    }
+
+    /** Drops all entries; the arrays are kept for reuse, e.g. across a codec flush. */
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    private void checkNotEmpty() {
+        if (mCount == 0) {
+            throw new IllegalStateException("queue is empty");
+        }
+    }
+}
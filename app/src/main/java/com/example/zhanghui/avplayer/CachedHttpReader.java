@@ -0,0 +1,171 @@
+package com.example.zhanghui.avplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Random access to a remote resource through a {@link ChunkCache}. Reads are served from the
+ * cached chunks they fall in; a missing chunk is fetched whole with an HTTP range request and
+ * stored, so replays and seeks back into played parts stay local. Hits, misses and the bytes
+ * they stand for go to the {@link PlaybackMetrics}, if set. Not thread safe; the cache may be
+ * shared.
+ */
+public final class CachedHttpReader {
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private final ChunkCache mCache;
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+    private final byte[] mChunk;
+    private PlaybackMetrics mMetrics;
+    private long mLength = -1;
+    private int mRequestCount;
+
+    public CachedHttpReader(ChunkCache cache, String url, Map<String, String> headers) {
+        mCache = cache;
+        mUrl = url;
+        mHeaders = headers;
+        mChunk = new byte[cache.getChunkSize()];
+    }
+
+    public void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /** Returns the length of the resource, asking the server for it if it is not cached. */
+    public long getLength() throws IOException {
+        if (mLength < 0) {
+            mLength = mCache.getLength(mUrl);
+        }
+        if (mLength < 0) {
+            // the first chunk is about to be needed anyway
+            fetchChunk(0);
+        }
+        return mLength;
+    }
+
+    /**
+     * Copies {@code size} bytes from {@code position} into {@code buffer}, fewer only at the
+     * end of the resource. Returns the number of bytes copied, or -1 at the end.
+     */
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        long length = getLength();
+        if (position >= length) {
+            return -1;
+        }
+        size = (int) Math.min(size, length - position);
+        int chunkSize = mChunk.length;
+        int copied = 0;
+        while (copied < size) {
+            long chunk = (position + copied) / chunkSize;
+            int chunkPosition = (int) ((position + copied) % chunkSize);
+            int read = mCache.read(mUrl, chunk, chunkPosition, buffer, offset + copied,
+                    size - copied);
+            if (read == 0) {
+                throw new IOException("short chunk " + chunk + " of " + mUrl);
+            } else if (read > 0) {
+                if (mMetrics != null) {
+                    mMetrics.onCacheHit(read);
+                }
+            } else {
+                int chunkLength = fetchChunk(chunk);
+                read = Math.min(size - copied, chunkLength - chunkPosition);
+                if (read <= 0) {
+                    throw new IOException(mUrl + " ended early");
+                }
+                System.arraycopy(mChunk, chunkPosition, buffer, offset + copied, read);
+            }
+            copied += read;
+        }
+        return copied;
+    }
+
+    /** Returns the number of HTTP requests made so far. */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /** Downloads chunk {@code chunk} into mChunk and the cache; returns its length. */
+    private int fetchChunk(long chunk) throws IOException {
+        long start = chunk * mChunk.length;
+        long end = start + mChunk.length - 1;
+        if (mLength >= 0) {
+            end = Math.min(end, mLength - 1);
+        }
+        mRequestCount++;
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (mHeaders != null) {
+                for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_PARTIAL && status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " for " + mUrl);
+            }
+            InputStream in = connection.getInputStream();
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                String range = connection.getHeaderField("Content-Range");
+                int slash = range != null ? range.lastIndexOf('/') : -1;
+                setLength(parseLength(slash >= 0 ? range.substring(slash + 1) : null));
+            } else {
+                // the whole resource; skip to the chunk
+                setLength(parseLength(connection.getHeaderField("Content-Length")));
+                long skipped = 0;
+                while (skipped < start) {
+                    long n = in.skip(start - skipped);
+                    if (n <= 0) {
+                        throw new IOException(mUrl + " ended early");
+                    }
+                    skipped += n;
+                }
+            }
+
+            int size = (int) Math.min(mChunk.length, mLength - start);
+            int read = 0;
+            while (read < size) {
+                int n = in.read(mChunk, read, size - read);
+                if (n < 0) {
+                    throw new IOException(mUrl + " ended early");
+                }
+                read += n;
+            }
+            in.close();
+            mCache.write(mUrl, chunk, mChunk, size);
+            if (mMetrics != null) {
+                mMetrics.onCacheMiss(size);
+            }
+            return size;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void setLength(long length) throws IOException {
+        if (length < 0) {
+            throw new IOException("unknown length of " + mUrl);
+        }
+        mLength = length;
+        mCache.setLength(mUrl, length);
+    }
+
+    /** Returns the length in a header value, or -1 for a missing or unknown ("*") one. */
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaDataSource;
+
+import java.io.IOException;
+
+/** Hands a remote resource read through a {@link CachedHttpReader} to MediaExtractor. */
+public final class CachingMediaDataSource extends MediaDataSource {
+    private final CachedHttpReader mReader;
+    private final ChunkCache mCache;
+
+    public CachingMediaDataSource(CachedHttpReader reader, ChunkCache cache) {
+        mReader = reader;
+        mCache = cache;
+    }
+
+    // MediaExtractor reads from one thread at a time, but not always the same one
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        return mReader.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        return mReader.getLength();
+    }
+
+    @Override
+    public void close() {
+        mCache.flush();
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Mixes PCM with a channel count the AudioTrack is not opened with down to stereo.
+ * Mono, stereo and 5.1 pass through. Channels are taken to be in the order decoders put them
+ * out, the order of the AudioFormat.CHANNEL_OUT_* bits: front left, front right, front
+ * center, LFE, back left, back right, back center, side left, side right. Center and surround
+ * channels go into both or their own side at -3 dB, LFE is left out, and each side is scaled
+ * so that it cannot clip. Only 16-bit PCM can be mixed. Works in place, as the output is never
+ * larger than the input.
+ */
+public final class ChannelDownmixProcessor implements AudioProcessor {
+    private static final int UNITY = 1 << 15;
+    private static final float MINUS_3DB = 0.7071f;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mEncoding;
+    private boolean mActive;
+    // Q15 weight of each input channel in the left and the right output
+    private final int[] mLeft = new int[32];
+    private final int[] mRight = new int[32];
+
+    @Override
+    public boolean configure(int sampleRate, int channelCount, int encoding) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mEncoding = encoding;
+        mActive = channelCount != 1 && channelCount != 2 && channelCount != 6;
+        if (!mActive) {
+            return false;
+        }
+        if (encoding != AudioFormat.ENCODING_PCM_16BIT) {
+            throw new IllegalArgumentException("cannot downmix encoding " + encoding);
+        }
+        if (channelCount < 1 || channelCount > mLeft.length) {
+            throw new IllegalArgumentException("unsupported channel count " + channelCount);
+        }
+        setWeights(channelCount);
+        return true;
+    }
+
+    /** Fills mLeft and mRight for one of the layouts in the class comment. */
+    private void setWeights(int channelCount) {
+        float[] left = new float[channelCount];
+        float[] right = new float[channelCount];
+        switch (channelCount) {
+            case 3:
+                // front left, front right, front center
+                setFront(left, right, true);
+                break;
+            case 4:
+                // quad: front left, front right, back left, back right
+                setFront(left, right, false);
+                left[2] = MINUS_3DB;
+                right[3] = MINUS_3DB;
+                break;
+            case 5:
+                // 5.0: front left, front right, front center, back left, back right
+                setFront(left, right, true);
+                left[3] = MINUS_3DB;
+                right[4] = MINUS_3DB;
+                break;
+            case 7:
+                // 6.1: 5.1 plus back center
+                setFront(left, right, true);
+                left[4] = MINUS_3DB;
+                right[5] = MINUS_3DB;
+                left[6] = 0.5f;
+                right[6] = 0.5f;
+                break;
+            case 8:
+                // 7.1: 5.1 plus side left and side right
+                setFront(left, right, true);
+                left[4] = MINUS_3DB;
+                right[5] = MINUS_3DB;
+                left[6] = MINUS_3DB;
+                right[7] = MINUS_3DB;
+                break;
+            default:
+                // unknown layout: alternate channels between the two sides
+                for (int c = 0; c < channelCount; c++) {
+                    if (c % 2 == 0) {
+                        left[c] = 1;
+                    } else {
+                        right[c] = 1;
+                    }
+                }
+                break;
+        }
+        setScaled(mLeft, left);
+        setScaled(mRight, right);
+    }
+
+    private static void setFront(float[] left, float[] right, boolean center) {
+        left[0] = 1;
+        right[1] = 1;
+        if (center) {
+            left[2] = MINUS_3DB;
+            right[2] = MINUS_3DB;
+        }
+    }
+
+    /** Sets Q15 weights summing to at most unity, so that a full-scale mix does not clip. */
+    private static void setScaled(int[] weights, float[] gains) {
+        float sum = 0;
+        for (float gain : gains) {
+            sum += gain;
+        }
+        for (int c = 0; c < gains.length; c++) {
+            weights[c] = (int) (gains[c] / sum * UNITY);
+        }
+    }
+
+    @Override
+    public int getOutputSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getOutputChannelCount() {
+        return mActive ? 2 : mChannelCount;
+    }
+
+    @Override
+    public int getOutputEncoding() {
+        return mEncoding;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public ByteBuffer process(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        int channels = mChannelCount;
+        int frameBytes = 2 * channels;
+        int position = buffer.position();
+        int frames = buffer.remaining() / frameBytes;
+        int out = position;
+        for (int in = position, end = position + frames * frameBytes; in < end;
+                in += frameBytes) {
+            int left = 0;
+            int right = 0;
+            for (int c = 0; c < channels; c++) {
+                int sample = buffer.getShort(in + 2 * c);
+                left += sample * mLeft[c];
+                right += sample * mRight[c];
+            }
+            // the output of a frame never overtakes its input
+            buffer.putShort(out, (short) (left >> 15));
+            buffer.putShort(out + 2, (short) (right >> 15));
+            out += 4;
+        }
+        buffer.limit(out);
+        return buffer;
+    }
+
+    @Override
+    public void flush() {
+        // no state between buffers
+    }
+}
@@ -0,0 +1,368 @@
+package com.example.zhanghui.avplayer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Disk cache of remote media in fixed-size chunks: chunk n of a resource holds its bytes from
+ * n * chunkSize on, one file per chunk. The least recently used chunks are evicted to keep the
+ * total within a byte budget. An index file in the same directory lists the chunks, in order
+ * of use, and the length of each resource with cached chunks, so the cache survives restarts.
+ * It is written every {@value #INDEX_SAVE_INTERVAL} changes and on {@link #flush()}, replaced
+ * atomically; on load, chunk files it does not list, e.g. written after it last was, are
+ * deleted, and an unreadable index empties the cache. Resources are keyed by a string, e.g.
+ * their URL. Thread safe.
+ */
+public final class ChunkCache {
+    /** Chunk size unless another is given. */
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    private static final String TAG = ChunkCache.class.getSimpleName();
+    private static final int MAGIC = 0x4348434b; // "CHCK"
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE = "chunks.idx";
+    private static final String CHUNK_SUFFIX = ".chunk";
+    /** Changes after which the index is written without waiting for flush(). */
+    private static final int INDEX_SAVE_INTERVAL = 16;
+    // by canonical directory; two instances on one directory would reuse each other's files
+    private static final Map<String, ChunkCache> sCaches = new HashMap<String, ChunkCache>();
+
+    private final File mDir;
+    private long mMaxBytes;
+    private final int mChunkSize;
+    // by key and chunk number, least recently used first
+    private final LinkedHashMap<String, Chunk> mChunks =
+            new LinkedHashMap<String, Chunk>(16, 0.75f, true);
+    private final Map<String, Long> mLengths = new HashMap<String, Long>();
+    private long mBytes;
+    private long mNextFileId;
+    private int mUnsavedChanges;
+
+    private static final class Chunk {
+        final long fileId;
+        final int size;
+
+        Chunk(long fileId, int size) {
+            this.fileId = fileId;
+            this.size = size;
+        }
+    }
+
+    public ChunkCache(File dir, long maxBytes) {
+        this(dir, maxBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkCache(File dir, long maxBytes, int chunkSize) {
+        if (maxBytes < chunkSize || chunkSize <= 0) {
+            throw new IllegalArgumentException("cache of " + maxBytes
+                    + " bytes cannot hold a chunk of " + chunkSize);
+        }
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mChunkSize = chunkSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "cannot create " + dir);
+        }
+        loadIndex();
+    }
+
+    /**
+     * Returns the cache in {@code dir} with the default chunk size, shared by everyone in the
+     * process who asks for that directory, set to {@code maxBytes}.
+     */
+    public static ChunkCache forDirectory(File dir, long maxBytes) throws IOException {
+        String path = dir.getCanonicalPath();
+        synchronized (sCaches) {
+            ChunkCache cache = sCaches.get(path);
+            if (cache == null) {
+                cache = new ChunkCache(dir, maxBytes);
+                sCaches.put(path, cache);
+            } else {
+                cache.setMaxBytes(maxBytes);
+            }
+            return cache;
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Changes the byte budget, evicting right away if it shrank. */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < mChunkSize) {
+            throw new IllegalArgumentException("cache of " + maxBytes
+                    + " bytes cannot hold a chunk of " + mChunkSize);
+        }
+        if (maxBytes != mMaxBytes) {
+            mMaxBytes = maxBytes;
+            if (mBytes > mMaxBytes) {
+                evict();
+                onChanged();
+            }
+        }
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Copies up to {@code size} bytes of chunk {@code chunk} of {@code key}, from
+     * {@code position} within the chunk, into {@code buffer}. Returns the number of bytes
+     * copied, or -1 if the chunk is not cached.
+     */
+    public synchronized int read(String key, long chunk, int position, byte[] buffer, int offset,
+            int size) {
+        String name = getChunkName(key, chunk);
+        Chunk entry = mChunks.get(name);
+        if (entry == null) {
+            return -1;
+        }
+        size = Math.min(size, entry.size - position);
+        if (size <= 0) {
+            return 0;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(getFile(entry.fileId), "r");
+            file.seek(position);
+            file.readFully(buffer, offset, size);
+            return size;
+        } catch (IOException e) {
+            Log.w(TAG, "dropping unreadable chunk " + name + ": " + e);
+            mChunks.remove(name);
+            mBytes -= entry.size;
+            getFile(entry.fileId).delete();
+            onChanged();
+            return -1;
+        } finally {
+            close(file);
+        }
+    }
+
+    /** Stores the first {@code size} bytes of {@code data} as chunk {@code chunk} of a key. */
+    public synchronized void write(String key, long chunk, byte[] data, int size) {
+        if (size > mChunkSize) {
+            throw new IllegalArgumentException("chunk of " + size + " bytes");
+        }
+        String name = getChunkName(key, chunk);
+        long fileId = mNextFileId++;
+        File file = getFile(fileId);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data, 0, size);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write " + file + ": " + e);
+            close(out);
+            file.delete();
+            return;
+        }
+        Chunk old = mChunks.put(name, new Chunk(fileId, size));
+        if (old != null) {
+            mBytes -= old.size;
+            getFile(old.fileId).delete();
+        }
+        mBytes += size;
+        evict();
+        onChanged();
+    }
+
+    /** Returns the length of resource {@code key}, or -1 if it is not known. */
+    public synchronized long getLength(String key) {
+        Long length = mLengths.get(key);
+        return length != null ? length : -1;
+    }
+
+    public synchronized void setLength(String key, long length) {
+        Long old = mLengths.put(key, length);
+        if (old == null || old != length) {
+            onChanged();
+        }
+    }
+
+    /** Returns the bytes held by the cache. */
+    public synchronized long getCachedBytes() {
+        return mBytes;
+    }
+
+    /** Returns true if chunk {@code chunk} of {@code key} is cached, without touching it. */
+    public synchronized boolean contains(String key, long chunk) {
+        return mChunks.containsKey(getChunkName(key, chunk));
+    }
+
+    /**
+     * Writes the index, keeping the current order of use for the next start. Chunks written
+     * since the index was last written are lost on a restart without it.
+     */
+    public synchronized void flush() {
+        saveIndex();
+    }
+
+    private void onChanged() {
+        if (++mUnsavedChanges >= INDEX_SAVE_INTERVAL) {
+            saveIndex();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Chunk>> it = mChunks.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Chunk chunk = it.next().getValue();
+            it.remove();
+            mBytes -= chunk.size;
+            getFile(chunk.fileId).delete();
+        }
+    }
+
+    private static String getChunkName(String key, long chunk) {
+        return key + "#" + chunk;
+    }
+
+    private File getFile(long fileId) {
+        return new File(mDir, Long.toHexString(fileId) + CHUNK_SUFFIX);
+    }
+
+    private void loadIndex() {
+        File file = new File(mDir, INDEX_FILE);
+        if (file.isFile()) {
+            readIndex(file);
+        }
+        // lengths are only kept along with chunks
+        mLengths.keySet().retainAll(getCachedKeys());
+        deleteUnlistedFiles();
+        // the budget may have shrunk since
+        evict();
+    }
+
+    private void readIndex(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readInt() != mChunkSize) {
+                throw new IOException("incompatible index");
+            }
+            mNextFileId = in.readLong();
+            int lengthCount = in.readInt();
+            for (int i = 0; i < lengthCount; i++) {
+                String key = in.readUTF();
+                mLengths.put(key, in.readLong());
+            }
+            int chunkCount = in.readInt();
+            for (int i = 0; i < chunkCount; i++) {
+                String name = in.readUTF();
+                Chunk chunk = new Chunk(in.readLong(), in.readInt());
+                File chunkFile = getFile(chunk.fileId);
+                if (chunkFile.length() == chunk.size) {
+                    mChunks.put(name, chunk);
+                    mBytes += chunk.size;
+                } else {
+                    // cut short, or replaced after the index was written
+                    chunkFile.delete();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "emptying cache with unreadable " + file + ": " + e);
+            mChunks.clear();
+            mLengths.clear();
+            mBytes = 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    /** Deletes the chunk files that are not in the index, e.g. after a crash. */
+    private void deleteUnlistedFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> listed = new HashSet<String>();
+        for (Chunk chunk : mChunks.values()) {
+            listed.add(getFile(chunk.fileId).getName());
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(CHUNK_SUFFIX) && !listed.contains(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Returns the keys of the resources with cached chunks. */
+    private Set<String> getCachedKeys() {
+        Set<String> keys = new HashSet<String>();
+        for (String name : mChunks.keySet()) {
+            keys.add(name.substring(0, name.lastIndexOf('#')));
+        }
+        return keys;
+    }
+
+    private void saveIndex() {
+        mUnsavedChanges = 0;
+        // the length of a resource whose chunks are all gone is not worth keeping
+        Map<String, Long> lengths = new HashMap<String, Long>(mLengths);
+        lengths.keySet().retainAll(getCachedKeys());
+        File file = new File(mDir, INDEX_FILE);
+        File tmp = new File(mDir, INDEX_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mChunkSize);
+            out.writeLong(mNextFileId);
+            out.writeInt(lengths.size());
+            for (Map.Entry<String, Long> entry : lengths.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(mChunks.size());
+            for (Map.Entry<String, Chunk> entry : mChunks.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().fileId);
+                out.writeInt(entry.getValue().size);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write " + file + ": " + e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoders kept across playback sessions, as creating a hardware decoder can take hundreds of
+ * milliseconds. A released codec comes back stopped but not released, and is handed out again
+ * for the same {@link Key}: the caller configures it, with its own surface, as it would a new
+ * one. Hardware instances, in use and idle, are capped; idle codecs are released after a
+ * timeout, or first when the cap is reached. Thread safe.
+ */
+public final class CodecPool {
+    /** Hardware decoders allowed at once unless another cap is given. */
+    public static final int DEFAULT_MAX_HARDWARE_INSTANCES = 4;
+    /** Time an idle codec is kept unless another timeout is given. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    /** Audio, or no resolution. */
+    public static final int RESOLUTION_NONE = 0;
+    /** Up to 720x576. */
+    public static final int RESOLUTION_SD = 1;
+    /** Up to 1280x720. */
+    public static final int RESOLUTION_HD = 2;
+    /** Up to 1920x1088. */
+    public static final int RESOLUTION_FULL_HD = 3;
+    /** Anything larger. */
+    public static final int RESOLUTION_UHD = 4;
+
+    private static final String TAG = CodecPool.class.getSimpleName();
+
+    private final Pool<MediaCodec> mPool;
+
+    /** Codecs of the same key can stand in for each other. */
+    public static final class Key {
+        final String mime;
+        final int resolutionClass;
+        final boolean secure;
+
+        public Key(String mime, int resolutionClass, boolean secure) {
+            this.mime = mime;
+            this.resolutionClass = resolutionClass;
+            this.secure = secure;
+        }
+
+        /** Returns the key of a decoder for {@code format}. */
+        public static Key forFormat(MediaFormat format, boolean secure) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            int resolutionClass = RESOLUTION_NONE;
+            if (mime.startsWith("video/")) {
+                resolutionClass = getResolutionClass(format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT));
+            }
+            return new Key(mime, resolutionClass, secure);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mime.equals(other.mime) && resolutionClass == other.resolutionClass
+                    && secure == other.secure;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mime.hashCode() * 31 + resolutionClass) * 31 + (secure ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return mime + "/" + resolutionClass + (secure ? "/secure" : "");
+        }
+    }
+
+    /** What the pool does to its codecs: MediaCodec calls here, fakes in tests. */
+    interface Codecs<C> {
+        /** Creates a decoder for {@code key}. */
+        C create(Key key) throws IOException;
+
+        /** Returns true if {@code codec} is a hardware decoder, counted against the cap. */
+        boolean isHardware(C codec);
+
+        /** Stops {@code codec} for reuse; returns false if it cannot be reused. */
+        boolean stop(C codec);
+
+        void release(C codec);
+    }
+
+    public CodecPool() {
+        this(DEFAULT_MAX_HARDWARE_INSTANCES, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public CodecPool(int maxHardwareInstances, long idleTimeoutMs) {
+        mPool = new Pool<MediaCodec>(new MediaCodecs(), maxHardwareInstances, idleTimeoutMs);
+    }
+
+    /** Returns the RESOLUTION_* class of a {@code width} by {@code height} video. */
+    public static int getResolutionClass(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels <= 720 * 576) {
+            return RESOLUTION_SD;
+        } else if (pixels <= 1280 * 720) {
+            return RESOLUTION_HD;
+        } else if (pixels <= 1920 * 1088) {
+            return RESOLUTION_FULL_HD;
+        }
+        return RESOLUTION_UHD;
+    }
+
+    /**
+     * Returns a stopped, unconfigured decoder for {@code key}: an idle one if there is one,
+     * and a new one otherwise. Hits and misses also go to {@code metrics}, if not null. Throws
+     * if the codec cannot be created, or if it would be one hardware instance too many.
+     */
+    public MediaCodec acquire(Key key, PlaybackMetrics metrics) throws IOException {
+        return mPool.acquire(key, metrics);
+    }
+
+    /**
+     * Takes back a codec from {@link #acquire}. It is stopped and kept for the next acquire()
+     * of its key; one that cannot be stopped is released instead.
+     */
+    public void recycle(MediaCodec codec) {
+        mPool.recycle(codec);
+    }
+
+    /** Releases a codec from {@link #acquire} that is not to be reused, e.g. after an error. */
+    public void discard(MediaCodec codec) {
+        mPool.discard(codec);
+    }
+
+    /** Releases the idle codecs, e.g. when memory is low. */
+    public void clear() {
+        mPool.clear();
+    }
+
+    /** Returns the number of acquire() calls served by an idle codec. */
+    public long getHitCount() {
+        return mPool.getHitCount();
+    }
+
+    /** Returns the number of acquire() calls that had to create a codec. */
+    public long getMissCount() {
+        return mPool.getMissCount();
+    }
+
+    /** Returns the number of idle codecs released for the cap, the timeout or clear(). */
+    public long getEvictionCount() {
+        return mPool.getEvictionCount();
+    }
+
+    public int getIdleCount() {
+        return mPool.getIdleCount();
+    }
+
+    /** Returns the number of hardware codecs that exist, in use or idle. */
+    public int getHardwareInstanceCount() {
+        return mPool.getHardwareInstanceCount();
+    }
+
+    /** The pool itself, for any kind of codec; see {@link CodecPool} for what it does. */
+    static final class Pool<C> {
+        private final Codecs<C> mCodecs;
+        private final int mMaxHardwareInstances;
+        private final long mIdleTimeoutMs;
+        // idle codecs, least recently returned first
+        private final LinkedList<Entry<C>> mIdle = new LinkedList<Entry<C>>();
+        private final Map<C, Entry<C>> mInUse = new IdentityHashMap<C, Entry<C>>();
+        private int mHardwareInstances;
+        private long mHits;
+        private long mMisses;
+        private long mEvictions;
+        private ScheduledExecutorService mEvictor;
+
+        private static final class Entry<C> {
+            final C codec;
+            final Key key;
+            final boolean hardware;
+            long idleSinceMs;
+
+            Entry(C codec, Key key, boolean hardware) {
+                this.codec = codec;
+                this.key = key;
+                this.hardware = hardware;
+            }
+        }
+
+        Pool(Codecs<C> codecs, int maxHardwareInstances, long idleTimeoutMs) {
+            if (maxHardwareInstances <= 0 || idleTimeoutMs < 0) {
+                throw new IllegalArgumentException("cap " + maxHardwareInstances + ", timeout "
+                        + idleTimeoutMs);
+            }
+            mCodecs = codecs;
+            mMaxHardwareInstances = maxHardwareInstances;
+            mIdleTimeoutMs = idleTimeoutMs;
+        }
+
+        C acquire(Key key, PlaybackMetrics metrics) throws IOException {
+            synchronized (this) {
+                for (Iterator<Entry<C>> it = mIdle.descendingIterator(); it.hasNext();) {
+                    Entry<C> entry = it.next();
+                    if (entry.key.equals(key)) {
+                        it.remove();
+                        mInUse.put(entry.codec, entry);
+                        mHits++;
+                        if (metrics != null) {
+                            metrics.onCodecPoolHit();
+                        }
+                        return entry.codec;
+                    }
+                }
+                mMisses++;
+                if (metrics != null) {
+                    metrics.onCodecPoolMiss();
+                }
+            }
+
+            C codec = mCodecs.create(key);
+            Entry<C> entry = new Entry<C>(codec, key, mCodecs.isHardware(codec));
+            List<Entry<C>> evicted = new ArrayList<Entry<C>>();
+            boolean admitted;
+            synchronized (this) {
+                if (entry.hardware) {
+                    // make room for it, least recently returned idle codecs first
+                    for (Iterator<Entry<C>> it = mIdle.iterator();
+                            mHardwareInstances >= mMaxHardwareInstances && it.hasNext();) {
+                        Entry<C> idle = it.next();
+                        if (idle.hardware) {
+                            it.remove();
+                            mHardwareInstances--;
+                            mEvictions++;
+                            evicted.add(idle);
+                        }
+                    }
+                }
+                admitted = !entry.hardware || mHardwareInstances < mMaxHardwareInstances;
+                if (admitted) {
+                    if (entry.hardware) {
+                        mHardwareInstances++;
+                    }
+                    mInUse.put(codec, entry);
+                }
+            }
+            releaseAll(evicted);
+            if (admitted) {
+                return codec;
+            }
+            mCodecs.release(codec);
+            throw new IOException("all " + mMaxHardwareInstances + " hardware decoders in use");
+        }
+
+        void recycle(C codec) {
+            Entry<C> entry;
+            synchronized (this) {
+                entry = mInUse.remove(codec);
+            }
+            if (entry == null) {
+                throw new IllegalArgumentException("not from this pool: " + codec);
+            }
+            if (!mCodecs.stop(codec)) {
+                release(entry);
+                return;
+            }
+            synchronized (this) {
+                entry.idleSinceMs = System.currentTimeMillis();
+                mIdle.addLast(entry);
+                scheduleEviction();
+            }
+        }
+
+        void discard(C codec) {
+            Entry<C> entry;
+            synchronized (this) {
+                entry = mInUse.remove(codec);
+            }
+            if (entry == null) {
+                throw new IllegalArgumentException("not from this pool: " + codec);
+            }
+            release(entry);
+        }
+
+        void clear() {
+            List<Entry<C>> evicted;
+            synchronized (this) {
+                evicted = new ArrayList<Entry<C>>(mIdle);
+                mIdle.clear();
+                for (Entry<C> entry : evicted) {
+                    if (entry.hardware) {
+                        mHardwareInstances--;
+                    }
+                }
+                mEvictions += evicted.size();
+            }
+            releaseAll(evicted);
+        }
+
+        synchronized long getHitCount() {
+            return mHits;
+        }
+
+        synchronized long getMissCount() {
+            return mMisses;
+        }
+
+        synchronized long getEvictionCount() {
+            return mEvictions;
+        }
+
+        synchronized int getIdleCount() {
+            return mIdle.size();
+        }
+
+        synchronized int getHardwareInstanceCount() {
+            return mHardwareInstances;
+        }
+
+        /** Releases the codecs idle for longer than the timeout. */
+        private void evictExpired() {
+            List<Entry<C>> evicted = new ArrayList<Entry<C>>();
+            synchronized (this) {
+                long expiredMs = System.currentTimeMillis() - mIdleTimeoutMs;
+                while (!mIdle.isEmpty() && mIdle.getFirst().idleSinceMs <= expiredMs) {
+                    Entry<C> entry = mIdle.removeFirst();
+                    if (entry.hardware) {
+                        mHardwareInstances--;
+                    }
+                    mEvictions++;
+                    evicted.add(entry);
+                }
+                if (!mIdle.isEmpty()) {
+                    scheduleEviction();
+                }
+            }
+            releaseAll(evicted);
+        }
+
+        // called with the lock held
+        private void scheduleEviction() {
+            if (mEvictor == null) {
+                mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "CodecPool");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            long delayMs = mIdle.getFirst().idleSinceMs + mIdleTimeoutMs
+                    - System.currentTimeMillis();
+            mEvictor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evictExpired();
+                }
+            }, Math.max(delayMs, 0), TimeUnit.MILLISECONDS);
+        }
+
+        private void release(Entry<C> entry) {
+            synchronized (this) {
+                if (entry.hardware) {
+                    mHardwareInstances--;
+                }
+            }
+            mCodecs.release(entry.codec);
+        }
+
+        // codecs already taken out of the pool and its counts
+        private void releaseAll(List<Entry<C>> entries) {
+            for (Entry<C> entry : entries) {
+                mCodecs.release(entry.codec);
+            }
+        }
+    }
+
+    private static final class MediaCodecs implements Codecs<MediaCodec> {
+        @Override
+        public MediaCodec create(Key key) throws IOException {
+            return key.secure ? createSecureDecoder(key.mime)
+                    : MediaCodec.createDecoderByType(key.mime);
+        }
+
+        /** Software decoders are not limited by the hardware. */
+        @Override
+        public boolean isHardware(MediaCodec codec) {
+            String name = codec.getName();
+            return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+        }
+
+        @Override
+        public boolean stop(MediaCodec codec) {
+            try {
+                codec.stop();
+                // back to synchronous mode unless the next user sets a callback again
+                codec.setCallback(null);
+                return true;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "releasing decoder " + codec.getName() + " that cannot be reused: "
+                        + e);
+                return false;
+            }
+        }
+
+        @Override
+        public void release(MediaCodec codec) {
+            Log.d(TAG, "releasing decoder " + codec.getName());
+            codec.release();
+        }
+    }
+
+    private static MediaCodec createSecureDecoder(String mime) throws IOException {
+        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : list.getCodecInfos()) {
+            if (info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime) && info.getCapabilitiesForType(type)
+                        .isFeatureSupported(
+                                MediaCodecInfo.CodecCapabilities.FEATURE_SecurePlayback)) {
+                    return MediaCodec.createByCodecName(info.getName() + ".secure");
+                }
+            }
+        }
+        throw new IOException("no secure decoder for " + mime);
+    }
+}
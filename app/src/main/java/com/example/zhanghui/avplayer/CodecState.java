@@ -1,13 +1,17 @@
 package com.example.zhanghui.avplayer;
 
+import android.media.AudioFormat;
 import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 
 /**
  * Class for directly managing both audio and video playback by
@@ -16,34 +20,122 @@ import java.util.LinkedList;
 public class CodecState {
     private static final String TAG = CodecState.class.getSimpleName();
 
+    /** The codec is polled by doSomeWork() on the playback thread. */
+    public static final int MODE_SYNC = 0;
+    /** The codec drives this track through {@link MediaCodec.Callback} on its own thread. */
+    public static final int MODE_ASYNC = 1;
+
+    private static final int MSG_DO_WORK = 1;
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int DEFAULT_MAX_BUFFERS_PER_PASS = 8;
+
+    // bounds of the backoff used to poll the codec when a pass found nothing to do
+    private static final long MIN_POLL_INTERVAL_US = 1000;
+    private static final long MAX_POLL_INTERVAL_US = 20000;
+    // how soon an async track retries input after finding its sample queue empty
+    private static final long STARVED_RETRY_INTERVAL_US = 5000;
+    // inputs remembered for decode latency; more than any decoder holds at once
+    private static final int DECODE_TIMER_CAPACITY = 64;
+    // a rendered frame released later than this after its target counts as late
+    private static final long LATE_FRAME_THRESHOLD_US = 30000;
+    // decoded audio waiting for the AudioTrack at which input stops being fed, whatever the
+    // buffer controller allows
+    private static final int MAX_AUDIO_BYTES_QUEUED = 2 * 1024 * 1024;
+    /** Default of {@link #setCatchUpThresholdUs}. */
+    public static final long DEFAULT_CATCH_UP_THRESHOLD_US = 500000;
+
     private boolean mSawInputEOS, mSawOutputEOS;
     private boolean mLimitQueueDepth;
     private boolean mIsAudio;
+    private boolean mMadeProgress;
+    private boolean mPaused;
+    private boolean mCodecStarted;
+    private boolean mInputStalled;
+    private int mMaxBuffersPerPass;
+    private int mMode;
+    private int mPendingFlushCount;
     private ByteBuffer[] mCodecInputBuffers;
     private ByteBuffer[] mCodecOutputBuffers;
     private int mTrackIndex;
-    private LinkedList<Integer> mAvailableInputBufferIndices;
-    private LinkedList<Integer> mAvailableOutputBufferIndices;
-    private LinkedList<MediaCodec.BufferInfo> mAvailableOutputBufferInfos;
+    private BufferIndexQueue mAvailableInputBufferIndices;
+    private BufferIndexQueue mAvailableOutputBuffers;
+    private long mEarlyOutputTimeUs;
+    private long mPassCount;
+    private long mInputBuffersHandled;
+    private long mOutputBuffersHandled;
+    private int mPeakInputBuffersInPass;
+    private int mPeakOutputBuffersInPass;
+    private long mPollIntervalUs;
     private long mPresentationTimeUs;
     private long mSampleBaseTimeUs;
+    private long mDiscardBeforeUs;
+    private long mFirstOutputTimeNs;
+    private long mSeekDiscardedBuffers;
+    private long mAudioUnderruns;
+    private long mCatchUpThresholdUs;
+    // while catching up: when skipping began, the keyframe it ends at (-1 until found) and
+    // the number of samples left out
+    private long mCatchUpStartTimeNs;
+    private long mCatchUpKeyframeTimeUs;
+    private int mCatchUpSkippedSamples;
+    private float mPlaybackSpeed = 1.0f;
+    // presentation time of the last video output buffer, and the frame interval
+    private long mLastOutputTimeUs = -1;
+    private long mFrameDurationUs = -1;
+    private Handler mHandler;
+    private HandlerThread mCallbackThread;
     private MediaCodec mCodec;
+    private MediaCodec.BufferInfo mOutputBufferInfo;
+    private MediaCodec.CryptoInfo mCryptoInfo;
     private MediaTimeProvider mMediaTimeProvider;
-    private MediaExtractor mExtractor;
+    private SampleSource mExtractor;
     private MediaFormat mFormat;
     private MediaFormat mOutputFormat;
+    private String mMime;
+    private FrameDropPolicy mFrameDropPolicy;
     private NonBlockingAudioTrack mAudioTrack;
+    // between the codec and mAudioTrack; the volume stage is kept for setVolume()
+    private AudioProcessorChain mAudioProcessors;
+    private final PcmEncodingProcessor mPcmEncodingProcessor = new PcmEncodingProcessor();
+    private final VolumeProcessor mVolumeProcessor = new VolumeProcessor();
+    private boolean mHighResolutionAudioEnabled;
+    private AudioBufferController mAudioBufferController;
+    private long mMinAudioQueueUs = AudioBufferController.DEFAULT_MIN_QUEUE_US;
+    private long mMaxAudioQueueUs = AudioBufferController.DEFAULT_MAX_QUEUE_US;
+    private SampleQueue mSampleQueue;
+    private PlaybackMetrics mMetrics;
+    private DecodeTimer mDecodeTimer;
+    private CodecPool mCodecPool;
+    // a fatal error reported by the asynchronous codec, thrown on the playback thread
+    private MediaCodec.CodecException mAsyncError;
+    private Runnable mErrorListener;
 
     /**
      * Manages audio and video playback using MediaCodec and AudioTrack.
      */
     public CodecState(
             MediaTimeProvider mediaTimeProvider,
-            MediaExtractor extractor,
+            SampleSource extractor,
             int trackIndex,
             MediaFormat format,
             MediaCodec codec,
             boolean limitQueueDepth) {
+        this(mediaTimeProvider, extractor, trackIndex, format, codec, limitQueueDepth,
+                MODE_SYNC);
+    }
+
+    /**
+     * Manages audio and video playback using MediaCodec and AudioTrack. In {@link #MODE_ASYNC}
+     * the codec callback is installed here, so the codec must not have been configured yet.
+     */
+    public CodecState(
+            MediaTimeProvider mediaTimeProvider,
+            SampleSource extractor,
+            int trackIndex,
+            MediaFormat format,
+            MediaCodec codec,
+            boolean limitQueueDepth,
+            int mode) {
         mMediaTimeProvider = mediaTimeProvider;
         mExtractor = extractor;
         mTrackIndex = trackIndex;
@@ -51,135 +143,470 @@ public class CodecState {
         mSawInputEOS = mSawOutputEOS = false;
         mLimitQueueDepth = limitQueueDepth;
         mSampleBaseTimeUs = -1;
+        mDiscardBeforeUs = -1;
+        mCatchUpThresholdUs = DEFAULT_CATCH_UP_THRESHOLD_US;
+        mCatchUpKeyframeTimeUs = -1;
 
         mCodec = codec;
 
-        mAvailableInputBufferIndices = new LinkedList<Integer>();
-        mAvailableOutputBufferIndices = new LinkedList<Integer>();
-        mAvailableOutputBufferInfos = new LinkedList<MediaCodec.BufferInfo>();
+        // resized from the codec's buffer count once it is started
+        mAvailableInputBufferIndices = new BufferIndexQueue(DEFAULT_QUEUE_CAPACITY);
+        mAvailableOutputBuffers = new BufferIndexQueue(DEFAULT_QUEUE_CAPACITY);
+        mOutputBufferInfo = new MediaCodec.BufferInfo();
+        mCryptoInfo = new MediaCodec.CryptoInfo();
 
         mPresentationTimeUs = 0;
-
-        String mime = mFormat.getString(MediaFormat.KEY_MIME);
-        Log.d(TAG, "CodecState::onOutputFormatChanged " + mime);
-        mIsAudio = mime.startsWith("audio/");
+        mEarlyOutputTimeUs = -1;
+        mPollIntervalUs = MIN_POLL_INTERVAL_US;
+        mMaxBuffersPerPass = DEFAULT_MAX_BUFFERS_PER_PASS;
+
+        mMime = mFormat.getString(MediaFormat.KEY_MIME);
+        Log.d(TAG, "CodecState::onOutputFormatChanged " + mMime);
+        mIsAudio = mMime.startsWith("audio/");
+        if (!mIsAudio) {
+            mDecodeTimer = new DecodeTimer(DECODE_TIMER_CAPACITY);
+        }
+        mFrameDropPolicy = new FrameDropPolicy(FrameDropPolicy.POLICY_FIXED);
+
+        mMode = mode;
+        if (mMode == MODE_ASYNC) {
+            mCallbackThread = new HandlerThread(mIsAudio ? "CodecState:audio" : "CodecState:video",
+                    mIsAudio ? Process.THREAD_PRIORITY_AUDIO : Process.THREAD_PRIORITY_DISPLAY);
+            mCallbackThread.start();
+            mHandler = new Handler(mCallbackThread.getLooper(), new Handler.Callback() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    if (msg.what == MSG_DO_WORK) {
+                        doAsyncWork();
+                        return true;
+                    }
+                    return false;
+                }
+            });
+            mCodec.setCallback(new AsyncCallback(), mHandler);
+        }
     }
 
-    public void release() {
-        mCodec.stop();
+    public synchronized void release() {
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+        }
+
+        if (mCodecPool != null) {
+            // stopped there, and kept for the next session
+            mCodecPool.recycle(mCodec);
+        } else {
+            mCodec.stop();
+        }
         mCodecInputBuffers = null;
         mCodecOutputBuffers = null;
         mOutputFormat = null;
 
         mAvailableInputBufferIndices.clear();
-        mAvailableOutputBufferIndices.clear();
-        mAvailableOutputBufferInfos.clear();
+        mAvailableOutputBuffers.clear();
 
         mAvailableInputBufferIndices = null;
-        mAvailableOutputBufferIndices = null;
-        mAvailableOutputBufferInfos = null;
+        mAvailableOutputBuffers = null;
 
-        mCodec.release();
+        if (mCodecPool == null) {
+            mCodec.release();
+        }
         mCodec = null;
 
         if (mAudioTrack != null) {
             mAudioTrack.release();
             mAudioTrack = null;
         }
+
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+            mHandler = null;
+        }
     }
 
-    public void start() {
-        mCodec.start();
-        mCodecInputBuffers = mCodec.getInputBuffers();
-        mCodecOutputBuffers = mCodec.getOutputBuffers();
+    /** Starts the codec the first time; afterwards it resumes from pause(). */
+    public synchronized void start() {
+        mPaused = false;
+        if (!mCodecStarted) {
+            mCodec.start();
+            mCodecStarted = true;
+            if (mMode == MODE_SYNC) {
+                mCodecInputBuffers = mCodec.getInputBuffers();
+                mCodecOutputBuffers = mCodec.getOutputBuffers();
+                mAvailableInputBufferIndices.ensureCapacity(mCodecInputBuffers.length);
+                mAvailableOutputBuffers.ensureCapacity(mCodecOutputBuffers.length);
+            }
+        }
+        if (mMode == MODE_ASYNC) {
+            // pick up whatever the callbacks queued while paused
+            mHandler.sendEmptyMessage(MSG_DO_WORK);
+        }
 
         if (mAudioTrack != null) {
             mAudioTrack.play();
         }
     }
 
-    public void pause() {
+    public synchronized void pause() {
+        mPaused = true;
         if (mAudioTrack != null) {
             mAudioTrack.pause();
         }
     }
 
-    public long getCurrentPositionUs() {
+    public synchronized long getCurrentPositionUs() {
         return mPresentationTimeUs;
     }
 
-    public void flush() {
+    public synchronized void flush() {
         mAvailableInputBufferIndices.clear();
-        mAvailableOutputBufferIndices.clear();
-        mAvailableOutputBufferInfos.clear();
+        mAvailableOutputBuffers.clear();
 
         mSawInputEOS = false;
         mSawOutputEOS = false;
+        mEarlyOutputTimeUs = -1;
+        mDiscardBeforeUs = -1;
+        mFirstOutputTimeNs = 0;
+        mPollIntervalUs = MIN_POLL_INTERVAL_US;
+        mInputStalled = false;
+        mCatchUpStartTimeNs = 0;
+        mCatchUpKeyframeTimeUs = -1;
+        mLastOutputTimeUs = -1;
+        if (mDecodeTimer != null) {
+            mDecodeTimer.clear();
+        }
+        mFrameDropPolicy.reset();
+        if (mAudioProcessors != null) {
+            mAudioProcessors.flush();
+        }
 
         if (mAudioTrack != null
                 && mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
             mAudioTrack.flush();
         }
 
+        if (!mCodecStarted) {
+            // seeking before the first start(): nothing has reached the codec yet, and a
+            // configured codec cannot be flushed
+            return;
+        }
         mCodec.flush();
+
+        if (mMode == MODE_ASYNC) {
+            // Callbacks posted before the flush carry stale buffer indices; drop everything
+            // until this marker has gone through the handler, then restart the codec, which
+            // stops calling back after a flush.
+            mHandler.removeMessages(MSG_DO_WORK);
+            mPendingFlushCount++;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CodecState.this) {
+                        if (--mPendingFlushCount == 0 && mCodec != null) {
+                            mCodec.start();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells a flushed track where its input resumes after a seek, as a media time read from the
+     * extractor. With {@code discardEarlier} set, output before that time is still decoded, so
+     * that frames depending on it are correct, but dropped without being rendered or played.
+     */
+    public synchronized void setSeekTarget(long timeUs, boolean discardEarlier) {
+        long outputTimeUs = timeUs;
+        if (!mIsAudio && mSampleBaseTimeUs != -1) {
+            outputTimeUs -= mSampleBaseTimeUs;
+        }
+        mDiscardBeforeUs = discardEarlier ? outputTimeUs : -1;
+        mPresentationTimeUs = Math.max(outputTimeUs, 0);
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the first buffer after the last flush was
+     * rendered or handed to the AudioTrack, or 0 if none has been yet.
+     */
+    public synchronized long getFirstOutputTimeNs() {
+        return mFirstOutputTimeNs;
+    }
+
+    /** Returns the number of output buffers dropped because they preceded a seek target. */
+    public synchronized long getSeekDiscardedBuffers() {
+        return mSeekDiscardedBuffers;
     }
 
-    public boolean isEnded() {
+    public synchronized boolean isEnded() {
         return mSawInputEOS && mSawOutputEOS;
     }
 
+    /**
+     * Sets how many input and how many output buffers doSomeWork() may dequeue from the codec
+     * in one pass, so a burst of decoded frames is drained at once without one track starving
+     * the other.
+     */
+    public synchronized void setMaxBuffersPerPass(int maxBuffersPerPass) {
+        mMaxBuffersPerPass = Math.max(1, maxBuffersPerPass);
+    }
+
+    /** Returns the number of work passes run so far. */
+    public synchronized long getPassCount() {
+        return mPassCount;
+    }
+
+    /** Returns the number of input buffers queued to the codec so far. */
+    public synchronized long getInputBuffersHandled() {
+        return mInputBuffersHandled;
+    }
+
+    /** Returns the number of output buffers released so far. */
+    public synchronized long getOutputBuffersHandled() {
+        return mOutputBuffersHandled;
+    }
+
+    /** Returns the largest number of input buffers queued in a single pass. */
+    public synchronized int getPeakInputBuffersInPass() {
+        return mPeakInputBuffersInPass;
+    }
+
+    /** Returns the largest number of output buffers released in a single pass. */
+    public synchronized int getPeakOutputBuffersInPass() {
+        return mPeakOutputBuffersInPass;
+    }
+
+    /**
+     * Makes this track read its input from {@code queue}, filled by a {@link SamplePrefetcher},
+     * instead of from the extractor directly. Must be set before the first doSomeWork().
+     */
+    public synchronized void setSampleQueue(SampleQueue queue) {
+        mSampleQueue = queue;
+    }
+
+    public synchronized SampleQueue getSampleQueue() {
+        return mSampleQueue;
+    }
+
+    /**
+     * Makes this track report frames, decode latency, A/V drift and underruns to
+     * {@code metrics}. Must be set before the first doSomeWork().
+     */
+    public synchronized void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Runs {@code listener} on the codec's callback thread when an asynchronous codec fails
+     * for good, to wake up the playback thread: its next doSomeWork() throws the error.
+     */
+    public synchronized void setErrorListener(Runnable listener) {
+        mErrorListener = listener;
+    }
+
+    /** Makes release() hand the codec back to {@code pool}, which it came from. */
+    public synchronized void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Sets the policy deciding which late video frames are dropped; a fixed threshold of
+     * {@link FrameDropPolicy#DEFAULT_THRESHOLD_US} by default. Audio is never dropped.
+     */
+    public synchronized void setFrameDropPolicy(FrameDropPolicy policy) {
+        mFrameDropPolicy = policy;
+    }
+
+    /**
+     * Sets how far, in microseconds, the next video sample to decode may trail the audio clock
+     * before the samples up to the next keyframe are left out of decoding, so the video
+     * catches up in one step rather than by dropping one decoded frame after the other.
+     * -1 disables this.
+     */
+    public synchronized void setCatchUpThresholdUs(long thresholdUs) {
+        mCatchUpThresholdUs = thresholdUs;
+    }
+
+    /**
+     * Plays an audio track at {@code speed} times the normal rate, pitch kept, and makes a
+     * video track leave out non-reference frames when that rate has more frames than the
+     * display can show. Returns false if the audio output does not support the speed, in
+     * which case the track keeps its previous speed.
+     */
+    public synchronized boolean setPlaybackSpeed(float speed) {
+        if (mAudioTrack != null && !mAudioTrack.setPlaybackSpeed(speed)) {
+            return false;
+        }
+        // otherwise applied once the AudioTrack is created
+        mPlaybackSpeed = speed;
+        return true;
+    }
+
+    /**
+     * Plays float and 24/32-bit audio from the codec without converting it to 16-bit, where
+     * the AudioTrack can take it and no downmix or resampling is needed. Takes effect with the
+     * next output format.
+     */
+    public synchronized void setHighResolutionAudioEnabled(boolean enabled) {
+        mHighResolutionAudioEnabled = enabled;
+    }
+
+    /**
+     * Sets the bounds within which the decoded audio allowed to wait for the AudioTrack is
+     * tuned; see {@link AudioBufferController}. Takes effect with the next output format.
+     */
+    public synchronized void setAudioQueueBoundsUs(long minUs, long maxUs) {
+        mMinAudioQueueUs = minUs;
+        mMaxAudioQueueUs = maxUs;
+    }
+
+    /** Sets the volume of an audio track, 0 to 1; changes are ramped in. */
+    public synchronized void setVolume(float volume) {
+        mVolumeProcessor.setVolume(volume);
+    }
+
+    public synchronized float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    /** Returns {@link #MODE_SYNC} or {@link #MODE_ASYNC}. */
+    public int getMode() {
+        return mMode;
+    }
+
     /**
      * doSomeWork() is the worker function that does all buffer handling and decoding works.
-     * It first reads data from {@link MediaExtractor} and pushes it into {@link MediaCodec};
+     * It first reads data from {@link SampleSource} and pushes it into {@link MediaCodec};
      * it then dequeues buffer from {@link MediaCodec}, consumes it and pushes back to its own
-     * buffer queue for next round reading data from {@link MediaExtractor}.
+     * buffer queue for next round reading data from {@link SampleSource}.
+     * Every buffer the codec has ready is taken, up to {@link #setMaxBuffersPerPass} each way.
      */
-    public void doSomeWork() {
-        int indexInput = mCodec.dequeueInputBuffer(0 /* timeoutUs */);
+    public synchronized void doSomeWork() {
+        if (mMode == MODE_ASYNC) {
+            if (mAsyncError != null) {
+                // fails the playback thread as dequeueing from a synchronous codec would
+                throw mAsyncError;
+            }
+            // driven by the codec callbacks on the track's own thread
+            return;
+        }
 
-        if (indexInput != MediaCodec.INFO_TRY_AGAIN_LATER) {
+        mMadeProgress = false;
+        mEarlyOutputTimeUs = -1;
+
+        int inputBuffers = 0;
+        int outputBuffers = 0;
+
+        while (mAvailableInputBufferIndices.size() < mMaxBuffersPerPass) {
+            int indexInput = mCodec.dequeueInputBuffer(0 /* timeoutUs */);
+            if (indexInput == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            }
             mAvailableInputBufferIndices.add(indexInput);
+            mMadeProgress = true;
         }
 
         while (feedInputBuffer()) {
+            inputBuffers++;
         }
 
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        int indexOutput = mCodec.dequeueOutputBuffer(info, 0 /* timeoutUs */);
-
-        if (indexOutput == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            mOutputFormat = mCodec.getOutputFormat();
-            onOutputFormatChanged();
-        } else if (indexOutput == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            mCodecOutputBuffers = mCodec.getOutputBuffers();
-        } else if (indexOutput != MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mAvailableOutputBufferIndices.add(indexOutput);
-            mAvailableOutputBufferInfos.add(info);
+        MediaCodec.BufferInfo info = mOutputBufferInfo;
+        for (int i = 0; i < mMaxBuffersPerPass; i++) {
+            int indexOutput = mCodec.dequeueOutputBuffer(info, 0 /* timeoutUs */);
+
+            if (indexOutput == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (indexOutput == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mOutputFormat = mCodec.getOutputFormat();
+                onOutputFormatChanged();
+            } else if (indexOutput == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mCodecOutputBuffers = mCodec.getOutputBuffers();
+                mAvailableOutputBuffers.ensureCapacity(mCodecOutputBuffers.length);
+            } else {
+                mAvailableOutputBuffers.add(indexOutput, info.offset, info.size,
+                        info.presentationTimeUs, info.flags);
+                onOutputAvailable(info.presentationTimeUs);
+            }
+            mMadeProgress = true;
         }
 
         while (drainOutputBuffer()) {
+            outputBuffers++;
+        }
+
+        onPassDone(inputBuffers, outputBuffers);
+        if (inputBuffers > 0 || outputBuffers > 0) {
+            mMadeProgress = true;
+        }
+
+        if (mMadeProgress) {
+            mPollIntervalUs = MIN_POLL_INTERVAL_US;
+        } else {
+            mPollIntervalUs = Math.min(2 * mPollIntervalUs, MAX_POLL_INTERVAL_US);
         }
     }
 
+    /**
+     * Returns the time, in microseconds and in the same time base as {@link System#nanoTime()},
+     * at which doSomeWork() or process() next has something to do, or Long.MAX_VALUE if this
+     * track is waiting on nothing. A frame held back because it is too early is due at its
+     * release time; otherwise the codec is polled again after a backoff that grows while
+     * passes find nothing to do, since a synchronous codec cannot signal new buffers.
+     */
+    public synchronized long getNextWorkTimeUs(long nowUs) {
+        long nextUs = Long.MAX_VALUE;
+        if (mMode == MODE_ASYNC) {
+            return mAsyncError != null ? nowUs : nextUs;
+        }
+        if (!isEnded()) {
+            if (mMadeProgress) {
+                nextUs = nowUs;
+            } else {
+                nextUs = nowUs + mPollIntervalUs;
+                if (mEarlyOutputTimeUs != -1) {
+                    nextUs = Math.min(nextUs, Math.max(mEarlyOutputTimeUs, nowUs));
+                }
+            }
+        }
+        if (mAudioTrack != null) {
+            nextUs = Math.min(nextUs, mAudioTrack.getNextWriteTimeUs(nowUs));
+        }
+        return nextUs;
+    }
+
     /** Returns true if more input data could be fed. */
     private boolean feedInputBuffer() throws MediaCodec.CryptoException, IllegalStateException {
         if (mSawInputEOS || mAvailableInputBufferIndices.isEmpty()) {
             return false;
         }
 
-        // stalls read if audio queue is larger than 2MB full so we will not occupy too much heap
+        // stalls read if the audio queue holds more than the buffer controller allows, or more
+        // than 2MB in any case so we will not occupy too much heap
         if (mLimitQueueDepth && mAudioTrack != null &&
-                mAudioTrack.getNumBytesQueued() > 2 * 1024 * 1024) {
+                (mAudioTrack.getQueuedDurationUs() > mAudioBufferController.getQueueCapUs()
+                        || mAudioTrack.getNumBytesQueued() > MAX_AUDIO_BYTES_QUEUED)) {
             return false;
         }
 
-        int index = mAvailableInputBufferIndices.peekFirst().intValue();
+        int index = mAvailableInputBufferIndices.peekIndex();
 
-        ByteBuffer codecData = mCodecInputBuffers[index];
+        ByteBuffer codecData = mMode == MODE_SYNC ?
+                mCodecInputBuffers[index] : mCodec.getInputBuffer(index);
+
+        if (mSampleQueue != null) {
+            return feedInputBufferFromQueue(index, codecData);
+        }
 
         int trackIndex = mExtractor.getSampleTrackIndex();
 
         if (trackIndex == mTrackIndex) {
+            if (shouldSkipToKeyframe(mExtractor.getSampleTime(), mExtractor.getSampleFlags())) {
+                // left unread
+                mExtractor.advance();
+                return true;
+            }
+
             int sampleSize =
                 mExtractor.readSampleData(codecData, 0 /* offset */);
 
@@ -194,25 +621,23 @@ public class CodecState {
                 return false;
             }
 
-            if (!mIsAudio) {
-                if (mSampleBaseTimeUs == -1) {
-                    mSampleBaseTimeUs = sampleTime;
-                }
-                sampleTime -= mSampleBaseTimeUs;
-                // this is just used for getCurrentPosition, not used for avsync
-                mPresentationTimeUs = sampleTime;
+            sampleTime = adjustSampleTime(sampleTime);
+
+            if (shouldSkipInput(codecData, sampleSize, sampleFlags)) {
+                mExtractor.advance();
+                return true;
             }
 
             if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0) {
-                MediaCodec.CryptoInfo info = new MediaCodec.CryptoInfo();
-                mExtractor.getSampleCryptoInfo(info);
+                mExtractor.getSampleCryptoInfo(mCryptoInfo);
 
                 mCodec.queueSecureInputBuffer(
-                        index, 0 /* offset */, info, sampleTime, 0 /* flags */);
+                        index, 0 /* offset */, mCryptoInfo, sampleTime, 0 /* flags */);
             } else {
                 mCodec.queueInputBuffer(
                         index, 0 /* offset */, sampleSize, sampleTime, 0 /* flags */);
             }
+            onInputQueued(sampleTime);
 
             mAvailableInputBufferIndices.removeFirst();
             mExtractor.advance();
@@ -233,6 +658,164 @@ public class CodecState {
         return false;
     }
 
+    /** feedInputBuffer() for a track whose samples are prefetched into {@link #mSampleQueue}. */
+    private boolean feedInputBufferFromQueue(int index, ByteBuffer codecData) {
+        SampleQueue.Sample sample = mSampleQueue.peek();
+        if (sample == null) {
+            // the demux thread is behind; the queue counts this as a starvation event
+            if (!mInputStalled && mMetrics != null) {
+                mMetrics.onInputStall();
+            }
+            mInputStalled = true;
+            return false;
+        }
+        mInputStalled = false;
+
+        if (sample.endOfStream) {
+            Log.d(TAG, "saw input EOS on track " + mTrackIndex);
+
+            mSawInputEOS = true;
+
+            mCodec.queueInputBuffer(
+                    index, 0 /* offset */, 0 /* sampleSize */,
+                    0 /* sampleTime */, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+
+            mAvailableInputBufferIndices.removeFirst();
+            mSampleQueue.release();
+            return false;
+        }
+
+        if (shouldSkipToKeyframe(sample.timeUs, sample.flags)) {
+            mSampleQueue.release();
+            return true;
+        }
+
+        long sampleTime = adjustSampleTime(sample.timeUs);
+
+        if (shouldSkipInput(sample.data, sample.size, sample.flags)) {
+            mSampleQueue.release();
+            return true;
+        }
+
+        sample.data.position(0);
+        sample.data.limit(sample.size);
+        codecData.clear();
+        codecData.put(sample.data);
+
+        if ((sample.flags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0) {
+            mCodec.queueSecureInputBuffer(
+                    index, 0 /* offset */, sample.cryptoInfo, sampleTime, 0 /* flags */);
+        } else {
+            mCodec.queueInputBuffer(
+                    index, 0 /* offset */, sample.size, sampleTime, 0 /* flags */);
+        }
+        onInputQueued(sampleTime);
+
+        mAvailableInputBufferIndices.removeFirst();
+        mSampleQueue.release();
+
+        return true;
+    }
+
+    /**
+     * Returns true if a video sample is to be left out of decoding because late frames keep
+     * being dropped and nothing else depends on it. The input buffer stays available.
+     */
+    private boolean shouldSkipInput(ByteBuffer data, int size, int sampleFlags) {
+        if (mIsAudio || (!mFrameDropPolicy.shouldSkipNonReferenceInput()
+                && !isFrameRateAboveDisplayRate())
+                || (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0
+                || !NalUnits.isNonReference(mMime, data, 0, size)) {
+            return false;
+        }
+        if (mMetrics != null) {
+            mMetrics.onFrameDropped(PlaybackMetrics.DROP_REASON_NON_REFERENCE);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a video sample, with its extractor time, is to be left out of decoding
+     * because the video has fallen too far behind the audio clock. Once that happens every
+     * sample is skipped until the next sync sample; the catch up is complete when the first
+     * frame from there is rendered.
+     */
+    private boolean shouldSkipToKeyframe(long sampleTimeUs, int sampleFlags) {
+        if (mIsAudio || mCatchUpThresholdUs < 0 || mSampleBaseTimeUs == -1) {
+            return false;
+        }
+
+        boolean sync = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        if (mCatchUpStartTimeNs == 0 || mCatchUpKeyframeTimeUs != -1) {
+            if (sync) {
+                // decoded in any case; nothing to gain by skipping to it
+                return false;
+            }
+            long lagUs = mMediaTimeProvider.getAudioVideoDriftUs(
+                    sampleTimeUs - mSampleBaseTimeUs, System.nanoTime() / 1000);
+            if (lagUs <= mCatchUpThresholdUs) {
+                return false;
+            }
+            Log.d(TAG, "video behind by " + lagUs + " us, skipping to the next keyframe");
+            if (mCatchUpStartTimeNs == 0) {
+                mCatchUpStartTimeNs = System.nanoTime();
+                mCatchUpSkippedSamples = 0;
+            }
+            // else still behind after the last keyframe; both count as one catch up
+            mCatchUpKeyframeTimeUs = -1;
+        } else if (sync) {
+            mCatchUpKeyframeTimeUs = sampleTimeUs - mSampleBaseTimeUs;
+            return false;
+        }
+
+        mCatchUpSkippedSamples++;
+        if (mMetrics != null) {
+            mMetrics.onFrameDropped(PlaybackMetrics.DROP_REASON_CATCH_UP);
+        }
+        return true;
+    }
+
+    /** Ends a catch up once a frame from its keyframe on is rendered. */
+    private void onFrameRendered(long presentationTimeUs) {
+        if (mCatchUpStartTimeNs == 0 || mCatchUpKeyframeTimeUs == -1
+                || presentationTimeUs < mCatchUpKeyframeTimeUs) {
+            return;
+        }
+        long recoveryUs = (System.nanoTime() - mCatchUpStartTimeNs) / 1000;
+        Log.d(TAG, "caught up in " + recoveryUs + " us, " + mCatchUpSkippedSamples
+                + " samples skipped");
+        if (mMetrics != null) {
+            mMetrics.onCatchUp(recoveryUs);
+        }
+        mCatchUpStartTimeNs = 0;
+        mCatchUpKeyframeTimeUs = -1;
+    }
+
+    /**
+     * Returns true if the playback speed makes frames come faster than the display refreshes,
+     * so some could never be shown anyway.
+     */
+    private boolean isFrameRateAboveDisplayRate() {
+        if (mPlaybackSpeed <= 1.0f || mFrameDurationUs <= 0) {
+            return false;
+        }
+        long vsyncDurationNs = mMediaTimeProvider.getVsyncDurationNs();
+        return vsyncDurationNs > 0 && mFrameDurationUs * 1000 / mPlaybackSpeed < vsyncDurationNs;
+    }
+
+    /** Rebases video sample times so that playback position starts at zero. */
+    private long adjustSampleTime(long sampleTime) {
+        if (!mIsAudio) {
+            if (mSampleBaseTimeUs == -1) {
+                mSampleBaseTimeUs = sampleTime;
+            }
+            sampleTime -= mSampleBaseTimeUs;
+            // this is just used for getCurrentPosition, not used for avsync
+            mPresentationTimeUs = sampleTime;
+        }
+        return sampleTime;
+    }
+
     private void onOutputFormatChanged() {
         String mime = mOutputFormat.getString(MediaFormat.KEY_MIME);
         Log.d(TAG, "CodecState::onOutputFormatChanged " + mime);
@@ -246,17 +829,46 @@ public class CodecState {
             int channelCount =
                 mOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
 
+            int encoding = mOutputFormat.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                    ? mOutputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                    : AudioFormat.ENCODING_PCM_16BIT;
+
             Log.d(TAG, "CodecState::onOutputFormatChanged Audio" +
-                    " sampleRate:" + sampleRate + " channels:" + channelCount);
+                    " sampleRate:" + sampleRate + " channels:" + channelCount +
+                    " encoding:" + encoding);
             // We do sanity check here after we receive data from MediaExtractor and before
             // we pass them down to AudioTrack. If MediaExtractor works properly, this
             // sanity-check is not necessary, however, in our tests, we found that there
             // are a few cases where ch=0 and samplerate=0 were returned by MediaExtractor.
-            if (channelCount < 1 || channelCount > 8 ||
-                    sampleRate < 8000 || sampleRate > 128000) {
+            // Channel layouts and rates the AudioTrack cannot take are converted below.
+            if (channelCount < 1 || sampleRate <= 0) {
+                Log.w(TAG, "no audio output for sampleRate:" + sampleRate +
+                        " channels:" + channelCount);
                 return;
             }
-            mAudioTrack = new NonBlockingAudioTrack(sampleRate, channelCount);
+            if (mAudioProcessors == null) {
+                mAudioProcessors = new AudioProcessorChain(mPcmEncodingProcessor,
+                        new ChannelDownmixProcessor(), new ResamplingProcessor(),
+                        mVolumeProcessor);
+            }
+            if (!configureAudioProcessors(sampleRate, channelCount, encoding)) {
+                return;
+            }
+            if (mAudioTrack != null) {
+                // the format changed mid-stream
+                mAudioTrack.release();
+            }
+            mAudioTrack = new NonBlockingAudioTrack(mAudioProcessors.getOutputSampleRate(),
+                    mAudioProcessors.getOutputChannelCount(),
+                    mAudioProcessors.getOutputEncoding());
+            mAudioBufferController = new AudioBufferController(
+                    mAudioTrack.getMinBufferSizeInFrames(),
+                    mAudioTrack.getBufferCapacityInFrames(),
+                    mAudioTrack.getBufferSizeInFrames(), mMinAudioQueueUs, mMaxAudioQueueUs);
+            mAudioUnderruns = 0;
+            if (mPlaybackSpeed != 1.0f && !mAudioTrack.setPlaybackSpeed(mPlaybackSpeed)) {
+                mPlaybackSpeed = 1.0f;
+            }
             mAudioTrack.play();
         }
 
@@ -268,19 +880,47 @@ public class CodecState {
         }
     }
 
+    /**
+     * Sets up the audio processors for the codec's output, keeping high-resolution audio as
+     * it is if enabled and no stage that only works on 16-bit audio has to change it.
+     * Returns false if the audio cannot be played at all.
+     */
+    private boolean configureAudioProcessors(int sampleRate, int channelCount, int encoding) {
+        mPcmEncodingProcessor.setHighResolutionEnabled(mHighResolutionAudioEnabled);
+        try {
+            mAudioProcessors.configure(sampleRate, channelCount, encoding);
+            return true;
+        } catch (IllegalArgumentException e) {
+            if (!mHighResolutionAudioEnabled) {
+                Log.w(TAG, "no audio output: " + e.getMessage());
+                return false;
+            }
+        }
+        mPcmEncodingProcessor.setHighResolutionEnabled(false);
+        try {
+            mAudioProcessors.configure(sampleRate, channelCount, encoding);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "no audio output: " + e.getMessage());
+            return false;
+        }
+    }
+
     /** Returns true if more output data could be drained. */
     //audio and video belongs to different codecstate, one has audio, the other one dont
     //so there exists two mPresentationTimeUs, one for audio, the other one for video
     //however, audio and video draining works in the same thread
     private boolean drainOutputBuffer() {
-        if (mSawOutputEOS || mAvailableOutputBufferIndices.isEmpty()) {
+        if (mSawOutputEOS || mAvailableOutputBuffers.isEmpty()) {
             return false;
         }
 
-        int index = mAvailableOutputBufferIndices.peekFirst().intValue();
-        MediaCodec.BufferInfo info = mAvailableOutputBufferInfos.peekFirst();
+        int index = mAvailableOutputBuffers.peekIndex();
+        int offset = mAvailableOutputBuffers.peekOffset();
+        int size = mAvailableOutputBuffers.peekSize();
+        long presentationTimeUs = mAvailableOutputBuffers.peekPresentationTimeUs();
 
-        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        if ((mAvailableOutputBuffers.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             Log.d(TAG, "saw output EOS on track " + mTrackIndex);
 
             mSawOutputEOS = true;
@@ -288,54 +928,270 @@ public class CodecState {
             return false;
         }
 
-        if (mAudioTrack != null) {
-            ByteBuffer buffer = mCodecOutputBuffers[index];
-            buffer.clear();
-            ByteBuffer audioBuffer = ByteBuffer.allocate(buffer.remaining());
-            audioBuffer.put(buffer);
-            audioBuffer.clear();
+        if (presentationTimeUs < mDiscardBeforeUs) {
+            // only decoded to get to an accurate seek target
+            mCodec.releaseOutputBuffer(index, false /* render */);
+            mSeekDiscardedBuffers++;
+            mAvailableOutputBuffers.removeFirst();
+            return true;
+        }
 
-            mAudioTrack.write(audioBuffer, info.size, info.presentationTimeUs*1000);
+        if (mAudioTrack != null) {
+            ByteBuffer buffer = mMode == MODE_SYNC ?
+                    mCodecOutputBuffers[index] : mCodec.getOutputBuffer(index);
+            buffer.limit(offset + size);
+            buffer.position(offset);
+
+            // copied into a pooled buffer; if the queue is full keep the output buffer
+            // and try again once the AudioTrack has consumed some data. Checked before
+            // processing, as the processors carry state from one buffer to the next.
+            if (!mAudioTrack.canWrite()) {
+                return false;
+            }
+            ByteBuffer processed = mAudioProcessors.process(buffer);
+            mAudioTrack.write(processed, processed.remaining(), presentationTimeUs*1000);
 
             mCodec.releaseOutputBuffer(index, false /* render */);
 
-            mPresentationTimeUs = info.presentationTimeUs;
+            mPresentationTimeUs = presentationTimeUs;
+            onOutputReleased();
 
-            mAvailableOutputBufferIndices.removeFirst();
-            mAvailableOutputBufferInfos.removeFirst();
+            mAvailableOutputBuffers.removeFirst();
             return true;
         } else {
             // video
-            boolean render;
-            long twiceVsyncDurationUs = 2 * mMediaTimeProvider.getVsyncDurationNs()/1000;
+            // the shortest interval seen, so frames left out do not hide the real frame rate
+            if (presentationTimeUs > mLastOutputTimeUs && mLastOutputTimeUs != -1) {
+                long intervalUs = presentationTimeUs - mLastOutputTimeUs;
+                if (mFrameDurationUs == -1 || intervalUs < mFrameDurationUs) {
+                    mFrameDurationUs = intervalUs;
+                }
+            }
+            mLastOutputTimeUs = presentationTimeUs;
+
+            long vsyncDurationUs = mMediaTimeProvider.getVsyncDurationNs()/1000;
+            long twiceVsyncDurationUs = 2 * vsyncDurationUs;
 
             long realTimeUs =
-                    mMediaTimeProvider.getRealTimeUsForMediaTime(info.presentationTimeUs); //映射到nowUs时间轴上
+                    mMediaTimeProvider.getRealTimeUsForMediaTime(presentationTimeUs); //映射到nowUs时间轴上
             long nowUs = mMediaTimeProvider.getNowUs(); //audio play time
             //String streamType = mAudioTrack == null ? "video:":"audio:";
-            //Log.d("avsync", streamType + " presentationUs is " + info.presentationTimeUs + ",realTimeUs is " + realTimeUs + ",nowUs is " + nowUs);
+            //Log.d("avsync", streamType + " presentationUs is " + presentationTimeUs + ",realTimeUs is " + realTimeUs + ",nowUs is " + nowUs);
             long lateUs = System.nanoTime()/1000 - realTimeUs;
 
             if (lateUs < -twiceVsyncDurationUs) {
-                // too early;
+                // too early; come back when the frame is within the release window
+                mEarlyOutputTimeUs = realTimeUs - twiceVsyncDurationUs;
                 return false;
-            } else if (lateUs > 30000) {
-                Log.d(TAG, "video late by " + lateUs + " us.");
-                render = false;
-            } else {
-                render = true;
-                mPresentationTimeUs = info.presentationTimeUs;
             }
 
-            //mCodec.releaseOutputBuffer(index, render);
-            mCodec.releaseOutputBuffer(index, realTimeUs*1000);
-            mAvailableOutputBufferIndices.removeFirst();
-            mAvailableOutputBufferInfos.removeFirst();
+            if (mFrameDropPolicy.shouldDrop(lateUs, vsyncDurationUs)) {
+                Log.d(TAG, "video late by " + lateUs + " us, dropped.");
+                mCodec.releaseOutputBuffer(index, false /* render */);
+                mFrameDropPolicy.onFrameDropped();
+                if (mMetrics != null) {
+                    mMetrics.onFrameDropped(PlaybackMetrics.DROP_REASON_LATE);
+                    mMetrics.onFrameLate();
+                    mMetrics.recordReleaseLatenessUs(lateUs);
+                }
+            } else {
+                mPresentationTimeUs = presentationTimeUs;
+                mCodec.releaseOutputBuffer(index, realTimeUs*1000);
+                onOutputReleased();
+                mFrameDropPolicy.onFrameRendered();
+                onFrameRendered(presentationTimeUs);
+                if (mMetrics != null) {
+                    mMetrics.onFrameRendered();
+                    mMetrics.recordReleaseLatenessUs(lateUs);
+                    mMetrics.recordAvDriftUs(mMediaTimeProvider.getAudioVideoDriftUs(
+                            presentationTimeUs, realTimeUs));
+                    if (lateUs > LATE_FRAME_THRESHOLD_US) {
+                        mMetrics.onFrameLate();
+                    }
+                }
+            }
+            mAvailableOutputBuffers.removeFirst();
             return true;
         }
     }
 
-    public long getAudioTimeUs() {
+    /**
+     * Work pass of {@link #MODE_ASYNC}, run on the track's own thread whenever the codec hands
+     * over a buffer, and again when a held back video frame or pending audio data is due.
+     */
+    private synchronized void doAsyncWork() {
+        if (mCodec == null || mPaused || mPendingFlushCount > 0) {
+            return;
+        }
+        mEarlyOutputTimeUs = -1;
+        int inputBuffers = 0;
+        int outputBuffers = 0;
+
+        while (feedInputBuffer()) {
+            inputBuffers++;
+        }
+
+        while (drainOutputBuffer()) {
+            outputBuffers++;
+        }
+
+        onPassDone(inputBuffers, outputBuffers);
+
+        if (mAudioTrack != null) {
+            mAudioTrack.process();
+            updateAudioOutput();
+        }
+
+        long nowUs = System.nanoTime() / 1000;
+        long nextUs = Long.MAX_VALUE;
+        if (mEarlyOutputTimeUs != -1) {
+            nextUs = mEarlyOutputTimeUs;
+        }
+        if (mAudioTrack != null) {
+            // also retries input held back while the audio queue was over its limit
+            nextUs = Math.min(nextUs, mAudioTrack.getNextWriteTimeUs(nowUs));
+        }
+        if (mSampleQueue != null && !mSawInputEOS && !mAvailableInputBufferIndices.isEmpty()) {
+            // input buffers are waiting on the demux thread; no codec callback will come
+            nextUs = Math.min(nextUs, nowUs + STARVED_RETRY_INTERVAL_US);
+        }
+
+        mHandler.removeMessages(MSG_DO_WORK);
+        if (nextUs != Long.MAX_VALUE) {
+            mHandler.sendEmptyMessageDelayed(MSG_DO_WORK, Math.max(0, (nextUs - nowUs) / 1000));
+        }
+    }
+
+    private void onInputQueued(long sampleTimeUs) {
+        if (mDecodeTimer != null) {
+            mDecodeTimer.onInputQueued(sampleTimeUs, System.nanoTime());
+        }
+    }
+
+    private void onOutputAvailable(long presentationTimeUs) {
+        if (mDecodeTimer != null) {
+            long latencyNs = mDecodeTimer.onOutput(presentationTimeUs, System.nanoTime());
+            if (latencyNs >= 0) {
+                mFrameDropPolicy.onDecodeLatencyUs(latencyNs / 1000);
+                if (mMetrics != null) {
+                    mMetrics.recordDecodeLatencyUs(latencyNs / 1000);
+                }
+            }
+        }
+    }
+
+    /**
+     * After writing to the AudioTrack: lets the buffer controller resize the output from the
+     * underruns and the queue, and adds the AudioTrack's underruns since the last call, the
+     * write latency and the queued audio to the metrics.
+     */
+    private void updateAudioOutput() {
+        long underruns = mAudioTrack.getUnderrunCount();
+        long queuedUs = mAudioTrack.getQueuedDurationUs();
+        boolean playing = !mPaused
+                && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+
+        int increases = mAudioBufferController.getIncreaseCount();
+        int decreases = mAudioBufferController.getDecreaseCount();
+        if (mAudioBufferController.update(System.nanoTime() / 1000, underruns, queuedUs,
+                playing)) {
+            mAudioBufferController.onBufferSizeApplied(mAudioTrack.setBufferSizeInFrames(
+                    mAudioBufferController.getBufferSizeFrames()));
+        }
+
+        if (mMetrics == null) {
+            return;
+        }
+        if (underruns > mAudioUnderruns) {
+            mMetrics.onAudioUnderruns(underruns - mAudioUnderruns);
+            mAudioUnderruns = underruns;
+        }
+        if (mAudioBufferController.getIncreaseCount() != increases
+                || mAudioBufferController.getDecreaseCount() != decreases) {
+            mMetrics.onAudioBufferResized(mAudioBufferController.getIncreaseCount() != increases,
+                    mAudioTrack.getBufferSizeUs(), mAudioBufferController.getQueueCapUs());
+        }
+        long writeLatencyUs = mAudioTrack.getWriteLatencyUs();
+        if (writeLatencyUs > 0) {
+            mMetrics.recordAudioWriteLatencyUs(writeLatencyUs);
+        }
+        mMetrics.recordAudioQueuedUs(queuedUs);
+    }
+
+    private void onOutputReleased() {
+        if (mFirstOutputTimeNs == 0) {
+            mFirstOutputTimeNs = System.nanoTime();
+        }
+    }
+
+    private void onPassDone(int inputBuffers, int outputBuffers) {
+        mPassCount++;
+        mInputBuffersHandled += inputBuffers;
+        mOutputBuffersHandled += outputBuffers;
+        mPeakInputBuffersInPass = Math.max(mPeakInputBuffersInPass, inputBuffers);
+        mPeakOutputBuffersInPass = Math.max(mPeakOutputBuffersInPass, outputBuffers);
+    }
+
+    private class AsyncCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (CodecState.this) {
+                if (mCodec == null || mPendingFlushCount > 0) {
+                    return;
+                }
+                mAvailableInputBufferIndices.add(index);
+            }
+            doAsyncWork();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            synchronized (CodecState.this) {
+                if (mCodec == null || mPendingFlushCount > 0) {
+                    return;
+                }
+                mAvailableOutputBuffers.add(index, info.offset, info.size,
+                        info.presentationTimeUs, info.flags);
+                onOutputAvailable(info.presentationTimeUs);
+            }
+            doAsyncWork();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            synchronized (CodecState.this) {
+                if (mCodec == null || mPendingFlushCount > 0) {
+                    return;
+                }
+                mOutputFormat = format;
+                CodecState.this.onOutputFormatChanged();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Runnable listener;
+            synchronized (CodecState.this) {
+                if (mCodec == null) {
+                    return;
+                }
+                if (e.isRecoverable()) {
+                    Log.w(TAG, "codec error on track " + mTrackIndex + ", restarting: " + e);
+                    flush();
+                    return;
+                }
+                Log.e(TAG, "codec error on track " + mTrackIndex + ": " + e);
+                mAsyncError = e;
+                listener = mErrorListener;
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    public synchronized long getAudioTimeUs() {
         if (mAudioTrack == null) {
             return 0;
         }
@@ -343,9 +1199,10 @@ public class CodecState {
         return mAudioTrack.getAudioTimeUs();
     }
 
-    public void process() {
-        if (mAudioTrack != null) {
+    public synchronized void process() {
+        if (mMode == MODE_SYNC && mAudioTrack != null) {
             mAudioTrack.process();
+            updateAudioOutput();
         }
     }
 }
@@ -0,0 +1,45 @@
+package com.example.zhanghui.avplayer;
+
+import java.util.Arrays;
+
+/**
+ * Remembers when recent input samples were queued to a codec, so the time until the matching
+ * output buffer appears can be measured. Input and output are matched by presentation time, as
+ * output comes in presentation rather than decode order. Kept in fixed primitive arrays; the
+ * oldest entries are overwritten once more samples are in flight than the arrays hold.
+ */
+final class DecodeTimer {
+    private static final long NO_PTS = Long.MIN_VALUE;
+
+    private final long[] mPresentationTimesUs;
+    private final long[] mQueuedTimesNs;
+    private int mNext;
+
+    DecodeTimer(int capacity) {
+        mPresentationTimesUs = new long[capacity];
+        mQueuedTimesNs = new long[capacity];
+        clear();
+    }
+
+    void onInputQueued(long presentationTimeUs, long nowNs) {
+        mPresentationTimesUs[mNext] = presentationTimeUs;
+        mQueuedTimesNs[mNext] = nowNs;
+        mNext = (mNext + 1) % mPresentationTimesUs.length;
+    }
+
+    /** Returns the time since the matching input was queued, in ns, or -1 if unknown. */
+    long onOutput(long presentationTimeUs, long nowNs) {
+        for (int i = 0; i < mPresentationTimesUs.length; i++) {
+            if (mPresentationTimesUs[i] == presentationTimeUs) {
+                mPresentationTimesUs[i] = NO_PTS;
+                return nowNs - mQueuedTimesNs[i];
+            }
+        }
+        return -1;
+    }
+
+    void clear() {
+        Arrays.fill(mPresentationTimesUs, NO_PTS);
+        mNext = 0;
+    }
+}
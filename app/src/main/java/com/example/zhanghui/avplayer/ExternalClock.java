@@ -0,0 +1,31 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Clock that only moves when told to, e.g. by a timecode source or a test driving playback in
+ * virtual time. May be read from any thread; expected to be driven from one.
+ */
+public class ExternalClock implements MediaClock {
+    private volatile long mTimeUs;
+
+    public ExternalClock(long timeUs) {
+        mTimeUs = timeUs;
+    }
+
+    @Override
+    public long getTimeUs() {
+        return mTimeUs;
+    }
+
+    @Override
+    public void setSpeed(float speed) {
+        // paced by whoever drives it
+    }
+
+    public void setTimeUs(long timeUs) {
+        mTimeUs = timeUs;
+    }
+
+    public void advanceUs(long deltaUs) {
+        mTimeUs += deltaUs;
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.zhanghui.avplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads sample data out of a local file for {@link Mp4Extractor}, in one of three ways:
+ * <ul>
+ * <li>{@link #MODE_MAPPED}: through a read-only memory mapping of a window of the file,
+ * sliced without copying, so each sample is copied once, straight into the caller's
+ * buffer, and read without a system call. Windows keep each mapping well under the 2 GB a
+ * buffer can address, so files of any size work. Ahead of the read position the next window
+ * is loaded into the page cache on a background thread, so playback does not wait on page
+ * faults.
+ * <li>{@link #MODE_READ_AHEAD}: by positional reads into a 1 MB buffer, which samples are
+ * then copied out of: one read per buffer, two copies per sample.
+ * <li>{@link #MODE_PER_SAMPLE}: by one positional read per sample, straight into the
+ * caller's buffer, as MediaExtractor does.
+ * </ul>
+ * Counts the bytes copied and the read calls made, to compare the three. Not thread safe.
+ */
+final class FileSampleReader {
+    static final int MODE_MAPPED = 0;
+    static final int MODE_READ_AHEAD = 1;
+    static final int MODE_PER_SAMPLE = 2;
+
+    private static final String TAG = "FileSampleReader";
+    private static final int READ_AHEAD_SIZE = 1024 * 1024;
+    // 32-bit processes have little address space to spare
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    // windows start on a multiple of this, so nearby reads after a seek share one
+    private static final int WINDOW_ALIGNMENT = 1024 * 1024;
+
+    // loads windows ahead of the readers of all files
+    private static ExecutorService sLoader;
+
+    private final FileChannel mChannel;
+    private final int mMode;
+    private final long mFileSize;
+
+    private ByteBuffer mReadAhead;
+    private long mReadAheadPosition;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private long mWindowEnd;
+    // whether what follows the window is already being loaded
+    private boolean mLoadingAhead;
+
+    private long mBytesCopied;
+    private long mReadCount;
+    private long mMapCount;
+
+    FileSampleReader(FileChannel channel, int mode) throws IOException {
+        mChannel = channel;
+        mMode = mode;
+        mFileSize = channel.size();
+        if (mode == MODE_READ_AHEAD) {
+            mReadAhead = ByteBuffer.allocateDirect(READ_AHEAD_SIZE);
+            // nothing read ahead yet
+            mReadAhead.limit(0);
+        }
+    }
+
+    /** Fills {@code buffer} from its position to its limit with the data at {@code position}. */
+    void read(long position, ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        if (position < 0 || position + size > mFileSize) {
+            throw new IOException("read past the end of the file at " + position);
+        }
+        if (mMode == MODE_MAPPED) {
+            buffer.put(slice(position, size));
+        } else if (mMode == MODE_READ_AHEAD && size <= READ_AHEAD_SIZE) {
+            readAhead(position, buffer);
+        } else {
+            readFully(buffer, position);
+        }
+        mBytesCopied += size;
+    }
+
+    /** Returns the mapped data at {@code position}, moving the window over it if need be. */
+    private ByteBuffer slice(long position, int size) throws IOException {
+        if (mWindow == null || position < mWindowStart || position + size > mWindowEnd) {
+            long start = position - position % WINDOW_ALIGNMENT;
+            long length = Math.min(mFileSize - start,
+                    Math.max(WINDOW_SIZE, position - start + size));
+            // a new window leaves the old one to be unmapped by the garbage collector
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            mWindowStart = start;
+            mWindowEnd = start + length;
+            mLoadingAhead = false;
+            mMapCount++;
+        }
+        // once past the middle of the window, the next one should be on its way
+        if (!mLoadingAhead && position - mWindowStart >= (mWindowEnd - mWindowStart) / 2) {
+            mLoadingAhead = true;
+            if (mWindowEnd < mFileSize) {
+                loadAhead(mWindowEnd, Math.min(WINDOW_SIZE, mFileSize - mWindowEnd));
+            }
+        }
+        ByteBuffer slice = mWindow.duplicate();
+        slice.position((int) (position - mWindowStart));
+        slice.limit(slice.position() + size);
+        return slice;
+    }
+
+    /**
+     * Maps {@code length} bytes at {@code offset} on the loader thread and touches every page,
+     * which leaves them in the page cache for the window mapped over them later.
+     */
+    private void loadAhead(final long offset, final long length) {
+        getLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length).load();
+                } catch (IOException | RuntimeException e) {
+                    // only ahead of time; page faults bring the data in all the same
+                    Log.w(TAG, "cannot load " + length + " bytes at " + offset + ": " + e);
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getLoader() {
+        if (sLoader == null) {
+            sLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FileSampleReader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sLoader;
+    }
+
+    private void readAhead(long position, ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        long windowEnd = mReadAheadPosition + mReadAhead.limit();
+        if (position < mReadAheadPosition || position + size > windowEnd) {
+            mReadAhead.clear();
+            mReadAheadPosition = position;
+            while (mReadAhead.hasRemaining()) {
+                mReadCount++;
+                int read = mChannel.read(mReadAhead, position + mReadAhead.position());
+                if (read < 0) {
+                    break;
+                }
+                mBytesCopied += read;
+            }
+            mReadAhead.flip();
+            if (mReadAhead.limit() < size) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        ByteBuffer window = mReadAhead.duplicate();
+        window.position((int) (position - mReadAheadPosition));
+        window.limit(window.position() + size);
+        buffer.put(window);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            mReadCount++;
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Returns the bytes copied so far: out of the page cache by read calls, and between
+     * buffers in this process.
+     */
+    long getBytesCopied() {
+        return mBytesCopied;
+    }
+
+    /** Returns the read system calls made so far. */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    /** Returns the windows mapped so far. */
+    long getMapCount() {
+        return mMapCount;
+    }
+}
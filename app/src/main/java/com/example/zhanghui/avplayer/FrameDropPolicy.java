@@ -0,0 +1,101 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Decides which late video frames are released without being rendered, and when drops have
+ * gone on long enough that non-reference input samples should be skipped before decoding to
+ * let the decoder catch up. One instance per video track, called under its CodecState's lock.
+ */
+public class FrameDropPolicy {
+    /** Drops frames later than a fixed threshold, 30 ms by default. */
+    public static final int POLICY_FIXED = 0;
+    /** Drops frames later than a number of display refresh periods, two by default. */
+    public static final int POLICY_VSYNC_MULTIPLE = 1;
+    /**
+     * Drops frames later than the fixed threshold less the recent average decode latency,
+     * but never earlier than one refresh period: the slower the decoder, the less slack a late
+     * frame leaves for the ones behind it.
+     */
+    public static final int POLICY_ADAPTIVE = 2;
+
+    public static final long DEFAULT_THRESHOLD_US = 30000;
+    public static final int DEFAULT_VSYNC_MULTIPLE = 2;
+
+    // consecutive drops after which non-reference input is skipped
+    private static final int SKIP_INPUT_AFTER_DROPS = 3;
+    // weight of a new decode latency in the running average, as 1 / n
+    private static final int DECODE_LATENCY_AVERAGE_WEIGHT = 8;
+    private static final long ASSUMED_VSYNC_DURATION_US = 16667;
+
+    private final int mPolicy;
+    private final long mThresholdUs;
+    private final int mVsyncMultiple;
+    private long mAverageDecodeLatencyUs = -1;
+    private int mConsecutiveDrops;
+
+    public FrameDropPolicy(int policy) {
+        this(policy, DEFAULT_THRESHOLD_US, DEFAULT_VSYNC_MULTIPLE);
+    }
+
+    public FrameDropPolicy(int policy, long thresholdUs, int vsyncMultiple) {
+        if (policy < POLICY_FIXED || policy > POLICY_ADAPTIVE) {
+            throw new IllegalArgumentException("unknown frame drop policy " + policy);
+        }
+        mPolicy = policy;
+        mThresholdUs = thresholdUs;
+        mVsyncMultiple = Math.max(1, vsyncMultiple);
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Returns how late, in microseconds, a frame may be released and still be rendered.
+     * {@code vsyncDurationUs} is -1 when the refresh rate is unknown.
+     */
+    public long getDropThresholdUs(long vsyncDurationUs) {
+        switch (mPolicy) {
+            case POLICY_VSYNC_MULTIPLE:
+                return vsyncDurationUs > 0 ? mVsyncMultiple * vsyncDurationUs : mThresholdUs;
+            case POLICY_ADAPTIVE:
+                long minimumUs = vsyncDurationUs > 0 ? vsyncDurationUs : ASSUMED_VSYNC_DURATION_US;
+                if (mAverageDecodeLatencyUs < 0) {
+                    return Math.max(mThresholdUs, minimumUs);
+                }
+                return Math.max(mThresholdUs - mAverageDecodeLatencyUs, minimumUs);
+            default:
+                return mThresholdUs;
+        }
+    }
+
+    public boolean shouldDrop(long lateUs, long vsyncDurationUs) {
+        return lateUs > getDropThresholdUs(vsyncDurationUs);
+    }
+
+    /** Returns true while drops persist and non-reference input should not be decoded. */
+    public boolean shouldSkipNonReferenceInput() {
+        return mConsecutiveDrops >= SKIP_INPUT_AFTER_DROPS;
+    }
+
+    public void onDecodeLatencyUs(long latencyUs) {
+        if (mAverageDecodeLatencyUs < 0) {
+            mAverageDecodeLatencyUs = latencyUs;
+        } else {
+            mAverageDecodeLatencyUs +=
+                    (latencyUs - mAverageDecodeLatencyUs) / DECODE_LATENCY_AVERAGE_WEIGHT;
+        }
+    }
+
+    public void onFrameDropped() {
+        mConsecutiveDrops++;
+    }
+
+    public void onFrameRendered() {
+        mConsecutiveDrops = 0;
+    }
+
+    /** Forgets the drop streak, e.g. after a flush; the decode latency average is kept. */
+    public void reset() {
+        mConsecutiveDrops = 0;
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaExtractor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sorted sync sample timestamps of one track, with their byte offsets in the file where the
+ * demuxer knows them (-1 otherwise). Kept in primitive arrays so that seek targets, GOP
+ * boundaries and the next keyframe are found by binary search instead of a container walk.
+ */
+public final class KeyframeIndex {
+    private final long[] mTimesUs;
+    private final long[] mOffsets;
+
+    private KeyframeIndex(long[] timesUs, long[] offsets) {
+        mTimesUs = timesUs;
+        mOffsets = offsets;
+    }
+
+    /**
+     * Indexes the sync samples of {@code tracks}: from the sample tables where
+     * {@code extractor} has them, and otherwise by walking it to its end, without offsets.
+     */
+    public static Map<Integer, KeyframeIndex> build(SampleSource extractor,
+            Collection<Integer> tracks) {
+        Map<Integer, Builder> builders = new HashMap<Integer, Builder>();
+        boolean walk = false;
+        for (Integer track : tracks) {
+            Builder builder = new Builder();
+            builders.put(track, builder);
+            if (!extractor.getSyncSamples(track, builder)) {
+                extractor.selectTrack(track);
+                walk = true;
+            }
+        }
+
+        int track;
+        while (walk && (track = extractor.getSampleTrackIndex()) >= 0) {
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                builders.get(track).add(extractor.getSampleTime(), -1);
+            }
+            extractor.advance();
+        }
+
+        Map<Integer, KeyframeIndex> indices = new HashMap<Integer, KeyframeIndex>();
+        for (Map.Entry<Integer, Builder> entry : builders.entrySet()) {
+            indices.put(entry.getKey(), entry.getValue().build());
+        }
+        return indices;
+    }
+
+    public int size() {
+        return mTimesUs.length;
+    }
+
+    public long getTimeUs(int i) {
+        return mTimesUs[i];
+    }
+
+    /** Returns the keyframe's byte offset in the file, or -1 if unknown. */
+    public long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /** Returns the position of the last keyframe at or before {@code timeUs}, or -1 if none. */
+    public int indexAtOrBefore(long timeUs) {
+        int i = Arrays.binarySearch(mTimesUs, timeUs);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Returns the start of the GOP containing {@code timeUs}: the last keyframe at or before
+     * it, or the first keyframe if there is none. -1 if the index is empty.
+     */
+    public long getPreviousSyncTimeUs(long timeUs) {
+        if (mTimesUs.length == 0) {
+            return -1;
+        }
+        return mTimesUs[Math.max(indexAtOrBefore(timeUs), 0)];
+    }
+
+    /** Returns the first keyframe after {@code timeUs}, i.e. the end of its GOP, or -1. */
+    public long getNextSyncTimeUs(long timeUs) {
+        int i = indexAtOrBefore(timeUs) + 1;
+        return i < mTimesUs.length ? mTimesUs[i] : -1;
+    }
+
+    /** Returns the keyframe closest to {@code timeUs}, or -1 if the index is empty. */
+    public long getClosestSyncTimeUs(long timeUs) {
+        long previousUs = getPreviousSyncTimeUs(timeUs);
+        long nextUs = getNextSyncTimeUs(timeUs);
+        if (nextUs == -1 || Math.abs(timeUs - previousUs) <= nextUs - timeUs) {
+            return previousUs;
+        }
+        return nextUs;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mTimesUs.length);
+        for (int i = 0; i < mTimesUs.length; i++) {
+            out.writeLong(mTimesUs[i]);
+            out.writeLong(mOffsets[i]);
+        }
+    }
+
+    static KeyframeIndex readFrom(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("bad keyframe count " + size);
+        }
+        Builder builder = new Builder(size);
+        for (int i = 0; i < size; i++) {
+            builder.add(in.readLong(), in.readLong());
+        }
+        return builder.build();
+    }
+
+    /** Collects keyframes in any order. */
+    public static final class Builder {
+        private long[] mTimesUs;
+        private long[] mOffsets;
+        private int mSize;
+        private boolean mSorted = true;
+
+        public Builder() {
+            this(64);
+        }
+
+        Builder(int capacity) {
+            mTimesUs = new long[Math.max(capacity, 1)];
+            mOffsets = new long[mTimesUs.length];
+        }
+
+        public Builder add(long timeUs, long offset) {
+            if (mSize == mTimesUs.length) {
+                mTimesUs = Arrays.copyOf(mTimesUs, 2 * mSize);
+                mOffsets = Arrays.copyOf(mOffsets, 2 * mSize);
+            }
+            if (mSize > 0 && timeUs < mTimesUs[mSize - 1]) {
+                mSorted = false;
+            }
+            mTimesUs[mSize] = timeUs;
+            mOffsets[mSize] = offset;
+            mSize++;
+            return this;
+        }
+
+        public KeyframeIndex build() {
+            long[] timesUs = Arrays.copyOf(mTimesUs, mSize);
+            long[] offsets = Arrays.copyOf(mOffsets, mSize);
+            if (!mSorted) {
+                // keyframes come in presentation order from every common container; an
+                // insertion sort keeps the offsets paired in the rare case they do not
+                for (int i = 1; i < timesUs.length; i++) {
+                    long timeUs = timesUs[i];
+                    long offset = offsets[i];
+                    int j = i - 1;
+                    for (; j >= 0 && timesUs[j] > timeUs; j--) {
+                        timesUs[j + 1] = timesUs[j];
+                        offsets[j + 1] = offsets[j];
+                    }
+                    timesUs[j + 1] = timeUs;
+                    offsets[j + 1] = offset;
+                }
+            }
+            return new KeyframeIndex(timesUs, offsets);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.zhanghui.avplayer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link KeyframeIndex}es of a source in a file of the app's cache directory, so an
+ * index is built only once per file. Entries are keyed by a string naming the exact file
+ * version, e.g. its URI, size and modification time; the key is stored in the entry and
+ * checked on load, so a changed file or a hash collision simply misses.
+ */
+public class KeyframeIndexCache {
+    private static final String TAG = KeyframeIndexCache.class.getSimpleName();
+    private static final int MAGIC = 0x4b465849; // "KFXI"
+    // 2: offsets from the sample tables where version 1 only had -1
+    private static final int VERSION = 2;
+
+    private final File mDir;
+
+    public KeyframeIndexCache(File dir) {
+        mDir = dir;
+    }
+
+    /** Returns the cached indices by track, or null if there are none for {@code key}. */
+    public Map<Integer, KeyframeIndex> load(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int trackCount = in.readInt();
+            Map<Integer, KeyframeIndex> indices = new HashMap<Integer, KeyframeIndex>();
+            for (int i = 0; i < trackCount; i++) {
+                int track = in.readInt();
+                indices.put(track, KeyframeIndex.readFrom(in));
+            }
+            return indices;
+        } catch (IOException e) {
+            Log.w(TAG, "dropping unreadable " + file + ": " + e);
+            file.delete();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /** Stores {@code indices} for {@code key}, replacing an older entry atomically. */
+    public void save(String key, Map<Integer, KeyframeIndex> indices) {
+        File file = getFile(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(indices.size());
+            for (Map.Entry<Integer, KeyframeIndex> entry : indices.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write " + file + ": " + e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    File getFile(String key) {
+        return new File(mDir, "keyframes-" + Integer.toHexString(key.hashCode()) + ".idx");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Master clock that video frames are scheduled against, in microseconds. Only differences
+ * between readings matter; the player maps media time onto the clock when playback starts.
+ */
+public interface MediaClock {
+    public long getTimeUs();
+
+    /**
+     * Makes the clock advance {@code speed} times as fast as real time from now on, without a
+     * jump. Clocks paced by something else, like the audio output, ignore this.
+     */
+    public void setSpeed(float speed);
+}
@@ -1,77 +1,189 @@
 package com.example.zhanghui.avplayer;
 
 import android.content.Context;
+import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MediaCodecPlayer implements MediaTimeProvider {
     private static final String TAG = MediaCodecPlayer.class.getSimpleName();
 
-    private static final int STATE_IDLE = 1;
-    private static final int STATE_PREPARING = 2;
-    private static final int STATE_PLAYING = 3;
-    private static final int STATE_PAUSED = 4;
+    /** Seeks to the keyframe closest to the requested position; fastest. */
+    public static final int SEEK_CLOSEST_SYNC = 0;
+    /**
+     * Decodes from the keyframe before the requested position and drops everything before it,
+     * so playback resumes exactly there.
+     */
+    public static final int SEEK_ACCURATE = 1;
+
+    /** Slowest speed accepted by {@link #setPlaybackSpeed}. */
+    public static final float MIN_PLAYBACK_SPEED = 0.5f;
+    /** Fastest speed accepted by {@link #setPlaybackSpeed}. */
+    public static final float MAX_PLAYBACK_SPEED = 4.0f;
+
+    // read-ahead limits of the per-track sample queues
+    private static final int VIDEO_QUEUE_MAX_SAMPLES = 120;
+    private static final long VIDEO_QUEUE_BYTE_BUDGET = 4 * 1024 * 1024;
+    private static final int AUDIO_QUEUE_MAX_SAMPLES = 256;
+    private static final long AUDIO_QUEUE_BYTE_BUDGET = 512 * 1024;
 
-    private Boolean mThreadStarted = false;
     private CodecState mAudioTrackState;
+    // read by the codec threads in async mode; replaced by the playback thread only
+    private volatile MediaClock mClock = new MonotonicSystemClock();
+    // set by setClock(), null for the default clock
+    private volatile MediaClock mRequestedClock;
+    // the speed playing now, applied by the playback thread, and the one asked for
+    private volatile float mPlaybackSpeed = 1.0f;
+    private volatile float mRequestedPlaybackSpeed = 1.0f;
+    private volatile float mVolume = 1.0f;
+    private int mAudioCodecMode = CodecState.MODE_SYNC;
+    private int mVideoCodecMode = CodecState.MODE_SYNC;
+    private int mMaxBuffersPerPass = -1;
+    private int mFrameDropPolicy = FrameDropPolicy.POLICY_FIXED;
+    private long mCatchUpThresholdUs = CodecState.DEFAULT_CATCH_UP_THRESHOLD_US;
+    private boolean mPrefetchEnabled = true;
+    private boolean mSharedExtractor;
+    private boolean mKeyframeIndexEnabled;
+    private boolean mJavaDemuxerEnabled;
+    private long mMediaCacheMaxBytes;
+    private ChunkCache mMediaCache;
+    private CodecPool mCodecPool;
+    private boolean mHighResolutionAudioEnabled;
+    private long mMinAudioQueueUs = AudioBufferController.DEFAULT_MIN_QUEUE_US;
+    private long mMaxAudioQueueUs = AudioBufferController.DEFAULT_MAX_QUEUE_US;
     private int mMediaFormatHeight;
     private int mMediaFormatWidth;
-    private Integer mState;
-    private long mDeltaTimeUs;
+    // touched by the playback thread only, once it runs
+    private boolean mCodecsRunning;
     private long mDurationUs;
-    private Map<Integer, CodecState> mAudioCodecStates;
-    private Map<Integer, CodecState> mVideoCodecStates;
+    // real minus media time of the first frame after a start, seek or flush, -1 until it is
+    // shown; set by the video codec thread in async mode and reset by the playback thread
+    private final AtomicLong mDeltaTimeUs = new AtomicLong(-1);
+    // volatile for getCurrentPosition() on the UI thread
+    private volatile Map<Integer, CodecState> mAudioCodecStates;
+    private volatile Map<Integer, CodecState> mVideoCodecStates;
+    private volatile Map<Integer, KeyframeIndex> mKeyframeIndices;
     private Map<String, String> mAudioHeaders;
     private Map<String, String> mVideoHeaders;
-    private MediaExtractor mAudioExtractor;
-    private MediaExtractor mVideoExtractor;
+    private SampleSource mAudioExtractor;
+    private SampleSource mVideoExtractor;
+    private final PlayerStateMachine mStateMachine = new PlayerStateMachine();
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+    // latest seekTo() not yet carried out; a newer one replaces it
+    private final AtomicReference<SeekRequest> mPendingSeek = new AtomicReference<SeekRequest>();
+    // written by the playback thread, read by getLastSeekLatencyMs()
+    private volatile long mLastSeekRequestTimeNs;
+    private volatile CodecState mSeekTimingState;
+    private volatile int mSeekCount;
+    private PlaybackScheduler mScheduler;
+    private SamplePrefetcher mAudioPrefetcher;
+    private SamplePrefetcher mVideoPrefetcher;
     private SurfaceHolder mSurfaceHolder;
+    private final Context mContext;
     private Thread mThread;
     private Uri mAudioUri;
     private Uri mVideoUri;
     private VideoFrameReleaseTimeHelper mFrameReleaseTimeHelper;
+    // runs prepareAsync() and the parts of prepare() that overlap
+    private ExecutorService mPrepareExecutor;
+    private volatile Future<Boolean> mPrepareFuture;
+
+    /** Hears how {@link #prepareAsync} ended, on the thread that prepared. */
+    public interface OnPreparedListener {
+        /** prepare() returned {@code prepared}. */
+        void onPrepared(MediaCodecPlayer player, boolean prepared);
+
+        /** prepare() threw {@code e}. */
+        void onPrepareFailed(MediaCodecPlayer player, Exception e);
+    }
+
+    /** A selected track whose codec is created and configured, but not started. */
+    private static final class PreparedTrack {
+        final int trackIndex;
+        final MediaFormat format;
+        final boolean isVideo;
+        CodecState state;
+
+        PreparedTrack(int trackIndex, MediaFormat format, boolean isVideo) {
+            this.trackIndex = trackIndex;
+            this.format = format;
+            this.isVideo = isVideo;
+        }
+    }
+
+    /** An opened source with its prepared tracks, in the order they are to be added. */
+    private static final class PreparedSource {
+        SampleSource source;
+        final List<PreparedTrack> tracks = new ArrayList<PreparedTrack>();
+        // null unless the keyframe index of its video tracks is being loaded
+        Future<Map<Integer, KeyframeIndex>> keyframeIndices;
+
+        void release() {
+            for (PreparedTrack track : tracks) {
+                if (track.state != null) {
+                    track.state.release();
+                }
+            }
+            if (source != null) {
+                source.release();
+            }
+        }
+    }
 
     /*
      * Media player class to playback video using MediaCodec.
      */
     public MediaCodecPlayer(SurfaceHolder holder, Context context) {
         mSurfaceHolder = holder;
+        mContext = context;
         mFrameReleaseTimeHelper = new VideoFrameReleaseTimeHelper(context);
         mAudioTrackState = null;
-        mState = STATE_IDLE;
-        mThread = new Thread(new Runnable() {
+        // the playback thread parks until the next frame, audio write or codec poll is due,
+        // or until a control call posts a command and wakes it up
+        mScheduler = new PlaybackScheduler(new PlaybackScheduler.Task() {
             @Override
-            public void run() {
-                while (true) {
-                    synchronized (mThreadStarted) {
-                        if (mThreadStarted == false) {
-                            break;
-                        }
-                    }
-                    synchronized (mState) {
-                        if (mState == STATE_PLAYING) {
-                            doSomeWork();
-                            if (mAudioTrackState != null) {
-                                mAudioTrackState.process();
-                            }
-                        }
-                    }
-                    try {
-                        Thread.sleep(5);//5ms loop
-                    } catch (InterruptedException ex) {
-                        Log.d(TAG, "Thread interrupted");
-                    }
+            public long doSomeWork(long nowNs) {
+                processCommands();
+                if (mStateMachine.getState() != PlayerStateMachine.STATE_PLAYING) {
+                    return PlaybackScheduler.NO_DEADLINE;
                 }
+                MediaCodecPlayer.this.doSomeWork();
+                if (mAudioTrackState != null) {
+                    mAudioTrackState.process();
+                }
+                if (areTracksEnded()) {
+                    mStateMachine.onEnded();
+                    return PlaybackScheduler.NO_DEADLINE;
+                }
+                return getNextWorkTimeNs(nowNs);
             }
         });
+        mThread = new Thread(mScheduler);
     }
 
     public void setAudioDataSource(Uri uri, Map<String, String> headers) {
@@ -84,92 +196,438 @@ public class MediaCodecPlayer implements MediaTimeProvider {
         mVideoHeaders = headers;
     }
 
-    private boolean prepareAudio() throws IOException {
-        for (int i = mAudioExtractor.getTrackCount(); i-- > 0;) {
-            MediaFormat format = mAudioExtractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
+    /**
+     * Selects how the audio codec is driven, {@link CodecState#MODE_SYNC} (default) or
+     * {@link CodecState#MODE_ASYNC}. Takes effect on the next prepare().
+     */
+    public void setAudioCodecMode(int mode) {
+        mAudioCodecMode = mode;
+    }
 
-            if (!mime.startsWith("audio/")) {
-                continue;
-            }
+    /**
+     * Selects how the video codec is driven, {@link CodecState#MODE_SYNC} (default) or
+     * {@link CodecState#MODE_ASYNC}. Takes effect on the next prepare().
+     */
+    public void setVideoCodecMode(int mode) {
+        mVideoCodecMode = mode;
+    }
 
-            Log.d(TAG, "audio track #" + i + " " + format + " " + mime +
-                  " Is ADTS:" + getMediaFormatInteger(format, MediaFormat.KEY_IS_ADTS) +
-                  " Sample rate:" + getMediaFormatInteger(format, MediaFormat.KEY_SAMPLE_RATE) +
-                  " Channel count:" +
-                  getMediaFormatInteger(format, MediaFormat.KEY_CHANNEL_COUNT));
+    /**
+     * Limits how many input and output buffers each track dequeues from its codec in one pass
+     * of the playback thread. Takes effect on the next prepare().
+     */
+    public void setMaxBuffersPerPass(int maxBuffersPerPass) {
+        mMaxBuffersPerPass = maxBuffersPerPass;
+    }
 
-            mAudioExtractor.selectTrack(i);
-            if (!addTrack(i, format)) {
-                Log.e(TAG, "prepareAudio - addTrack() failed!");
-                return false;
+    /**
+     * Selects how late video frames are dropped, one of the FrameDropPolicy.POLICY_* values;
+     * {@link FrameDropPolicy#POLICY_FIXED} by default. Takes effect on the next prepare().
+     */
+    public void setFrameDropPolicy(int policy) {
+        if (policy < FrameDropPolicy.POLICY_FIXED || policy > FrameDropPolicy.POLICY_ADAPTIVE) {
+            throw new IllegalArgumentException("unknown frame drop policy " + policy);
+        }
+        mFrameDropPolicy = policy;
+    }
+
+    /**
+     * Sets how far, in milliseconds, video may fall behind the audio before the samples up to
+     * the next keyframe are skipped, or -1 to never skip ahead. See
+     * {@link CodecState#setCatchUpThresholdUs}. Takes effect on the next prepare().
+     */
+    public void setCatchUpThresholdMs(int thresholdMs) {
+        mCatchUpThresholdUs = thresholdMs < 0 ? -1 : thresholdMs * 1000L;
+    }
+
+    /**
+     * Sets one source holding both the audio and the video track. Same as passing the URI to
+     * both setAudioDataSource() and setVideoDataSource().
+     */
+    public void setDataSource(Uri uri, Map<String, String> headers) {
+        setAudioDataSource(uri, headers);
+        setVideoDataSource(uri, headers);
+    }
+
+    /**
+     * Enables (default) or disables reading samples on a separate demux thread per extractor
+     * ahead of decoding. Takes effect on the next prepare().
+     */
+    public void setPrefetchEnabled(boolean enabled) {
+        mPrefetchEnabled = enabled;
+    }
+
+    /**
+     * Makes prepare() index the keyframes of the video track of a local file, so seeks and
+     * keyframe queries are answered by binary search. The index is read from the sample tables
+     * of MP4 files, built by one pass over other files, and cached per file version in the
+     * app's cache directory. Remote sources are not indexed, as that would download them in
+     * full. Off by default.
+     */
+    public void setKeyframeIndexEnabled(boolean enabled) {
+        mKeyframeIndexEnabled = enabled;
+    }
+
+    /**
+     * Reads local MP4 files with {@link Mp4Extractor} instead of the platform's MediaExtractor.
+     * Other sources, and files it cannot parse, still go through MediaExtractor. Off by
+     * default. Takes effect on the next prepare().
+     */
+    public void setJavaDemuxerEnabled(boolean enabled) {
+        mJavaDemuxerEnabled = enabled;
+    }
+
+    /**
+     * Caches HTTP sources in chunk files under the app's cache directory, using at most
+     * {@code maxBytes}, so replays and seeks back are served locally; 0 (default) turns the
+     * cache off, and any other size must hold at least one
+     * {@link ChunkCache#DEFAULT_CHUNK_SIZE chunk}. Cache hits and misses show in
+     * {@link #getMetrics()}. Takes effect on the next prepare().
+     */
+    public void setMediaCacheSize(long maxBytes) {
+        if (maxBytes != 0 && maxBytes < ChunkCache.DEFAULT_CHUNK_SIZE) {
+            throw new IllegalArgumentException("cache size " + maxBytes + " below one chunk");
+        }
+        mMediaCacheMaxBytes = maxBytes;
+    }
+
+    /**
+     * Takes decoders from {@code pool} and hands them back on reset(), so later sessions skip
+     * creating them; null (default) creates and releases them every time. Reuse shows as codec
+     * pool hits in {@link #getMetrics()}. Takes effect on the next prepare().
+     */
+    public void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Asks audio decoders for float output on API 24 and later, and plays float and 24/32-bit
+     * audio at full resolution where the AudioTrack takes it, rather than rounding it to
+     * 16-bit. Off by default. Takes effect on the next prepare().
+     */
+    public void setHighResolutionAudioEnabled(boolean enabled) {
+        mHighResolutionAudioEnabled = enabled;
+    }
+
+    /**
+     * Sets the bounds within which the decoded audio read ahead of the AudioTrack is tuned at
+     * runtime: it starts at the minimum and grows after underruns or when the decoder falls
+     * behind. Takes effect on the next prepare().
+     */
+    public void setAudioQueueBoundsMs(int minMs, int maxMs) {
+        if (minMs <= 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("invalid audio queue bounds " + minMs + ", "
+                    + maxMs);
+        }
+        mMinAudioQueueUs = minMs * 1000L;
+        mMaxAudioQueueUs = maxMs * 1000L;
+    }
+
+    /** Returns the keyframe index of the video track, or null if none was built. */
+    public KeyframeIndex getVideoKeyframeIndex() {
+        Map<Integer, KeyframeIndex> indices = mKeyframeIndices;
+        Map<Integer, CodecState> videoCodecStates = mVideoCodecStates;
+        if (indices == null || videoCodecStates == null || videoCodecStates.isEmpty()) {
+            return null;
+        }
+        return indices.get(videoCodecStates.keySet().iterator().next());
+    }
+
+    /**
+     * Loads or builds the keyframe index of the video tracks {@code tracks} of the local file
+     * named by {@code key}, whose video tracks, by index, have the mime types
+     * {@code videoMimes}.
+     */
+    private Map<Integer, KeyframeIndex> loadKeyframeIndices(String key,
+            SortedMap<Integer, String> videoMimes, Set<Integer> tracks) throws IOException {
+        KeyframeIndexCache cache = new KeyframeIndexCache(mContext.getCacheDir());
+        Map<Integer, KeyframeIndex> indices = cache.load(key);
+        if (indices != null && indices.keySet().containsAll(tracks)) {
+            Log.d(TAG, "loaded keyframe index of " + mVideoUri);
+            return indices;
+        }
+
+        long startNs = System.nanoTime();
+        // private extractors, as the playback ones must stay at the start
+        indices = null;
+        try {
+            Mp4Extractor mp4 = new Mp4Extractor(mVideoUri.getPath());
+            try {
+                indices = buildKeyframeIndices(mp4, videoMimes, tracks);
+            } finally {
+                mp4.release();
             }
+        } catch (IOException e) {
+            Log.d(TAG, "no sample tables in " + mVideoUri + ": " + e);
+        }
+        if (indices == null) {
+            SampleSource extractor = new MediaExtractorSampleSource(mVideoUri.toString(),
+                    mVideoHeaders);
+            try {
+                indices = KeyframeIndex.build(extractor, tracks);
+            } finally {
+                extractor.release();
+            }
+        }
+        Log.d(TAG, "built keyframe index of " + mVideoUri + " in " +
+                (System.nanoTime() - startNs) / 1000000 + " ms");
 
-            if (format.containsKey(MediaFormat.KEY_DURATION)) {
-                long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        cache.save(key, indices);
+        return indices;
+    }
 
-                if (durationUs > mDurationUs) {
-                    mDurationUs = durationUs;
-                }
-                Log.d(TAG, "audio track format #" + i +
-                        " Duration:" + mDurationUs + " microseconds");
+    /**
+     * Indexes {@code tracks} from the sample tables of {@code mp4}, which lists only the
+     * tracks it can play, so its video tracks are matched to the playback ones in order.
+     * Returns null if they do not match one to one.
+     */
+    private static Map<Integer, KeyframeIndex> buildKeyframeIndices(Mp4Extractor mp4,
+            SortedMap<Integer, String> videoMimes, Set<Integer> tracks) {
+        List<Integer> mp4Tracks = new ArrayList<Integer>();
+        for (int i = 0; i < mp4.getTrackCount(); i++) {
+            if (mp4.getTrack(i).getMime().startsWith("video/")) {
+                mp4Tracks.add(i);
             }
         }
-        return true;
+        if (mp4Tracks.size() != videoMimes.size()) {
+            return null;
+        }
+        Map<Integer, Integer> toMp4 = new HashMap<Integer, Integer>();
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : videoMimes.entrySet()) {
+            int mp4Track = mp4Tracks.get(i++);
+            if (!mp4.getTrack(mp4Track).getMime().equals(entry.getValue())) {
+                return null;
+            }
+            toMp4.put(entry.getKey(), mp4Track);
+        }
+
+        Map<Integer, KeyframeIndex> indices = new HashMap<Integer, KeyframeIndex>();
+        for (Integer track : tracks) {
+            KeyframeIndex.Builder builder = new KeyframeIndex.Builder();
+            mp4.getSyncSamples(toMp4.get(track), builder);
+            indices.put(track, builder.build());
+        }
+        return indices;
     }
 
-    private boolean prepareVideo() throws IOException {
-        for (int i = mVideoExtractor.getTrackCount(); i-- > 0;) {
-            MediaFormat format = mVideoExtractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
+    /**
+     * Names the exact version of a local video file, or returns null if the source is not
+     * one, in which case it is not indexed.
+     */
+    private String getKeyframeCacheKey() {
+        String scheme = mVideoUri.getScheme();
+        if (scheme != null && !scheme.equals("file")) {
+            return null;
+        }
+        File file = new File(mVideoUri.getPath());
+        if (!file.isFile()) {
+            return null;
+        }
+        return mVideoUri + "|" + file.length() + "|" + file.lastModified();
+    }
 
-            if (!mime.startsWith("video")) {
-                continue;
+    /**
+     * Opens a source and selects its audio and/or video tracks, then creates and configures
+     * their codecs at the same time, and starts loading the keyframe index of the video tracks
+     * if enabled. Returns null if a track has no decoder. Releases what it made if it fails.
+     */
+    private PreparedSource prepareSource(Uri uri, Map<String, String> headers, boolean audio,
+            boolean video) throws IOException {
+        PreparedSource prepared = new PreparedSource();
+        boolean configured = false;
+        try {
+            long startNs = System.nanoTime();
+            prepared.source = openSampleSource(uri, headers);
+            long openedNs = System.nanoTime();
+            mMetrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_OPEN,
+                    (openedNs - startNs) / 1000);
+
+            final Set<Integer> videoTracks = new HashSet<Integer>();
+            final SortedMap<Integer, String> videoMimes = new TreeMap<Integer, String>();
+            for (int i = prepared.source.getTrackCount(); i-- > 0;) {
+                MediaFormat format = prepared.source.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                boolean isVideo = mime.startsWith("video/");
+                if (isVideo) {
+                    videoMimes.put(i, mime);
+                }
+                if (isVideo ? !video : !(audio && mime.startsWith("audio/"))) {
+                    continue;
+                }
+                Log.d(TAG, (isVideo ? "video" : "audio") + " track #" + i + " " + format);
+                prepared.source.selectTrack(i);
+                prepared.tracks.add(new PreparedTrack(i, format, isVideo));
+                if (isVideo) {
+                    videoTracks.add(i);
+                }
+            }
+            mMetrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_TRACK_SELECT,
+                    (System.nanoTime() - openedNs) / 1000);
+
+            final String keyframeCacheKey = mKeyframeIndexEnabled && !videoTracks.isEmpty()
+                    ? getKeyframeCacheKey() : null;
+            if (keyframeCacheKey != null) {
+                prepared.keyframeIndices = getPrepareExecutor().submit(
+                        new Callable<Map<Integer, KeyframeIndex>>() {
+                            @Override
+                            public Map<Integer, KeyframeIndex> call() throws IOException {
+                                return loadKeyframeIndices(keyframeCacheKey, videoMimes,
+                                        videoTracks);
+                            }
+                        });
             }
 
-            mMediaFormatHeight = getMediaFormatInteger(format, MediaFormat.KEY_HEIGHT);
-            mMediaFormatWidth = getMediaFormatInteger(format, MediaFormat.KEY_WIDTH);
-            Log.d(TAG, "video track #" + i + " " + format + " " + mime +
-                  " Width:" + mMediaFormatWidth + ", Height:" + mMediaFormatHeight);
-
-            mVideoExtractor.selectTrack(i);
-            if (!addTrack(i, format)) {
-                Log.e(TAG, "prepareVideo - addTrack() failed!");
-                return false;
+            configureTracks(prepared.source, prepared.tracks);
+            for (PreparedTrack track : prepared.tracks) {
+                if (track.state == null) {
+                    return null;
+                }
+            }
+            configured = true;
+            return prepared;
+        } finally {
+            if (!configured) {
+                prepared.release();
             }
+        }
+    }
 
-            if (format.containsKey(MediaFormat.KEY_DURATION)) {
-                long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+    /**
+     * Creates and configures the codecs of {@code tracks}, all but the first on the prepare
+     * executor, and waits for all of them even if one fails.
+     */
+    private void configureTracks(final SampleSource source, List<PreparedTrack> tracks)
+            throws IOException {
+        List<Future<CodecState>> futures = new ArrayList<Future<CodecState>>();
+        for (int i = 1; i < tracks.size(); i++) {
+            final PreparedTrack track = tracks.get(i);
+            futures.add(getPrepareExecutor().submit(new Callable<CodecState>() {
+                @Override
+                public CodecState call() throws IOException {
+                    return createCodecState(source, track);
+                }
+            }));
+        }
 
-                if (durationUs > mDurationUs) {
-                    mDurationUs = durationUs;
+        Exception failure = null;
+        for (int i = 0; i < tracks.size(); i++) {
+            try {
+                tracks.get(i).state = i == 0 ? createCodecState(source, tracks.get(0))
+                        : await(futures.get(i - 1));
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
                 }
-                Log.d(TAG, "track format #" + i + " Duration:" +
-                        mDurationUs + " microseconds");
             }
         }
-        return true;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
     }
 
-    public boolean prepare() throws IOException {
-        if (null == mAudioExtractor) {
-            mAudioExtractor = new MediaExtractor();
-            if (null == mAudioExtractor) {
-                Log.e(TAG, "prepare - Cannot create Audio extractor.");
-                return false;
+    /** Creates and configures the codec of a track, or returns null if there is none. */
+    private CodecState createCodecState(SampleSource source, PreparedTrack track)
+            throws IOException {
+        MediaFormat format = track.format;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        long startNs = System.nanoTime();
+        CodecPool pool = mCodecPool;
+        // nothing here is played through MediaCrypto, so never a secure decoder
+        MediaCodec codec = pool != null
+                ? pool.acquire(CodecPool.Key.forFormat(format, false), mMetrics)
+                : MediaCodec.createDecoderByType(mime);
+        if (codec == null) {
+            Log.e(TAG, "Could not create regular playback codec for mime " + mime + "!");
+            return null;
+        }
+        long createdNs = System.nanoTime();
+        mMetrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_CODEC_CREATE,
+                (createdNs - startNs) / 1000);
+
+        // CodecState installs the callback of async mode, which has to precede configure()
+        CodecState state = new CodecState((MediaTimeProvider) this, source, track.trackIndex,
+                format, codec, true, track.isVideo ? mVideoCodecMode : mAudioCodecMode);
+        state.setCodecPool(pool);
+        if (!track.isVideo && mHighResolutionAudioEnabled
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // decoders put out float rather than rounding to 16-bit when asked to
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+        }
+        try {
+            codec.configure(format, track.isVideo ? mSurfaceHolder.getSurface() : null, null,
+                    0);
+        } catch (RuntimeException e) {
+            // a pooled codec must not come back in an unknown state
+            if (pool != null) {
+                pool.discard(codec);
             }
+            throw e;
         }
+        mMetrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_CONFIGURE,
+                (System.nanoTime() - createdNs) / 1000);
+        return state;
+    }
 
-        if (null == mVideoExtractor){
-            mVideoExtractor = new MediaExtractor();
-            if (null == mVideoExtractor) {
-                Log.e(TAG, "prepare - Cannot create Video extractor.");
-                return false;
+    /**
+     * Opens {@code uri} with {@link Mp4Extractor} if enabled and it is a local MP4 file, and
+     * with MediaExtractor otherwise, through the media cache for HTTP sources if enabled.
+     */
+    private SampleSource openSampleSource(Uri uri, Map<String, String> headers)
+            throws IOException {
+        String scheme = uri.getScheme();
+        if (mMediaCacheMaxBytes > 0 && ("http".equals(scheme) || "https".equals(scheme))) {
+            ChunkCache cache = getMediaCache();
+            CachedHttpReader reader = new CachedHttpReader(cache, uri.toString(), headers);
+            reader.setMetrics(mMetrics);
+            return new MediaExtractorSampleSource(new CachingMediaDataSource(reader, cache));
+        }
+        if (mJavaDemuxerEnabled && (scheme == null || scheme.equals("file"))) {
+            try {
+                return new Mp4Extractor(uri.getPath());
+            } catch (IOException e) {
+                Log.w(TAG, "cannot demux " + uri + " in Java, using MediaExtractor", e);
             }
         }
+        return new MediaExtractorSampleSource(uri.toString(), headers);
+    }
+
+    // prepare() opens the sources and the keyframe index source on several threads
+    private synchronized ChunkCache getMediaCache() throws IOException {
+        if (mMediaCache == null || mMediaCache.getMaxBytes() != mMediaCacheMaxBytes) {
+            mMediaCache = ChunkCache.forDirectory(new File(mContext.getCacheDir(), "media"),
+                    mMediaCacheMaxBytes);
+        }
+        return mMediaCache;
+    }
+
+    private void releaseExtractors() {
+        if (mVideoExtractor != null && mVideoExtractor != mAudioExtractor) {
+            mVideoExtractor.release();
+        }
+        mVideoExtractor = null;
+
+        if (mAudioExtractor != null) {
+            mAudioExtractor.release();
+            mAudioExtractor = null;
+        }
+    }
+
+    /**
+     * Opens the sources and creates and configures the codecs, the audio ones and the video
+     * ones at the same time on the prepare executor, then adds the tracks. Per-phase times go
+     * to the {@link PlaybackMetrics}.
+     */
+    public boolean prepare() throws IOException {
+        // A muxed file is opened and parsed only once; its demux thread routes the interleaved
+        // samples to the track queues. Without prefetching both codec states would have to
+        // share the extractor's read position, so split extractors are kept in that case.
+        mSharedExtractor = mPrefetchEnabled && isSingleSource();
+        mMetrics.onPrepareStarted();
 
-        mAudioExtractor.setDataSource(mAudioUri.toString(), mAudioHeaders);
-        mVideoExtractor.setDataSource(mVideoUri.toString(), mVideoHeaders);
+        releaseExtractors();
 
         if (null == mVideoCodecStates) {
             mVideoCodecStates = new HashMap<Integer, CodecState>();
@@ -183,183 +641,656 @@ public class MediaCodecPlayer implements MediaTimeProvider {
             mAudioCodecStates.clear();
         }
 
-        if (!prepareAudio()) {
-            Log.e(TAG,"prepare - prepareAudio() failed!");
-            return false;
+        PreparedSource audio = null;
+        PreparedSource video = null;
+        if (mSharedExtractor) {
+            Log.d(TAG, "prepare - sharing one extractor between audio and video");
+            audio = video = prepareSource(mAudioUri, mAudioHeaders, true, true);
+        } else {
+            Future<PreparedSource> videoFuture = getPrepareExecutor().submit(
+                    new Callable<PreparedSource>() {
+                        @Override
+                        public PreparedSource call() throws IOException {
+                            return prepareSource(mVideoUri, mVideoHeaders, false, true);
+                        }
+                    });
+            try {
+                audio = prepareSource(mAudioUri, mAudioHeaders, true, false);
+            } finally {
+                if (audio == null) {
+                    discard(videoFuture);
+                }
+            }
+            if (audio != null) {
+                try {
+                    video = await(videoFuture);
+                } finally {
+                    if (video == null) {
+                        audio.release();
+                    }
+                }
+            }
         }
-        if (!prepareVideo()) {
-            Log.e(TAG,"prepare - prepareVideo() failed!");
+        if (audio == null || video == null) {
+            Log.e(TAG, "prepare - no decoder for a track");
             return false;
         }
 
-        synchronized (mState) {
-            mState = STATE_PAUSED;
+        mAudioExtractor = audio.source;
+        mVideoExtractor = video.source;
+        if (mSharedExtractor) {
+            mAudioPrefetcher = new SamplePrefetcher(mAudioExtractor, "DemuxPrefetcher");
+            mVideoPrefetcher = mAudioPrefetcher;
+        } else if (mPrefetchEnabled) {
+            mAudioPrefetcher = new SamplePrefetcher(mAudioExtractor, "AudioPrefetcher");
+            mVideoPrefetcher = new SamplePrefetcher(mVideoExtractor, "VideoPrefetcher");
+        }
+
+        for (PreparedTrack track : audio.tracks) {
+            if (!track.isVideo) {
+                addTrack(track);
+            }
         }
+        for (PreparedTrack track : video.tracks) {
+            if (track.isVideo) {
+                addTrack(track);
+            }
+        }
+
+        if (video.keyframeIndices != null) {
+            try {
+                mKeyframeIndices = await(video.keyframeIndices);
+            } catch (IOException | RuntimeException e) {
+                // only an optimization; seeks ask the extractor for sync samples instead
+                Log.w(TAG, "cannot index keyframes of " + mVideoUri, e);
+            }
+        }
+
+        // start reading ahead right away so the first frames are queued by start()
+        if (mPrefetchEnabled) {
+            mAudioPrefetcher.start();
+            mVideoPrefetcher.start();  // no-op when shared
+        }
+
+        mClock = selectClock();
+        mClock.setSpeed(mPlaybackSpeed);
+        mMetrics.onPrepareCompleted();
+        mStateMachine.onPrepared();
         return true;
     }
 
-    private boolean addTrack(int trackIndex, MediaFormat format) throws IOException {
-        String mime = format.getString(MediaFormat.KEY_MIME);
-        boolean isVideo = mime.startsWith("video/");
-        boolean isAudio = mime.startsWith("audio/");
-        MediaCodec codec;
+    /**
+     * Runs {@link #prepare} on the prepare executor and returns right away. {@code listener},
+     * if not null, hears the result on that thread before the returned future completes, and
+     * must not call reset(), which waits for a pending prepare.
+     */
+    public Future<Boolean> prepareAsync(final OnPreparedListener listener) {
+        Future<Boolean> future = getPrepareExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                boolean prepared;
+                try {
+                    prepared = prepare();
+                } catch (IOException | RuntimeException e) {
+                    if (listener != null) {
+                        listener.onPrepareFailed(MediaCodecPlayer.this, e);
+                    }
+                    throw e;
+                }
+                if (listener != null) {
+                    listener.onPrepared(MediaCodecPlayer.this, prepared);
+                }
+                return prepared;
+            }
+        });
+        mPrepareFuture = future;
+        return future;
+    }
 
-        codec = MediaCodec.createDecoderByType(mime);
-        if (codec == null) {
-            Log.e(TAG, "addTrack - Could not create regular playback codec for mime "+
-                    mime+"!");
-            return false;
+    private synchronized ExecutorService getPrepareExecutor() {
+        if (mPrepareExecutor == null) {
+            // prepare() waits for tasks it submits, so the pool must be able to grow
+            mPrepareExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "Prepare-" + mCount++);
+                }
+            });
         }
-        codec.configure(
-                format,
-                isVideo ? mSurfaceHolder.getSurface() : null, null, 0);
+        return mPrepareExecutor;
+    }
 
-        CodecState state;
-        if (isVideo) {
-            state = new CodecState((MediaTimeProvider)this, mVideoExtractor,
-                            trackIndex, format, codec, true);
-            mVideoCodecStates.put(Integer.valueOf(trackIndex), state);
-        } else {
-            state = new CodecState((MediaTimeProvider)this, mAudioExtractor,
-                            trackIndex, format, codec, true);
-            mAudioCodecStates.put(Integer.valueOf(trackIndex), state);
+    /** Returns the result of a prepare task, throwing what it threw. */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while preparing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
         }
+    }
 
-        if (isAudio) {
-            mAudioTrackState = state;
+    /** Waits for a prepareSource() task whose result is not needed and releases it. */
+    private static void discard(Future<PreparedSource> future) {
+        try {
+            PreparedSource prepared = await(future);
+            if (prepared != null) {
+                prepared.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            // it released what it made
         }
+    }
 
-        return true;
+    /**
+     * Makes video follow {@code clock} instead of the default: the audio track's position, or
+     * a monotonic system clock for files without audio. null restores the default. May be
+     * called at any time; the playback thread switches over before its next pass, and frames
+     * are then scheduled against the new clock from the current position on.
+     */
+    public void setClock(MediaClock clock) {
+        mRequestedClock = clock;
+        mStateMachine.postCommand(PlayerStateMachine.CMD_CHANGE_CLOCK);
+        mScheduler.wakeUp();
     }
 
-    protected int getMediaFormatInteger(MediaFormat format, String key) {
-        return format.containsKey(key) ? format.getInteger(key) : 0;
+    /** Returns the clock video frames are currently scheduled against. */
+    public MediaClock getClock() {
+        return mClock;
     }
 
-    public boolean start() {
-        Log.d(TAG, "start");
+    /**
+     * Plays at {@code speed} times the normal rate, from {@link #MIN_PLAYBACK_SPEED} to
+     * {@link #MAX_PLAYBACK_SPEED}. Audio is time-stretched with its pitch kept and the master
+     * clock runs faster or slower to match, so video follows. May be called at any time; the
+     * playback thread applies it before its next pass. If the audio output rejects the speed,
+     * playback stays at the previous one; see {@link #getPlaybackSpeed}.
+     */
+    public void setPlaybackSpeed(float speed) {
+        if (!(speed >= MIN_PLAYBACK_SPEED && speed <= MAX_PLAYBACK_SPEED)) {
+            throw new IllegalArgumentException("playback speed " + speed + " out of range");
+        }
+        mRequestedPlaybackSpeed = speed;
+        mStateMachine.postCommand(PlayerStateMachine.CMD_CHANGE_SPEED);
+        mScheduler.wakeUp();
+    }
 
-        synchronized (mState) {
-            if (mState == STATE_PLAYING || mState == STATE_PREPARING) {
-                return true;
-            } else if (mState == STATE_IDLE) {
-                mState = STATE_PREPARING;
-                return true;
-            } else if (mState != STATE_PAUSED) {
-                throw new IllegalStateException();
+    /** Returns the speed playback currently runs at. */
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    /**
+     * Sets the volume of the audio, from 0 for silence to 1 for the decoded level. May be
+     * called at any time; the change is ramped in over a few milliseconds of audio.
+     */
+    public void setVolume(float volume) {
+        if (!(volume >= 0)) {
+            throw new IllegalArgumentException("volume " + volume + " out of range");
+        }
+        mVolume = volume;
+        Map<Integer, CodecState> audioCodecStates = mAudioCodecStates;
+        if (audioCodecStates != null) {
+            for (CodecState state : audioCodecStates.values()) {
+                state.setVolume(volume);
             }
+        }
+    }
 
+    public float getVolume() {
+        return mVolume;
+    }
+
+    /** Playback thread: carries out setPlaybackSpeed(). */
+    private void changePlaybackSpeed(float speed) {
+        if (speed == mPlaybackSpeed) {
+            return;
+        }
+        if (mAudioCodecStates != null) {
+            for (CodecState state : mAudioCodecStates.values()) {
+                if (!state.setPlaybackSpeed(speed)) {
+                    Log.w(TAG, "audio cannot play at " + speed + "x, staying at "
+                            + mPlaybackSpeed + "x");
+                    return;
+                }
+            }
+        }
+        if (mVideoCodecStates != null) {
             for (CodecState state : mVideoCodecStates.values()) {
-                state.start();
+                state.setPlaybackSpeed(speed);
             }
+        }
+        mClock.setSpeed(speed);
+        mPlaybackSpeed = speed;
+        // frame release times are spaced differently from now on
+        if (mFrameReleaseTimeHelper != null) {
+            mFrameReleaseTimeHelper.resync();
+        }
+    }
 
-            for (CodecState state : mAudioCodecStates.values()) {
-                state.start();
+    private MediaClock selectClock() {
+        MediaClock clock = mRequestedClock;
+        if (clock != null) {
+            return clock;
+        }
+        if (mAudioTrackState != null) {
+            return new AudioTrackClock(mAudioTrackState);
+        }
+        return new MonotonicSystemClock();
+    }
+
+    /** Adds a track prepared by prepareSource(), which the playback thread is to run. */
+    private void addTrack(PreparedTrack track) {
+        CodecState state = track.state;
+        MediaFormat format = track.format;
+        if (track.isVideo) {
+            mVideoCodecStates.put(Integer.valueOf(track.trackIndex), state);
+            mMediaFormatHeight = getMediaFormatInteger(format, MediaFormat.KEY_HEIGHT);
+            mMediaFormatWidth = getMediaFormatInteger(format, MediaFormat.KEY_WIDTH);
+        } else {
+            mAudioCodecStates.put(Integer.valueOf(track.trackIndex), state);
+            mAudioTrackState = state;
+        }
+
+        if (mMaxBuffersPerPass > 0) {
+            state.setMaxBuffersPerPass(mMaxBuffersPerPass);
+        }
+        state.setMetrics(mMetrics);
+        state.setPlaybackSpeed(mPlaybackSpeed);
+        state.setErrorListener(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.wakeUp();
+            }
+        });
+        if (track.isVideo) {
+            state.setFrameDropPolicy(new FrameDropPolicy(mFrameDropPolicy));
+            state.setCatchUpThresholdUs(mCatchUpThresholdUs);
+        } else {
+            state.setVolume(mVolume);
+            state.setHighResolutionAudioEnabled(mHighResolutionAudioEnabled);
+            state.setAudioQueueBoundsUs(mMinAudioQueueUs, mMaxAudioQueueUs);
+        }
+
+        if (mPrefetchEnabled) {
+            SampleQueue queue;
+            if (track.isVideo) {
+                queue = new SampleQueue(VIDEO_QUEUE_MAX_SAMPLES, VIDEO_QUEUE_BYTE_BUDGET);
+                mVideoPrefetcher.addTrack(track.trackIndex, queue,
+                        getMediaFormatInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE));
+            } else {
+                queue = new SampleQueue(AUDIO_QUEUE_MAX_SAMPLES, AUDIO_QUEUE_BYTE_BUDGET);
+                mAudioPrefetcher.addTrack(track.trackIndex, queue,
+                        getMediaFormatInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE));
             }
+            state.setSampleQueue(queue);
+        }
 
-            mDeltaTimeUs = -1;
-            mState = STATE_PLAYING;
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+
+            if (durationUs > mDurationUs) {
+                mDurationUs = durationUs;
+            }
+            Log.d(TAG, "track format #" + track.trackIndex + " Duration:" +
+                    mDurationUs + " microseconds");
         }
-        return false;
+    }
+
+    private boolean isSingleSource() {
+        if (mAudioUri == null || !mAudioUri.equals(mVideoUri)) {
+            return false;
+        }
+        return mAudioHeaders == null ? mVideoHeaders == null : mAudioHeaders.equals(mVideoHeaders);
+    }
+
+    /** Returns true if the last prepare() read both tracks through one extractor. */
+    public boolean isSharedExtractor() {
+        return mSharedExtractor;
+    }
+
+    protected int getMediaFormatInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    /**
+     * Starts or resumes playback; before prepare() it only moves from IDLE to PREPARING.
+     * Returns without waiting for the playback thread, which starts the codecs.
+     */
+    public boolean start() {
+        Log.d(TAG, "start");
+
+        boolean result = mStateMachine.requestStart();
+        if (!result) {
+            mScheduler.wakeUp();
+        }
+        return result;
     }
 
     public void startThread() {
         mFrameReleaseTimeHelper.enable();
         start();
-        synchronized (mThreadStarted) {
-            mThreadStarted = true;
-            mThread.start();
-        }
+        mThread.start();
     }
 
+    /** Pauses playback. Returns without waiting for the playback thread. */
     public void pause() {
         Log.d(TAG, "pause");
 
-        synchronized (mState) {
-            if (mState == STATE_PAUSED) {
-                return;
-            } else if (mState != STATE_PLAYING) {
-                throw new IllegalStateException();
+        if (mStateMachine.requestPause()) {
+            mScheduler.wakeUp();
+        }
+    }
+
+    /**
+     * Drops all pending input and output while paused; ignored while playing. The playback
+     * thread carries it out before its next pass.
+     */
+    public void flush() {
+        Log.d(TAG, "flush");
+
+        if (mStateMachine.requestFlush()) {
+            mScheduler.wakeUp();
+        }
+    }
+
+    /**
+     * Seeks to {@code positionMs} with {@link #SEEK_CLOSEST_SYNC} or {@link #SEEK_ACCURATE}.
+     * Returns right away; the playback thread carries out the seek and then resumes playing or
+     * stays paused as before. Seeks issued faster than they complete, e.g. while scrubbing,
+     * are coalesced into the latest one.
+     */
+    public void seekTo(long positionMs, int mode) {
+        Log.d(TAG, "seekTo " + positionMs + " ms, mode " + mode);
+
+        SeekRequest seek = new SeekRequest(positionMs * 1000, mode, System.nanoTime());
+        mPendingSeek.set(seek);
+        try {
+            mStateMachine.requestSeek();
+        } catch (IllegalStateException e) {
+            mPendingSeek.compareAndSet(seek, null);
+            throw e;
+        }
+        mScheduler.wakeUp();
+    }
+
+    /** Returns true if playing, or about to resume playing once a seek has completed. */
+    public boolean isPlaying() {
+        return mStateMachine.isPlayWhenReady();
+    }
+
+    /**
+     * Returns the time from the last seekTo() call to the first frame released after it, in
+     * milliseconds, or -1 if no frame has been released since. Paused time counts too.
+     */
+    public long getLastSeekLatencyMs() {
+        CodecState state = mSeekTimingState;
+        if (state == null) {
+            return -1;
+        }
+        long firstOutputTimeNs = state.getFirstOutputTimeNs();
+        if (firstOutputTimeNs == 0) {
+            return -1;
+        }
+        return (firstOutputTimeNs - mLastSeekRequestTimeNs) / 1000000;
+    }
+
+    /** Returns the number of seeks carried out, not counting coalesced ones. */
+    public int getSeekCount() {
+        return mSeekCount;
+    }
+
+    /** Returns the player's state, one of the PlayerStateMachine.STATE_* constants. */
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    public PlayerStateMachine getStateMachine() {
+        return mStateMachine;
+    }
+
+    /** Playback thread: applies the commands posted by the control calls. */
+    private void processCommands() {
+        int command;
+        while ((command = mStateMachine.pollCommand()) != PlayerStateMachine.CMD_NONE) {
+            switch (command) {
+                case PlayerStateMachine.CMD_SYNC_PLAY_STATE:
+                    syncPlayState();
+                    break;
+                case PlayerStateMachine.CMD_FLUSH:
+                    flushTracks();
+                    break;
+                case PlayerStateMachine.CMD_CHANGE_SPEED:
+                    changePlaybackSpeed(mRequestedPlaybackSpeed);
+                    break;
+                case PlayerStateMachine.CMD_CHANGE_CLOCK:
+                    mClock = selectClock();
+                    mClock.setSpeed(mPlaybackSpeed);
+                    if (mFrameReleaseTimeHelper != null) {
+                        mFrameReleaseTimeHelper.resync();
+                    }
+                    mDeltaTimeUs.set(-1);
+                    break;
+                case PlayerStateMachine.CMD_SEEK:
+                    SeekRequest seek;
+                    while ((seek = mPendingSeek.getAndSet(null)) != null) {
+                        if (!mStateMachine.beginSeek()) {
+                            break; // reset meanwhile
+                        }
+                        syncPlayState();
+                        performSeek(seek);
+                    }
+                    mStateMachine.onSeekCompleted();
+                    break;
+                default:
+                    Log.e(TAG, "unknown command " + command);
+                    break;
             }
+        }
+    }
 
-            for (CodecState state : mVideoCodecStates.values()) {
+    private void syncPlayState() {
+        boolean play = mStateMachine.getState() == PlayerStateMachine.STATE_PLAYING;
+        if (play == mCodecsRunning) {
+            return;
+        }
+
+        for (CodecState state : mVideoCodecStates.values()) {
+            if (play) {
+                state.start();
+            } else {
                 state.pause();
             }
+        }
 
-            for (CodecState state : mAudioCodecStates.values()) {
+        for (CodecState state : mAudioCodecStates.values()) {
+            if (play) {
+                state.start();
+            } else {
                 state.pause();
             }
+        }
 
-            mState = STATE_PAUSED;
+        if (play) {
+            mDeltaTimeUs.set(-1);
         }
+        mCodecsRunning = play;
     }
 
-    public void flush() {
-        Log.d(TAG, "flush");
+    /** Playback thread: repositions the sources and flushes the paused tracks. */
+    private void performSeek(SeekRequest seek) {
+        boolean accurate = seek.mode == SEEK_ACCURATE;
+        boolean hasVideo = !mVideoCodecStates.isEmpty();
 
-        synchronized (mState) {
-            if (mState == STATE_PLAYING || mState == STATE_PREPARING) {
-                return;
-            }
+        for (CodecState state : mAudioCodecStates.values()) {
+            state.flush();
+        }
 
-            for (CodecState state : mAudioCodecStates.values()) {
-                state.flush();
-            }
+        for (CodecState state : mVideoCodecStates.values()) {
+            state.flush();
+        }
 
-            for (CodecState state : mVideoCodecStates.values()) {
-                state.flush();
+        // video decides where decoding can start: on the keyframe before the target for an
+        // accurate seek, on the closest one otherwise
+        long resumeUs = seek.positionUs;
+        long videoSeekUs = seek.positionUs;
+        if (hasVideo) {
+            KeyframeIndex index = getVideoKeyframeIndex();
+            if (index != null && index.size() > 0) {
+                // the keyframe is known up front; the extractor only has to land on it
+                if (!accurate) {
+                    resumeUs = videoSeekUs = index.getClosestSyncTimeUs(seek.positionUs);
+                }
+                seekSource(mVideoPrefetcher, mVideoExtractor, videoSeekUs,
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            } else {
+                long landingUs = seekSource(mVideoPrefetcher, mVideoExtractor, videoSeekUs,
+                        accurate ? MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+                                : MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                if (!accurate && landingUs >= 0) {
+                    resumeUs = landingUs;
+                }
             }
         }
+        if (!mSharedExtractor || !hasVideo) {
+            seekSource(mAudioPrefetcher, mAudioExtractor, resumeUs,
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        } else if (resumeUs != videoSeekUs) {
+            // one extractor for both tracks: seek once more so that audio starts from the
+            // keyframe too, which is now its own previous sync sample
+            seekSource(mVideoPrefetcher, mVideoExtractor, resumeUs,
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        // audio frames are all sync samples, so audio can always start exactly at resumeUs
+        for (CodecState state : mAudioCodecStates.values()) {
+            state.setSeekTarget(resumeUs, true);
+        }
+
+        for (CodecState state : mVideoCodecStates.values()) {
+            state.setSeekTarget(resumeUs, accurate);
+        }
+
+        if (mFrameReleaseTimeHelper != null) {
+            mFrameReleaseTimeHelper.resync();
+        }
+        mDeltaTimeUs.set(-1);
+
+        mLastSeekRequestTimeNs = seek.requestTimeNs;
+        mSeekTimingState = hasVideo ? mVideoCodecStates.values().iterator().next()
+                : mAudioTrackState;
+        mSeekCount++;
+        Log.d(TAG, "seek to " + seek.positionUs + " us resumes at " + resumeUs + " us");
     }
 
-    public void reset() {
-        synchronized (mState) {
-            if (mState == STATE_PLAYING) {
-                pause();
-            }
-            if (mVideoCodecStates != null) {
-                for (CodecState state : mVideoCodecStates.values()) {
-                    state.release();
-                }
-                mVideoCodecStates = null;
-            }
+    private static long seekSource(SamplePrefetcher prefetcher, SampleSource extractor,
+            long timeUs, int mode) {
+        if (prefetcher != null) {
+            return prefetcher.seekTo(timeUs, mode);
+        }
+        extractor.seekTo(timeUs, mode);
+        return extractor.getSampleTime();
+    }
 
-            if (mAudioCodecStates != null) {
-                for (CodecState state : mAudioCodecStates.values()) {
-                    state.release();
-                }
-                mAudioCodecStates = null;
-            }
+    private void flushTracks() {
+        if (mAudioPrefetcher != null) {
+            mAudioPrefetcher.flush();
+        }
+        if (mVideoPrefetcher != null && mVideoPrefetcher != mAudioPrefetcher) {
+            mVideoPrefetcher.flush();
+        }
 
-            if (mAudioExtractor != null) {
-                mAudioExtractor.release();
-                mAudioExtractor = null;
-            }
+        for (CodecState state : mAudioCodecStates.values()) {
+            state.flush();
+        }
 
-            if (mVideoExtractor != null) {
-                mVideoExtractor.release();
-                mVideoExtractor = null;
-            }
+        for (CodecState state : mVideoCodecStates.values()) {
+            state.flush();
+        }
+    }
 
-            if (mFrameReleaseTimeHelper != null) {
-                mFrameReleaseTimeHelper.disable();
-                mFrameReleaseTimeHelper = null;
+    public void reset() {
+        // a pending prepareAsync() must be done with the tracks before they are released
+        Future<Boolean> prepareFuture = mPrepareFuture;
+        if (prepareFuture != null) {
+            try {
+                await(prepareFuture);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "reset after failed prepare " + e);
             }
-
-            mDurationUs = -1;
-            mState = STATE_IDLE;
+            mPrepareFuture = null;
         }
-        synchronized (mThreadStarted) {
-            mThreadStarted = false;
+        synchronized (this) {
+            if (mPrepareExecutor != null) {
+                mPrepareExecutor.shutdown();
+                mPrepareExecutor = null;
+            }
         }
+        mStateMachine.reset();
+        mScheduler.stop();
         try {
             mThread.join();
         } catch (InterruptedException ex) {
             Log.d(TAG, "mThread.join " + ex);
         }
+
+        // the playback thread is gone, so nothing else touches the tracks from here on
+        if (mVideoCodecStates != null) {
+            for (CodecState state : mVideoCodecStates.values()) {
+                state.release();
+            }
+            mVideoCodecStates = null;
+        }
+
+        if (mAudioCodecStates != null) {
+            for (CodecState state : mAudioCodecStates.values()) {
+                state.release();
+            }
+            mAudioCodecStates = null;
+        }
+
+        // the demux threads must be done with the extractors before they are released
+        if (mAudioPrefetcher != null) {
+            mAudioPrefetcher.stop();
+            mAudioPrefetcher = null;
+        }
+
+        if (mVideoPrefetcher != null) {
+            mVideoPrefetcher.stop();
+            mVideoPrefetcher = null;
+        }
+
+        releaseExtractors();
+
+        if (mFrameReleaseTimeHelper != null) {
+            mFrameReleaseTimeHelper.disable();
+            mFrameReleaseTimeHelper = null;
+        }
+
+        mDurationUs = -1;
+        mKeyframeIndices = null;
+        mCodecsRunning = false;
+        mAudioTrackState = null;
+        mClock = new MonotonicSystemClock();
     }
 
     public boolean isEnded() {
+        return mStateMachine.getState() == PlayerStateMachine.STATE_ENDED;
+    }
+
+    private boolean areTracksEnded() {
         for (CodecState state : mVideoCodecStates.values()) {
           if (!state.isEnded()) {
             return false;
@@ -394,27 +1325,74 @@ public class MediaCodecPlayer implements MediaTimeProvider {
 
     }
 
-    public long getNowUs() {
-        //返回audio播放的时间
-        if (mAudioTrackState == null) {
-            return System.currentTimeMillis() * 1000;
+    private long getNextWorkTimeNs(long nowNs) {
+        long nowUs = nowNs / 1000;
+        long nextUs = Long.MAX_VALUE;
+
+        for (CodecState state : mVideoCodecStates.values()) {
+            nextUs = Math.min(nextUs, state.getNextWorkTimeUs(nowUs));
+        }
+
+        for (CodecState state : mAudioCodecStates.values()) {
+            nextUs = Math.min(nextUs, state.getNextWorkTimeUs(nowUs));
         }
 
-        return mAudioTrackState.getAudioTimeUs();
+        if (nextUs == Long.MAX_VALUE) {
+            return PlaybackScheduler.NO_DEADLINE;
+        }
+        return nextUs * 1000;
+    }
+
+    /** Returns the frame, latency and underrun telemetry of this player, for any thread. */
+    public PlaybackMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** Returns the playback thread's scheduler, for its wake up counters. */
+    public PlaybackScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public long getNowUs() {
+        //返回master clock的时间, 默认是audio播放的时间
+        return mClock.getTimeUs();
     }
 
     public long getRealTimeUsForMediaTime(long mediaTimeUs) {
-        if (mDeltaTimeUs == -1) {
-            long nowUs = getNowUs();
-            mDeltaTimeUs = nowUs - mediaTimeUs;
+        long deltaUs = mDeltaTimeUs.get();
+        if (deltaUs == -1) {
+            long nowDeltaUs = getNowUs() - mediaTimeUs;
+            if (mDeltaTimeUs.compareAndSet(-1, nowDeltaUs)) {
+                deltaUs = nowDeltaUs;
+            } else {
+                // mapped by another thread meanwhile, unless a seek reset it again
+                deltaUs = mDeltaTimeUs.get();
+                if (deltaUs == -1) {
+                    deltaUs = nowDeltaUs;
+                }
+            }
         }
-        long earlyUs = mDeltaTimeUs + mediaTimeUs - getNowUs();
+        // the clock runs at the playback speed; frames are spaced in real time
+        float speed = mPlaybackSpeed;
+        long earlyUs = (long) ((deltaUs + mediaTimeUs - getNowUs()) / speed);
         long unadjustedFrameReleaseTimeNs = System.nanoTime() + (earlyUs * 1000);
         long adjustedReleaseTimeNs = mFrameReleaseTimeHelper.adjustReleaseTime(
-                mDeltaTimeUs + mediaTimeUs, unadjustedFrameReleaseTimeNs);
+                (long) ((deltaUs + mediaTimeUs) / speed), unadjustedFrameReleaseTimeNs);
         return adjustedReleaseTimeNs / 1000;
     }
 
+    public long getAudioVideoDriftUs(long mediaTimeUs, long realTimeUs) {
+        long deltaUs = mDeltaTimeUs.get();
+        if (deltaUs == -1) {
+            // no frame mapped onto the audio clock yet, e.g. right after a seek
+            return 0;
+        }
+        // the audio clock when the frame is shown, against where the frame maps onto it
+        long audioTimeUs = getNowUs()
+                + (long) ((realTimeUs - System.nanoTime() / 1000) * mPlaybackSpeed);
+        return audioTimeUs - (deltaUs + mediaTimeUs);
+    }
+
     public long getVsyncDurationNs() {
         if (mFrameReleaseTimeHelper != null) {
             return mFrameReleaseTimeHelper.getVsyncDurationNs();
@@ -428,13 +1406,14 @@ public class MediaCodecPlayer implements MediaTimeProvider {
     }
 
     public int getCurrentPosition() {
-        if (mVideoCodecStates == null) {
+        Map<Integer, CodecState> videoCodecStates = mVideoCodecStates;
+        if (videoCodecStates == null) {
                 return 0;
         }
 
         long positionUs = 0;
 
-        for (CodecState state : mVideoCodecStates.values()) {
+        for (CodecState state : videoCodecStates.values()) {
             long trackPositionUs = state.getCurrentPositionUs();
 
             if (trackPositionUs > positionUs) {
@@ -444,4 +1423,15 @@ public class MediaCodecPlayer implements MediaTimeProvider {
         return (int)((positionUs + 500) / 1000);
     }
 
+    private static final class SeekRequest {
+        final long positionUs;
+        final int mode;
+        final long requestTimeNs;
+
+        SeekRequest(long positionUs, int mode, long requestTimeNs) {
+            this.positionUs = positionUs;
+            this.mode = mode;
+            this.requestTimeNs = requestTimeNs;
+        }
+    }
 }
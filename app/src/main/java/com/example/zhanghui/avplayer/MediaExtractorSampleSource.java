@@ -0,0 +1,104 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/** {@link SampleSource} reading through the platform's {@link MediaExtractor}. */
+public final class MediaExtractorSampleSource implements SampleSource {
+    private final MediaExtractor mExtractor;
+
+    public MediaExtractorSampleSource(String path, Map<String, String> headers)
+            throws IOException {
+        mExtractor = new MediaExtractor();
+        try {
+            mExtractor.setDataSource(path, headers);
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+    }
+
+    /** Reads through {@code source}, which the extractor closes on release. */
+    public MediaExtractorSampleSource(MediaDataSource source) throws IOException {
+        mExtractor = new MediaExtractor();
+        try {
+            mExtractor.setDataSource(source);
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mExtractor.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return mExtractor.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mExtractor.selectTrack(index);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mExtractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    /** MediaExtractor only tells the size from API 28 on. */
+    @Override
+    public int getSampleSize() {
+        return -1;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    /** MediaExtractor does not expose the sample tables. */
+    @Override
+    public boolean getSyncSamples(int index, KeyframeIndex.Builder builder) {
+        return false;
+    }
+
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        return mExtractor.getSampleCryptoInfo(info);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
@@ -7,4 +7,9 @@ public interface MediaTimeProvider {
     public long getNowUs();
     public long getRealTimeUsForMediaTime(long mediaTimeUs);
     public long getVsyncDurationNs();
+    /**
+     * Returns the audio clock minus {@code mediaTimeUs} at the moment a frame released at
+     * {@code realTimeUs} is shown; positive if video trails the audio.
+     */
+    public long getAudioVideoDriftUs(long mediaTimeUs, long realTimeUs);
 }
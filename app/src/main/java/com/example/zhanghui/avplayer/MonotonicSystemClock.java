@@ -0,0 +1,34 @@
+package com.example.zhanghui.avplayer;
+
+/**
+ * Clock based on {@link System#nanoTime()}, for files without audio. Unlike wall clock time it
+ * has microsecond resolution and does not jump when the system time is adjusted.
+ */
+public class MonotonicSystemClock implements MediaClock {
+    // the clock read mBaseTimeUs at mBaseRealTimeUs, and advances at mSpeed since
+    private long mBaseRealTimeUs;
+    private long mBaseTimeUs;
+    private float mSpeed = 1.0f;
+
+    public MonotonicSystemClock() {
+        mBaseRealTimeUs = System.nanoTime() / 1000;
+        mBaseTimeUs = mBaseRealTimeUs;
+    }
+
+    @Override
+    public synchronized long getTimeUs() {
+        return getTimeUs(System.nanoTime() / 1000);
+    }
+
+    @Override
+    public synchronized void setSpeed(float speed) {
+        long realTimeUs = System.nanoTime() / 1000;
+        mBaseTimeUs = getTimeUs(realTimeUs);
+        mBaseRealTimeUs = realTimeUs;
+        mSpeed = speed;
+    }
+
+    private long getTimeUs(long realTimeUs) {
+        return mBaseTimeUs + (long) ((realTimeUs - mBaseRealTimeUs) * (double) mSpeed);
+    }
+}
@@ -0,0 +1,552 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SampleSource} for local MP4 files, plain or fragmented, read in Java instead of
+ * through {@link MediaExtractor}. The sample tables are parsed once into primitive arrays, so
+ * moving between samples allocates nothing. Sample data is by default sliced out of a memory
+ * mapping of the file and copied once, straight into the buffer given to readSampleData():
+ * the codec's input buffer, or a {@link SampleQueue} buffer when prefetching. See the
+ * READ_MODE_* constants for the alternatives. Reads H.264, H.265, AAC and MP3 tracks; others
+ * are not listed. Not thread safe.
+ */
+public final class Mp4Extractor implements SampleSource {
+    /** Maps the file into memory in windows; no read calls and one copy per sample. */
+    public static final int READ_MODE_MAPPED = FileSampleReader.MODE_MAPPED;
+    /** Reads the file 1 MB at a time and copies samples out of that. */
+    public static final int READ_MODE_READ_AHEAD = FileSampleReader.MODE_READ_AHEAD;
+    /** Reads each sample with a read call of its own, as MediaExtractor does. */
+    public static final int READ_MODE_PER_SAMPLE = FileSampleReader.MODE_PER_SAMPLE;
+
+    private static final String TAG = "Mp4Extractor";
+
+    private final RandomAccessFile mFile;
+    private final FileSampleReader mReader;
+    private final List<Track> mTracks;
+    private final boolean[] mSelected;
+    // index of the current sample of each track
+    private final int[] mSampleIndex;
+    private int mCurrentTrack = -1;
+
+    private byte[] mScratch = new byte[0];
+
+    /** A track of the file, with the sample table flattened into one entry per sample. */
+    public static final class Track {
+        // set by Mp4Parser
+        int id;
+        String mime;
+        int width;
+        int height;
+        int sampleRate;
+        int channelCount;
+        final List<byte[]> csd = new ArrayList<byte[]>();
+        int nalLengthSize;
+        long timescale = 1;
+        long mediaDuration;
+        long editEmptyDuration;
+        long editMediaTime;
+        int defaultDuration;
+        int defaultSize;
+        int defaultFlags;
+        long fragmentDecodeTime;
+
+        private long mEditOffsetUs;
+        private long mDurationUs;
+        private int mMaxSampleSize;
+        private int mSampleCount;
+        private long[] mOffsets = new long[0];
+        private int[] mSizes = new int[0];
+        // in units of the timescale until finish(), microseconds after
+        private long[] mDecodeTimes = new long[0];
+        private long[] mPresentationTimes = new long[0];
+        private boolean[] mSync = new boolean[0];
+        // indices of the sync samples, in order
+        private int[] mSyncSamples;
+
+        Track() {}
+
+        /** Keeps the edit list's start of the track; the timescales are known by now. */
+        void applyEditList(long movieTimescale) {
+            mEditOffsetUs = scale(editEmptyDuration, movieTimescale)
+                    - scale(editMediaTime, timescale);
+        }
+
+        void setSampleTable(int[] sizes, long[] chunkOffsets, int[] stsc, int[] stts,
+                int[] ctts, int[] stss) {
+            int count = sizes.length;
+            mSizes = sizes;
+            mOffsets = new long[count];
+            mDecodeTimes = new long[count];
+            mPresentationTimes = new long[count];
+            mSync = new boolean[count];
+            mSampleCount = count;
+
+            // stsc: first chunk (1-based), samples per chunk, description index
+            int sample = 0;
+            for (int entry = 0; entry < stsc.length / 3 && sample < count; entry++) {
+                int firstChunk = stsc[3 * entry] - 1;
+                int lastChunk = entry + 1 < stsc.length / 3 ? stsc[3 * entry + 3] - 1
+                        : chunkOffsets.length;
+                int perChunk = stsc[3 * entry + 1];
+                for (int chunk = firstChunk; chunk < lastChunk && sample < count; chunk++) {
+                    long offset = chunkOffsets[chunk];
+                    for (int i = 0; i < perChunk && sample < count; i++) {
+                        mOffsets[sample] = offset;
+                        offset += sizes[sample];
+                        sample++;
+                    }
+                }
+            }
+
+            // stts: sample count, delta
+            long time = 0;
+            sample = 0;
+            for (int entry = 0; entry < stts.length / 2; entry++) {
+                int delta = stts[2 * entry + 1];
+                for (int i = 0; i < stts[2 * entry] && sample < count; i++) {
+                    mDecodeTimes[sample++] = time;
+                    time += delta & 0xffffffffL;
+                }
+            }
+            for (; sample < count; sample++) {
+                mDecodeTimes[sample] = time;
+            }
+
+            // ctts: sample count, composition offset
+            System.arraycopy(mDecodeTimes, 0, mPresentationTimes, 0, count);
+            if (ctts != null) {
+                sample = 0;
+                for (int entry = 0; entry < ctts.length / 2; entry++) {
+                    int offset = ctts[2 * entry + 1];
+                    for (int i = 0; i < ctts[2 * entry] && sample < count; i++) {
+                        mPresentationTimes[sample++] += offset;
+                    }
+                }
+            }
+
+            // stss: sync sample numbers, 1-based; without it every sample is a sync sample
+            if (stss == null) {
+                Arrays.fill(mSync, true);
+            } else {
+                for (int number : stss) {
+                    if (number > 0 && number <= count) {
+                        mSync[number - 1] = true;
+                    }
+                }
+            }
+        }
+
+        /** Appends a sample of a fragment, with times in units of the timescale. */
+        void addSample(long offset, int size, long decodeTime, int compositionOffset,
+                boolean sync) {
+            if (mSampleCount == mSizes.length) {
+                int capacity = Math.max(256, 2 * mSampleCount);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mSizes = Arrays.copyOf(mSizes, capacity);
+                mDecodeTimes = Arrays.copyOf(mDecodeTimes, capacity);
+                mPresentationTimes = Arrays.copyOf(mPresentationTimes, capacity);
+                mSync = Arrays.copyOf(mSync, capacity);
+            }
+            mOffsets[mSampleCount] = offset;
+            mSizes[mSampleCount] = size;
+            mDecodeTimes[mSampleCount] = decodeTime;
+            mPresentationTimes[mSampleCount] = decodeTime + compositionOffset;
+            mSync[mSampleCount] = sync;
+            mSampleCount++;
+        }
+
+        /** Converts the times to microseconds and indexes the sync samples. */
+        void finish() {
+            boolean audio = mime.startsWith("audio/");
+            int syncCount = 0;
+            long lastTimeUs = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                mDecodeTimes[i] = scale(mDecodeTimes[i], timescale) + mEditOffsetUs;
+                mPresentationTimes[i] = scale(mPresentationTimes[i], timescale) + mEditOffsetUs;
+                // every audio frame can be decoded on its own, whatever the flags say
+                if (audio) {
+                    mSync[i] = true;
+                }
+                if (mSync[i]) {
+                    syncCount++;
+                }
+                mMaxSampleSize = Math.max(mMaxSampleSize, mSizes[i]);
+                lastTimeUs = Math.max(lastTimeUs, mPresentationTimes[i]);
+            }
+            mSyncSamples = new int[syncCount];
+            for (int i = 0, j = 0; i < mSampleCount; i++) {
+                if (mSync[i]) {
+                    mSyncSamples[j++] = i;
+                }
+            }
+            mDurationUs = mediaDuration > 0 ? scale(mediaDuration, timescale) + mEditOffsetUs
+                    : lastTimeUs;
+        }
+
+        private static long scale(long time, long timescale) {
+            return timescale == 1000000 ? time : time * 1000000 / timescale;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannelCount() {
+            return channelCount;
+        }
+
+        public long getDurationUs() {
+            return mDurationUs;
+        }
+
+        /** Returns codec specific data {@code index}, as MediaExtractor's csd-N. */
+        public byte[] getCsd(int index) {
+            return csd.get(index).clone();
+        }
+
+        public int getCsdCount() {
+            return csd.size();
+        }
+
+        public int getSampleCount() {
+            return mSampleCount;
+        }
+
+        /** Returns the size of the largest sample as stored, before any start codes. */
+        public int getMaxSampleSize() {
+            return mMaxSampleSize;
+        }
+
+        private boolean isVideo() {
+            return nalLengthSize > 0;
+        }
+
+        /**
+         * Returns the index of the sync sample nearest {@code timeUs} as {@code mode} asks, or
+         * -1 if there is none.
+         */
+        private int findSyncSample(long timeUs, int mode) {
+            if (mSyncSamples.length == 0) {
+                return -1;
+            }
+            // last sync sample at or before timeUs
+            int low = 0;
+            int high = mSyncSamples.length - 1;
+            int before = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mPresentationTimes[mSyncSamples[mid]] <= timeUs) {
+                    before = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            int after = before + 1 < mSyncSamples.length ? before + 1 : -1;
+            if (before >= 0 && mPresentationTimes[mSyncSamples[before]] == timeUs) {
+                after = before;
+            }
+            int chosen;
+            if (mode == MediaExtractor.SEEK_TO_PREVIOUS_SYNC) {
+                chosen = before >= 0 ? before : 0;
+            } else if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC) {
+                chosen = after >= 0 ? after : mSyncSamples.length - 1;
+            } else if (before < 0 || after < 0) {
+                chosen = before < 0 ? 0 : before;
+            } else {
+                long toBefore = timeUs - mPresentationTimes[mSyncSamples[before]];
+                long toAfter = mPresentationTimes[mSyncSamples[after]] - timeUs;
+                chosen = toAfter < toBefore ? after : before;
+            }
+            return mSyncSamples[chosen];
+        }
+    }
+
+    /** Opens and parses the file at {@code path}; throws if it is not an MP4 file. */
+    public Mp4Extractor(String path) throws IOException {
+        this(path, READ_MODE_MAPPED);
+    }
+
+    /**
+     * Opens and parses the file at {@code path}, to read samples in {@code readMode}, one of
+     * the READ_MODE_* constants.
+     */
+    public Mp4Extractor(String path, int readMode) throws IOException {
+        if (readMode < READ_MODE_MAPPED || readMode > READ_MODE_PER_SAMPLE) {
+            throw new IllegalArgumentException("unknown read mode " + readMode);
+        }
+        mFile = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            mReader = new FileSampleReader(channel, readMode);
+            mTracks = Mp4Parser.parse(channel);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            mFile.close();
+            throw new IOException("cannot parse " + path + ": " + e);
+        }
+        mSelected = new boolean[mTracks.size()];
+        mSampleIndex = new int[mTracks.size()];
+    }
+
+    /** Returns track {@code index}, as listed by getTrackCount(). */
+    public Track getTrack(int index) {
+        return mTracks.get(index);
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mTracks.size();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        Track track = mTracks.get(index);
+        MediaFormat format;
+        int maxInputSize = track.mMaxSampleSize;
+        if (track.isVideo()) {
+            format = MediaFormat.createVideoFormat(track.mime, track.width, track.height);
+            // room for start codes in place of short NAL unit lengths
+            maxInputSize += maxInputSize / 2;
+        } else {
+            format = MediaFormat.createAudioFormat(track.mime, track.sampleRate,
+                    track.channelCount);
+        }
+        for (int i = 0; i < track.csd.size(); i++) {
+            format.setByteBuffer("csd-" + i, ByteBuffer.wrap(track.getCsd(i)));
+        }
+        format.setLong(MediaFormat.KEY_DURATION, track.mDurationUs);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        return format;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mSelected[index] = true;
+        updateCurrentTrack();
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mCurrentTrack;
+    }
+
+    @Override
+    public long getSampleTime() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        return mTracks.get(mCurrentTrack).mPresentationTimes[mSampleIndex[mCurrentTrack]];
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        return mTracks.get(mCurrentTrack).mSync[mSampleIndex[mCurrentTrack]]
+                ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public int getSampleSize() {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        Track track = mTracks.get(mCurrentTrack);
+        int size = track.mSizes[mSampleIndex[mCurrentTrack]];
+        if (track.isVideo() && track.nalLengthSize < 3) {
+            // at most one start code, 4 bytes, per length
+            size += size / track.nalLengthSize * (4 - track.nalLengthSize);
+        }
+        return size;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mCurrentTrack < 0) {
+            return -1;
+        }
+        Track track = mTracks.get(mCurrentTrack);
+        int index = mSampleIndex[mCurrentTrack];
+        int size = track.mSizes[index];
+        if (size > buffer.capacity() - offset) {
+            throw new IllegalArgumentException("sample of " + size + " bytes does not fit");
+        }
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        try {
+            mReader.read(track.mOffsets[index], buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read sample " + index + " of track " + mCurrentTrack, e);
+            return -1;
+        }
+        buffer.position(offset);
+        if (track.isVideo()) {
+            size = toAnnexB(buffer, offset, size, track.nalLengthSize);
+        }
+        return size;
+    }
+
+    /**
+     * Replaces the NAL unit lengths of the sample at {@code offset} with start codes; in place
+     * for 3- and 4-byte lengths, through a copy for shorter ones. Returns the new size.
+     */
+    private int toAnnexB(ByteBuffer buffer, int offset, int size, int lengthSize) {
+        int end = offset + size;
+        if (lengthSize >= 3) {
+            for (int i = offset; i + lengthSize <= end; ) {
+                int length = 0;
+                for (int j = 0; j < lengthSize; j++) {
+                    length = length << 8 | (buffer.get(i + j) & 0xff);
+                }
+                if (length < 0) {
+                    break;
+                }
+                for (int j = 0; j < lengthSize - 1; j++) {
+                    buffer.put(i + j, (byte) 0);
+                }
+                buffer.put(i + lengthSize - 1, (byte) 1);
+                i += lengthSize + length;
+            }
+            return size;
+        }
+
+        if (mScratch.length < size) {
+            mScratch = new byte[size];
+        }
+        buffer.get(mScratch, 0, size);
+        int units = 0;
+        for (int i = 0; i + lengthSize <= size; units++) {
+            i += lengthSize + readLength(mScratch, i, lengthSize);
+        }
+        int newSize = size + units * (4 - lengthSize);
+        if (newSize > buffer.capacity() - offset) {
+            throw new IllegalArgumentException("sample of " + newSize + " bytes does not fit");
+        }
+        buffer.limit(offset + newSize);
+        buffer.position(offset);
+        for (int i = 0; i + lengthSize <= size; ) {
+            int length = Math.min(readLength(mScratch, i, lengthSize), size - i - lengthSize);
+            buffer.putInt(1);
+            buffer.put(mScratch, i + lengthSize, length);
+            i += lengthSize + length;
+        }
+        buffer.limit(buffer.position());
+        buffer.position(offset);
+        return buffer.remaining();
+    }
+
+    private static int readLength(byte[] data, int position, int lengthSize) {
+        int length = 0;
+        for (int j = 0; j < lengthSize; j++) {
+            length = length << 8 | (data[position + j] & 0xff);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the bytes copied reading samples so far: out of the page cache by read calls,
+     * and between buffers in this process.
+     */
+    public long getBytesCopied() {
+        return mReader.getBytesCopied();
+    }
+
+    /** Returns the read system calls made for sample data so far. */
+    public long getReadCount() {
+        return mReader.getReadCount();
+    }
+
+    /** Returns the number of times a window of the file was mapped in READ_MODE_MAPPED. */
+    public long getMapCount() {
+        return mReader.getMapCount();
+    }
+
+    @Override
+    public boolean advance() {
+        if (mCurrentTrack < 0) {
+            return false;
+        }
+        mSampleIndex[mCurrentTrack]++;
+        updateCurrentTrack();
+        return mCurrentTrack >= 0;
+    }
+
+    /** Picks the selected track whose next sample decodes first, as the file interleaves. */
+    private void updateCurrentTrack() {
+        mCurrentTrack = -1;
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            int index = mSampleIndex[i];
+            if (mSelected[i] && index < track.mSampleCount
+                    && track.mDecodeTimes[index] < earliest) {
+                earliest = track.mDecodeTimes[index];
+                mCurrentTrack = i;
+            }
+        }
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mSelected[i]) {
+                int sample = mTracks.get(i).findSyncSample(timeUs, mode);
+                mSampleIndex[i] = sample >= 0 ? sample : mTracks.get(i).mSampleCount;
+            }
+        }
+        updateCurrentTrack();
+    }
+
+    /** Read from stss, or the fragments' sample flags, and the chunk offsets. */
+    @Override
+    public boolean getSyncSamples(int index, KeyframeIndex.Builder builder) {
+        Track track = mTracks.get(index);
+        for (int sample : track.mSyncSamples) {
+            builder.add(track.mPresentationTimes[sample], track.mOffsets[sample]);
+        }
+        return true;
+    }
+
+    /** Encrypted files are left to MediaExtractor. */
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        return false;
+    }
+
+    @Override
+    public void release() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot close file", e);
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package com.example.zhanghui.avplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the structure of an ISO base media file (MP4, fragmented or not) for
+ * {@link Mp4Extractor}: the sample descriptions of its AVC, HEVC and AAC/MP3 tracks and their
+ * sample tables, flattened into one entry per sample. Only the box headers of the top level
+ * and the moov and moof boxes are read; media data is not touched. Tracks of other kinds are
+ * left out.
+ */
+final class Mp4Parser {
+    // largest moov or moof read into memory
+    private static final int MAX_METADATA_SIZE = 64 * 1024 * 1024;
+    // tfhd flags
+    private static final int TFHD_BASE_DATA_OFFSET = 0x1;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x2;
+    private static final int TFHD_DEFAULT_DURATION = 0x8;
+    private static final int TFHD_DEFAULT_SIZE = 0x10;
+    private static final int TFHD_DEFAULT_FLAGS = 0x20;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x20000;
+    // trun flags
+    private static final int TRUN_DATA_OFFSET = 0x1;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x4;
+    private static final int TRUN_DURATION = 0x100;
+    private static final int TRUN_SIZE = 0x200;
+    private static final int TRUN_FLAGS = 0x400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x800;
+    // sample flags: sample_is_non_sync_sample
+    private static final int SAMPLE_NON_SYNC = 0x10000;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000,
+            7350 };
+
+    private final FileChannel mChannel;
+    private long mMovieTimescale = 1;
+    // tracks by track_ID, with their trex defaults and where their fragments have got to
+    private final Map<Integer, Mp4Extractor.Track> mTracks =
+            new HashMap<Integer, Mp4Extractor.Track>();
+    private final List<Mp4Extractor.Track> mTrackList = new ArrayList<Mp4Extractor.Track>();
+
+    private Mp4Parser(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /** Returns the tracks of the file in {@code channel}, in the order of their trak boxes. */
+    static List<Mp4Extractor.Track> parse(FileChannel channel) throws IOException {
+        Mp4Parser parser = new Mp4Parser(channel);
+        parser.parseTopLevel();
+        for (Mp4Extractor.Track track : parser.mTrackList) {
+            track.finish();
+        }
+        return parser.mTrackList;
+    }
+
+    private void parseTopLevel() throws IOException {
+        long size = mChannel.size();
+        long position = 0;
+        boolean sawMoov = false;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            long boxSize = header.getInt() & 0xffffffffL;
+            String type = readType(header);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong();
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                // a truncated last box, e.g. a download in progress
+                break;
+            }
+            if (type.equals("moov") || type.equals("moof")) {
+                if (boxSize - headerSize > MAX_METADATA_SIZE) {
+                    throw new IOException(type + " too large: " + boxSize);
+                }
+                ByteBuffer box = ByteBuffer.allocate((int) (boxSize - headerSize));
+                readFully(box, position + headerSize);
+                box.flip();
+                if (type.equals("moov")) {
+                    parseMoov(box);
+                    sawMoov = true;
+                } else if (sawMoov) {
+                    parseMoof(box, position);
+                }
+            }
+            position += boxSize;
+        }
+        if (!sawMoov) {
+            throw new IOException("no moov box");
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                if (buffer.position() >= 8) {
+                    return;
+                }
+                throw new IOException("unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (buffer.get() & 0xff);
+        }
+        return new String(type);
+    }
+
+    /**
+     * Moves {@code buffer} to the content of its next child box and returns its type, with the
+     * limit at the end of the child. {@code end} is where the children of the parent end.
+     */
+    private static String enterBox(ByteBuffer buffer, int end) {
+        buffer.limit(end);
+        int start = buffer.position();
+        long size = buffer.getInt() & 0xffffffffL;
+        String type = readType(buffer);
+        if (size == 1) {
+            size = buffer.getLong();
+        } else if (size == 0) {
+            size = end - start;
+        }
+        if (size < 8 || start + size > end) {
+            throw new IllegalStateException("malformed " + type + " box");
+        }
+        buffer.limit((int) (start + size));
+        return type;
+    }
+
+    private void parseMoov(ByteBuffer moov) throws IOException {
+        Map<Integer, int[]> trex = new HashMap<Integer, int[]>();
+        int end = moov.limit();
+        while (moov.position() + 8 <= end) {
+            String type = enterBox(moov, end);
+            int next = moov.limit();
+            try {
+                if (type.equals("mvhd")) {
+                    int version = moov.get() & 0xff;
+                    moov.position(moov.position() + 3 + (version == 1 ? 16 : 8));
+                    mMovieTimescale = moov.getInt() & 0xffffffffL;
+                } else if (type.equals("trak")) {
+                    Mp4Extractor.Track track = new Mp4Extractor.Track();
+                    if (parseTrak(moov, track)) {
+                        mTracks.put(track.id, track);
+                        mTrackList.add(track);
+                    }
+                } else if (type.equals("mvex")) {
+                    int mvexEnd = moov.limit();
+                    while (moov.position() + 8 <= mvexEnd) {
+                        String child = enterBox(moov, mvexEnd);
+                        int childEnd = moov.limit();
+                        if (child.equals("trex")) {
+                            moov.getInt();
+                            int trackId = moov.getInt();
+                            // description index, duration, size, flags
+                            trex.put(trackId, new int[] {
+                                    moov.getInt(), moov.getInt(), moov.getInt(), moov.getInt() });
+                        }
+                        moov.limit(mvexEnd);
+                        moov.position(childEnd);
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("cannot parse " + type + ": " + e);
+            }
+            moov.limit(end);
+            moov.position(next);
+        }
+        for (Map.Entry<Integer, int[]> entry : trex.entrySet()) {
+            Mp4Extractor.Track track = mTracks.get(entry.getKey());
+            if (track != null) {
+                int[] defaults = entry.getValue();
+                track.defaultDuration = defaults[1];
+                track.defaultSize = defaults[2];
+                track.defaultFlags = defaults[3];
+            }
+        }
+        for (Mp4Extractor.Track track : mTrackList) {
+            track.applyEditList(mMovieTimescale);
+        }
+    }
+
+    /** Returns false for a track of a kind this parser leaves out. */
+    private boolean parseTrak(ByteBuffer buffer, Mp4Extractor.Track track) {
+        int end = buffer.limit();
+        boolean supported = false;
+        while (buffer.position() + 8 <= end) {
+            String type = enterBox(buffer, end);
+            int next = buffer.limit();
+            if (type.equals("tkhd")) {
+                int version = buffer.get() & 0xff;
+                buffer.position(buffer.position() + 3 + (version == 1 ? 16 : 8));
+                track.id = buffer.getInt();
+            } else if (type.equals("edts")) {
+                parseEdts(buffer, track);
+            } else if (type.equals("mdia")) {
+                supported = parseMdia(buffer, track);
+            }
+            buffer.limit(end);
+            buffer.position(next);
+        }
+        return supported;
+    }
+
+    private static void parseEdts(ByteBuffer buffer, Mp4Extractor.Track track) {
+        int end = buffer.limit();
+        while (buffer.position() + 8 <= end) {
+            String type = enterBox(buffer, end);
+            int next = buffer.limit();
+            if (type.equals("elst")) {
+                int version = buffer.get() & 0xff;
+                buffer.position(buffer.position() + 3);
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    long duration = version == 1 ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+                    long mediaTime = version == 1 ? buffer.getLong() : buffer.getInt();
+                    buffer.getInt();
+                    if (mediaTime == -1) {
+                        // an empty edit delays the track
+                        track.editEmptyDuration += duration;
+                    } else {
+                        // only the first real edit is applied: where the track starts
+                        track.editMediaTime = mediaTime;
+                        break;
+                    }
+                }
+            }
+            buffer.limit(end);
+            buffer.position(next);
+        }
+    }
+
+    private boolean parseMdia(ByteBuffer buffer, Mp4Extractor.Track track) {
+        int end = buffer.limit();
+        boolean supported = false;
+        int stblPosition = -1;
+        int stblEnd = -1;
+        while (buffer.position() + 8 <= end) {
+            String type = enterBox(buffer, end);
+            int next = buffer.limit();
+            if (type.equals("mdhd")) {
+                int version = buffer.get() & 0xff;
+                buffer.position(buffer.position() + 3 + (version == 1 ? 16 : 8));
+                track.timescale = buffer.getInt() & 0xffffffffL;
+                track.mediaDuration = version == 1 ? buffer.getLong()
+                        : buffer.getInt() & 0xffffffffL;
+            } else if (type.equals("minf")) {
+                int minfEnd = buffer.limit();
+                while (buffer.position() + 8 <= minfEnd) {
+                    String child = enterBox(buffer, minfEnd);
+                    int childEnd = buffer.limit();
+                    if (child.equals("stbl")) {
+                        // parsed last, as it needs the timescale from mdhd
+                        stblPosition = buffer.position();
+                        stblEnd = childEnd;
+                    }
+                    buffer.limit(minfEnd);
+                    buffer.position(childEnd);
+                }
+            }
+            buffer.limit(end);
+            buffer.position(next);
+        }
+        if (stblPosition != -1) {
+            buffer.position(stblPosition);
+            buffer.limit(stblEnd);
+            supported = parseStbl(buffer, track);
+            buffer.limit(end);
+        }
+        return supported;
+    }
+
+    private boolean parseStbl(ByteBuffer buffer, Mp4Extractor.Track track) {
+        int end = buffer.limit();
+        int[] sizes = null;
+        long[] chunkOffsets = null;
+        int[] stsc = null;
+        int[] stts = null;
+        int[] ctts = null;
+        int[] stss = null;
+        boolean supported = false;
+        while (buffer.position() + 8 <= end) {
+            String type = enterBox(buffer, end);
+            int next = buffer.limit();
+            int version = buffer.get() & 0xff;
+            buffer.position(buffer.position() + 3);
+            if (type.equals("stsd")) {
+                buffer.getInt();
+                supported = parseSampleEntry(buffer, track);
+            } else if (type.equals("stsz")) {
+                int sampleSize = buffer.getInt();
+                sizes = new int[buffer.getInt()];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = sampleSize != 0 ? sampleSize : buffer.getInt();
+                }
+            } else if (type.equals("stz2")) {
+                int fieldSize = buffer.getInt() & 0xff;
+                sizes = new int[buffer.getInt()];
+                for (int i = 0; i < sizes.length; i++) {
+                    if (fieldSize == 4) {
+                        int b = buffer.get(buffer.position() + i / 2) & 0xff;
+                        sizes[i] = i % 2 == 0 ? b >> 4 : b & 0xf;
+                    } else {
+                        sizes[i] = fieldSize == 8 ? buffer.get() & 0xff : buffer.getShort() & 0xffff;
+                    }
+                }
+            } else if (type.equals("stco") || type.equals("co64")) {
+                chunkOffsets = new long[buffer.getInt()];
+                for (int i = 0; i < chunkOffsets.length; i++) {
+                    chunkOffsets[i] = type.equals("co64") ? buffer.getLong()
+                            : buffer.getInt() & 0xffffffffL;
+                }
+            } else if (type.equals("stsc")) {
+                stsc = readIntTable(buffer, 3);
+            } else if (type.equals("stts")) {
+                stts = readIntTable(buffer, 2);
+            } else if (type.equals("ctts")) {
+                // version 0 offsets are unsigned but larger than 2^31 never occur in practice
+                ctts = readIntTable(buffer, 2);
+            } else if (type.equals("stss")) {
+                stss = readIntTable(buffer, 1);
+            }
+            buffer.limit(end);
+            buffer.position(next);
+        }
+        if (supported && sizes != null && chunkOffsets != null && stsc != null && stts != null) {
+            track.setSampleTable(sizes, chunkOffsets, stsc, stts, ctts, stss);
+        }
+        return supported;
+    }
+
+    private static int[] readIntTable(ByteBuffer buffer, int columns) {
+        int[] table = new int[buffer.getInt() * columns];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = buffer.getInt();
+        }
+        return table;
+    }
+
+    /** Reads the first sample description; returns false if it is not a supported format. */
+    private static boolean parseSampleEntry(ByteBuffer buffer, Mp4Extractor.Track track) {
+        int end = buffer.limit();
+        String type = enterBox(buffer, end);
+        int entryStart = buffer.position();
+        boolean video = type.equals("avc1") || type.equals("avc3")
+                || type.equals("hvc1") || type.equals("hev1");
+        boolean audio = type.equals("mp4a") || type.equals(".mp3");
+        if (video) {
+            track.width = buffer.getShort(entryStart + 24) & 0xffff;
+            track.height = buffer.getShort(entryStart + 26) & 0xffff;
+            buffer.position(entryStart + 78);
+        } else if (audio) {
+            track.channelCount = buffer.getShort(entryStart + 16) & 0xffff;
+            track.sampleRate = (int) ((buffer.getInt(entryStart + 24) & 0xffffffffL) >> 16);
+            // QuickTime sound descriptions of version 1 and 2 carry more fields
+            int version = buffer.getShort(entryStart + 8);
+            buffer.position(entryStart + 28 + (version == 1 ? 16 : version == 2 ? 36 : 0));
+            if (type.equals(".mp3")) {
+                track.mime = "audio/mpeg";
+            }
+        } else {
+            return false;
+        }
+
+        int entryEnd = buffer.limit();
+        while (buffer.position() + 8 <= entryEnd) {
+            String child = enterBox(buffer, entryEnd);
+            int next = buffer.limit();
+            if (child.equals("avcC")) {
+                parseAvcC(buffer, track);
+            } else if (child.equals("hvcC")) {
+                parseHvcC(buffer, track);
+            } else if (child.equals("esds")) {
+                parseEsds(buffer, track);
+            }
+            buffer.limit(entryEnd);
+            buffer.position(next);
+        }
+        buffer.limit(end);
+        return track.mime != null;
+    }
+
+    private static void parseAvcC(ByteBuffer buffer, Mp4Extractor.Track track) {
+        buffer.position(buffer.position() + 4);
+        track.nalLengthSize = (buffer.get() & 0x3) + 1;
+        // SPS into csd-0 and PPS into csd-1, with start codes, as MediaExtractor does
+        int spsCount = buffer.get() & 0x1f;
+        track.csd.add(readNalUnits(buffer, spsCount));
+        int ppsCount = buffer.get() & 0xff;
+        track.csd.add(readNalUnits(buffer, ppsCount));
+        track.mime = "video/avc";
+    }
+
+    private static void parseHvcC(ByteBuffer buffer, Mp4Extractor.Track track) {
+        buffer.position(buffer.position() + 21);
+        track.nalLengthSize = (buffer.get() & 0x3) + 1;
+        int arrays = buffer.get() & 0xff;
+        ByteBuffer csd = ByteBuffer.allocate(buffer.remaining() * 2);
+        for (int i = 0; i < arrays; i++) {
+            buffer.get();
+            int count = buffer.getShort() & 0xffff;
+            csd.put(readNalUnits(buffer, count));
+        }
+        byte[] all = new byte[csd.position()];
+        csd.flip();
+        csd.get(all);
+        // VPS, SPS and PPS all go into csd-0
+        track.csd.add(all);
+        track.mime = "video/hevc";
+    }
+
+    /** Reads {@code count} NAL units with 16-bit lengths and returns them with start codes. */
+    private static byte[] readNalUnits(ByteBuffer buffer, int count) {
+        int start = buffer.position();
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort() & 0xffff;
+            buffer.position(buffer.position() + length);
+            size += 4 + length;
+        }
+        byte[] units = new byte[size];
+        buffer.position(start);
+        int out = 0;
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort() & 0xffff;
+            units[out + 3] = 1;
+            buffer.get(units, out + 4, length);
+            out += 4 + length;
+        }
+        return units;
+    }
+
+    private static void parseEsds(ByteBuffer buffer, Mp4Extractor.Track track) {
+        buffer.position(buffer.position() + 4);
+        // ES_Descriptor
+        if ((buffer.get() & 0xff) != 0x03) {
+            return;
+        }
+        readDescriptorSize(buffer);
+        buffer.getShort();
+        int flags = buffer.get() & 0xff;
+        if ((flags & 0x80) != 0) {
+            buffer.getShort();
+        }
+        if ((flags & 0x40) != 0) {
+            buffer.position(buffer.position() + (buffer.get() & 0xff));
+        }
+        if ((flags & 0x20) != 0) {
+            buffer.getShort();
+        }
+        // DecoderConfigDescriptor
+        if ((buffer.get() & 0xff) != 0x04) {
+            return;
+        }
+        readDescriptorSize(buffer);
+        int objectType = buffer.get() & 0xff;
+        buffer.position(buffer.position() + 12);
+        if (objectType == 0x69 || objectType == 0x6b) {
+            track.mime = "audio/mpeg";
+            return;
+        }
+        if (objectType != 0x40 && objectType != 0x66 && objectType != 0x67
+                && objectType != 0x68) {
+            return;
+        }
+        track.mime = "audio/mp4a-latm";
+        // DecoderSpecificInfo: the AudioSpecificConfig
+        if (buffer.remaining() < 2 || (buffer.get() & 0xff) != 0x05) {
+            return;
+        }
+        byte[] config = new byte[readDescriptorSize(buffer)];
+        buffer.get(config);
+        track.csd.add(config);
+        parseAudioSpecificConfig(config, track);
+    }
+
+    private static int readDescriptorSize(ByteBuffer buffer) {
+        int size = 0;
+        int b;
+        do {
+            b = buffer.get() & 0xff;
+            size = size << 7 | (b & 0x7f);
+        } while ((b & 0x80) != 0);
+        return size;
+    }
+
+    /** Takes the sample rate and channel count from the config, over the sample entry's. */
+    private static void parseAudioSpecificConfig(byte[] config, Mp4Extractor.Track track) {
+        if (config.length < 2) {
+            return;
+        }
+        long bits = 0;
+        for (int i = 0; i < Math.min(8, config.length); i++) {
+            bits |= (config[i] & 0xffL) << (56 - 8 * i);
+        }
+        int shift = 64;
+        shift -= 5;
+        int objectType = (int) (bits >>> shift) & 0x1f;
+        if (objectType == 31) {
+            shift -= 6;
+        }
+        shift -= 4;
+        int frequencyIndex = (int) (bits >>> shift) & 0xf;
+        int sampleRate;
+        if (frequencyIndex == 0xf) {
+            if (config.length < 5) {
+                return;
+            }
+            shift -= 24;
+            sampleRate = (int) (bits >>> shift) & 0xffffff;
+        } else if (frequencyIndex < AAC_SAMPLE_RATES.length) {
+            sampleRate = AAC_SAMPLE_RATES[frequencyIndex];
+        } else {
+            return;
+        }
+        shift -= 4;
+        int channelConfig = (int) (bits >>> shift) & 0xf;
+        track.sampleRate = sampleRate;
+        if (channelConfig > 0 && channelConfig < 7) {
+            track.channelCount = channelConfig;
+        } else if (channelConfig == 7) {
+            track.channelCount = 8;
+        }
+    }
+
+    private void parseMoof(ByteBuffer moof, long moofPosition) throws IOException {
+        int end = moof.limit();
+        // data of a traf without a base follows that of the one before
+        long nextDataOffset = -1;
+        try {
+            while (moof.position() + 8 <= end) {
+                String type = enterBox(moof, end);
+                int next = moof.limit();
+                if (type.equals("traf")) {
+                    nextDataOffset = parseTraf(moof, moofPosition, nextDataOffset);
+                }
+                moof.limit(end);
+                moof.position(next);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("cannot parse moof: " + e);
+        }
+    }
+
+    /** Returns the end of the traf's sample data. */
+    private long parseTraf(ByteBuffer buffer, long moofPosition, long previousDataEnd) {
+        int end = buffer.limit();
+        Mp4Extractor.Track track = null;
+        long baseOffset = previousDataEnd == -1 ? moofPosition : previousDataEnd;
+        int duration = 0;
+        int size = 0;
+        int flags = 0;
+        long dataEnd = baseOffset;
+        while (buffer.position() + 8 <= end) {
+            String type = enterBox(buffer, end);
+            int next = buffer.limit();
+            int boxFlags = buffer.getInt();
+            int version = boxFlags >>> 24;
+            boxFlags &= 0xffffff;
+            if (type.equals("tfhd")) {
+                track = mTracks.get(buffer.getInt());
+                if (track == null) {
+                    return previousDataEnd;
+                }
+                duration = track.defaultDuration;
+                size = track.defaultSize;
+                flags = track.defaultFlags;
+                if ((boxFlags & TFHD_BASE_DATA_OFFSET) != 0) {
+                    baseOffset = buffer.getLong();
+                } else if ((boxFlags & TFHD_DEFAULT_BASE_IS_MOOF) != 0) {
+                    baseOffset = moofPosition;
+                }
+                if ((boxFlags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+                    buffer.getInt();
+                }
+                if ((boxFlags & TFHD_DEFAULT_DURATION) != 0) {
+                    duration = buffer.getInt();
+                }
+                if ((boxFlags & TFHD_DEFAULT_SIZE) != 0) {
+                    size = buffer.getInt();
+                }
+                if ((boxFlags & TFHD_DEFAULT_FLAGS) != 0) {
+                    flags = buffer.getInt();
+                }
+                dataEnd = baseOffset;
+            } else if (type.equals("tfdt") && track != null) {
+                track.fragmentDecodeTime = version == 1 ? buffer.getLong()
+                        : buffer.getInt() & 0xffffffffL;
+            } else if (type.equals("trun") && track != null) {
+                int count = buffer.getInt();
+                long offset = (boxFlags & TRUN_DATA_OFFSET) != 0
+                        ? baseOffset + buffer.getInt() : dataEnd;
+                int firstFlags = (boxFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0
+                        ? buffer.getInt() : flags;
+                for (int i = 0; i < count; i++) {
+                    int sampleDuration = (boxFlags & TRUN_DURATION) != 0
+                            ? buffer.getInt() : duration;
+                    int sampleSize = (boxFlags & TRUN_SIZE) != 0 ? buffer.getInt() : size;
+                    int sampleFlags = (boxFlags & TRUN_FLAGS) != 0 ? buffer.getInt()
+                            : i == 0 ? firstFlags : flags;
+                    // signed in version 1, and in practice in version 0 as well
+                    int compositionOffset = (boxFlags & TRUN_COMPOSITION_OFFSET) != 0
+                            ? buffer.getInt() : 0;
+                    track.addSample(offset, sampleSize, track.fragmentDecodeTime,
+                            compositionOffset, (sampleFlags & SAMPLE_NON_SYNC) == 0);
+                    track.fragmentDecodeTime += sampleDuration & 0xffffffffL;
+                    offset += sampleSize;
+                }
+                dataEnd = offset;
+            }
+            buffer.limit(end);
+            buffer.position(next);
+        }
+        return dataEnd;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.zhanghui.avplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads just enough of H.264 and H.265 access units, in the Annex B byte stream format that
+ * {@link android.media.MediaExtractor} hands out, to tell whether a frame is a reference for
+ * others. A non-reference frame can be left out of decoding without corrupting later frames.
+ */
+final class NalUnits {
+    private static final String MIME_AVC = "video/avc";
+    private static final String MIME_HEVC = "video/hevc";
+
+    private static final int AVC_NAL_TYPE_SLICE = 1;
+    private static final int AVC_NAL_TYPE_IDR = 5;
+    private static final int HEVC_MAX_VCL_NAL_TYPE = 31;
+    // TRAIL_N, TSA_N, STSA_N, RADL_N, RASL_N and the reserved RSV_VCL_N10..14
+    private static final int HEVC_MAX_NON_REFERENCE_NAL_TYPE = 14;
+
+    private NalUnits() {}
+
+    /** Returns true if the format of {@code mime} is understood by isNonReference(). */
+    static boolean isSupported(String mime) {
+        return MIME_AVC.equals(mime) || MIME_HEVC.equals(mime);
+    }
+
+    /**
+     * Returns true if the access unit in {@code data}, from {@code offset} for {@code size}
+     * bytes, holds picture data and none of it is used as a reference. False whenever in
+     * doubt, including for unsupported formats and data without start codes.
+     */
+    static boolean isNonReference(String mime, ByteBuffer data, int offset, int size) {
+        boolean hevc = MIME_HEVC.equals(mime);
+        if (!hevc && !MIME_AVC.equals(mime)) {
+            return false;
+        }
+
+        boolean sawPicture = false;
+        int end = offset + size;
+        int i = findNalUnit(data, offset, end);
+        while (i >= 0 && i < end) {
+            int header = data.get(i) & 0xff;
+            if (hevc) {
+                int type = (header >> 1) & 0x3f;
+                if (type <= HEVC_MAX_VCL_NAL_TYPE) {
+                    if (type > HEVC_MAX_NON_REFERENCE_NAL_TYPE || (type & 1) != 0) {
+                        return false;
+                    }
+                    sawPicture = true;
+                }
+            } else {
+                int type = header & 0x1f;
+                if (type >= AVC_NAL_TYPE_SLICE && type <= AVC_NAL_TYPE_IDR) {
+                    if ((header & 0x60) != 0 || type == AVC_NAL_TYPE_IDR) {
+                        return false;
+                    }
+                    sawPicture = true;
+                }
+            }
+            i = findNalUnit(data, i + 1, end);
+        }
+        return sawPicture;
+    }
+
+    /** Returns the position of the first NAL header after a start code in [from, end), or -1. */
+    private static int findNalUnit(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+}
@@ -5,40 +5,77 @@ import android.media.AudioManager;
 import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.AudioAttributes;
+import android.media.PlaybackParams;
+import android.os.Build;
 import android.util.Log;
 
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.ByteOrder;
 
 /**
  * Class for playing audio by using audio track.
  * audioTrack.write methods will
  * block until all data has been written to system. In order to avoid blocking, this class
  * caculates available buffer size first then writes to audio sink.
+ * Methods are synchronized because the audio clock is also read from the video track's
+ * thread when codecs run in {@link CodecState#MODE_ASYNC}.
  */
 public class NonBlockingAudioTrack {
     private static final String TAG = NonBlockingAudioTrack.class.getSimpleName();
     private static final int MIN_TIMESTAMP_SAMPLE_INTERVAL_US = 250000;
-
-    class QueueElement {
-        ByteBuffer data;
-        int size;
-        long pts;
-    }
+    // number of decoded buffers that can wait for the AudioTrack, about 1.4 s of 48 kHz AAC
+    private static final int QUEUE_CAPACITY = 64;
+    // input taken by the time stretcher at once; larger codec buffers are fed in parts
+    private static final int STRETCHER_MAX_INPUT_FRAMES = 4096;
+    // buffer the AudioTrack starts with, and the capacity it can grow to from API 24 on, in
+    // multiples of its minimum buffer size
+    private static final int INITIAL_BUFFER_MULTIPLE = 2;
+    private static final int MAX_BUFFER_MULTIPLE = 8;
 
     private AudioTrack mAudioTrack;
     private int mSampleRate;
+    private long mBufferDurationUs;
     private int mNumBytesQueued = 0;
-    private LinkedList<QueueElement> mQueue = new LinkedList<QueueElement>();
+    private AudioBufferQueue mQueue = new AudioBufferQueue(QUEUE_CAPACITY);
     private boolean mStopped;
     private Method getLatencyMethod;
     private long mLatencyUs;
     private long mLastTimestampSampleTimeUs;
     private boolean mAudioTimestampSet;
+    private float mSpeed = 1.0f;
+    private int mChannelCount;
+    private int mEncoding;
+    // bytes per frame of all channels in mEncoding
+    private int mFrameSize;
+    private int mMinBufferSizeFrames;
+    private int mBufferSizeFrames;
+    // time the last process() spent writing to the AudioTrack
+    private long mWriteLatencyUs;
+    // stretches audio in software when the AudioTrack cannot play faster or slower itself
+    private WsolaTimeStretcher mTimeStretcher;
+    private ByteBuffer mStretchedData;
+    // for mapping AudioTrack frames played to media frames while stretching in software: the
+    // frames queued and the media position they end at, when speed last changed and now
+    private long mFramesQueued;
+    private long mMediaFramesQueued;
+    private long mSpeedChangeFramesQueued;
+    private long mSpeedChangeMediaFrames;
+    private float mPreviousSpeed = 1.0f;
+    // media position at which the stretcher started counting its input
+    private long mStretcherBaseMediaFrames;
     private final AudioTimestamp mAudioTimestamp;
 
+    /** Plays 16-bit PCM. */
     public NonBlockingAudioTrack(int sampleRate, int channelCount) {
+        this(sampleRate, channelCount, AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    /**
+     * Plays PCM in {@code encoding}, one of the {@link PcmEncoding} encodings the device
+     * supports; see {@link PcmEncoding#isSupportedByAudioTrack}.
+     */
+    public NonBlockingAudioTrack(int sampleRate, int channelCount, int encoding) {
         int channelConfig;
         switch (channelCount) {
             case 1:
@@ -51,26 +88,41 @@ public class NonBlockingAudioTrack {
                 channelConfig = AudioFormat.CHANNEL_OUT_5POINT1;
                 break;
             default:
-                throw new IllegalArgumentException();
+                // other layouts are mixed down by the AudioProcessorChain on the way here
+                throw new IllegalArgumentException("unsupported channel count " + channelCount);
         }
 
         int minBufferSize =
             AudioTrack.getMinBufferSize(
                     sampleRate,
                     channelConfig,
-                    AudioFormat.ENCODING_PCM_16BIT);
+                    encoding);
 
-        int bufferSize = 2 * minBufferSize;
+        int frameSize = channelCount * PcmEncoding.getBytesPerSample(encoding);
+        // the buffer can only be resized within the capacity it is created with
+        boolean resizable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        int multiple = resizable ? MAX_BUFFER_MULTIPLE : INITIAL_BUFFER_MULTIPLE;
+        // whole frames, which 24-bit audio does not come in by itself
+        int bufferSize = multiple * minBufferSize / frameSize * frameSize;
 
         mAudioTrack = new AudioTrack(
                 AudioManager.STREAM_MUSIC,
                 sampleRate,
                 channelConfig,
-                AudioFormat.ENCODING_PCM_16BIT,
+                encoding,
                 bufferSize,
                 AudioTrack.MODE_STREAM);
 
         mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mEncoding = encoding;
+        mFrameSize = frameSize;
+        mMinBufferSizeFrames = minBufferSize / frameSize;
+        mBufferSizeFrames = bufferSize / frameSize;
+        if (resizable) {
+            setBufferSizeInFrames(INITIAL_BUFFER_MULTIPLE * mMinBufferSizeFrames);
+        }
+        mBufferDurationUs = (long) mBufferSizeFrames * 1000000L / sampleRate;
 
         try {
             getLatencyMethod =
@@ -81,7 +133,7 @@ public class NonBlockingAudioTrack {
         mAudioTimestamp = new AudioTimestamp();
     }
 
-    public long getAudioTimeUs() {
+    public synchronized long getAudioTimeUs() {
         long systemClockUs = System.nanoTime() / 1000;
         int numFramesPlayed = mAudioTrack.getPlaybackHeadPosition();
         if (systemClockUs - mLastTimestampSampleTimeUs >= MIN_TIMESTAMP_SAMPLE_INTERVAL_US) {
@@ -97,29 +149,170 @@ public class NonBlockingAudioTrack {
             mLastTimestampSampleTimeUs = systemClockUs;
         }
 
+        // the AudioTrack itself only changes speed if the platform stretches the audio
+        double trackSpeed = mTimeStretcher == null ? mSpeed : 1.0;
+        long elapsedFrames;
         if (mAudioTimestampSet) {
             // Calculate the speed-adjusted position using the timestamp (which may be in the future).
             long elapsedSinceTimestampUs = System.nanoTime() / 1000 - (mAudioTimestamp.nanoTime / 1000);
-            long elapsedSinceTimestampFrames = elapsedSinceTimestampUs * mSampleRate / 1000000L;
-            long elapsedFrames = mAudioTimestamp.framePosition + elapsedSinceTimestampFrames;
-            long durationUs = (elapsedFrames * 1000000L) / mSampleRate;
-            return durationUs;
+            long elapsedSinceTimestampFrames =
+                    (long) (elapsedSinceTimestampUs * trackSpeed) * mSampleRate / 1000000L;
+            elapsedFrames = mAudioTimestamp.framePosition + elapsedSinceTimestampFrames;
         } else {
-            long durationUs = (numFramesPlayed * 1000000L) / mSampleRate - mLatencyUs;
-            return durationUs;
+            elapsedFrames = numFramesPlayed
+                    - (long) (mLatencyUs * trackSpeed) * mSampleRate / 1000000L;
+        }
+        if (mTimeStretcher != null) {
+            elapsedFrames = getMediaFramesForFramesPlayed(elapsedFrames);
+        }
+        long durationUs = (elapsedFrames * 1000000L) / mSampleRate;
+        return durationUs;
+    }
+
+    /**
+     * Maps a position of the AudioTrack to the media position, while stretching in software.
+     * Frames queued after the last speed change play at the current speed, earlier ones at
+     * the one before; speed changes further back have been played out.
+     */
+    private long getMediaFramesForFramesPlayed(long framesPlayed) {
+        if (framesPlayed >= mSpeedChangeFramesQueued) {
+            return mMediaFramesQueued - (long) ((mFramesQueued - framesPlayed) * (double) mSpeed);
+        }
+        return mSpeedChangeMediaFrames
+                - (long) ((mSpeedChangeFramesQueued - framesPlayed) * (double) mPreviousSpeed);
+    }
+
+    /**
+     * Returns the time, in microseconds and in the same time base as {@link System#nanoTime()},
+     * at which process() should be called again, or Long.MAX_VALUE if nothing is queued.
+     * Pending data did not fit into the AudioTrack, so retry once a quarter of its buffer
+     * has been played out.
+     */
+    public synchronized long getNextWriteTimeUs(long nowUs) {
+        if (mQueue.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        float trackSpeed = mTimeStretcher == null ? mSpeed : 1.0f;
+        return nowUs + (long) (mBufferDurationUs / 4 / trackSpeed);
+    }
+
+    /**
+     * Plays at {@code speed} times the normal rate with the pitch kept. Uses the platform's
+     * time stretching where the AudioTrack supports it, and a {@link WsolaTimeStretcher} on
+     * the way into the queue otherwise. Returns false if neither can, as the stretcher only
+     * takes 16-bit audio; the speed stays as it was then.
+     */
+    public synchronized boolean setPlaybackSpeed(float speed) {
+        if (mTimeStretcher == null) {
+            try {
+                mAudioTrack.setPlaybackParams(
+                        new PlaybackParams().setSpeed(speed).setPitch(1.0f));
+                mSpeed = speed;
+                // a timestamp taken at the old speed no longer extrapolates correctly
+                mLastTimestampSampleTimeUs = 0;
+                return true;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "platform cannot play at " + speed + "x, stretching in software: " + e);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "platform cannot play at " + speed + "x, stretching in software: " + e);
+            }
+            if (mEncoding != AudioFormat.ENCODING_PCM_16BIT) {
+                // the software stretcher only takes 16-bit audio
+                return false;
+            }
+            mTimeStretcher = new WsolaTimeStretcher(
+                    mChannelCount, mSampleRate, STRETCHER_MAX_INPUT_FRAMES);
+            // all audio so far went through unchanged
+            mMediaFramesQueued = mFramesQueued;
+            mStretcherBaseMediaFrames = mFramesQueued;
+        }
+        mPreviousSpeed = mSpeed;
+        mSpeedChangeFramesQueued = mFramesQueued;
+        mSpeedChangeMediaFrames = mMediaFramesQueued;
+        mTimeStretcher.setSpeed(speed);
+        mSpeed = speed;
+        return true;
+    }
+
+    /**
+     * Returns the number of times the AudioTrack ran out of data since it was created, or 0
+     * before API 24, which does not report underruns.
+     */
+    public synchronized int getUnderrunCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return 0;
         }
+        return mAudioTrack.getUnderrunCount();
+    }
+
+    /** Returns the minimum buffer size the platform reports for this output, in frames. */
+    public synchronized int getMinBufferSizeInFrames() {
+        return mMinBufferSizeFrames;
+    }
+
+    /**
+     * Returns the largest buffer size setBufferSizeInFrames() can set, in frames; before API
+     * 24 the buffer cannot be resized and this is its size.
+     */
+    public synchronized int getBufferCapacityInFrames() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return mBufferSizeFrames;
+        }
+        return mAudioTrack.getBufferCapacityInFrames();
+    }
+
+    public synchronized int getBufferSizeInFrames() {
+        return mBufferSizeFrames;
     }
 
-    public int getNumBytesQueued() {
+    /**
+     * Resizes the part of the AudioTrack's buffer in use, which trades latency against
+     * robustness to late writes, and returns the size it took. Does nothing before API 24.
+     */
+    public synchronized int setBufferSizeInFrames(int frames) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return mBufferSizeFrames;
+        }
+        int applied = mAudioTrack.setBufferSizeInFrames(frames);
+        if (applied > 0) {
+            mBufferSizeFrames = applied;
+            mBufferDurationUs = (long) applied * 1000000L / mSampleRate;
+        }
+        return mBufferSizeFrames;
+    }
+
+    /** Returns the duration of the AudioTrack's buffer in use. */
+    public synchronized long getBufferSizeUs() {
+        return mBufferDurationUs;
+    }
+
+    /** Returns the duration of the decoded audio waiting for the AudioTrack. */
+    public synchronized long getQueuedDurationUs() {
+        return (long) (mNumBytesQueued / mFrameSize) * 1000000L / mSampleRate;
+    }
+
+    /**
+     * Returns the time the last process() spent writing to the AudioTrack, or 0 if it had
+     * nothing to write.
+     */
+    public synchronized long getWriteLatencyUs() {
+        return mWriteLatencyUs;
+    }
+
+    /**
+     * Returns the decoded audio waiting for the AudioTrack, in bytes of the encoding it plays;
+     * always whole frames.
+     */
+    public synchronized int getNumBytesQueued() {
         return mNumBytesQueued;
     }
 
-    public void play() {
+    public synchronized void play() {
         mStopped = false;
         mAudioTrack.play();
     }
 
-    public void stop() {
+    public synchronized void stop() {
         if (mQueue.isEmpty()) {
             mAudioTrack.stop();
             mNumBytesQueued = 0;
@@ -128,11 +321,11 @@ public class NonBlockingAudioTrack {
         }
     }
 
-    public void pause() {
+    public synchronized void pause() {
         mAudioTrack.pause();
     }
 
-    public void flush() {
+    public synchronized void flush() {
         if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
             return;
         }
@@ -140,9 +333,20 @@ public class NonBlockingAudioTrack {
         mQueue.clear();
         mNumBytesQueued = 0;
         mStopped = false;
+        if (mTimeStretcher != null) {
+            mTimeStretcher.flush();
+        }
+        mFramesQueued = 0;
+        mMediaFramesQueued = 0;
+        mSpeedChangeFramesQueued = 0;
+        mSpeedChangeMediaFrames = 0;
+        mStretcherBaseMediaFrames = 0;
+        // the playback head restarts from zero; an older timestamp no longer applies
+        mAudioTimestampSet = false;
+        mLastTimestampSampleTimeUs = 0;
     }
 
-    public void release() {
+    public synchronized void release() {
         mQueue.clear();
         mNumBytesQueued = 0;
         mLatencyUs = 0;
@@ -153,9 +357,10 @@ public class NonBlockingAudioTrack {
         mAudioTimestampSet = false;
     }
 
-    public void process() {
+    public synchronized void process() {
+        long startNs = mQueue.isEmpty() ? 0 : System.nanoTime();
         while (!mQueue.isEmpty()) {
-            QueueElement element = mQueue.peekFirst();
+            AudioBufferQueue.QueueElement element = mQueue.peek();
             int written = mAudioTrack.write(element.data, element.size,
                                             AudioTrack.WRITE_NON_BLOCKING, element.pts);
             if (written < 0) {
@@ -167,8 +372,9 @@ public class NonBlockingAudioTrack {
             if (element.size != 0) {
                 break;
             }
-            mQueue.removeFirst();
+            mQueue.remove();
         }
+        mWriteLatencyUs = startNs == 0 ? 0 : (System.nanoTime() - startNs) / 1000;
         if (mStopped) {
             mAudioTrack.stop();
             mNumBytesQueued = 0;
@@ -176,19 +382,75 @@ public class NonBlockingAudioTrack {
         }
     }
 
-    public int getPlayState() {
+    public synchronized int getPlayState() {
         return mAudioTrack.getPlayState();
     }
 
-    public void write(ByteBuffer data, int size, long pts) {
-        QueueElement element = new QueueElement();
-        element.data = data;
-        element.size = size;
-        element.pts  = pts;
+    /** Returns true if the next write() will be taken. */
+    public synchronized boolean canWrite() {
+        return !mQueue.isFull();
+    }
+
+    /**
+     * Copies {@code size} bytes from the current position of {@code data} into a pooled
+     * buffer, to be written to the AudioTrack by process().
+     *
+     * @return false if the queue is full; the caller should keep the data and retry later.
+     */
+    public synchronized boolean write(ByteBuffer data, int size, long pts) {
+        if (mTimeStretcher != null) {
+            return writeStretched(data, size, pts);
+        }
+        if (!mQueue.offer(data, size, pts)) {
+            return false;
+        }
 
         // accumulate size written to queue
         mNumBytesQueued += size;
-        mQueue.add(element);
+        mFramesQueued += size / mFrameSize;
+        return true;
+    }
+
+    /** write() through the software time stretcher, queuing its output as one element. */
+    private boolean writeStretched(ByteBuffer data, int size, long pts) {
+        if (mQueue.isFull()) {
+            return false;
+        }
+
+        if (mStretchedData == null) {
+            mStretchedData = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        mStretchedData.clear();
+        int remaining = size;
+        do {
+            remaining -= mTimeStretcher.queueInput(data, remaining);
+            int outputBytes = mTimeStretcher.getOutputFramesAvailable() * mFrameSize;
+            if (mStretchedData.remaining() < outputBytes) {
+                // grows to what the slowest speed makes of the largest codec buffer, then stays
+                ByteBuffer larger = ByteBuffer.allocateDirect(
+                        2 * (mStretchedData.position() + outputBytes))
+                        .order(ByteOrder.nativeOrder());
+                mStretchedData.flip();
+                larger.put(mStretchedData);
+                mStretchedData = larger;
+            }
+            mTimeStretcher.getOutput(mStretchedData);
+        } while (remaining >= mFrameSize);
+        mStretchedData.flip();
+
+        int outputSize = mStretchedData.remaining();
+        mMediaFramesQueued = mStretcherBaseMediaFrames + mTimeStretcher.getInputPositionFrames();
+        if (outputSize > 0) {
+            mQueue.offer(mStretchedData, outputSize, pts);
+            mNumBytesQueued += outputSize;
+            mFramesQueued += outputSize / mFrameSize;
+        }
+        return true;
+    }
+
+    /** Returns the allocations made by the queue of pending audio. */
+    public AllocationCounter getAllocationCounter() {
+        return mQueue.getAllocationCounter();
     }
 }
 
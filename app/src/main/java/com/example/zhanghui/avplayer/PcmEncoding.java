@@ -0,0 +1,54 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+import android.os.Build;
+
+/**
+ * Sample encodings of the PCM between the codec and the AudioTrack: the AudioFormat.ENCODING_*
+ * values, plus the high-resolution integer ones that the SDK this app builds against does not
+ * have yet.
+ */
+public final class PcmEncoding {
+    /** AudioFormat.ENCODING_PCM_24BIT_PACKED: 3 bytes per sample, little endian. API 31. */
+    public static final int ENCODING_PCM_24BIT_PACKED = 21;
+    /** AudioFormat.ENCODING_PCM_32BIT. API 31. */
+    public static final int ENCODING_PCM_32BIT = 22;
+    // Build.VERSION_CODES.S
+    private static final int VERSION_S = 31;
+
+    private PcmEncoding() {}
+
+    /** Returns the size of one sample in {@code encoding}, or -1 if it is not linear PCM. */
+    public static int getBytesPerSample(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return 2;
+            case ENCODING_PCM_24BIT_PACKED:
+                return 3;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+            case ENCODING_PCM_32BIT:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /** Returns true if an AudioTrack on this device can be opened with {@code encoding}. */
+    public static boolean isSupportedByAudioTrack(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_16BIT:
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return true;
+            case ENCODING_PCM_24BIT_PACKED:
+            case ENCODING_PCM_32BIT:
+                return Build.VERSION.SDK_INT >= VERSION_S;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns true if {@code encoding} has more resolution than 16-bit PCM. */
+    public static boolean isHighResolution(int encoding) {
+        return getBytesPerSample(encoding) > 2;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts float, 24-bit and 32-bit PCM to 16-bit PCM, clipping float samples outside
+ * [-1, 1]. With high resolution enabled, audio the AudioTrack can play as it is passes through
+ * unconverted instead. Works in place, as the output is never larger than the input.
+ */
+public final class PcmEncodingProcessor implements AudioProcessor {
+    private boolean mHighResolutionEnabled;
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mEncoding;
+    private int mOutputEncoding;
+
+    /**
+     * Keeps high-resolution audio as it is, from the next configure() on, if the AudioTrack
+     * can take it.
+     */
+    public void setHighResolutionEnabled(boolean enabled) {
+        mHighResolutionEnabled = enabled;
+    }
+
+    @Override
+    public boolean configure(int sampleRate, int channelCount, int encoding) {
+        if (PcmEncoding.getBytesPerSample(encoding) == -1) {
+            throw new IllegalArgumentException("unsupported encoding " + encoding);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mEncoding = encoding;
+        if (mHighResolutionEnabled && PcmEncoding.isSupportedByAudioTrack(encoding)) {
+            mOutputEncoding = encoding;
+        } else {
+            mOutputEncoding = AudioFormat.ENCODING_PCM_16BIT;
+        }
+        return isActive();
+    }
+
+    @Override
+    public int getOutputSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getOutputChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public int getOutputEncoding() {
+        return mOutputEncoding;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mEncoding != mOutputEncoding;
+    }
+
+    @Override
+    public ByteBuffer process(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        int position = buffer.position();
+        int bytesPerSample = PcmEncoding.getBytesPerSample(mEncoding);
+        int end = position + buffer.remaining() / bytesPerSample * bytesPerSample;
+        int out = position;
+        switch (mEncoding) {
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                for (int in = position; in < end; in += 4) {
+                    float value = buffer.getFloat(in) * 32768f;
+                    if (value >= 32767f) {
+                        value = 32767f;
+                    } else if (value <= -32768f) {
+                        value = -32768f;
+                    }
+                    buffer.putShort(out, (short) value);
+                    out += 2;
+                }
+                break;
+            case PcmEncoding.ENCODING_PCM_24BIT_PACKED:
+                // little endian; the upper two bytes are the 16-bit sample
+                for (int in = position; in < end; in += 3) {
+                    buffer.put(out, buffer.get(in + 1));
+                    buffer.put(out + 1, buffer.get(in + 2));
+                    out += 2;
+                }
+                break;
+            case PcmEncoding.ENCODING_PCM_32BIT:
+                for (int in = position; in < end; in += 4) {
+                    buffer.putShort(out, (short) (buffer.getInt(in) >> 16));
+                    out += 2;
+                }
+                break;
+            default:
+                throw new IllegalStateException("not configured to convert");
+        }
+        buffer.limit(out);
+        return buffer;
+    }
+
+    @Override
+    public void flush() {
+        // no state between buffers
+    }
+}
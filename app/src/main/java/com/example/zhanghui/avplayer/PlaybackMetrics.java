@@ -0,0 +1,427 @@
+package com.example.zhanghui.avplayer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Playback telemetry: counters and fixed-bucket histograms that the playback and codec threads
+ * update with a few atomic operations per frame and no allocation, and that any other thread
+ * can snapshot without taking a lock. A snapshot is not atomic across values, which is fine for
+ * monitoring; each single value is exact.
+ */
+public final class PlaybackMetrics {
+    /** A decoded frame was released without rendering because it was too late. */
+    public static final int DROP_REASON_LATE = 0;
+    /** A non-reference input sample was skipped before decoding to catch up. */
+    public static final int DROP_REASON_NON_REFERENCE = 1;
+    /** A sample was skipped before decoding to catch up with the audio at the next keyframe. */
+    public static final int DROP_REASON_CATCH_UP = 2;
+    private static final int DROP_REASON_COUNT = 3;
+
+    /** Opening a source: MediaExtractor.setDataSource(), or parsing the MP4 boxes. */
+    public static final int PREPARE_PHASE_OPEN = 0;
+    /** Reading the track formats and selecting the tracks. */
+    public static final int PREPARE_PHASE_TRACK_SELECT = 1;
+    /** MediaCodec.createDecoderByType(). */
+    public static final int PREPARE_PHASE_CODEC_CREATE = 2;
+    /** MediaCodec.configure(). */
+    public static final int PREPARE_PHASE_CONFIGURE = 3;
+    private static final int PREPARE_PHASE_COUNT = 4;
+
+    // bucket upper bounds, in microseconds
+    private static final long[] DECODE_LATENCY_BOUNDS_US = {
+            1000, 2000, 4000, 8000, 16000, 33000, 66000, 100000, 200000, 500000 };
+    private static final long[] LATENESS_BOUNDS_US = {
+            -33000, -16000, -8000, -4000, -1000, 0, 1000, 4000, 8000, 16000, 33000, 66000,
+            100000 };
+    private static final long[] CATCH_UP_BOUNDS_US = {
+            50000, 100000, 200000, 500000, 1000000, 2000000, 5000000 };
+    private static final long[] DRIFT_BOUNDS_US = {
+            -100000, -45000, -20000, -10000, -5000, 0, 5000, 10000, 20000, 45000, 100000 };
+    private static final long[] WRITE_LATENCY_BOUNDS_US = {
+            50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000 };
+    private static final long[] QUEUED_AUDIO_BOUNDS_US = {
+            0, 20000, 50000, 100000, 200000, 500000, 1000000, 2000000 };
+
+    private final AtomicLong mFramesRendered = new AtomicLong();
+    private final AtomicLongArray mFramesDropped = new AtomicLongArray(DROP_REASON_COUNT);
+    private final AtomicLong mFramesLate = new AtomicLong();
+    private final AtomicLong mAudioUnderruns = new AtomicLong();
+    private final AtomicLong mInputStalls = new AtomicLong();
+    private final AtomicLong mCatchUps = new AtomicLong();
+    private final AtomicLong mAudioBufferIncreases = new AtomicLong();
+    private final AtomicLong mAudioBufferDecreases = new AtomicLong();
+    // current sizes chosen by the AudioBufferController
+    private final AtomicLong mAudioTrackBufferUs = new AtomicLong();
+    private final AtomicLong mAudioQueueCapUs = new AtomicLong();
+    // reads of remote sources served by the chunk cache, and those that had to download
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mCacheMisses = new AtomicLong();
+    private final AtomicLong mCacheBytesHit = new AtomicLong();
+    private final AtomicLong mCacheBytesMissed = new AtomicLong();
+    // decoders reused from a CodecPool, and those it had to create
+    private final AtomicLong mCodecPoolHits = new AtomicLong();
+    private final AtomicLong mCodecPoolMisses = new AtomicLong();
+    private final AtomicLong mPrepareStartNs = new AtomicLong();
+    private final AtomicLong mTimeToFirstFrameUs = new AtomicLong(-1);
+    private final AtomicLong mPrepareUs = new AtomicLong(-1);
+    // longest run of each phase in the last prepare(); sources and tracks overlap
+    private final AtomicLongArray mPreparePhaseUs = new AtomicLongArray(PREPARE_PHASE_COUNT);
+
+    /** Time from queueInputBuffer() to the decoded frame becoming available. */
+    private final Histogram mDecodeLatencyUs = new Histogram(DECODE_LATENCY_BOUNDS_US);
+    /** Release time of a frame minus its vsync aligned target; positive is late. */
+    private final Histogram mReleaseLatenessUs = new Histogram(LATENESS_BOUNDS_US);
+    /** Audio clock minus the frame's media time when it is shown; positive if video trails. */
+    private final Histogram mAvDriftUs = new Histogram(DRIFT_BOUNDS_US);
+    /** Time from skipping to the next keyframe until a frame from it was rendered. */
+    private final Histogram mCatchUpRecoveryUs = new Histogram(CATCH_UP_BOUNDS_US);
+    /** Time one pass spent writing queued audio to the AudioTrack. */
+    private final Histogram mAudioWriteLatencyUs = new Histogram(WRITE_LATENCY_BOUNDS_US);
+    /** Decoded audio waiting for the AudioTrack, sampled once per pass. */
+    private final Histogram mAudioQueuedUs = new Histogram(QUEUED_AUDIO_BOUNDS_US);
+
+    public void onFrameRendered() {
+        mFramesRendered.incrementAndGet();
+        if (mTimeToFirstFrameUs.get() == -1) {
+            long startNs = mPrepareStartNs.get();
+            if (startNs != 0) {
+                mTimeToFirstFrameUs.compareAndSet(-1, (System.nanoTime() - startNs) / 1000);
+            }
+        }
+    }
+
+    /** prepare() was called; the time to the next first rendered frame starts now. */
+    public void onPrepareStarted() {
+        mTimeToFirstFrameUs.set(-1);
+        mPrepareUs.set(-1);
+        for (int i = 0; i < PREPARE_PHASE_COUNT; i++) {
+            mPreparePhaseUs.set(i, 0);
+        }
+        mPrepareStartNs.set(System.nanoTime());
+    }
+
+    /**
+     * One source or track went through one of the PREPARE_PHASE_* phases in
+     * {@code durationUs}. Phases run for several sources and tracks at once, so the longest
+     * one counts.
+     */
+    public void onPreparePhase(int phase, long durationUs) {
+        long max;
+        while (durationUs > (max = mPreparePhaseUs.get(phase))
+                && !mPreparePhaseUs.compareAndSet(phase, max, durationUs)) {
+            // lost a race with another track; retry against its time
+        }
+    }
+
+    /** prepare() succeeded. */
+    public void onPrepareCompleted() {
+        long startNs = mPrepareStartNs.get();
+        if (startNs != 0) {
+            mPrepareUs.set((System.nanoTime() - startNs) / 1000);
+        }
+    }
+
+    /** A frame was not shown, for one of the DROP_REASON_* reasons. */
+    public void onFrameDropped(int reason) {
+        mFramesDropped.incrementAndGet(reason);
+    }
+
+    /** A frame was released past its deadline, whether it was still rendered or dropped. */
+    public void onFrameLate() {
+        mFramesLate.incrementAndGet();
+    }
+
+    public void onAudioUnderruns(long count) {
+        mAudioUnderruns.addAndGet(count);
+    }
+
+    /** A codec had free input buffers but no sample was available to fill them. */
+    public void onInputStall() {
+        mInputStalls.incrementAndGet();
+    }
+
+    /** Video caught up with the audio by skipping to a keyframe, in {@code recoveryUs}. */
+    public void onCatchUp(long recoveryUs) {
+        mCatchUps.incrementAndGet();
+        mCatchUpRecoveryUs.record(recoveryUs);
+    }
+
+    /**
+     * The audio output was resized, growing if {@code increased}, to an AudioTrack buffer of
+     * {@code trackBufferUs} and a queue cap of {@code queueCapUs}.
+     */
+    public void onAudioBufferResized(boolean increased, long trackBufferUs, long queueCapUs) {
+        (increased ? mAudioBufferIncreases : mAudioBufferDecreases).incrementAndGet();
+        mAudioTrackBufferUs.set(trackBufferUs);
+        mAudioQueueCapUs.set(queueCapUs);
+    }
+
+    /** A read of {@code bytes} of a remote source was served by the cache. */
+    public void onCacheHit(long bytes) {
+        mCacheHits.incrementAndGet();
+        mCacheBytesHit.addAndGet(bytes);
+    }
+
+    /** A read of a remote source had to download {@code bytes}. */
+    public void onCacheMiss(long bytes) {
+        mCacheMisses.incrementAndGet();
+        mCacheBytesMissed.addAndGet(bytes);
+    }
+
+    /** prepare() took an idle decoder from the codec pool. */
+    public void onCodecPoolHit() {
+        mCodecPoolHits.incrementAndGet();
+    }
+
+    /** prepare() found no idle decoder in the codec pool and created one. */
+    public void onCodecPoolMiss() {
+        mCodecPoolMisses.incrementAndGet();
+    }
+
+    public void recordAudioWriteLatencyUs(long latencyUs) {
+        mAudioWriteLatencyUs.record(latencyUs);
+    }
+
+    public void recordAudioQueuedUs(long queuedUs) {
+        mAudioQueuedUs.record(queuedUs);
+    }
+
+    public void recordDecodeLatencyUs(long latencyUs) {
+        mDecodeLatencyUs.record(latencyUs);
+    }
+
+    public void recordReleaseLatenessUs(long latenessUs) {
+        mReleaseLatenessUs.record(latenessUs);
+    }
+
+    public void recordAvDriftUs(long driftUs) {
+        mAvDriftUs.record(driftUs);
+    }
+
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    /** Point-in-time copy of all values. */
+    public static final class Snapshot {
+        public final long framesRendered;
+        public final long framesDropped;
+        public final long framesLate;
+        public final long audioUnderruns;
+        public final long inputStalls;
+        public final long catchUps;
+        public final long audioBufferIncreases;
+        public final long audioBufferDecreases;
+        public final long audioTrackBufferUs;
+        public final long audioQueueCapUs;
+        public final long cacheHits;
+        public final long cacheMisses;
+        /** Bytes of remote sources read from the cache rather than downloaded again. */
+        public final long cacheBytesSaved;
+        public final long cacheBytesDownloaded;
+        public final long codecPoolHits;
+        public final long codecPoolMisses;
+        /** Time from prepare() to the first rendered frame, or -1 if none was rendered yet. */
+        public final long timeToFirstFrameUs;
+        /** Time prepare() took, or -1 if it has not succeeded yet. */
+        public final long prepareUs;
+        public final Histogram.Snapshot decodeLatencyUs;
+        public final Histogram.Snapshot releaseLatenessUs;
+        public final Histogram.Snapshot avDriftUs;
+        public final Histogram.Snapshot catchUpRecoveryUs;
+        public final Histogram.Snapshot audioWriteLatencyUs;
+        public final Histogram.Snapshot audioQueuedUs;
+        private final long[] mFramesDroppedByReason;
+        private final long[] mPreparePhaseUs;
+
+        private Snapshot(PlaybackMetrics metrics) {
+            framesRendered = metrics.mFramesRendered.get();
+            mFramesDroppedByReason = new long[DROP_REASON_COUNT];
+            long dropped = 0;
+            for (int i = 0; i < DROP_REASON_COUNT; i++) {
+                mFramesDroppedByReason[i] = metrics.mFramesDropped.get(i);
+                dropped += mFramesDroppedByReason[i];
+            }
+            framesDropped = dropped;
+            framesLate = metrics.mFramesLate.get();
+            audioUnderruns = metrics.mAudioUnderruns.get();
+            inputStalls = metrics.mInputStalls.get();
+            catchUps = metrics.mCatchUps.get();
+            audioBufferIncreases = metrics.mAudioBufferIncreases.get();
+            audioBufferDecreases = metrics.mAudioBufferDecreases.get();
+            audioTrackBufferUs = metrics.mAudioTrackBufferUs.get();
+            audioQueueCapUs = metrics.mAudioQueueCapUs.get();
+            cacheHits = metrics.mCacheHits.get();
+            cacheMisses = metrics.mCacheMisses.get();
+            cacheBytesSaved = metrics.mCacheBytesHit.get();
+            cacheBytesDownloaded = metrics.mCacheBytesMissed.get();
+            codecPoolHits = metrics.mCodecPoolHits.get();
+            codecPoolMisses = metrics.mCodecPoolMisses.get();
+            timeToFirstFrameUs = metrics.mTimeToFirstFrameUs.get();
+            prepareUs = metrics.mPrepareUs.get();
+            mPreparePhaseUs = new long[PREPARE_PHASE_COUNT];
+            for (int i = 0; i < PREPARE_PHASE_COUNT; i++) {
+                mPreparePhaseUs[i] = metrics.mPreparePhaseUs.get(i);
+            }
+            decodeLatencyUs = metrics.mDecodeLatencyUs.getSnapshot();
+            releaseLatenessUs = metrics.mReleaseLatenessUs.getSnapshot();
+            avDriftUs = metrics.mAvDriftUs.getSnapshot();
+            catchUpRecoveryUs = metrics.mCatchUpRecoveryUs.getSnapshot();
+            audioWriteLatencyUs = metrics.mAudioWriteLatencyUs.getSnapshot();
+            audioQueuedUs = metrics.mAudioQueuedUs.getSnapshot();
+        }
+
+        /** Returns the share of cache reads that hit, from 0 to 1, or 0 without any reads. */
+        public double getCacheHitRatio() {
+            long reads = cacheHits + cacheMisses;
+            return reads == 0 ? 0 : (double) cacheHits / reads;
+        }
+
+        /** Returns the number of frames dropped for one of the DROP_REASON_* reasons. */
+        public long getFramesDropped(int reason) {
+            return mFramesDroppedByReason[reason];
+        }
+
+        /**
+         * Returns the longest time a source or track spent in one of the PREPARE_PHASE_*
+         * phases of the last prepare(), or 0 if none went through it.
+         */
+        public long getPreparePhaseUs(int phase) {
+            return mPreparePhaseUs[phase];
+        }
+
+        @Override
+        public String toString() {
+            return "rendered=" + framesRendered + " dropped=" + framesDropped
+                    + " (late=" + mFramesDroppedByReason[DROP_REASON_LATE]
+                    + " nonReference=" + mFramesDroppedByReason[DROP_REASON_NON_REFERENCE]
+                    + " catchUp=" + mFramesDroppedByReason[DROP_REASON_CATCH_UP] + ")"
+                    + " late=" + framesLate + " underruns=" + audioUnderruns
+                    + " inputStalls=" + inputStalls
+                    + " decodeLatencyUs{" + decodeLatencyUs + "}"
+                    + " releaseLatenessUs{" + releaseLatenessUs + "}"
+                    + " avDriftUs{" + avDriftUs + "}"
+                    + " catchUps=" + catchUps + " catchUpRecoveryUs{" + catchUpRecoveryUs + "}"
+                    + " audioBuffer{increases=" + audioBufferIncreases
+                    + " decreases=" + audioBufferDecreases + " trackUs=" + audioTrackBufferUs
+                    + " queueCapUs=" + audioQueueCapUs + "}"
+                    + " audioWriteLatencyUs{" + audioWriteLatencyUs + "}"
+                    + " audioQueuedUs{" + audioQueuedUs + "}"
+                    + " cache{hits=" + cacheHits + " misses=" + cacheMisses
+                    + " bytesSaved=" + cacheBytesSaved
+                    + " bytesDownloaded=" + cacheBytesDownloaded + "}"
+                    + " codecPool{hits=" + codecPoolHits + " misses=" + codecPoolMisses + "}"
+                    + " prepare{us=" + prepareUs
+                    + " openUs=" + mPreparePhaseUs[PREPARE_PHASE_OPEN]
+                    + " trackSelectUs=" + mPreparePhaseUs[PREPARE_PHASE_TRACK_SELECT]
+                    + " codecCreateUs=" + mPreparePhaseUs[PREPARE_PHASE_CODEC_CREATE]
+                    + " configureUs=" + mPreparePhaseUs[PREPARE_PHASE_CONFIGURE] + "}"
+                    + " timeToFirstFrameUs=" + timeToFirstFrameUs;
+        }
+    }
+
+    /**
+     * Lock-free histogram over fixed buckets. Bucket i counts values up to and including
+     * upperBounds[i]; one more bucket counts everything above the last bound.
+     */
+    public static final class Histogram {
+        private final long[] mUpperBounds;
+        private final AtomicLongArray mCounts;
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        public Histogram(long[] upperBounds) {
+            mUpperBounds = upperBounds.clone();
+            mCounts = new AtomicLongArray(upperBounds.length + 1);
+        }
+
+        public void record(long value) {
+            int bucket = Arrays.binarySearch(mUpperBounds, value);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            mCounts.incrementAndGet(bucket);
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // lost a race with another writer; retry against its maximum
+            }
+        }
+
+        public Snapshot getSnapshot() {
+            long[] counts = new long[mCounts.length()];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mCounts.get(i);
+                count += counts[i];
+            }
+            return new Snapshot(mUpperBounds, counts, count, mSum.get(), mMax.get());
+        }
+
+        public static final class Snapshot {
+            private final long[] mUpperBounds;
+            private final long[] mCounts;
+            private final long mCount;
+            private final long mSum;
+            private final long mMax;
+
+            Snapshot(long[] upperBounds, long[] counts, long count, long sum, long max) {
+                mUpperBounds = upperBounds;
+                mCounts = counts;
+                mCount = count;
+                mSum = sum;
+                mMax = max;
+            }
+
+            public long getCount() {
+                return mCount;
+            }
+
+            /** Returns the number of buckets, including the overflow bucket. */
+            public int getBucketCount() {
+                return mCounts.length;
+            }
+
+            /** Returns the number of values in bucket {@code i}; see {@link Histogram}. */
+            public long getCountInBucket(int i) {
+                return mCounts[i];
+            }
+
+            public double getMean() {
+                return mCount == 0 ? 0 : (double) mSum / mCount;
+            }
+
+            /** Returns the largest value recorded, or Long.MIN_VALUE if none. */
+            public long getMax() {
+                return mMax;
+            }
+
+            /**
+             * Returns an upper bound for the given percentile, 0 to 100: the upper bound of
+             * the bucket it falls into, or the maximum for the overflow bucket.
+             */
+            public long getPercentile(double percentile) {
+                if (mCount == 0) {
+                    return 0;
+                }
+                long rank = (long) Math.ceil(percentile / 100 * mCount);
+                long seen = 0;
+                for (int i = 0; i < mUpperBounds.length; i++) {
+                    seen += mCounts[i];
+                    if (seen >= rank) {
+                        return Math.min(mUpperBounds[i], mMax);
+                    }
+                }
+                return mMax;
+            }
+
+            @Override
+            public String toString() {
+                return "n=" + mCount + " mean=" + (long) getMean() + " p50=" + getPercentile(50)
+                        + " p99=" + getPercentile(99) + " max=" + (mCount == 0 ? 0 : mMax);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.zhanghui.avplayer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event-driven loop for the playback thread. Instead of waking up on a fixed period, every
+ * pass asks its {@link Task} when it next has something to do and parks until that deadline
+ * or until {@link #wakeUp()} is called, whichever comes first.
+ */
+public final class PlaybackScheduler implements Runnable {
+    /** Returned by a {@link Task} that has nothing to do until it is woken up. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Time source and parking primitive used by the scheduler. Replaced by a virtual clock
+     * in tests so wake counts and latencies can be checked deterministically.
+     */
+    public interface Clock {
+        long nanoTime();
+
+        /**
+         * Waits on {@code monitor}, which the caller holds, for at most {@code timeoutNs}
+         * nanoseconds, or until notified if {@code timeoutNs} is {@link #NO_DEADLINE}.
+         */
+        void waitNanos(Object monitor, long timeoutNs) throws InterruptedException;
+    }
+
+    /** Work executed on every pass of the scheduler. */
+    public interface Task {
+        /**
+         * Does whatever is due at {@code nowNs} and returns the time, in the clock's
+         * nanosecond time base, at which it wants to run again, or {@link #NO_DEADLINE}.
+         */
+        long doSomeWork(long nowNs);
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void waitNanos(Object monitor, long timeoutNs) throws InterruptedException {
+            if (timeoutNs == NO_DEADLINE) {
+                monitor.wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(monitor, timeoutNs);
+            }
+        }
+    };
+
+    private final Clock mClock;
+    private final Task mTask;
+    private final Object mLock = new Object();
+
+    private boolean mRunning;
+    private boolean mWakeUpPending;
+    private long mPassCount;
+    private long mTimedWakeUpCount;
+    private long mSignalledWakeUpCount;
+    private long mTotalWakeUpLatencyNs;
+    private long mMaxWakeUpLatencyNs;
+
+    public PlaybackScheduler(Task task) {
+        this(SYSTEM_CLOCK, task);
+    }
+
+    public PlaybackScheduler(Clock clock, Task task) {
+        mClock = clock;
+        mTask = task;
+        mRunning = true;
+    }
+
+    /**
+     * Makes the scheduler run its task as soon as possible, cutting short the current wait.
+     * Called whenever state changes outside the task, e.g. on start() or flush().
+     */
+    public void wakeUp() {
+        synchronized (mLock) {
+            mWakeUpPending = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Makes {@link #run()} return after the current pass. */
+    public void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (runOnce()) {
+        }
+    }
+
+    /** Runs the task once and parks until its deadline. Returns false once stopped. */
+    boolean runOnce() {
+        long deadlineNs = mTask.doSomeWork(mClock.nanoTime());
+
+        synchronized (mLock) {
+            mPassCount++;
+            if (!mRunning) {
+                return false;
+            }
+            if (mWakeUpPending) {
+                mWakeUpPending = false;
+                mSignalledWakeUpCount++;
+                return true;
+            }
+
+            long nowNs = mClock.nanoTime();
+            if (deadlineNs != NO_DEADLINE && deadlineNs <= nowNs) {
+                // More work is already due; go straight into the next pass.
+                return true;
+            }
+
+            try {
+                mClock.waitNanos(mLock,
+                        deadlineNs == NO_DEADLINE ? NO_DEADLINE : deadlineNs - nowNs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mRunning = false;
+                return false;
+            }
+
+            if (mWakeUpPending) {
+                mWakeUpPending = false;
+                mSignalledWakeUpCount++;
+            } else if (deadlineNs != NO_DEADLINE) {
+                long latencyNs = Math.max(0, mClock.nanoTime() - deadlineNs);
+                mTimedWakeUpCount++;
+                mTotalWakeUpLatencyNs += latencyNs;
+                if (latencyNs > mMaxWakeUpLatencyNs) {
+                    mMaxWakeUpLatencyNs = latencyNs;
+                }
+            }
+            return mRunning;
+        }
+    }
+
+    /** Returns how many times the task has been run. */
+    public long getPassCount() {
+        synchronized (mLock) {
+            return mPassCount;
+        }
+    }
+
+    /** Returns how many waits ended because their deadline was reached. */
+    public long getTimedWakeUpCount() {
+        synchronized (mLock) {
+            return mTimedWakeUpCount;
+        }
+    }
+
+    /** Returns how many waits were cut short (or skipped) by {@link #wakeUp()}. */
+    public long getSignalledWakeUpCount() {
+        synchronized (mLock) {
+            return mSignalledWakeUpCount;
+        }
+    }
+
+    /** Returns the mean delay between a deadline and the actual wake up, in nanoseconds. */
+    public long getAverageWakeUpLatencyNs() {
+        synchronized (mLock) {
+            return mTimedWakeUpCount == 0 ? 0 : mTotalWakeUpLatencyNs / mTimedWakeUpCount;
+        }
+    }
+
+    /** Returns the worst delay between a deadline and the actual wake up, in nanoseconds. */
+    public long getMaxWakeUpLatencyNs() {
+        synchronized (mLock) {
+            return mMaxWakeUpLatencyNs;
+        }
+    }
+}
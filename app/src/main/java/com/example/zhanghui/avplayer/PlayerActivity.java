@@ -3,9 +3,9 @@ package com.example.zhanghui.avplayer;
 import android.app.Activity;
 import android.content.Intent;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.widget.MediaController;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -14,19 +14,17 @@ import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 
-import java.io.IOException;
-import java.util.concurrent.TimeUnit;
-
-public class PlayerActivity extends Activity implements SurfaceHolder.Callback{
+public class PlayerActivity extends Activity implements SurfaceHolder.Callback,
+        MediaController.MediaPlayerControl {
 
     private static final String TAG = "PlayerActivity";
+    // decoders outlive the activity, so the next video starts without creating them
+    private static final CodecPool sCodecPool = new CodecPool();
     private MediaCodecPlayer mMediaCodecPlayer;
     private SurfaceView mSurfaceV;
     private SurfaceHolder mSurfaceHolder;
     private MediaController mediaController;
     private Uri mFileUrl;
-    private static final int SLEEP_TIME_MS = 1000;
-    private static final long PLAY_TIME_MS = TimeUnit.MILLISECONDS.convert(4, TimeUnit.MINUTES);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,6 +38,7 @@ public class PlayerActivity extends Activity implements SurfaceHolder.Callback{
         View root = findViewById(R.id.root);
         mediaController = new MediaController(this);
         mediaController.setAnchorView(root);
+        mediaController.setMediaPlayer(this);
         root.setOnKeyListener(new View.OnKeyListener() {
             @Override
             public boolean onKey(View v, int keyCode, KeyEvent event) {
@@ -53,6 +52,14 @@ public class PlayerActivity extends Activity implements SurfaceHolder.Callback{
         this.sendBroadcast(i);
     }
 
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getAction() == MotionEvent.ACTION_DOWN) {
+            mediaController.show();
+        }
+        return super.onTouchEvent(event);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -74,11 +81,17 @@ public class PlayerActivity extends Activity implements SurfaceHolder.Callback{
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        sCodecPool.clear();
+    }
+
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         this.mSurfaceHolder = holder;
         mSurfaceHolder.setKeepScreenOn(true);
-        new DecodeTask().execute();
+        initializePlayer();
     }
 
     @Override
@@ -94,57 +107,102 @@ public class PlayerActivity extends Activity implements SurfaceHolder.Callback{
         }
     }
 
-    public class DecodeTask extends AsyncTask<Void, Void, Boolean> {
+    // the controller may show up before prepare() is done
+    private boolean isPlayerPrepared() {
+        if (mMediaCodecPlayer == null) {
+            return false;
+        }
+        int state = mMediaCodecPlayer.getState();
+        return state != PlayerStateMachine.STATE_IDLE
+                && state != PlayerStateMachine.STATE_PREPARING;
+    }
 
-        @Override
-        protected Boolean doInBackground(Void... params) {
-            //this runs on a new thread
-            initializePlayer();
-            return true;
+    @Override
+    public void start() {
+        if (isPlayerPrepared()) {
+            mMediaCodecPlayer.start();
         }
+    }
 
-        @Override
-        protected void onPostExecute(Boolean result) {
-            //this runs on ui thread
+    @Override
+    public void pause() {
+        if (isPlayerPrepared()) {
+            mMediaCodecPlayer.pause();
         }
     }
 
-    private void initializePlayer() {
-        mMediaCodecPlayer = new MediaCodecPlayer(mSurfaceHolder, getApplicationContext());
+    @Override
+    public int getDuration() {
+        return mMediaCodecPlayer != null ? mMediaCodecPlayer.getDuration() : 0;
+    }
 
-        mMediaCodecPlayer.setAudioDataSource(mFileUrl, null);
-        mMediaCodecPlayer.setVideoDataSource(mFileUrl, null);
-        mMediaCodecPlayer.start(); //from IDLE to PREPARING
-        try {
-            mMediaCodecPlayer.prepare();
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public int getCurrentPosition() {
+        return mMediaCodecPlayer != null ? mMediaCodecPlayer.getCurrentPosition() : 0;
+    }
+
+    @Override
+    public void seekTo(int pos) {
+        // scrubbing favours speed over landing on the exact frame
+        if (isPlayerPrepared()) {
+            mMediaCodecPlayer.seekTo(pos, MediaCodecPlayer.SEEK_CLOSEST_SYNC);
         }
+    }
 
-        // starts video playback
-        mMediaCodecPlayer.startThread();
+    @Override
+    public boolean isPlaying() {
+        return mMediaCodecPlayer != null && mMediaCodecPlayer.isPlaying();
+    }
 
-        long timeOut = System.currentTimeMillis() + 4*PLAY_TIME_MS;
-        while (timeOut > System.currentTimeMillis() && !mMediaCodecPlayer.isEnded()) {
-            try {
-                Thread.sleep(SLEEP_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (mMediaCodecPlayer.getCurrentPosition() >= mMediaCodecPlayer.getDuration() ) {
-                Log.d(TAG, "testVideoPlayback -- current pos = " +
-                        mMediaCodecPlayer.getCurrentPosition() +
-                        ">= duration = " + mMediaCodecPlayer.getDuration());
-                break;
-            }
-        }
+    @Override
+    public int getBufferPercentage() {
+        return 0;
+    }
 
-        if (timeOut > System.currentTimeMillis()) {
-            Log.e(TAG, "video playback timeout exceeded!");
-            return;
-        }
+    @Override
+    public boolean canPause() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeekBackward() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeekForward() {
+        return true;
+    }
 
-        Log.d(TAG, "playVideo player.reset()");
-        mMediaCodecPlayer.reset();
+    @Override
+    public int getAudioSessionId() {
+        return 0;
+    }
+
+    private void initializePlayer() {
+        mMediaCodecPlayer = new MediaCodecPlayer(mSurfaceHolder, getApplicationContext());
+
+        mMediaCodecPlayer.setDataSource(mFileUrl, null);
+        mMediaCodecPlayer.setCodecPool(sCodecPool);
+        mMediaCodecPlayer.start(); //from IDLE to PREPARING
+        // sources are opened and codecs configured off the UI thread; playback starts as soon
+        // as they are ready, and stops when the activity does
+        mMediaCodecPlayer.prepareAsync(new MediaCodecPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaCodecPlayer player, boolean prepared) {
+                if (!prepared) {
+                    Log.e(TAG, "cannot play " + mFileUrl);
+                    return;
+                }
+                Log.d(TAG, "prepared " + mFileUrl + ": " + player.getMetrics().getSnapshot());
+                // starts video playback
+                player.startThread();
+            }
+
+            @Override
+            public void onPrepareFailed(MediaCodecPlayer player, Exception e) {
+                Log.e(TAG, "cannot prepare " + mFileUrl, e);
+            }
+        });
     }
 }
@@ -0,0 +1,304 @@
+package com.example.zhanghui.avplayer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free playback state of {@link MediaCodecPlayer}. Control calls move the state with
+ * compare-and-set and post a command for the playback thread, so they never wait for a decode
+ * pass to finish. The playback thread polls the commands before each pass and brings the codecs
+ * in line with the current state.
+ *
+ * <p>Because a transition and the posting of its command are two separate steps, commands of
+ * racing callers may be queued in a different order than their transitions happened. Start and
+ * pause therefore carry no target of their own: the consumer compares what it has applied with
+ * {@link #getState()} at the time it handles them, and is in sync after the last one.
+ */
+public final class PlayerStateMachine {
+    public static final int STATE_IDLE = 1;
+    public static final int STATE_PREPARING = 2;
+    public static final int STATE_PLAYING = 3;
+    public static final int STATE_PAUSED = 4;
+    public static final int STATE_SEEKING = 5;
+    public static final int STATE_ENDED = 6;
+
+    /** Returned by {@link #pollCommand()} when no command is pending. */
+    public static final int CMD_NONE = 0;
+    /** Playing state changed; start or pause the codecs to match {@link #getState()}. */
+    public static final int CMD_SYNC_PLAY_STATE = 1;
+    /** Drop all pending input and output. */
+    public static final int CMD_FLUSH = 2;
+    /** Carry out the pending seek, kept by the player, then leave SEEKING. */
+    public static final int CMD_SEEK = 3;
+    /** Switch to the clock set by the player and re-map media time onto it. */
+    public static final int CMD_CHANGE_CLOCK = 4;
+    /** Apply the playback speed set by the player. */
+    public static final int CMD_CHANGE_SPEED = 5;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+    private final ConcurrentLinkedQueue<Integer> mCommands = new ConcurrentLinkedQueue<Integer>();
+    // where playback goes once the current seek completes, PLAYING or PAUSED
+    private final AtomicInteger mResumeState = new AtomicInteger(STATE_PAUSED);
+    private final AtomicLong mTransitionCount = new AtomicLong();
+    private final AtomicLong mCasRetryCount = new AtomicLong();
+
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Moves from {@code expect} to {@code update} if the state is still {@code expect}.
+     *
+     * @throws IllegalStateException if the transition is not allowed at all.
+     */
+    public boolean compareAndSet(int expect, int update) {
+        if (!isValidTransition(expect, update)) {
+            throw new IllegalStateException(
+                    "cannot go from " + stateToString(expect) + " to " + stateToString(update));
+        }
+        if (mState.compareAndSet(expect, update)) {
+            mTransitionCount.incrementAndGet();
+            return true;
+        }
+        mCasRetryCount.incrementAndGet();
+        return false;
+    }
+
+    static boolean isValidTransition(int from, int to) {
+        if (to == STATE_IDLE) {
+            return true; // reset
+        }
+        switch (from) {
+            case STATE_IDLE:
+                return to == STATE_PREPARING || to == STATE_PAUSED;
+            case STATE_PREPARING:
+                return to == STATE_PAUSED;
+            case STATE_PAUSED:
+                return to == STATE_PLAYING || to == STATE_SEEKING;
+            case STATE_PLAYING:
+                return to == STATE_PAUSED || to == STATE_SEEKING || to == STATE_ENDED;
+            case STATE_SEEKING:
+                return to == STATE_PAUSED || to == STATE_PLAYING;
+            case STATE_ENDED:
+                return to == STATE_PAUSED || to == STATE_SEEKING;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Handles start(): before prepare() this only records that playback was requested.
+     *
+     * @return true if there was nothing to start yet or playback is already running, false if
+     *     playback has been started from paused.
+     */
+    public boolean requestStart() {
+        while (true) {
+            int state = mState.get();
+            switch (state) {
+                case STATE_PLAYING:
+                case STATE_PREPARING:
+                case STATE_ENDED:
+                    return true;
+                case STATE_IDLE:
+                    if (compareAndSet(STATE_IDLE, STATE_PREPARING)) {
+                        return true;
+                    }
+                    break;
+                case STATE_PAUSED:
+                    if (compareAndSet(STATE_PAUSED, STATE_PLAYING)) {
+                        postCommand(CMD_SYNC_PLAY_STATE);
+                        return false;
+                    }
+                    break;
+                case STATE_SEEKING:
+                    mResumeState.set(STATE_PLAYING);
+                    if (mState.get() == STATE_SEEKING) {
+                        return false;
+                    }
+                    break; // the seek has just completed; start from where it left
+                default:
+                    throw new IllegalStateException("start in " + stateToString(state));
+            }
+        }
+    }
+
+    /**
+     * Handles pause().
+     *
+     * @return true if playback was paused by this call.
+     * @throws IllegalStateException if nothing has been prepared.
+     */
+    public boolean requestPause() {
+        while (true) {
+            int state = mState.get();
+            switch (state) {
+                case STATE_PAUSED:
+                    return false;
+                case STATE_SEEKING:
+                    mResumeState.set(STATE_PAUSED);
+                    if (mState.get() == STATE_SEEKING) {
+                        return true;
+                    }
+                    break;
+                case STATE_PLAYING:
+                case STATE_ENDED:
+                    if (compareAndSet(state, STATE_PAUSED)) {
+                        postCommand(CMD_SYNC_PLAY_STATE);
+                        return true;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("pause in " + stateToString(state));
+            }
+        }
+    }
+
+    /**
+     * Handles flush(), which is ignored unless playback is paused or has ended.
+     *
+     * @return true if a flush has been posted.
+     */
+    public boolean requestFlush() {
+        int state = mState.get();
+        if (state != STATE_PAUSED && state != STATE_ENDED) {
+            return false;
+        }
+        postCommand(CMD_FLUSH);
+        return true;
+    }
+
+    /**
+     * Handles seekTo(): moves to SEEKING and posts {@link #CMD_SEEK}. Seeking again before the
+     * playback thread got to the previous seek only posts another command.
+     *
+     * @throws IllegalStateException if nothing has been prepared.
+     */
+    public void requestSeek() {
+        if (!beginSeek()) {
+            throw new IllegalStateException("seek in " + stateToString(mState.get()));
+        }
+        postCommand(CMD_SEEK);
+    }
+
+    /**
+     * Moves to SEEKING unless already there, remembering whether to play once the seek has
+     * completed.
+     *
+     * @return false if nothing has been prepared, e.g. after a reset.
+     */
+    public boolean beginSeek() {
+        while (true) {
+            int state = mState.get();
+            switch (state) {
+                case STATE_SEEKING:
+                    return true;
+                case STATE_PLAYING:
+                case STATE_PAUSED:
+                case STATE_ENDED:
+                    mResumeState.set(state == STATE_PLAYING ? STATE_PLAYING : STATE_PAUSED);
+                    if (compareAndSet(state, STATE_SEEKING)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /** Called by the playback thread once the pending seeks are done. */
+    public void onSeekCompleted() {
+        int resumeState = mResumeState.get();
+        if (!compareAndSet(STATE_SEEKING, resumeState)) {
+            return;
+        }
+        postCommand(CMD_SYNC_PLAY_STATE);
+
+        // a start() or pause() that still saw SEEKING may have changed its mind too late
+        if (mResumeState.get() != resumeState) {
+            if (resumeState == STATE_PAUSED) {
+                compareAndSet(STATE_PAUSED, STATE_PLAYING);
+            } else {
+                compareAndSet(STATE_PLAYING, STATE_PAUSED);
+            }
+            postCommand(CMD_SYNC_PLAY_STATE);
+        }
+    }
+
+    /** Returns true if playing, or about to play once the current seek has completed. */
+    public boolean isPlayWhenReady() {
+        int state = mState.get();
+        return state == STATE_PLAYING
+                || (state == STATE_SEEKING && mResumeState.get() == STATE_PLAYING);
+    }
+
+    /** Called once prepare() has set up the tracks. */
+    public void onPrepared() {
+        while (true) {
+            int state = mState.get();
+            if (state != STATE_IDLE && state != STATE_PREPARING) {
+                throw new IllegalStateException("prepared in " + stateToString(state));
+            }
+            if (compareAndSet(state, STATE_PAUSED)) {
+                return;
+            }
+        }
+    }
+
+    /** Called by the playback thread once every track has played out. */
+    public boolean onEnded() {
+        return compareAndSet(STATE_PLAYING, STATE_ENDED);
+    }
+
+    /**
+     * Goes back to idle and drops the pending commands, leaving a single sync so a consumer
+     * that is still running stops its codecs.
+     */
+    public void reset() {
+        mState.set(STATE_IDLE);
+        mTransitionCount.incrementAndGet();
+        mCommands.clear();
+        postCommand(CMD_SYNC_PLAY_STATE);
+    }
+
+    public void postCommand(int command) {
+        mCommands.offer(command);
+    }
+
+    /** Playback thread: returns the oldest pending command, or {@link #CMD_NONE}. */
+    public int pollCommand() {
+        Integer command = mCommands.poll();
+        return command == null ? CMD_NONE : command;
+    }
+
+    /** Returns the number of successful transitions. */
+    public long getTransitionCount() {
+        return mTransitionCount.get();
+    }
+
+    /** Returns how often a transition lost a race with another caller and was retried. */
+    public long getCasRetryCount() {
+        return mCasRetryCount.get();
+    }
+
+    public static String stateToString(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "IDLE";
+            case STATE_PREPARING:
+                return "PREPARING";
+            case STATE_PLAYING:
+                return "PLAYING";
+            case STATE_PAUSED:
+                return "PAUSED";
+            case STATE_SEEKING:
+                return "SEEKING";
+            case STATE_ENDED:
+                return "ENDED";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts 16-bit PCM to another sample rate with a polyphase windowed-sinc filter. By
+ * default only rates the AudioTrack may not take are converted, to 48 kHz; see
+ * {@link #setOutputSampleRate}. Each output frame is a 16-tap filter over the input around
+ * its position, with the filter taken from a table of 256 fractional positions, so the cost
+ * does not depend on how the two rates relate. Only 16-bit PCM can be converted.
+ *
+ * <p>The input is kept in a history array across calls; the output goes into a buffer of
+ * this stage. Both grow to fit the largest buffer seen and are reused after that.
+ */
+public final class ResamplingProcessor implements AudioProcessor {
+    /** Rates outside [MIN_SAMPLE_RATE, MAX_SAMPLE_RATE] are converted by default. */
+    public static final int MIN_SAMPLE_RATE = 8000;
+    public static final int MAX_SAMPLE_RATE = 128000;
+    private static final int DEFAULT_OUTPUT_SAMPLE_RATE = 48000;
+
+    private static final int TAPS = 16;
+    private static final int PHASE_BITS = 8;
+    private static final int PHASES = 1 << PHASE_BITS;
+    // positions are in input frames with 32 fractional bits
+    private static final int FRACTION_BITS = 32;
+    private static final long FRACTION_MASK = (1L << FRACTION_BITS) - 1;
+    // the filter cuts off a little below the lower of the two Nyquist frequencies
+    private static final double CUTOFF = 0.9;
+
+    private int mRequestedOutputSampleRate;
+    private int mSampleRate;
+    private int mOutputSampleRate;
+    private int mChannelCount;
+    private int mEncoding;
+    private boolean mActive;
+
+    // Q15 taps per phase; phase p is for an output position p / PHASES past an input frame
+    private final int[] mFilter = new int[(PHASES + 1) * TAPS];
+    private long mStep;
+
+    // input frames not used up yet, interleaved, starting with the filter's history
+    private short[] mInput = new short[0];
+    private int mInputFrames;
+    // position of the next output frame in mInput
+    private long mPosition;
+    private ByteBuffer mOutput;
+
+    /**
+     * Converts to {@code sampleRate} from the next configure() on, or, with 0, only converts
+     * rates the AudioTrack may not take.
+     */
+    public void setOutputSampleRate(int sampleRate) {
+        mRequestedOutputSampleRate = sampleRate;
+    }
+
+    @Override
+    public boolean configure(int sampleRate, int channelCount, int encoding) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        if (mRequestedOutputSampleRate != 0) {
+            mOutputSampleRate = mRequestedOutputSampleRate;
+        } else if (sampleRate < MIN_SAMPLE_RATE || sampleRate > MAX_SAMPLE_RATE) {
+            mOutputSampleRate = DEFAULT_OUTPUT_SAMPLE_RATE;
+        } else {
+            mOutputSampleRate = sampleRate;
+        }
+        mEncoding = encoding;
+        mActive = mOutputSampleRate != sampleRate;
+        if (mActive && encoding != AudioFormat.ENCODING_PCM_16BIT) {
+            throw new IllegalArgumentException("cannot resample encoding " + encoding);
+        }
+        if (mActive) {
+            mStep = ((long) sampleRate << FRACTION_BITS) / mOutputSampleRate;
+            buildFilter(CUTOFF * Math.min(1.0, (double) mOutputSampleRate / sampleRate));
+        }
+        flush();
+        return mActive;
+    }
+
+    /** Fills mFilter with a Blackman windowed sinc, {@code cutoff} relative to input Nyquist. */
+    private void buildFilter(double cutoff) {
+        int half = TAPS / 2;
+        for (int phase = 0; phase <= PHASES; phase++) {
+            double fraction = (double) phase / PHASES;
+            double[] taps = new double[TAPS];
+            double sum = 0;
+            for (int k = 0; k < TAPS; k++) {
+                // distance of input frame k from the output position
+                double x = k - (half - 1) - fraction;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                double w = (x + half) / TAPS;
+                double window = w <= 0 || w >= 1 ? 0
+                        : 0.42 - 0.5 * Math.cos(2 * Math.PI * w) + 0.08 * Math.cos(4 * Math.PI * w);
+                taps[k] = sinc * window;
+                sum += taps[k];
+            }
+            // unity gain at DC for every phase, so that the phase table adds no ripple
+            for (int k = 0; k < TAPS; k++) {
+                mFilter[phase * TAPS + k] = (int) Math.round(taps[k] / sum * (1 << 15));
+            }
+        }
+    }
+
+    @Override
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    @Override
+    public int getOutputChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public int getOutputEncoding() {
+        return mEncoding;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public ByteBuffer process(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        int channels = mChannelCount;
+        int frames = buffer.remaining() / (2 * channels);
+        appendInput(buffer, frames);
+
+        // an output frame needs TAPS / 2 input frames after its position
+        long endPosition = (long) (mInputFrames - TAPS / 2) << FRACTION_BITS;
+        int outputFrames = mPosition >= endPosition ? 0
+                : (int) ((endPosition - 1 - mPosition) / mStep) + 1;
+        ensureOutputCapacity(outputFrames * 2 * channels);
+
+        short[] input = mInput;
+        int[] filter = mFilter;
+        int out = 0;
+        long position = mPosition;
+        for (int i = 0; i < outputFrames; i++) {
+            int frame = (int) (position >>> FRACTION_BITS);
+            int phase = (int) (((position & FRACTION_MASK) + (1L << (FRACTION_BITS - PHASE_BITS - 1)))
+                    >>> (FRACTION_BITS - PHASE_BITS));
+            int taps = phase * TAPS;
+            // input frame 0 of the filter
+            int first = (frame - (TAPS / 2 - 1)) * channels;
+            for (int c = 0; c < channels; c++) {
+                int sample = first + c;
+                long sum = 0;
+                for (int k = 0; k < TAPS; k++) {
+                    sum += input[sample] * filter[taps + k];
+                    sample += channels;
+                }
+                int value = (int) ((sum + (1 << 14)) >> 15);
+                if (value > Short.MAX_VALUE) {
+                    value = Short.MAX_VALUE;
+                } else if (value < Short.MIN_VALUE) {
+                    value = Short.MIN_VALUE;
+                }
+                mOutput.putShort(out, (short) value);
+                out += 2;
+            }
+            position += mStep;
+        }
+        mPosition = position;
+        mOutput.position(0);
+        mOutput.limit(out);
+
+        dropUsedInput();
+        return mOutput;
+    }
+
+    private void appendInput(ByteBuffer buffer, int frames) {
+        int channels = mChannelCount;
+        int needed = (mInputFrames + frames) * channels;
+        if (mInput.length < needed) {
+            short[] larger = new short[needed];
+            System.arraycopy(mInput, 0, larger, 0, mInputFrames * channels);
+            mInput = larger;
+        }
+        int position = buffer.position();
+        int samples = frames * channels;
+        int sample = mInputFrames * channels;
+        for (int i = 0; i < samples; i++) {
+            mInput[sample++] = buffer.getShort(position);
+            position += 2;
+        }
+        buffer.position(position);
+        mInputFrames += frames;
+    }
+
+    private void ensureOutputCapacity(int size) {
+        if (mOutput == null || mOutput.capacity() < size) {
+            mOutput = ByteBuffer.allocateDirect(Math.max(size, 1)).order(ByteOrder.nativeOrder());
+        }
+        mOutput.clear();
+    }
+
+    /** Keeps the input from the first frame the next output frame's filter reads. */
+    private void dropUsedInput() {
+        int drop = (int) (mPosition >>> FRACTION_BITS) - (TAPS / 2 - 1);
+        if (drop <= 0) {
+            return;
+        }
+        drop = Math.min(drop, mInputFrames);
+        System.arraycopy(mInput, drop * mChannelCount, mInput, 0,
+                (mInputFrames - drop) * mChannelCount);
+        mInputFrames -= drop;
+        mPosition -= (long) drop << FRACTION_BITS;
+    }
+
+    @Override
+    public void flush() {
+        // start with silence as history, so that the first output frame is at input frame 0
+        int history = TAPS / 2 - 1;
+        if (mInput.length < history * mChannelCount) {
+            mInput = new short[history * mChannelCount];
+        }
+        for (int i = 0; i < history * mChannelCount; i++) {
+            mInput[i] = 0;
+        }
+        mInputFrames = history;
+        mPosition = (long) history << FRACTION_BITS;
+    }
+}
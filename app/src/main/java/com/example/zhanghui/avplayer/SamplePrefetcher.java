@@ -0,0 +1,296 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Demux stage running ahead of decoding. Reads samples from a {@link SampleSource} on its own
+ * thread into one {@link SampleQueue} per selected track, so slow storage or network reads no
+ * longer stall the codecs on the playback thread. Samples are read straight into the queued
+ * buffers, sized by {@link SampleSource#getSampleSize()} or else for the track's largest
+ * sample, so the only other copy is the one into the codec. Once started, the extractor must
+ * only be touched through this class.
+ *
+ * <p>With several tracks on one extractor, the samples another track waits for can lie behind
+ * those of a track whose queue is full. Rather than stall that track until the full queue
+ * drains, the demux thread then queues over the full queue's limits, see
+ * {@link SampleQueue#obtain(int, long, boolean)}.
+ */
+public class SamplePrefetcher implements Runnable {
+    private static final String TAG = SamplePrefetcher.class.getSimpleName();
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 256 * 1024;
+    // how often a demux thread waiting for room checks whether another track ran dry
+    private static final long ROOM_RETRY_MS = 10;
+
+    private final SampleSource mExtractor;
+    private final String mName;
+    private final Map<Integer, SampleQueue> mQueues = new HashMap<Integer, SampleQueue>();
+    // buffer size to obtain per track; doubled when a sample does not fit
+    private final Map<Integer, Integer> mMaxSampleSizes = new HashMap<Integer, Integer>();
+    private Thread mThread;
+
+    // guarded by this
+    private boolean mRunning;
+    private boolean mFlushRequested;
+    private boolean mEnded;
+    private long mSeekTimeUs = -1;
+    private int mSeekMode;
+    private long mSeekLandingUs;
+    private long mSamplesRead;
+    private long mBytesRead;
+
+    public SamplePrefetcher(SampleSource extractor, String name) {
+        mExtractor = extractor;
+        mName = name;
+    }
+
+    /**
+     * Routes the samples of an already selected track into {@code queue}.
+     *
+     * @param maxSampleSize The track's largest sample, if known, or 0. Larger samples are
+     *     still handled, at the cost of growing the queue's buffers.
+     */
+    public synchronized void addTrack(int trackIndex, SampleQueue queue, int maxSampleSize) {
+        mQueues.put(trackIndex, queue);
+        mMaxSampleSizes.put(trackIndex,
+                maxSampleSize > 0 ? maxSampleSize : DEFAULT_MAX_SAMPLE_SIZE);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /** Stops the demux thread and waits for it to exit. */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mRunning = false;
+            abortQueues();
+            notifyAll();
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.d(TAG, mName + " join " + e);
+            }
+        }
+    }
+
+    /**
+     * Drops all queued samples. Samples already read from the extractor are discarded just as
+     * the codec discards its pending input on flush. Blocks until the demux thread has done so.
+     */
+    public void flush() {
+        seekTo(-1, 0);
+    }
+
+    /**
+     * Drops all queued samples like {@link #flush()} and moves the extractor to {@code timeUs}
+     * before reading on. Blocks until the demux thread has done so.
+     *
+     * @param mode One of the MediaExtractor.SEEK_TO_* modes.
+     * @return The time of the sample the extractor landed on, or -1 at end of stream.
+     */
+    public long seekTo(long timeUs, int mode) {
+        synchronized (this) {
+            if (mThread == null) {
+                clearQueues();
+                mEnded = false;
+                return timeUs < 0 ? -1 : seekExtractor(timeUs, mode);
+            }
+            mSeekTimeUs = timeUs;
+            mSeekMode = mode;
+            mFlushRequested = true;
+            abortQueues();
+            notifyAll();
+            while (mFlushRequested && mRunning) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            return mSeekLandingUs;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    if (mFlushRequested) {
+                        clearQueues();
+                        if (mSeekTimeUs >= 0) {
+                            mSeekLandingUs = seekExtractor(mSeekTimeUs, mSeekMode);
+                            mSeekTimeUs = -1;
+                        }
+                        mEnded = false;
+                        mFlushRequested = false;
+                        notifyAll();
+                    }
+                    if (mEnded) {
+                        // nothing left to read until the next flush
+                        wait();
+                        continue;
+                    }
+                }
+                readSample();
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, mName + " interrupted");
+        }
+    }
+
+    private void readSample() throws InterruptedException {
+        int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex < 0) {
+            onEndOfStream();
+            return;
+        }
+
+        SampleQueue queue = mQueues.get(trackIndex);
+        if (queue == null) {
+            mExtractor.advance();
+            return;
+        }
+
+        int size = mExtractor.getSampleSize();
+        if (size < 0) {
+            // not known before the read, so room is made for the largest sample
+            size = mMaxSampleSizes.get(trackIndex);
+        }
+        SampleQueue.Sample sample = obtainSample(queue, size);
+        if (sample == null) {
+            // a flush or stop is pending; this sample is dropped with the rest
+            return;
+        }
+
+        int sampleSize = readSampleData(trackIndex, sample);
+        if (sampleSize < 0) {
+            // the obtained sample is simply not queued
+            onEndOfStream();
+            return;
+        }
+
+        sample.size = sampleSize;
+        sample.timeUs = mExtractor.getSampleTime();
+        sample.flags = mExtractor.getSampleFlags();
+        if ((sample.flags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0) {
+            if (sample.cryptoInfo == null) {
+                sample.cryptoInfo = new MediaCodec.CryptoInfo();
+            }
+            mExtractor.getSampleCryptoInfo(sample.cryptoInfo);
+        }
+        queue.queue(sample);
+        mExtractor.advance();
+
+        synchronized (this) {
+            mSamplesRead++;
+            mBytesRead += sampleSize;
+        }
+    }
+
+    /**
+     * Waits for room for a sample of {@code size} bytes in {@code queue}, going over its limits
+     * while another track's queue is empty. Returns null if a flush or stop is pending.
+     */
+    private SampleQueue.Sample obtainSample(SampleQueue queue, int size)
+            throws InterruptedException {
+        if (mQueues.size() == 1) {
+            return queue.obtain(size);
+        }
+        while (true) {
+            SampleQueue.Sample sample = queue.obtain(size, ROOM_RETRY_MS, otherNeedsSamples(queue));
+            if (sample != null) {
+                return sample;
+            }
+            synchronized (this) {
+                if (!mRunning || mFlushRequested) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private boolean otherNeedsSamples(SampleQueue queue) {
+        for (SampleQueue other : mQueues.values()) {
+            if (other != queue && other.needsSamples()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the current sample into the data buffer of {@code sample}, leaving it from 0 to
+     * the sample's size, and replaces the buffer with a larger one if it is too small.
+     */
+    private int readSampleData(int trackIndex, SampleQueue.Sample sample) {
+        while (true) {
+            try {
+                return mExtractor.readSampleData(sample.data, 0 /* offset */);
+            } catch (IllegalArgumentException e) {
+                int size = 2 * sample.data.capacity();
+                Log.d(TAG, mName + " sample larger than " + sample.data.capacity() + " bytes");
+                mMaxSampleSizes.put(trackIndex, size);
+                sample.data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    private void onEndOfStream() throws InterruptedException {
+        Log.d(TAG, mName + " saw end of stream");
+        for (SampleQueue queue : mQueues.values()) {
+            queue.queueEndOfStream();
+        }
+        synchronized (this) {
+            mEnded = true;
+        }
+    }
+
+    private long seekExtractor(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+        return mExtractor.getSampleTime();
+    }
+
+    private void abortQueues() {
+        for (SampleQueue queue : mQueues.values()) {
+            queue.abortObtain();
+        }
+    }
+
+    private void clearQueues() {
+        for (SampleQueue queue : mQueues.values()) {
+            queue.clear();
+        }
+    }
+
+    /** Returns the number of samples read from the extractor. */
+    public synchronized long getSamplesRead() {
+        return mSamplesRead;
+    }
+
+    /** Returns the number of sample bytes read from the extractor. */
+    public synchronized long getBytesRead() {
+        return mBytesRead;
+    }
+}
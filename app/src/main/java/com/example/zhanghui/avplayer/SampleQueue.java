@@ -0,0 +1,214 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded queue of demuxed samples for one track, filled by a {@link SamplePrefetcher} thread
+ * and drained by {@link CodecState} into codec input buffers. The queue is limited both in
+ * samples and in queued bytes; the producer blocks in {@link #obtain} while either limit is
+ * reached. A producer that has to read past this track to reach another track's samples may
+ * go over the limits, up to twice them. Samples and their buffers are pooled and reused.
+ */
+public final class SampleQueue {
+
+    public static final class Sample {
+        public ByteBuffer data;
+        public int size;
+        public long timeUs;
+        public int flags;
+        public boolean endOfStream;
+        /** Valid if flags contain SAMPLE_FLAG_ENCRYPTED. */
+        public MediaCodec.CryptoInfo cryptoInfo;
+    }
+
+    // twice the sample limit, for samples queued over the limits
+    private final Sample[] mSamples;
+    private final int mMaxSamples;
+    private final long mByteBudget;
+    private int mHead;
+    private int mCount;
+    private long mQueuedBytes;
+    private boolean mAborted;
+    private boolean mStarved;
+    private boolean mEnded;
+
+    private int mPeakQueuedSamples;
+    private long mPeakQueuedBytes;
+    private long mStarvationCount;
+    private long mSamplesQueued;
+
+    public SampleQueue(int maxSamples, long byteBudget) {
+        mSamples = new Sample[2 * maxSamples];
+        for (int i = 0; i < mSamples.length; i++) {
+            mSamples[i] = new Sample();
+        }
+        mMaxSamples = maxSamples;
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * Producer side: waits until a sample of {@code size} bytes fits into the queue and returns
+     * the pooled sample to fill, with a data buffer of at least that capacity. The sample only
+     * becomes visible once passed to {@link #queue}. An oversized sample is let through when the
+     * queue is empty so it cannot block forever.
+     *
+     * @return null if {@link #abortObtain()} was called while waiting.
+     */
+    public synchronized Sample obtain(int size) throws InterruptedException {
+        while (!mAborted && !fits(size, mMaxSamples, mByteBudget)) {
+            wait();
+        }
+        if (mAborted) {
+            return null;
+        }
+        return nextSample(size);
+    }
+
+    /**
+     * Producer side: like {@link #obtain(int)}, but waits at most {@code timeoutMs} for room.
+     * With {@code overLimit}, the sample is taken as long as the queue is within twice its
+     * limits, for a producer that would otherwise stall another track's queue.
+     *
+     * @return null if there was no room in time or {@link #abortObtain()} was called.
+     */
+    public synchronized Sample obtain(int size, long timeoutMs, boolean overLimit)
+            throws InterruptedException {
+        int maxSamples = overLimit ? mSamples.length : mMaxSamples;
+        long byteBudget = overLimit ? 2 * mByteBudget : mByteBudget;
+        if (!mAborted && !fits(size, maxSamples, byteBudget)) {
+            wait(timeoutMs);
+        }
+        if (mAborted || !fits(size, maxSamples, byteBudget)) {
+            return null;
+        }
+        return nextSample(size);
+    }
+
+    private boolean fits(int size, int maxSamples, long byteBudget) {
+        return mCount < maxSamples && (mCount == 0 || mQueuedBytes + size <= byteBudget);
+    }
+
+    private Sample nextSample(int size) {
+        Sample sample = mSamples[(mHead + mCount) % mSamples.length];
+        if (sample.data == null || sample.data.capacity() < size) {
+            // round up so that slightly larger samples later on still fit
+            int capacity = Math.max(1, Integer.highestOneBit(Math.max(size, 1) - 1) << 1);
+            sample.data = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        sample.data.clear();
+        sample.size = 0;
+        sample.timeUs = 0;
+        sample.flags = 0;
+        sample.endOfStream = false;
+        return sample;
+    }
+
+    /** Producer side: publishes the sample last returned by {@link #obtain}. */
+    public synchronized void queue(Sample sample) {
+        if (sample != mSamples[(mHead + mCount) % mSamples.length]) {
+            throw new IllegalStateException("sample was not obtained from this queue");
+        }
+        mCount++;
+        mQueuedBytes += sample.size;
+        mSamplesQueued++;
+        mStarved = false;
+        mPeakQueuedSamples = Math.max(mPeakQueuedSamples, mCount);
+        mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mQueuedBytes);
+        notifyAll();
+    }
+
+    /**
+     * Producer side: queues the end of stream marker. It may go over the sample limit, so that
+     * a full queue does not hold up the marker of the other tracks.
+     */
+    public synchronized void queueEndOfStream() throws InterruptedException {
+        while (!mAborted && !fits(0, mSamples.length, Long.MAX_VALUE)) {
+            wait();
+        }
+        if (!mAborted) {
+            Sample sample = nextSample(0);
+            sample.endOfStream = true;
+            queue(sample);
+        }
+    }
+
+    /**
+     * Consumer side: returns the oldest sample without removing it, or null if the queue is
+     * empty, in which case the consumer is counted as starved until the next sample arrives.
+     */
+    public synchronized Sample peek() {
+        if (mCount == 0) {
+            if (!mStarved && !mEnded) {
+                mStarved = true;
+                mStarvationCount++;
+            }
+            return null;
+        }
+        return mSamples[mHead];
+    }
+
+    /** Consumer side: hands the oldest sample back to the pool. */
+    public synchronized void release() {
+        if (mCount == 0) {
+            throw new IllegalStateException("queue is empty");
+        }
+        mQueuedBytes -= mSamples[mHead].size;
+        mEnded = mSamples[mHead].endOfStream;
+        mHead = (mHead + 1) % mSamples.length;
+        mCount--;
+        notifyAll();
+    }
+
+    /** Makes a producer blocked in {@link #obtain} return null until the next {@link #clear}. */
+    public synchronized void abortObtain() {
+        mAborted = true;
+        notifyAll();
+    }
+
+    /** Drops every queued sample, keeping their buffers for reuse. */
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+        mQueuedBytes = 0;
+        mAborted = false;
+        mStarved = false;
+        mEnded = false;
+        notifyAll();
+    }
+
+    /** Returns whether the queue is empty while its consumer still expects samples. */
+    public synchronized boolean needsSamples() {
+        return mCount == 0 && !mEnded;
+    }
+
+    /** Returns the number of samples currently queued. */
+    public synchronized int getQueuedSamples() {
+        return mCount;
+    }
+
+    /** Returns the number of sample bytes currently queued. */
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public synchronized int getPeakQueuedSamples() {
+        return mPeakQueuedSamples;
+    }
+
+    public synchronized long getPeakQueuedBytes() {
+        return mPeakQueuedBytes;
+    }
+
+    /** Returns how many times the consumer found the queue empty before end of stream. */
+    public synchronized long getStarvationCount() {
+        return mStarvationCount;
+    }
+
+    /** Returns the total number of samples queued, including end of stream markers. */
+    public synchronized long getSamplesQueued() {
+        return mSamplesQueued;
+    }
+}
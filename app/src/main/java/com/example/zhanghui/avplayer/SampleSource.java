@@ -0,0 +1,68 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the codec states, the prefetchers and the keyframe index read compressed samples
+ * from: the part of {@link android.media.MediaExtractor}'s interface they use, with the same
+ * semantics. Samples of all selected tracks come out one at a time, in decoding order within
+ * each track. Sample flags are the MediaExtractor.SAMPLE_FLAG_* flags and seek modes the
+ * MediaExtractor.SEEK_TO_* modes.
+ *
+ * <p>Implementations: {@link MediaExtractorSampleSource} for everything the platform can
+ * read, and {@link Mp4Extractor}, which reads local MP4 files in Java.
+ */
+public interface SampleSource {
+    int getTrackCount();
+
+    MediaFormat getTrackFormat(int index);
+
+    /** Makes getSampleTrackIndex() and the rest include the samples of track {@code index}. */
+    void selectTrack(int index);
+
+    /** Returns the track of the current sample, or -1 at the end of the stream. */
+    int getSampleTrackIndex();
+
+    /** Returns the presentation time of the current sample, or -1 at the end of the stream. */
+    long getSampleTime();
+
+    /** Returns the flags of the current sample, or -1 at the end of the stream. */
+    int getSampleFlags();
+
+    /**
+     * Returns the most bytes readSampleData() can take for the current sample, or -1 if that
+     * is not known before reading it, or at the end of the stream.
+     */
+    int getSampleSize();
+
+    /**
+     * Reads the current sample into {@code buffer} starting at {@code offset}, leaving the
+     * buffer's position at {@code offset} and its limit after the sample. Video samples are
+     * in Annex B format, with start codes. Returns the size of the sample, or -1 at the end of
+     * the stream.
+     *
+     * @throws IllegalArgumentException if the sample does not fit.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /** Moves on to the next sample; returns false if there is none. */
+    boolean advance();
+
+    /** Moves all selected tracks to a sync sample near {@code timeUs}, chosen by {@code mode}. */
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Adds the sync samples of track {@code index} to {@code builder}, with their presentation
+     * times and byte offsets in the file, from the container's sample tables. Returns false,
+     * adding nothing, if the source does not know them without reading every sample.
+     */
+    boolean getSyncSamples(int index, KeyframeIndex.Builder builder);
+
+    /** Fills {@code info} for an encrypted current sample; returns false if it is not. */
+    boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info);
+
+    void release();
+}
@@ -78,6 +78,14 @@ public final class VideoFrameReleaseTimeHelper {
     }
   }
 
+  /**
+   * Drops the current vsync alignment, e.g. after a seek or a speed change, so the next frame
+   * starts a new one.
+   */
+  public void resync() {
+    haveSync = false;
+  }
+
   /**
    * Disables the helper.
    */
@@ -172,7 +180,7 @@ public final class VideoFrameReleaseTimeHelper {
     return Math.abs(elapsedReleaseTimeNs - elapsedFrameTimeNs) > MAX_ALLOWED_DRIFT_NS;
   }
 
-  private static long closestVsync(long releaseTime, long sampledVsyncTime, long vsyncDuration) {
+  static long closestVsync(long releaseTime, long sampledVsyncTime, long vsyncDuration) {
     long vsyncCount = (releaseTime - sampledVsyncTime) / vsyncDuration;
     long snappedTimeNs = sampledVsyncTime + (vsyncDuration * vsyncCount);
     long snappedBeforeNs;
@@ -0,0 +1,138 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Scales PCM in any of the {@link PcmEncoding} encodings by a volume that any thread may
+ * change. A change is ramped in linearly over 20 ms of audio rather than applied at once,
+ * which would click. At unity gain the stage is idle. Works in place.
+ */
+public final class VolumeProcessor implements AudioProcessor {
+    private static final int RAMP_MS = 20;
+
+    private volatile float mVolume = 1.0f;
+    private float mGain = 1.0f;
+    // the volume being ramped to, and the change per frame on the way
+    private float mRampTarget = 1.0f;
+    private float mRampStep;
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mEncoding;
+    private int mRampFrames;
+
+    /** Sets the volume to ramp to, from 0 for silence; above 1 amplifies, with clipping. */
+    public void setVolume(float volume) {
+        mVolume = volume;
+    }
+
+    public float getVolume() {
+        return mVolume;
+    }
+
+    @Override
+    public boolean configure(int sampleRate, int channelCount, int encoding) {
+        if (PcmEncoding.getBytesPerSample(encoding) == -1) {
+            throw new IllegalArgumentException("unsupported encoding " + encoding);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mEncoding = encoding;
+        mRampFrames = Math.max(1, sampleRate * RAMP_MS / 1000);
+        // the volume may change at any time, so the stage always stays in the chain
+        return true;
+    }
+
+    @Override
+    public int getOutputSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getOutputChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public int getOutputEncoding() {
+        return mEncoding;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mGain != 1.0f || mVolume != 1.0f;
+    }
+
+    @Override
+    public ByteBuffer process(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        int samples = mChannelCount;
+        int frameBytes = samples * PcmEncoding.getBytesPerSample(mEncoding);
+        float target = mVolume;
+        float gain = mGain;
+        if (target != mRampTarget) {
+            mRampTarget = target;
+            mRampStep = (target - gain) / mRampFrames;
+        }
+        float stepPerFrame = mRampStep;
+        int position = buffer.position();
+        int end = position + buffer.remaining() / frameBytes * frameBytes;
+        for (int frame = position; frame < end; frame += frameBytes) {
+            if (gain != target) {
+                gain += stepPerFrame;
+                if ((stepPerFrame > 0 && gain > target) || (stepPerFrame < 0 && gain < target)) {
+                    gain = target;
+                }
+            }
+            switch (mEncoding) {
+                case AudioFormat.ENCODING_PCM_16BIT:
+                    for (int offset = frame, i = 0; i < samples; i++, offset += 2) {
+                        int value = (int) (buffer.getShort(offset) * gain);
+                        if (value > Short.MAX_VALUE) {
+                            value = Short.MAX_VALUE;
+                        } else if (value < Short.MIN_VALUE) {
+                            value = Short.MIN_VALUE;
+                        }
+                        buffer.putShort(offset, (short) value);
+                    }
+                    break;
+                case AudioFormat.ENCODING_PCM_FLOAT:
+                    // the AudioTrack clips float samples itself
+                    for (int offset = frame, i = 0; i < samples; i++, offset += 4) {
+                        buffer.putFloat(offset, buffer.getFloat(offset) * gain);
+                    }
+                    break;
+                case PcmEncoding.ENCODING_PCM_24BIT_PACKED:
+                    for (int offset = frame, i = 0; i < samples; i++, offset += 3) {
+                        int sample = (buffer.get(offset) & 0xff)
+                                | (buffer.get(offset + 1) & 0xff) << 8
+                                | buffer.get(offset + 2) << 16;
+                        int value = (int) Math.max(-(1 << 23),
+                                Math.min((1 << 23) - 1, (long) (sample * (double) gain)));
+                        buffer.put(offset, (byte) value);
+                        buffer.put(offset + 1, (byte) (value >> 8));
+                        buffer.put(offset + 2, (byte) (value >> 16));
+                    }
+                    break;
+                default:
+                    for (int offset = frame, i = 0; i < samples; i++, offset += 4) {
+                        long value = (long) (buffer.getInt(offset) * (double) gain);
+                        buffer.putInt(offset, (int) Math.max(Integer.MIN_VALUE,
+                                Math.min(Integer.MAX_VALUE, value)));
+                    }
+                    break;
+            }
+        }
+        mGain = gain;
+        return buffer;
+    }
+
+    @Override
+    public void flush() {
+        // audio after a seek starts at the volume set, without a ramp
+        mGain = mVolume;
+        mRampTarget = mGain;
+    }
+}
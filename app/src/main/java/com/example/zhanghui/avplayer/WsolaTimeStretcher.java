@@ -0,0 +1,251 @@
+package com.example.zhanghui.avplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pitch-preserving time stretching of interleaved 16-bit PCM by WSOLA (waveform similarity
+ * overlap-add), for output configurations where the platform cannot change the AudioTrack's
+ * speed. Output is built from 20 ms windows overlapping by half; each window is cut from the
+ * input near where the speed puts it, at the offset that best continues the previous one, and
+ * cross-faded with it.
+ *
+ * <p>All buffers are allocated up front; processing works on primitive arrays in flat loops.
+ * Not thread safe.
+ */
+public final class WsolaTimeStretcher {
+    // output hop; windows are twice as long
+    private static final int HOP_MS = 10;
+    // how far a window may move from its nominal input position
+    private static final int SEEK_MS = 5;
+    // the search first tries every COARSE_STEP-th offset on every other frame, then refines
+    private static final int COARSE_STEP = 4;
+
+    private final int mChannelCount;
+    private final int mFrameBytes;
+    private final int mHopFrames;
+    private final int mSeekFrames;
+    private final int mInputCapacityFrames;
+    private final int mOutputCapacityFrames;
+
+    // input not used up yet, interleaved, and the sum of its channels per frame for the search
+    private final short[] mInput;
+    private final int[] mInputMono;
+    // continuation of the last window, to be cross-faded with the next one
+    private final short[] mOverlap;
+    private final int[] mOverlapMono;
+    private final short[] mOutput;
+
+    private int mInputFrames;
+    private int mOutputFrames;
+    // nominal input position of the next window, in frames of mInput
+    private double mPosition;
+    // where the last window continues in mInput; may have been dropped from it already
+    private int mNaturalStart;
+    private boolean mHaveOverlap;
+    private long mDiscardedFrames;
+    private float mSpeed = 1.0f;
+
+    /**
+     * @param maxInputFrames frames taken at most by one {@link #queueInput} call; larger
+     *     buffers are taken in parts
+     */
+    public WsolaTimeStretcher(int channelCount, int sampleRate, int maxInputFrames) {
+        mChannelCount = channelCount;
+        mFrameBytes = 2 * channelCount;
+        mHopFrames = sampleRate * HOP_MS / 1000;
+        mSeekFrames = sampleRate * SEEK_MS / 1000;
+        // room for a window search at 4x speed next to a full input buffer
+        mInputCapacityFrames = maxInputFrames + 6 * mHopFrames + 4 * mSeekFrames;
+        // at the slowest speed one input buffer comes out twice as long
+        mOutputCapacityFrames = 2 * maxInputFrames + 2 * mHopFrames;
+
+        mInput = new short[mInputCapacityFrames * channelCount];
+        mInputMono = new int[mInputCapacityFrames];
+        mOverlap = new short[mHopFrames * channelCount];
+        mOverlapMono = new int[mHopFrames];
+        mOutput = new short[mOutputCapacityFrames * channelCount];
+    }
+
+    /** Sets the speed for the output from now on; 2 plays twice as fast. */
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Takes up to {@code size} bytes of PCM from the position of {@code data}, in native byte
+     * order, and advances the position past them. Returns the number of bytes taken, which is
+     * less than {@code size} when output has to be read with getOutput() first.
+     */
+    public int queueInput(ByteBuffer data, int size) {
+        compactInput();
+        int frames = Math.min(size / mFrameBytes, mInputCapacityFrames - mInputFrames);
+        data.order(ByteOrder.nativeOrder());
+        int position = data.position();
+        int sample = mInputFrames * mChannelCount;
+        for (int i = 0; i < frames; i++) {
+            int mono = 0;
+            for (int c = 0; c < mChannelCount; c++) {
+                short value = data.getShort(position);
+                position += 2;
+                mInput[sample++] = value;
+                mono += value;
+            }
+            mInputMono[mInputFrames + i] = mono;
+        }
+        data.position(position);
+        mInputFrames += frames;
+
+        process();
+        return frames * mFrameBytes;
+    }
+
+    /** Returns the number of processed frames waiting to be read by getOutput(). */
+    public int getOutputFramesAvailable() {
+        return mOutputFrames;
+    }
+
+    /**
+     * Writes as many processed frames as fit into {@code out}, from its position and in native
+     * byte order, and returns the number of bytes written.
+     */
+    public int getOutput(ByteBuffer out) {
+        int frames = Math.min(mOutputFrames, out.remaining() / mFrameBytes);
+        out.order(ByteOrder.nativeOrder());
+        int samples = frames * mChannelCount;
+        for (int i = 0; i < samples; i++) {
+            out.putShort(mOutput[i]);
+        }
+        mOutputFrames -= frames;
+        System.arraycopy(mOutput, samples, mOutput, 0, mOutputFrames * mChannelCount);
+
+        process();
+        return frames * mFrameBytes;
+    }
+
+    /**
+     * Returns the input position, in frames since the last flush, that the end of the output
+     * produced so far corresponds to.
+     */
+    public long getInputPositionFrames() {
+        return mDiscardedFrames + (long) mPosition;
+    }
+
+    /** Drops all input and output, e.g. for a seek. */
+    public void flush() {
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mPosition = 0;
+        mHaveOverlap = false;
+        mDiscardedFrames = 0;
+    }
+
+    /** Emits windows while there is enough input for a full search and room for the output. */
+    private void process() {
+        while (mOutputFrames + mHopFrames <= mOutputCapacityFrames) {
+            int nominal = (int) (mPosition + 0.5);
+            if (nominal + mSeekFrames + 2 * mHopFrames > mInputFrames) {
+                return;
+            }
+
+            int start;
+            if (!mHaveOverlap) {
+                start = nominal;
+                System.arraycopy(mInput, start * mChannelCount,
+                        mOutput, mOutputFrames * mChannelCount, mHopFrames * mChannelCount);
+            } else {
+                if (mSpeed == 1.0f && Math.abs(mNaturalStart - nominal) <= mSeekFrames) {
+                    // carry straight on; at normal speed the output is the input
+                    start = mNaturalStart;
+                } else {
+                    start = findBestStart(nominal);
+                }
+                crossFade(start);
+            }
+
+            int overlapStart = start + mHopFrames;
+            System.arraycopy(mInput, overlapStart * mChannelCount,
+                    mOverlap, 0, mHopFrames * mChannelCount);
+            System.arraycopy(mInputMono, overlapStart, mOverlapMono, 0, mHopFrames);
+            mNaturalStart = overlapStart;
+            mHaveOverlap = true;
+            mOutputFrames += mHopFrames;
+            mPosition += mSpeed * mHopFrames;
+        }
+    }
+
+    /** Returns the start in [nominal - seek, nominal + seek] most similar to mOverlap. */
+    private int findBestStart(int nominal) {
+        int low = Math.max(0, nominal - mSeekFrames);
+        int high = nominal + mSeekFrames;
+
+        int best = nominal;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int start = low; start <= high; start += COARSE_STEP) {
+            double score = similarity(start, 2);
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+
+        int coarseBest = best;
+        int refineLow = Math.max(low, coarseBest - COARSE_STEP + 1);
+        int refineHigh = Math.min(high, coarseBest + COARSE_STEP - 1);
+        bestScore = Double.NEGATIVE_INFINITY;
+        for (int start = refineLow; start <= refineHigh; start++) {
+            double score = similarity(start, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+        return best;
+    }
+
+    /** Cross-correlation of mOverlap with the input at {@code start}, normalized by energy. */
+    private double similarity(int start, int stride) {
+        long correlation = 0;
+        long energy = 0;
+        for (int i = 0; i < mHopFrames; i += stride) {
+            long reference = mOverlapMono[i];
+            long candidate = mInputMono[start + i];
+            correlation += reference * candidate;
+            energy += candidate * candidate;
+        }
+        return energy == 0 ? 0 : correlation / Math.sqrt(energy);
+    }
+
+    /** Appends one hop fading from mOverlap into the input at {@code start}. */
+    private void crossFade(int start) {
+        int out = mOutputFrames * mChannelCount;
+        int in = start * mChannelCount;
+        int overlap = 0;
+        for (int i = 0; i < mHopFrames; i++) {
+            int fadeOut = mHopFrames - i;
+            for (int c = 0; c < mChannelCount; c++) {
+                mOutput[out++] = (short) ((mOverlap[overlap++] * fadeOut
+                        + mInput[in++] * i) / mHopFrames);
+            }
+        }
+    }
+
+    /** Drops input before the earliest position a later window can start at. */
+    private void compactInput() {
+        int shift = Math.min((int) mPosition - mSeekFrames, mInputFrames);
+        if (shift <= 0) {
+            return;
+        }
+        System.arraycopy(mInput, shift * mChannelCount,
+                mInput, 0, (mInputFrames - shift) * mChannelCount);
+        System.arraycopy(mInputMono, shift, mInputMono, 0, mInputFrames - shift);
+        mInputFrames -= shift;
+        mPosition -= shift;
+        mNaturalStart -= shift;
+        mDiscardedFrames += shift;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioBufferControllerTest {
+    private static final long SECOND_US = 1000000;
+
+    // buffer from 960 to 3840 frames, starting at 1920; queue cap from 200 ms to 2 s
+    private static AudioBufferController newController() {
+        return new AudioBufferController(960, 3840, 1920, 200000, 2000000);
+    }
+
+    @Test
+    public void growsWithUnderrunsWithinBounds() {
+        AudioBufferController controller = newController();
+        assertEquals(1920, controller.getBufferSizeFrames());
+        assertEquals(200000, controller.getQueueCapUs());
+
+        assertFalse(controller.update(0, 0, 100000, true));
+        assertTrue(controller.update(SECOND_US, 1, 100000, true));
+        assertEquals(2880, controller.getBufferSizeFrames());
+        assertEquals(300000, controller.getQueueCapUs());
+
+        // the same count again is no new underrun
+        assertFalse(controller.update(2 * SECOND_US, 1, 100000, true));
+
+        for (int i = 2; i < 10; i++) {
+            controller.update(i * SECOND_US, i, 100000, true);
+        }
+        assertEquals(3840, controller.getBufferSizeFrames());
+        assertEquals(2000000, controller.getQueueCapUs());
+        assertEquals(0, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void growsQueueCapWhenQueueRunsDryWhilePlaying() {
+        AudioBufferController controller = newController();
+        controller.update(0, 0, 0, false);
+        controller.update(1, 0, 0, true);
+        // never filled, so not dry
+        assertEquals(200000, controller.getQueueCapUs());
+
+        controller.update(2, 0, 150000, true);
+        assertFalse(controller.update(3, 0, 0, true));
+        assertEquals(300000, controller.getQueueCapUs());
+        assertEquals(1920, controller.getBufferSizeFrames());
+        assertEquals(1, controller.getIncreaseCount());
+
+        // paused with an empty queue is not running dry
+        controller.update(4, 0, 150000, false);
+        controller.update(5, 0, 0, false);
+        assertEquals(300000, controller.getQueueCapUs());
+    }
+
+    @Test
+    public void shrinksBackAfterAStablePeriod() {
+        AudioBufferController controller = newController();
+        controller.update(0, 0, 100000, true);
+        controller.update(1, 3, 100000, true);
+        assertEquals(2880, controller.getBufferSizeFrames());
+
+        assertFalse(controller.update(19 * SECOND_US, 3, 100000, true));
+        assertTrue(controller.update(21 * SECOND_US, 3, 100000, true));
+        assertEquals(1920, controller.getBufferSizeFrames());
+        assertEquals(225000, controller.getQueueCapUs());
+
+        for (int i = 2; i < 10; i++) {
+            controller.update(21 * i * SECOND_US, 3, 100000, true);
+        }
+        assertEquals(960, controller.getBufferSizeFrames());
+        assertEquals(200000, controller.getQueueCapUs());
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AudioBufferQueueTest {
+    // one AAC frame of 16-bit stereo
+    private static final int FRAME_BYTES = 1024 * 2 * 2;
+
+    @Test
+    public void offerCopiesAndPeekReturnsInOrder() {
+        AudioBufferQueue queue = new AudioBufferQueue(2);
+        ByteBuffer src = ByteBuffer.allocateDirect(8);
+        for (int i = 0; i < 8; i++) {
+            src.put((byte) i);
+        }
+        src.position(2);
+
+        assertTrue(queue.offer(src, 4, 100));
+        assertEquals(6, src.position());
+        assertTrue(queue.offer(src, 2, 200));
+        assertTrue(queue.isFull());
+        assertFalse(queue.offer(src, 1, 300));
+
+        AudioBufferQueue.QueueElement element = queue.peek();
+        assertEquals(4, element.size);
+        assertEquals(100, element.pts);
+        assertEquals(2, element.data.get(0));
+        assertEquals(5, element.data.get(3));
+        queue.remove();
+        assertEquals(200, queue.peek().pts);
+        queue.remove();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void largerChunkGrowsOnlyItsSlot() {
+        AudioBufferQueue queue = new AudioBufferQueue(4);
+        ByteBuffer codecOutput = ByteBuffer.allocateDirect(2 * FRAME_BYTES);
+        // every slot gets its buffer once
+        for (int i = 0; i < queue.capacity(); i++) {
+            codecOutput.clear();
+            assertTrue(queue.offer(codecOutput, FRAME_BYTES, i));
+        }
+        long allocations = queue.getAllocationCounter().getCount();
+        queue.clear();
+
+        codecOutput.clear();
+        assertTrue(queue.offer(codecOutput, FRAME_BYTES + 1, 0));
+        assertEquals(allocations + 1, queue.getAllocationCounter().getCount());
+        assertEquals(2 * FRAME_BYTES, queue.peek().data.capacity());
+    }
+
+    @Test
+    public void countPerSecondCoversInterval() {
+        AllocationCounter counter = new AllocationCounter();
+        assertEquals(0f, counter.getCountPerSecond(0), 0f);
+        for (int i = 0; i < 10; i++) {
+            counter.record(16);
+        }
+        assertEquals(20f, counter.getCountPerSecond(500000000L), 0.001f);
+        assertEquals(0f, counter.getCountPerSecond(1500000000L), 0f);
+        assertEquals(160, counter.getBytes());
+    }
+}
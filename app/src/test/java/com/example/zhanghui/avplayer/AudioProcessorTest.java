@@ -0,0 +1,191 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class AudioProcessorTest {
+    private static AudioProcessorChain newChain(VolumeProcessor volume) {
+        return new AudioProcessorChain(new PcmEncodingProcessor(),
+                new ChannelDownmixProcessor(), new ResamplingProcessor(), volume);
+    }
+
+    private static ByteBuffer sine(int sampleRate, int channels, int frames, int frequency) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * channels * frames)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < frames; i++) {
+            short value = (short) (16000 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            for (int c = 0; c < channels; c++) {
+                buffer.putShort(value);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void passesSupportedFormatsThroughUntouched() {
+        AudioProcessorChain chain = newChain(new VolumeProcessor());
+        chain.configure(44100, 2, AudioFormat.ENCODING_PCM_16BIT);
+        assertEquals(44100, chain.getOutputSampleRate());
+        assertEquals(2, chain.getOutputChannelCount());
+
+        ByteBuffer input = sine(44100, 2, 256, 440);
+        assertSame(input, chain.process(input));
+    }
+
+    @Test
+    public void mixesFloat71DownToStereo16Bit() {
+        AudioProcessorChain chain = newChain(new VolumeProcessor());
+        chain.configure(48000, 8, AudioFormat.ENCODING_PCM_FLOAT);
+        assertEquals(2, chain.getOutputChannelCount());
+        assertEquals(AudioFormat.ENCODING_PCM_16BIT, chain.getOutputEncoding());
+
+        // full scale on every channel but LFE, which is left out; reads as a read-only codec
+        // buffer would
+        ByteBuffer input = ByteBuffer.allocate(4 * 8 * 2).order(ByteOrder.nativeOrder());
+        for (int frame = 0; frame < 2; frame++) {
+            for (int c = 0; c < 8; c++) {
+                input.putFloat(c == 3 ? 0.9f : (frame == 0 ? 1.0f : -1.0f));
+            }
+        }
+        input.flip();
+        ByteBuffer output = chain.process(input.asReadOnlyBuffer());
+
+        assertEquals(2 * 2 * 2, output.remaining());
+        output.order(ByteOrder.nativeOrder());
+        // the weights of a side sum to just below unity, so full scale stays within range
+        assertEquals(32767, output.getShort(), 4);
+        assertEquals(32767, output.getShort(), 4);
+        assertEquals(-32768, output.getShort(), 4);
+        assertEquals(-32768, output.getShort(), 4);
+    }
+
+    @Test
+    public void keepsHighResolutionAudioUnlessAStageNeeds16Bit() {
+        PcmEncodingProcessor encoding = new PcmEncodingProcessor();
+        encoding.setHighResolutionEnabled(true);
+        AudioProcessorChain chain = new AudioProcessorChain(encoding,
+                new ChannelDownmixProcessor(), new ResamplingProcessor(), new VolumeProcessor());
+
+        chain.configure(96000, 2, AudioFormat.ENCODING_PCM_FLOAT);
+        assertEquals(AudioFormat.ENCODING_PCM_FLOAT, chain.getOutputEncoding());
+        ByteBuffer input = ByteBuffer.allocate(8);
+        assertSame(input, chain.process(input));
+
+        // 24-bit is only played as it is from API 31 on
+        chain.configure(96000, 2, PcmEncoding.ENCODING_PCM_24BIT_PACKED);
+        assertEquals(AudioFormat.ENCODING_PCM_16BIT, chain.getOutputEncoding());
+        input = ByteBuffer.wrap(new byte[] {0x11, 0x34, 0x12, 0x00, 0x00, (byte) 0x80});
+        ByteBuffer output = chain.process(input).order(ByteOrder.nativeOrder());
+        assertEquals(4, output.remaining());
+        assertEquals(0x1234, output.getShort());
+        assertEquals(-32768, output.getShort());
+
+        try {
+            chain.configure(48000, 8, AudioFormat.ENCODING_PCM_FLOAT);
+            fail("7.1 is only mixed down as 16-bit audio");
+        } catch (IllegalArgumentException expected) {
+        }
+        encoding.setHighResolutionEnabled(false);
+        chain.configure(48000, 8, AudioFormat.ENCODING_PCM_FLOAT);
+        assertEquals(2, chain.getOutputChannelCount());
+    }
+
+    @Test
+    public void convertsOnlyRatesOutsideTheAudioTrackRange() {
+        ResamplingProcessor resampler = new ResamplingProcessor();
+        assertFalse(resampler.configure(8000, 2, AudioFormat.ENCODING_PCM_16BIT));
+        assertFalse(resampler.configure(128000, 2, AudioFormat.ENCODING_PCM_16BIT));
+        assertEquals(128000, resampler.getOutputSampleRate());
+        assertTrue(resampler.configure(176400, 2, AudioFormat.ENCODING_PCM_16BIT));
+        assertEquals(48000, resampler.getOutputSampleRate());
+    }
+
+    @Test
+    public void resamplesTheSameInOneBufferOrMany() {
+        ResamplingProcessor whole = new ResamplingProcessor();
+        whole.configure(7350, 1, AudioFormat.ENCODING_PCM_16BIT);
+        ResamplingProcessor parts = new ResamplingProcessor();
+        parts.configure(7350, 1, AudioFormat.ENCODING_PCM_16BIT);
+        assertTrue(whole.isActive());
+        assertEquals(48000, whole.getOutputSampleRate());
+
+        ByteBuffer input = sine(7350, 1, 7350, 1000);
+        ByteBuffer expected = copy(whole.process(input.duplicate()));
+
+        ByteBuffer actual = ByteBuffer.allocate(2 * expected.remaining());
+        for (int start = 0; start < input.limit(); start += 2 * 333) {
+            ByteBuffer part = input.duplicate();
+            part.position(start);
+            part.limit(Math.min(input.limit(), start + 2 * 333));
+            actual.put(parts.process(part));
+        }
+        actual.flip();
+        assertEquals(expected, actual);
+
+        // one second in, all but the frames the filter is still waiting for out
+        int frames = expected.remaining() / 2;
+        assertTrue(frames > 48000 - 100 && frames <= 48000);
+        // a 1 kHz tone keeps its level and crosses zero 2000 times a second
+        expected.order(ByteOrder.nativeOrder());
+        int peak = 0;
+        int crossings = 0;
+        short previous = 0;
+        for (int i = 0; i < frames; i++) {
+            short value = expected.getShort(2 * i);
+            peak = Math.max(peak, Math.abs(value));
+            if (i > 0 && (previous < 0) != (value < 0)) {
+                crossings++;
+            }
+            previous = value;
+        }
+        assertEquals(16000, peak, 500);
+        assertEquals(2000, crossings, 4);
+    }
+
+    @Test
+    public void rampsVolumeChangesInAndIdlesAtUnity() {
+        VolumeProcessor volume = new VolumeProcessor();
+        volume.configure(48000, 2, AudioFormat.ENCODING_PCM_16BIT);
+        assertFalse(volume.isActive());
+
+        volume.setVolume(0);
+        assertTrue(volume.isActive());
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 2 * 1920).order(ByteOrder.nativeOrder());
+        while (buffer.hasRemaining()) {
+            buffer.putShort((short) 10000);
+        }
+        buffer.flip();
+        volume.process(buffer);
+
+        // down over the first 20 ms, 960 frames, then silent
+        int previous = 10000;
+        for (int frame = 0; frame < 1920; frame++) {
+            int value = buffer.getShort(4 * frame);
+            assertTrue(value <= previous);
+            if (frame < 900) {
+                assertTrue(value > 0);
+            } else if (frame >= 960) {
+                assertEquals(0, value);
+            }
+            previous = value;
+        }
+
+        volume.setVolume(1);
+        volume.flush();
+        assertFalse(volume.isActive());
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.zhanghui.avplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CachedHttpReaderTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    private final byte[] mContent = new byte[10500];
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private HttpServer mServer;
+    private String mUrl;
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(0).nextBytes(mContent);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // serves "bytes=start-end" ranges and whole content otherwise, as most servers do
+        mServer.createContext("/media.mp4", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequests.incrementAndGet();
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                int end = mContent.length - 1;
+                if (range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(bounds[0]);
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + start + "-" + end + "/" + mContent.length);
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+                OutputStream out = exchange.getResponseBody();
+                out.write(mContent, start, end - start + 1);
+                out.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/media.mp4";
+        mDir = File.createTempFile("chunks", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void fetchesMissesByRangeAndServesReplaysFromTheCache() throws IOException {
+        ChunkCache cache = new ChunkCache(mDir, 100 * CHUNK_SIZE, CHUNK_SIZE);
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        CachedHttpReader reader = new CachedHttpReader(cache, mUrl,
+                Collections.singletonMap("User-Agent", "test"));
+        reader.setMetrics(metrics);
+
+        assertEquals(mContent.length, reader.getLength());
+        assertArrayEquals(mContent, readAll(reader, 777));
+        // one request per chunk, the first of which also told the length
+        assertEquals(11, mRequests.get());
+
+        // a second playback, after a restart, downloads nothing
+        cache.flush();
+        cache = new ChunkCache(mDir, 100 * CHUNK_SIZE, CHUNK_SIZE);
+        reader = new CachedHttpReader(cache, mUrl, null);
+        reader.setMetrics(metrics);
+        assertArrayEquals(mContent, readAll(reader, 4096));
+        assertEquals(11, mRequests.get());
+        assertEquals(0, reader.getRequestCount());
+
+        PlaybackMetrics.Snapshot snapshot = metrics.getSnapshot();
+        // everything was downloaded once; the replay and reads within fetched chunks were not
+        assertEquals(mContent.length, snapshot.cacheBytesDownloaded);
+        assertTrue(snapshot.cacheBytesSaved > mContent.length);
+        assertEquals(11, snapshot.cacheMisses);
+        assertTrue(snapshot.getCacheHitRatio() > 0.5);
+
+        byte[] end = new byte[100];
+        assertEquals(-1, reader.readAt(mContent.length, end, 0, end.length));
+        assertEquals(50, reader.readAt(mContent.length - 50, end, 0, end.length));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedChunks() throws IOException {
+        ChunkCache cache = new ChunkCache(mDir, 3 * CHUNK_SIZE, CHUNK_SIZE);
+        CachedHttpReader reader = new CachedHttpReader(cache, mUrl, null);
+        byte[] buffer = new byte[10];
+
+        reader.readAt(0, buffer, 0, buffer.length);
+        reader.readAt(CHUNK_SIZE, buffer, 0, buffer.length);
+        reader.readAt(2 * CHUNK_SIZE, buffer, 0, buffer.length);
+        // chunk 0 is used again, so chunk 1 is the one to go
+        reader.readAt(5, buffer, 0, buffer.length);
+        reader.readAt(3 * CHUNK_SIZE, buffer, 0, buffer.length);
+
+        assertTrue(cache.contains(mUrl, 0));
+        assertFalse(cache.contains(mUrl, 1));
+        assertTrue(cache.contains(mUrl, 2));
+        assertTrue(cache.contains(mUrl, 3));
+        assertEquals(3 * CHUNK_SIZE, cache.getCachedBytes());
+        assertEquals(4, reader.getRequestCount());
+
+        // a smaller budget on the next start evicts on load
+        cache.flush();
+        cache = new ChunkCache(mDir, 2 * CHUNK_SIZE, CHUNK_SIZE);
+        assertEquals(2 * CHUNK_SIZE, cache.getCachedBytes());
+        assertFalse(cache.contains(mUrl, 2));
+    }
+
+    @Test
+    public void dropsWhatTheIndexDoesNotCoverOnLoad() throws IOException {
+        ChunkCache cache = new ChunkCache(mDir, 3 * CHUNK_SIZE, CHUNK_SIZE);
+        byte[] data = new byte[CHUNK_SIZE];
+        cache.setLength("a", 10 * CHUNK_SIZE);
+        cache.write("a", 0, data, CHUNK_SIZE);
+        cache.setLength("b", 10 * CHUNK_SIZE);
+        cache.write("b", 0, data, CHUNK_SIZE);
+        // a is evicted, and its length goes with it
+        cache.write("b", 1, data, CHUNK_SIZE);
+        cache.write("c", 0, data, CHUNK_SIZE);
+        cache.flush();
+        // written after the index, as if the process died then, and evicting b 0
+        cache.write("c", 1, data, CHUNK_SIZE);
+        assertEquals(3, countChunkFiles());
+
+        cache = new ChunkCache(mDir, 3 * CHUNK_SIZE, CHUNK_SIZE);
+        assertEquals(2, countChunkFiles());
+        assertFalse(cache.contains("b", 0));
+        assertTrue(cache.contains("b", 1));
+        assertTrue(cache.contains("c", 0));
+        assertFalse(cache.contains("c", 1));
+        assertEquals(-1, cache.getLength("a"));
+        assertEquals(10 * CHUNK_SIZE, cache.getLength("b"));
+
+        // a chunk file of the wrong length is deleted along with its entry
+        File[] files = mDir.listFiles();
+        for (File file : files) {
+            if (file.getName().endsWith(".chunk")) {
+                file.delete();
+                assertTrue(file.createNewFile());
+                break;
+            }
+        }
+        cache = new ChunkCache(mDir, 3 * CHUNK_SIZE, CHUNK_SIZE);
+        assertEquals(1, countChunkFiles());
+        assertEquals(CHUNK_SIZE, cache.getCachedBytes());
+    }
+
+    private int countChunkFiles() {
+        int count = 0;
+        for (File file : mDir.listFiles()) {
+            if (file.getName().endsWith(".chunk")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] readAll(CachedHttpReader reader, int readSize) throws IOException {
+        byte[] data = new byte[(int) reader.getLength()];
+        int position = 0;
+        while (position < data.length) {
+            int read = reader.readAt(position, data, position,
+                    Math.min(readSize, data.length - position));
+            assertTrue(read > 0);
+            position += read;
+        }
+        assertEquals(-1, reader.readAt(position, new byte[1], 0, 1));
+        return Arrays.copyOf(data, position);
+    }
+}
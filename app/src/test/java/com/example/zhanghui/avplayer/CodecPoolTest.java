@@ -0,0 +1,232 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CodecPoolTest {
+    private static final CodecPool.Key AVC_HD =
+            new CodecPool.Key("video/avc", CodecPool.RESOLUTION_HD, false);
+    private static final CodecPool.Key AVC_FULL_HD =
+            new CodecPool.Key("video/avc", CodecPool.RESOLUTION_FULL_HD, false);
+    private static final CodecPool.Key HEVC_HD =
+            new CodecPool.Key("video/hevc", CodecPool.RESOLUTION_HD, false);
+    private static final CodecPool.Key AAC =
+            new CodecPool.Key("audio/mp4a-latm", CodecPool.RESOLUTION_NONE, false);
+
+    @Test
+    public void classifiesResolutionsByPixelCount() {
+        assertEquals(CodecPool.RESOLUTION_SD, CodecPool.getResolutionClass(640, 480));
+        assertEquals(CodecPool.RESOLUTION_SD, CodecPool.getResolutionClass(720, 576));
+        assertEquals(CodecPool.RESOLUTION_HD, CodecPool.getResolutionClass(1280, 720));
+        // portrait video shares the class of its landscape twin
+        assertEquals(CodecPool.RESOLUTION_HD, CodecPool.getResolutionClass(720, 1280));
+        assertEquals(CodecPool.RESOLUTION_FULL_HD, CodecPool.getResolutionClass(1920, 1080));
+        assertEquals(CodecPool.RESOLUTION_FULL_HD, CodecPool.getResolutionClass(1920, 1088));
+        assertEquals(CodecPool.RESOLUTION_UHD, CodecPool.getResolutionClass(3840, 2160));
+    }
+
+    @Test
+    public void matchesKeysOnMimeResolutionAndSecurity() {
+        CodecPool.Key key = new CodecPool.Key("video/avc", CodecPool.RESOLUTION_FULL_HD, false);
+        assertEquals(key, new CodecPool.Key("video/avc", CodecPool.RESOLUTION_FULL_HD, false));
+        assertEquals(key.hashCode(),
+                new CodecPool.Key("video/avc", CodecPool.RESOLUTION_FULL_HD, false).hashCode());
+        assertNotEquals(key, new CodecPool.Key("video/hevc", CodecPool.RESOLUTION_FULL_HD, false));
+        assertNotEquals(key, new CodecPool.Key("video/avc", CodecPool.RESOLUTION_HD, false));
+        assertNotEquals(key, new CodecPool.Key("video/avc", CodecPool.RESOLUTION_FULL_HD, true));
+    }
+
+    @Test
+    public void rejectsAnEmptyCap() {
+        try {
+            new CodecPool(0, CodecPool.DEFAULT_IDLE_TIMEOUT_MS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        CodecPool pool = new CodecPool();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getHardwareInstanceCount());
+    }
+
+    @Test
+    public void reusesAStoppedCodecOfTheSameKey() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 4, 60000);
+        PlaybackMetrics metrics = new PlaybackMetrics();
+
+        FakeCodec codec = pool.acquire(AVC_HD, metrics);
+        pool.recycle(codec);
+        assertTrue(codec.stopped);
+        assertFalse(codec.released);
+        assertEquals(1, pool.getIdleCount());
+
+        assertSame(codec, pool.acquire(AVC_HD, metrics));
+        assertEquals(0, pool.getIdleCount());
+        // another resolution class needs another codec
+        assertNotSame(codec, pool.acquire(AVC_FULL_HD, metrics));
+        assertEquals(2, codecs.created);
+
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        PlaybackMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(1, snapshot.codecPoolHits);
+        assertEquals(2, snapshot.codecPoolMisses);
+    }
+
+    @Test
+    public void releasesACodecThatCannotBeStopped() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 4, 60000);
+        FakeCodec codec = pool.acquire(AVC_HD, null);
+        codec.stoppable = false;
+
+        pool.recycle(codec);
+        assertTrue(codec.released);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getHardwareInstanceCount());
+    }
+
+    @Test
+    public void capsHardwareInstancesInUse() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 2, 60000);
+        pool.acquire(AVC_HD, null);
+        pool.acquire(AVC_FULL_HD, null);
+        assertEquals(2, pool.getHardwareInstanceCount());
+
+        try {
+            pool.acquire(HEVC_HD, null);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(codecs.last.released);
+        assertEquals(2, pool.getHardwareInstanceCount());
+
+        // software decoders do not count
+        FakeCodec audio = pool.acquire(AAC, null);
+        assertFalse(audio.hardware);
+        assertEquals(2, pool.getHardwareInstanceCount());
+    }
+
+    @Test
+    public void evictsAnIdleHardwareCodecToMakeRoomOnAMiss() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 2, 60000);
+        FakeCodec first = pool.acquire(AVC_HD, null);
+        FakeCodec second = pool.acquire(AVC_FULL_HD, null);
+        FakeCodec audio = pool.acquire(AAC, null);
+        pool.recycle(first);
+        pool.recycle(audio);
+        pool.recycle(second);
+
+        // first is the least recently returned hardware codec
+        FakeCodec third = pool.acquire(HEVC_HD, null);
+        assertTrue(first.released);
+        assertFalse(second.released);
+        assertFalse(audio.released);
+        assertFalse(third.released);
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(2, pool.getHardwareInstanceCount());
+    }
+
+    @Test
+    public void softwareMissLeavesIdleHardwareCodecs() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 2, 60000);
+        FakeCodec first = pool.acquire(AVC_HD, null);
+        FakeCodec second = pool.acquire(AVC_FULL_HD, null);
+        pool.recycle(first);
+        pool.recycle(second);
+
+        FakeCodec audio = pool.acquire(AAC, null);
+        assertFalse(audio.hardware);
+        assertFalse(first.released);
+        assertFalse(second.released);
+        assertEquals(0, pool.getEvictionCount());
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(2, pool.getHardwareInstanceCount());
+    }
+
+    @Test
+    public void evictsIdleCodecsAfterTheTimeout() throws Exception {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 4, 20);
+        FakeCodec codec = pool.acquire(AVC_HD, null);
+        pool.recycle(codec);
+
+        long deadlineMs = System.currentTimeMillis() + 5000;
+        while (pool.getIdleCount() > 0 && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(0, pool.getHardwareInstanceCount());
+        assertTrue(codec.released);
+
+        // gone from the pool, so the next acquire misses
+        assertNotSame(codec, pool.acquire(AVC_HD, null));
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void clearsOnlyTheIdleCodecs() throws IOException {
+        FakeCodecs codecs = new FakeCodecs();
+        CodecPool.Pool<FakeCodec> pool = new CodecPool.Pool<FakeCodec>(codecs, 4, 60000);
+        FakeCodec idle = pool.acquire(AVC_HD, null);
+        FakeCodec busy = pool.acquire(AVC_FULL_HD, null);
+        pool.recycle(idle);
+
+        pool.clear();
+        assertTrue(idle.released);
+        assertFalse(busy.released);
+        assertEquals(1, pool.getHardwareInstanceCount());
+
+        pool.discard(busy);
+        assertTrue(busy.released);
+        assertEquals(0, pool.getHardwareInstanceCount());
+    }
+
+    private static final class FakeCodec {
+        final boolean hardware;
+        boolean stoppable = true;
+        boolean stopped;
+        boolean released;
+
+        FakeCodec(boolean hardware) {
+            this.hardware = hardware;
+        }
+    }
+
+    /** Video decoders in hardware, audio ones in software. */
+    private static final class FakeCodecs implements CodecPool.Codecs<FakeCodec> {
+        int created;
+        FakeCodec last;
+
+        @Override
+        public FakeCodec create(CodecPool.Key key) {
+            created++;
+            last = new FakeCodec(key.mime.startsWith("video/"));
+            return last;
+        }
+
+        @Override
+        public boolean isHardware(FakeCodec codec) {
+            return codec.hardware;
+        }
+
+        @Override
+        public boolean stop(FakeCodec codec) {
+            codec.stopped = true;
+            return codec.stoppable;
+        }
+
+        @Override
+        public void release(FakeCodec codec) {
+            codec.released = true;
+        }
+    }
+}
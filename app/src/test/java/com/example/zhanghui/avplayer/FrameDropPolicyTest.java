@@ -0,0 +1,75 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameDropPolicyTest {
+    private static final long VSYNC_60HZ_US = 16667;
+
+    private static ByteBuffer annexB(int... nalHeaders) {
+        ByteBuffer data = ByteBuffer.allocate(nalHeaders.length * 8);
+        for (int header : nalHeaders) {
+            data.put(new byte[] { 0, 0, 0, 1, (byte) header, 0x11, 0x22, 0x33 });
+        }
+        data.flip();
+        return data;
+    }
+
+    @Test
+    public void thresholdsFollowPolicy() {
+        FrameDropPolicy fixed = new FrameDropPolicy(FrameDropPolicy.POLICY_FIXED);
+        assertFalse(fixed.shouldDrop(30000, VSYNC_60HZ_US));
+        assertTrue(fixed.shouldDrop(30001, VSYNC_60HZ_US));
+
+        FrameDropPolicy vsync = new FrameDropPolicy(FrameDropPolicy.POLICY_VSYNC_MULTIPLE);
+        assertEquals(2 * VSYNC_60HZ_US, vsync.getDropThresholdUs(VSYNC_60HZ_US));
+        // unknown refresh rate falls back to the fixed threshold
+        assertEquals(FrameDropPolicy.DEFAULT_THRESHOLD_US, vsync.getDropThresholdUs(-1));
+
+        FrameDropPolicy adaptive = new FrameDropPolicy(FrameDropPolicy.POLICY_ADAPTIVE);
+        assertEquals(30000, adaptive.getDropThresholdUs(VSYNC_60HZ_US));
+        adaptive.onDecodeLatencyUs(10000);
+        assertEquals(20000, adaptive.getDropThresholdUs(VSYNC_60HZ_US));
+        for (int i = 0; i < 100; i++) {
+            adaptive.onDecodeLatencyUs(40000);
+        }
+        // never below one refresh period
+        assertEquals(VSYNC_60HZ_US, adaptive.getDropThresholdUs(VSYNC_60HZ_US));
+    }
+
+    @Test
+    public void skipsInputOnlyWhileDropsPersist() {
+        FrameDropPolicy policy = new FrameDropPolicy(FrameDropPolicy.POLICY_FIXED);
+        policy.onFrameDropped();
+        policy.onFrameDropped();
+        assertFalse(policy.shouldSkipNonReferenceInput());
+        policy.onFrameDropped();
+        assertTrue(policy.shouldSkipNonReferenceInput());
+        policy.onFrameRendered();
+        assertFalse(policy.shouldSkipNonReferenceInput());
+    }
+
+    @Test
+    public void findsNonReferencePictures() {
+        // H.264: non-reference slice, with and without an SEI in front
+        assertTrue(NalUnits.isNonReference("video/avc", annexB(0x01), 0, 8));
+        assertTrue(NalUnits.isNonReference("video/avc", annexB(0x06, 0x01), 0, 16));
+        // reference slice, IDR, and no slice at all
+        assertFalse(NalUnits.isNonReference("video/avc", annexB(0x21), 0, 8));
+        assertFalse(NalUnits.isNonReference("video/avc", annexB(0x65), 0, 8));
+        assertFalse(NalUnits.isNonReference("video/avc", annexB(0x06), 0, 8));
+        // one reference slice makes the whole picture a reference
+        assertFalse(NalUnits.isNonReference("video/avc", annexB(0x01, 0x41), 0, 16));
+
+        // H.265: TRAIL_N and RASL_N are non-reference, TRAIL_R and IDR_W_RADL are not
+        assertTrue(NalUnits.isNonReference("video/hevc", annexB(0 << 1), 0, 8));
+        assertTrue(NalUnits.isNonReference("video/hevc", annexB(8 << 1), 0, 8));
+        assertFalse(NalUnits.isNonReference("video/hevc", annexB(1 << 1), 0, 8));
+        assertFalse(NalUnits.isNonReference("video/hevc", annexB(19 << 1), 0, 8));
+
+        assertFalse(NalUnits.isNonReference("video/x-vnd.on2.vp9", annexB(0x01), 0, 8));
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class KeyframeIndexTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    // a keyframe every 2 seconds starting at 0
+    private static KeyframeIndex gopsOf2s(int count) {
+        KeyframeIndex.Builder builder = new KeyframeIndex.Builder();
+        for (int i = 0; i < count; i++) {
+            builder.add(i * 2000000L, 1000L * i);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void answersGopQueries() {
+        KeyframeIndex index = gopsOf2s(5);
+
+        assertEquals(2, index.indexAtOrBefore(4000000));
+        assertEquals(2, index.indexAtOrBefore(5999999));
+        assertEquals(-1, index.indexAtOrBefore(-1));
+
+        assertEquals(4000000, index.getPreviousSyncTimeUs(5000000));
+        assertEquals(0, index.getPreviousSyncTimeUs(-500));
+        assertEquals(6000000, index.getNextSyncTimeUs(5000000));
+        assertEquals(6000000, index.getNextSyncTimeUs(4000000));
+        assertEquals(-1, index.getNextSyncTimeUs(8000000));
+
+        assertEquals(4000000, index.getClosestSyncTimeUs(4900000));
+        assertEquals(6000000, index.getClosestSyncTimeUs(5100000));
+        assertEquals(8000000, index.getClosestSyncTimeUs(20000000));
+        assertEquals(3000, index.getOffset(3));
+    }
+
+    @Test
+    public void sortsOutOfOrderKeyframesWithTheirOffsets() {
+        KeyframeIndex index = new KeyframeIndex.Builder()
+                .add(300, 3).add(100, 1).add(200, 2).build();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(100 * (i + 1), index.getTimeUs(i));
+            assertEquals(i + 1, index.getOffset(i));
+        }
+    }
+
+    @Test
+    public void emptyIndexHasNoKeyframes() {
+        KeyframeIndex index = new KeyframeIndex.Builder().build();
+        assertEquals(-1, index.getPreviousSyncTimeUs(0));
+        assertEquals(-1, index.getClosestSyncTimeUs(0));
+        assertEquals(-1, index.getNextSyncTimeUs(0));
+    }
+
+    @Test
+    public void cacheRoundTripsAndMissesOnOtherFileVersion() throws Exception {
+        KeyframeIndexCache cache = new KeyframeIndexCache(mTemporaryFolder.getRoot());
+        Map<Integer, KeyframeIndex> indices = new HashMap<Integer, KeyframeIndex>();
+        indices.put(1, gopsOf2s(1000));
+        String key = "file:///sdcard/movie.mp4|1234|5678";
+
+        assertNull(cache.load(key));
+        cache.save(key, indices);
+
+        Map<Integer, KeyframeIndex> loaded = cache.load(key);
+        assertNotNull(loaded);
+        KeyframeIndex index = loaded.get(1);
+        assertEquals(1000, index.size());
+        assertEquals(1998000000L, index.getTimeUs(999));
+        assertEquals(999000L, index.getOffset(999));
+
+        // same file, modified since
+        assertNull(cache.load("file:///sdcard/movie.mp4|1234|9999"));
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaClockTest {
+    @Test
+    public void externalClockOnlyMovesWhenDriven() {
+        ExternalClock clock = new ExternalClock(1000);
+        assertEquals(1000, clock.getTimeUs());
+        clock.advanceUs(33333);
+        assertEquals(34333, clock.getTimeUs());
+        clock.setTimeUs(5);
+        assertEquals(5, clock.getTimeUs());
+    }
+
+    @Test
+    public void systemClockIsMonotonicWithMicrosecondResolution() throws Exception {
+        MediaClock clock = new MonotonicSystemClock();
+        long startUs = clock.getTimeUs();
+        long previousUs = startUs;
+        for (int i = 0; i < 1000; i++) {
+            long nowUs = clock.getTimeUs();
+            assertTrue(nowUs >= previousUs);
+            previousUs = nowUs;
+        }
+        Thread.sleep(2);
+        long elapsedUs = clock.getTimeUs() - startUs;
+        assertTrue("elapsed " + elapsedUs, elapsedUs >= 2000 && elapsedUs < 1000000);
+    }
+
+    @Test
+    public void systemClockSpeedChangeDoesNotJump() throws Exception {
+        MediaClock clock = new MonotonicSystemClock();
+        clock.setSpeed(4.0f);
+        long startUs = clock.getTimeUs();
+        Thread.sleep(20);
+        long fastUs = clock.getTimeUs() - startUs;
+        assertTrue("advanced " + fastUs, fastUs >= 80000);
+
+        clock.setSpeed(0.5f);
+        long slowStartUs = clock.getTimeUs();
+        assertTrue(slowStartUs >= startUs + fastUs);
+        Thread.sleep(20);
+        long slowUs = clock.getTimeUs() - slowStartUs;
+        assertTrue("advanced " + slowUs, slowUs >= 10000 && slowUs < fastUs);
+    }
+}
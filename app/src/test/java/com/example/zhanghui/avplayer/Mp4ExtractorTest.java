@@ -0,0 +1,196 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaExtractor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Mp4ExtractorTest {
+    // the sample clip at the root of the repository: 60 s of 1080p24 H.264 with 48 kHz AAC
+    private static final String PATH = "../Sync-One2-Test-1080p-24-H_264_V.mp4";
+
+    private Mp4Extractor mExtractor;
+
+    @Before
+    public void setUp() throws Exception {
+        mExtractor = new Mp4Extractor(PATH);
+    }
+
+    @After
+    public void tearDown() {
+        mExtractor.release();
+    }
+
+    @Test
+    public void listsTheVideoAndAudioTracks() {
+        // the timecode track is left out
+        assertEquals(2, mExtractor.getTrackCount());
+
+        Mp4Extractor.Track video = mExtractor.getTrack(0);
+        assertEquals("video/avc", video.getMime());
+        assertEquals(1920, video.getWidth());
+        assertEquals(1080, video.getHeight());
+        assertEquals(1440, video.getSampleCount());
+        assertEquals(60000000, video.getDurationUs(), 100000);
+        assertEquals(2, video.getCsdCount());
+        assertStartCode(ByteBuffer.wrap(video.getCsd(0)), 0);
+        assertEquals(7, video.getCsd(0)[4] & 0x1f);
+        assertEquals(8, video.getCsd(1)[4] & 0x1f);
+
+        Mp4Extractor.Track audio = mExtractor.getTrack(1);
+        assertEquals("audio/mp4a-latm", audio.getMime());
+        assertEquals(48000, audio.getSampleRate());
+        assertEquals(2814, audio.getSampleCount());
+        assertEquals(1, audio.getCsdCount());
+    }
+
+    @Test
+    public void readsEverySampleInDecodingOrder() {
+        mExtractor.selectTrack(0);
+        mExtractor.selectTrack(1);
+        ByteBuffer buffer = ByteBuffer.allocate(
+                2 * Math.max(mExtractor.getTrack(0).getMaxSampleSize(),
+                        mExtractor.getTrack(1).getMaxSampleSize()));
+
+        int[] counts = new int[2];
+        long[] bytes = new long[2];
+        boolean firstVideo = true;
+        do {
+            int track = mExtractor.getSampleTrackIndex();
+            int expectedSize = mExtractor.getSampleSize();
+            int size = mExtractor.readSampleData(buffer, 0);
+            assertTrue(size > 0);
+            // 4-byte NAL unit lengths are replaced in place
+            assertEquals(expectedSize, size);
+            assertEquals(0, buffer.position());
+            assertEquals(size, buffer.limit());
+            if (track == 0) {
+                assertStartCode(buffer, 0);
+                if (firstVideo) {
+                    assertEquals(0, mExtractor.getSampleTime());
+                    assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, mExtractor.getSampleFlags());
+                    firstVideo = false;
+                }
+            }
+            counts[track]++;
+            bytes[track] += size;
+        } while (mExtractor.advance());
+
+        assertEquals(1440, counts[0]);
+        assertEquals(2814, counts[1]);
+        assertEquals(-1, mExtractor.getSampleTrackIndex());
+        assertEquals(-1, mExtractor.getSampleTime());
+        assertEquals(-1, mExtractor.getSampleSize());
+        assertEquals(-1, mExtractor.readSampleData(buffer, 0));
+    }
+
+    @Test
+    public void seeksToSyncSamples() {
+        mExtractor.selectTrack(0);
+        mExtractor.seekTo(30000000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long previous = mExtractor.getSampleTime();
+        assertTrue(previous <= 30000000 && previous > 20000000);
+        assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, mExtractor.getSampleFlags());
+
+        mExtractor.seekTo(previous + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        long next = mExtractor.getSampleTime();
+        assertTrue(next > previous);
+        assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, mExtractor.getSampleFlags());
+
+        mExtractor.seekTo(previous + 1, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(previous, mExtractor.getSampleTime());
+
+        mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(0, mExtractor.getSampleTime());
+    }
+
+    @Test
+    public void readsSamplesLargerThanTheBufferAsAnError() {
+        mExtractor.selectTrack(0);
+        try {
+            mExtractor.readSampleData(ByteBuffer.allocate(16), 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void readsTheSameDataInEveryReadMode() throws Exception {
+        Mp4Extractor readAhead = new Mp4Extractor(PATH, Mp4Extractor.READ_MODE_READ_AHEAD);
+        Mp4Extractor perSample = new Mp4Extractor(PATH, Mp4Extractor.READ_MODE_PER_SAMPLE);
+        Mp4Extractor[] extractors = { mExtractor, readAhead, perSample };
+        ByteBuffer[] buffers = new ByteBuffer[extractors.length];
+        for (int i = 0; i < extractors.length; i++) {
+            extractors[i].selectTrack(0);
+            extractors[i].selectTrack(1);
+            buffers[i] = ByteBuffer.allocateDirect(256 * 1024);
+        }
+
+        int samples = 0;
+        long bytes = 0;
+        boolean more;
+        do {
+            int size = mExtractor.readSampleData(buffers[0], 0);
+            more = mExtractor.advance();
+            for (int i = 1; i < extractors.length; i++) {
+                assertEquals(size, extractors[i].readSampleData(buffers[i], 0));
+                assertEquals(buffers[0], buffers[i]);
+                assertEquals(more, extractors[i].advance());
+            }
+            samples++;
+            bytes += size;
+        } while (more);
+
+        // mapped: one window, no reads, every byte copied once
+        assertEquals(1, mExtractor.getMapCount());
+        assertEquals(0, mExtractor.getReadCount());
+        assertEquals(bytes, mExtractor.getBytesCopied());
+        // a read per sample, every byte copied once
+        assertEquals(samples, perSample.getReadCount());
+        assertEquals(bytes, perSample.getBytesCopied());
+        // the whole 1 MB file in a couple of reads, every byte copied twice
+        assertTrue(readAhead.getReadCount() <= 2);
+        assertTrue(readAhead.getBytesCopied() >= 2 * bytes);
+        readAhead.release();
+        perSample.release();
+    }
+
+    @Test
+    public void indexesKeyframesFromTheSampleTables() {
+        KeyframeIndex index = KeyframeIndex.build(mExtractor, Collections.singleton(0)).get(0);
+        // nothing was read to build it
+        assertEquals(0, mExtractor.getBytesCopied());
+        assertEquals(-1, mExtractor.getSampleTrackIndex());
+
+        mExtractor.selectTrack(0);
+        List<Long> syncTimesUs = new ArrayList<Long>();
+        do {
+            if ((mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                syncTimesUs.add(mExtractor.getSampleTime());
+            }
+        } while (mExtractor.advance());
+
+        assertEquals(syncTimesUs.size(), index.size());
+        long previousOffset = 0;
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals((long) syncTimesUs.get(i), index.getTimeUs(i));
+            assertTrue(index.getOffset(i) > previousOffset);
+            previousOffset = index.getOffset(i);
+        }
+    }
+
+    private static void assertStartCode(ByteBuffer buffer, int offset) {
+        assertEquals(0, buffer.get(offset));
+        assertEquals(0, buffer.get(offset + 1));
+        assertEquals(0, buffer.get(offset + 2));
+        assertEquals(1, buffer.get(offset + 3));
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PlaybackMetricsTest {
+    @Test
+    public void bucketsByInclusiveUpperBound() {
+        PlaybackMetrics.Histogram histogram =
+                new PlaybackMetrics.Histogram(new long[] { 10, 20, 30 });
+        histogram.record(-5);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(31);
+
+        PlaybackMetrics.Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(4, snapshot.getBucketCount());
+        assertEquals(2, snapshot.getCountInBucket(0));
+        assertEquals(1, snapshot.getCountInBucket(1));
+        assertEquals(0, snapshot.getCountInBucket(2));
+        assertEquals(1, snapshot.getCountInBucket(3));
+        assertEquals(4, snapshot.getCount());
+        assertEquals(31, snapshot.getMax());
+        assertEquals(11.75, snapshot.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesReportBucketBounds() {
+        PlaybackMetrics.Histogram histogram =
+                new PlaybackMetrics.Histogram(new long[] { 10, 20, 30 });
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i <= 90 ? 5 : 25);
+        }
+
+        PlaybackMetrics.Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(10, snapshot.getPercentile(50));
+        assertEquals(10, snapshot.getPercentile(90));
+        // capped at the largest value seen rather than the bucket bound
+        assertEquals(25, snapshot.getPercentile(99));
+        assertEquals(0, new PlaybackMetrics.Histogram(new long[] { 1 })
+                .getSnapshot().getPercentile(50));
+    }
+
+    @Test
+    public void concurrentWritersLoseNothing() throws Exception {
+        final PlaybackMetrics metrics = new PlaybackMetrics();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        metrics.onFrameRendered();
+                        metrics.recordDecodeLatencyUs(seed * 10000 + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        PlaybackMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(40000, snapshot.framesRendered);
+        assertEquals(40000, snapshot.decodeLatencyUs.getCount());
+        assertEquals(39999, snapshot.decodeLatencyUs.getMax());
+    }
+
+    @Test
+    public void preparePhasesKeepTheLongestOverlappingRun() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.onPrepareStarted();
+        // audio and video codecs configured at the same time
+        metrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_CONFIGURE, 3000);
+        metrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_CONFIGURE, 12000);
+        metrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_CONFIGURE, 5000);
+        metrics.onPreparePhase(PlaybackMetrics.PREPARE_PHASE_OPEN, 20000);
+
+        PlaybackMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(12000, snapshot.getPreparePhaseUs(PlaybackMetrics.PREPARE_PHASE_CONFIGURE));
+        assertEquals(20000, snapshot.getPreparePhaseUs(PlaybackMetrics.PREPARE_PHASE_OPEN));
+        assertEquals(0, snapshot.getPreparePhaseUs(PlaybackMetrics.PREPARE_PHASE_CODEC_CREATE));
+        assertEquals(-1, snapshot.prepareUs);
+
+        metrics.onPrepareCompleted();
+        assertTrue(metrics.getSnapshot().prepareUs >= 0);
+        // the next prepare starts over
+        metrics.onPrepareStarted();
+        snapshot = metrics.getSnapshot();
+        assertEquals(0, snapshot.getPreparePhaseUs(PlaybackMetrics.PREPARE_PHASE_OPEN));
+        assertEquals(-1, snapshot.prepareUs);
+    }
+}
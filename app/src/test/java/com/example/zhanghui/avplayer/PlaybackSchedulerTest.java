@@ -0,0 +1,146 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PlaybackSchedulerTest {
+
+    /** Virtual clock whose waits complete instantly by advancing time to the deadline. */
+    private static class FakeClock implements PlaybackScheduler.Clock {
+        long nowNs;
+        int waitCount;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        @Override
+        public void waitNanos(Object monitor, long timeoutNs) {
+            assertNotEquals(PlaybackScheduler.NO_DEADLINE, timeoutNs);
+            waitCount++;
+            nowNs += timeoutNs;
+        }
+    }
+
+    /** Stands in for a CodecState that has one unit of work due every periodNs. */
+    private static class FakeCodecState {
+        final long periodNs;
+        long nextWorkNs;
+        final List<Long> workTimesNs = new ArrayList<Long>();
+
+        FakeCodecState(long periodNs) {
+            this.periodNs = periodNs;
+        }
+
+        long doSomeWork(long nowNs) {
+            if (nowNs >= nextWorkNs) {
+                workTimesNs.add(nowNs);
+                nextWorkNs += periodNs;
+            }
+            return nextWorkNs;
+        }
+    }
+
+    @Test
+    public void wakesOnlyWhenWorkIsDue() {
+        final FakeClock clock = new FakeClock();
+        final FakeCodecState video = new FakeCodecState(41666667L); // 24 fps
+        final FakeCodecState audio = new FakeCodecState(20000000L); // audio write every 20 ms
+        final PlaybackScheduler[] scheduler = new PlaybackScheduler[1];
+        scheduler[0] = new PlaybackScheduler(clock, new PlaybackScheduler.Task() {
+            @Override
+            public long doSomeWork(long nowNs) {
+                if (nowNs >= 1000000000L) {
+                    scheduler[0].stop();
+                }
+                return Math.min(video.doSomeWork(nowNs), audio.doSomeWork(nowNs));
+            }
+        });
+
+        scheduler[0].run();
+
+        // 24 video frames and 51 audio writes in one second, some of which coincide,
+        // instead of the 200 passes of a 5 ms polling loop
+        assertEquals(24, video.workTimesNs.size());
+        assertEquals(51, audio.workTimesNs.size());
+        assertTrue(scheduler[0].getPassCount() <= 75);
+        assertEquals(clock.waitCount, scheduler[0].getTimedWakeUpCount());
+        assertEquals(0, scheduler[0].getSignalledWakeUpCount());
+        assertEquals(0, scheduler[0].getMaxWakeUpLatencyNs());
+
+        // every frame is handled exactly on its deadline
+        for (int i = 0; i < video.workTimesNs.size(); i++) {
+            assertEquals(i * video.periodNs, video.workTimesNs.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void overdueWorkRunsWithoutWaiting() {
+        final FakeClock clock = new FakeClock();
+        final int[] passes = new int[1];
+        final PlaybackScheduler[] scheduler = new PlaybackScheduler[1];
+        scheduler[0] = new PlaybackScheduler(clock, new PlaybackScheduler.Task() {
+            @Override
+            public long doSomeWork(long nowNs) {
+                if (++passes[0] == 10) {
+                    scheduler[0].stop();
+                }
+                return nowNs;
+            }
+        });
+
+        scheduler[0].run();
+
+        assertEquals(10, passes[0]);
+        assertEquals(0, clock.waitCount);
+    }
+
+    @Test
+    public void parksWithoutDeadlineUntilWokenUp() throws Exception {
+        final Object passLock = new Object();
+        final int[] passes = new int[1];
+        PlaybackScheduler scheduler = new PlaybackScheduler(new PlaybackScheduler.Task() {
+            @Override
+            public long doSomeWork(long nowNs) {
+                synchronized (passLock) {
+                    passes[0]++;
+                    passLock.notifyAll();
+                }
+                return PlaybackScheduler.NO_DEADLINE;
+            }
+        });
+        Thread thread = new Thread(scheduler);
+        thread.start();
+
+        awaitPasses(passLock, passes, 1);
+        Thread.sleep(100);
+        synchronized (passLock) {
+            assertEquals(1, passes[0]);
+        }
+
+        scheduler.wakeUp();
+        awaitPasses(passLock, passes, 2);
+
+        scheduler.stop();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, scheduler.getSignalledWakeUpCount());
+        assertEquals(0, scheduler.getTimedWakeUpCount());
+    }
+
+    private static void awaitPasses(Object lock, int[] passes, int count)
+            throws InterruptedException {
+        long timeoutMs = System.currentTimeMillis() + 1000;
+        synchronized (lock) {
+            while (passes[0] < count && System.currentTimeMillis() < timeoutMs) {
+                lock.wait(10);
+            }
+            assertEquals(count, passes[0]);
+        }
+    }
+}
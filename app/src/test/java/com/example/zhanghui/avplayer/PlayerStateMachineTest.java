@@ -0,0 +1,198 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PlayerStateMachineTest {
+
+    @Test
+    public void followsPlayerLifecycle() {
+        PlayerStateMachine machine = new PlayerStateMachine();
+        assertTrue(machine.requestStart());
+        assertEquals(PlayerStateMachine.STATE_PREPARING, machine.getState());
+        assertFalse(machine.requestFlush());
+
+        machine.onPrepared();
+        assertEquals(PlayerStateMachine.STATE_PAUSED, machine.getState());
+        assertFalse(machine.requestStart());
+        assertEquals(PlayerStateMachine.STATE_PLAYING, machine.getState());
+        assertEquals(PlayerStateMachine.CMD_SYNC_PLAY_STATE, machine.pollCommand());
+        assertEquals(PlayerStateMachine.CMD_NONE, machine.pollCommand());
+
+        assertTrue(machine.onEnded());
+        assertTrue(machine.requestPause());
+        assertTrue(machine.requestFlush());
+        assertEquals(PlayerStateMachine.CMD_SYNC_PLAY_STATE, machine.pollCommand());
+        assertEquals(PlayerStateMachine.CMD_FLUSH, machine.pollCommand());
+
+        machine.reset();
+        assertEquals(PlayerStateMachine.STATE_IDLE, machine.getState());
+        assertEquals(PlayerStateMachine.CMD_SYNC_PLAY_STATE, machine.pollCommand());
+        assertEquals(PlayerStateMachine.CMD_NONE, machine.pollCommand());
+    }
+
+    @Test
+    public void seekResumesPreviousOrRequestedPlayState() {
+        PlayerStateMachine machine = new PlayerStateMachine();
+        machine.onPrepared();
+        machine.requestStart();
+        machine.requestSeek();
+        assertEquals(PlayerStateMachine.STATE_SEEKING, machine.getState());
+        assertTrue(machine.isPlayWhenReady());
+
+        machine.requestPause();
+        assertEquals(PlayerStateMachine.STATE_SEEKING, machine.getState());
+        assertFalse(machine.isPlayWhenReady());
+        machine.onSeekCompleted();
+        assertEquals(PlayerStateMachine.STATE_PAUSED, machine.getState());
+
+        machine.requestSeek();
+        machine.requestStart();
+        machine.onSeekCompleted();
+        assertEquals(PlayerStateMachine.STATE_PLAYING, machine.getState());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void seekBeforePrepareThrows() {
+        new PlayerStateMachine().requestSeek();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pauseBeforePrepareThrows() {
+        new PlayerStateMachine().requestPause();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalidTransitionThrows() {
+        new PlayerStateMachine().compareAndSet(
+                PlayerStateMachine.STATE_IDLE, PlayerStateMachine.STATE_PLAYING);
+    }
+
+    /**
+     * Hammers start/pause/flush/reset from several threads while a consumer thread plays the
+     * part of the playback thread. Whatever the interleaving, once the commands are drained the
+     * consumer's codecs must run exactly when the state is PLAYING.
+     */
+    @Test
+    public void concurrentControlCallsConvergeOnConsumer() throws Exception {
+        final PlayerStateMachine machine = new PlayerStateMachine();
+        machine.onPrepared();
+
+        final int callers = 4;
+        final int callsPerCaller = 50000;
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch callersDone = new CountDownLatch(callers);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final boolean[] running = new boolean[1];
+        final long[] flushes = new long[1];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    drain(machine, running, flushes);
+                }
+                drain(machine, running, flushes);
+            }
+        });
+        consumer.start();
+
+        Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int n = 0; n < callsPerCaller; n++) {
+                            int state = machine.getState();
+                            assertTrue(state >= PlayerStateMachine.STATE_IDLE
+                                    && state <= PlayerStateMachine.STATE_ENDED);
+                            switch (random.nextInt(20)) {
+                                case 0:
+                                    machine.reset();
+                                    break;
+                                case 1:
+                                    try {
+                                        machine.onPrepared();
+                                    } catch (IllegalStateException e) {
+                                        // prepared already
+                                    }
+                                    break;
+                                case 2:
+                                    machine.onEnded();
+                                    break;
+                                case 3:
+                                case 4:
+                                    machine.requestFlush();
+                                    break;
+                                case 5:
+                                case 6:
+                                    try {
+                                        machine.requestSeek();
+                                    } catch (IllegalStateException e) {
+                                        // not prepared
+                                    }
+                                    break;
+                                default:
+                                    if (random.nextBoolean()) {
+                                        machine.requestStart();
+                                    } else {
+                                        try {
+                                            machine.requestPause();
+                                        } catch (IllegalStateException e) {
+                                            // reset in the meantime
+                                        }
+                                    }
+                                    break;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        callersDone.countDown();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        go.countDown();
+        callersDone.await();
+        stop.set(true);
+        consumer.join(10000);
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertFalse(consumer.isAlive());
+        assertEquals(machine.getState() == PlayerStateMachine.STATE_PLAYING, running[0]);
+        assertTrue(machine.getTransitionCount() > 0);
+    }
+
+    private static void drain(PlayerStateMachine machine, boolean[] running, long[] flushes) {
+        int command;
+        while ((command = machine.pollCommand()) != PlayerStateMachine.CMD_NONE) {
+            if (command == PlayerStateMachine.CMD_SYNC_PLAY_STATE) {
+                running[0] = machine.getState() == PlayerStateMachine.STATE_PLAYING;
+            } else if (command == PlayerStateMachine.CMD_FLUSH) {
+                flushes[0]++;
+            } else if (command == PlayerStateMachine.CMD_SEEK) {
+                if (machine.beginSeek()) {
+                    running[0] = false;
+                    machine.onSeekCompleted();
+                }
+            } else {
+                fail("unknown command " + command);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SamplePrefetcherTest {
+    private static final int SAMPLE_SIZE = 100;
+
+    @Test
+    public void fullQueueDoesNotStallTheOtherTrack() throws Exception {
+        SamplePrefetcher prefetcher = new SamplePrefetcher(new InterleavedSource(), "Prefetch");
+        SampleQueue video = new SampleQueue(4, 1024 * 1024);
+        SampleQueue audio = new SampleQueue(4, 1024 * 1024);
+        prefetcher.addTrack(0, video, SAMPLE_SIZE);
+        prefetcher.addTrack(1, audio, SAMPLE_SIZE);
+        prefetcher.start();
+        try {
+            // nobody takes video samples, as while the video codec is stuck; the audio samples
+            // behind the fifth one only come through over the video queue's limit
+            for (int i = 0; i < 6; i++) {
+                SampleQueue.Sample sample = takeSample(audio, 1000);
+                assertNotNull("audio sample " + i, sample);
+                assertEquals(2 * i + 1, sample.timeUs);
+                audio.release();
+            }
+            assertTrue(video.getQueuedSamples() > 4);
+            assertEquals(0, video.getStarvationCount());
+        } finally {
+            prefetcher.stop();
+        }
+    }
+
+    @Test
+    public void fullQueueWaitsWhileTheOtherTrackHasSamples() throws Exception {
+        SamplePrefetcher prefetcher = new SamplePrefetcher(new InterleavedSource(), "Prefetch");
+        SampleQueue video = new SampleQueue(4, 1024 * 1024);
+        SampleQueue audio = new SampleQueue(4, 1024 * 1024);
+        prefetcher.addTrack(0, video, SAMPLE_SIZE);
+        prefetcher.addTrack(1, audio, SAMPLE_SIZE);
+        prefetcher.start();
+        try {
+            Thread.sleep(100);
+            assertEquals(4, video.getQueuedSamples());
+            assertEquals(4, audio.getQueuedSamples());
+        } finally {
+            prefetcher.stop();
+        }
+    }
+
+    private static SampleQueue.Sample takeSample(SampleQueue queue, long timeoutMs)
+            throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        SampleQueue.Sample sample;
+        while ((sample = queue.peek()) == null && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(1);
+        }
+        return sample;
+    }
+
+    /** Endless muxed stream of samples alternating between track 0 and track 1. */
+    private static final class InterleavedSource implements SampleSource {
+        private long mSample;
+
+        @Override
+        public int getTrackCount() {
+            return 2;
+        }
+
+        @Override
+        public MediaFormat getTrackFormat(int index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void selectTrack(int index) {
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return (int) (mSample % 2);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mSample;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return 0;
+        }
+
+        @Override
+        public int getSampleSize() {
+            return SAMPLE_SIZE;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            buffer.position(offset);
+            buffer.limit(offset + SAMPLE_SIZE);
+            return SAMPLE_SIZE;
+        }
+
+        @Override
+        public boolean advance() {
+            mSample++;
+            return true;
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            mSample = timeUs;
+        }
+
+        @Override
+        public boolean getSyncSamples(int index, KeyframeIndex.Builder builder) {
+            return false;
+        }
+
+        @Override
+        public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+            return false;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleQueueTest {
+
+    @Test
+    public void producerBlocksOnByteBudget() throws Exception {
+        final SampleQueue queue = new SampleQueue(8, 1000);
+        queue.queue(fill(queue.obtain(600), 600, 0));
+
+        final long[] secondQueuedAtMs = new long[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.queue(fill(queue.obtain(600), 600, 1));
+                    secondQueuedAtMs[0] = System.currentTimeMillis();
+                } catch (InterruptedException e) {
+                    fail();
+                }
+            }
+        });
+        producer.start();
+
+        Thread.sleep(100);
+        assertEquals(1, queue.getQueuedSamples());
+        long releasedAtMs = System.currentTimeMillis();
+        queue.release();
+        producer.join(1000);
+
+        assertTrue(secondQueuedAtMs[0] >= releasedAtMs);
+        assertEquals(1, queue.peek().timeUs);
+        assertEquals(600, queue.getPeakQueuedBytes());
+    }
+
+    @Test
+    public void oversizedSampleFitsIntoEmptyQueue() throws Exception {
+        SampleQueue queue = new SampleQueue(4, 100);
+        SampleQueue.Sample sample = queue.obtain(1000);
+        assertTrue(sample.data.capacity() >= 1000);
+        queue.queue(fill(sample, 1000, 0));
+        assertEquals(1000, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void abortObtainUnblocksProducer() throws Exception {
+        final SampleQueue queue = new SampleQueue(1, 1000);
+        queue.queue(fill(queue.obtain(10), 10, 0));
+
+        final SampleQueue.Sample[] result = new SampleQueue.Sample[] { new SampleQueue.Sample() };
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = queue.obtain(10);
+                } catch (InterruptedException e) {
+                    fail();
+                }
+            }
+        });
+        producer.start();
+        queue.abortObtain();
+        producer.join(1000);
+
+        assertNull(result[0]);
+        queue.clear();
+        assertNotNull(queue.obtain(10));
+    }
+
+    @Test
+    public void starvationCountedOncePerEpisodeAndNotAfterEndOfStream() throws Exception {
+        SampleQueue queue = new SampleQueue(4, 1000);
+        assertNull(queue.peek());
+        assertNull(queue.peek());
+        assertEquals(1, queue.getStarvationCount());
+
+        queue.queue(fill(queue.obtain(10), 10, 0));
+        queue.peek();
+        queue.release();
+        assertNull(queue.peek());
+        assertEquals(2, queue.getStarvationCount());
+
+        queue.queueEndOfStream();
+        assertTrue(queue.peek().endOfStream);
+        queue.release();
+        assertNull(queue.peek());
+        assertEquals(2, queue.getStarvationCount());
+        assertEquals(2, queue.getSamplesQueued());
+    }
+
+    private static SampleQueue.Sample fill(SampleQueue.Sample sample, int size, long timeUs) {
+        for (int i = 0; i < size; i++) {
+            sample.data.put((byte) i);
+        }
+        sample.data.flip();
+        sample.size = size;
+        sample.timeUs = timeUs;
+        return sample;
+    }
+}
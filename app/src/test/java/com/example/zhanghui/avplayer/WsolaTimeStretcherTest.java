@@ -0,0 +1,93 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class WsolaTimeStretcherTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int BUFFER_FRAMES = 1024;
+
+    // stereo 440 Hz sine, the same on both channels
+    private static short[] sine(int frames) {
+        short[] samples = new short[frames * CHANNELS];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) (10000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            samples[2 * i] = value;
+            samples[2 * i + 1] = value;
+        }
+        return samples;
+    }
+
+    /** Feeds {@code input} in codec sized buffers and returns all output produced. */
+    private static short[] stretch(short[] input, float speed) {
+        WsolaTimeStretcher stretcher = new WsolaTimeStretcher(CHANNELS, SAMPLE_RATE, BUFFER_FRAMES);
+        stretcher.setSpeed(speed);
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_FRAMES * 2 * CHANNELS)
+                .order(ByteOrder.nativeOrder());
+        ByteBuffer out = ByteBuffer.allocateDirect(input.length * 2 * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int offset = 0; offset < input.length; offset += BUFFER_FRAMES * CHANNELS) {
+            in.clear();
+            int samples = Math.min(BUFFER_FRAMES * CHANNELS, input.length - offset);
+            for (int i = 0; i < samples; i++) {
+                in.putShort(input[offset + i]);
+            }
+            in.flip();
+            while (in.hasRemaining()) {
+                stretcher.queueInput(in, in.remaining());
+                stretcher.getOutput(out);
+            }
+        }
+        out.flip();
+        short[] output = new short[out.remaining() / 2];
+        out.asShortBuffer().get(output);
+        return output;
+    }
+
+    private static int zeroCrossings(short[] samples, int fromFrame, int toFrame) {
+        int crossings = 0;
+        for (int i = fromFrame + 1; i < toFrame; i++) {
+            if ((samples[2 * (i - 1)] < 0) != (samples[2 * i] < 0)) {
+                crossings++;
+            }
+        }
+        return crossings;
+    }
+
+    @Test
+    public void normalSpeedPassesAudioThrough() {
+        short[] input = sine(SAMPLE_RATE);
+        short[] output = stretch(input, 1.0f);
+        assertTrue(output.length > input.length * 9 / 10);
+        for (int i = 0; i < output.length; i++) {
+            assertEquals("sample " + i, input[i], output[i]);
+        }
+    }
+
+    @Test
+    public void changesDurationButNotPitch() {
+        short[] input = sine(2 * SAMPLE_RATE);
+        int inputCrossingsPerSecond = zeroCrossings(input, 0, SAMPLE_RATE);
+
+        float[] speeds = { 0.5f, 1.5f, 2.0f, 4.0f };
+        for (float speed : speeds) {
+            short[] output = stretch(input, speed);
+            int outputFrames = output.length / CHANNELS;
+            int expectedFrames = (int) (2 * SAMPLE_RATE / speed);
+            // only the last few windows are still held back
+            assertTrue(speed + "x: " + outputFrames + " frames",
+                    outputFrames <= expectedFrames
+                            && outputFrames > expectedFrames - SAMPLE_RATE / 10);
+
+            int frames = Math.min(outputFrames, SAMPLE_RATE / 2);
+            int crossingsPerSecond = zeroCrossings(output, 0, frames) * SAMPLE_RATE / frames;
+            assertEquals(speed + "x", inputCrossingsPerSecond, crossingsPerSecond,
+                    inputCrossingsPerSecond / 20);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package android.annotation;
+
+/**
+ * Stand-in for the framework annotation.
+ */
+public @interface TargetApi {
+    int value();
+}
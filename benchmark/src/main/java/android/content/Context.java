@@ -0,0 +1,23 @@
+package android.content;
+
+import android.view.WindowManager;
+
+import java.io.File;
+
+/**
+ * Stand-in for the framework class. Reports a default display refreshing at 60 Hz.
+ */
+public class Context {
+    public static final String WINDOW_SERVICE = "window";
+
+    public Object getSystemService(String name) {
+        if (WINDOW_SERVICE.equals(name)) {
+            return new WindowManager();
+        }
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public File getCacheDir() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+}
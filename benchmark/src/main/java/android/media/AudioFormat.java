@@ -0,0 +1,12 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class AudioFormat {
+    public static final int ENCODING_PCM_16BIT = 2;
+    public static final int ENCODING_PCM_FLOAT = 4;
+    public static final int CHANNEL_OUT_MONO = 0x4;
+    public static final int CHANNEL_OUT_STEREO = 0xc;
+    public static final int CHANNEL_OUT_5POINT1 = 0xfc;
+}
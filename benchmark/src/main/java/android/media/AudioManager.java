@@ -0,0 +1,8 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class AudioManager {
+    public static final int STREAM_MUSIC = 3;
+}
@@ -0,0 +1,9 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class AudioTimestamp {
+    public long framePosition;
+    public long nanoTime;
+}
@@ -0,0 +1,102 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the framework class. Playback advances in real time from play(), timestamps
+ * are available unless {@link #sTimestampSupported} is cleared, and writes are accepted up to
+ * {@link #sMaxWriteBytes} at a time.
+ */
+public class AudioTrack {
+    public static final int PLAYSTATE_STOPPED = 1;
+    public static final int PLAYSTATE_PAUSED = 2;
+    public static final int PLAYSTATE_PLAYING = 3;
+    public static final int MODE_STREAM = 1;
+    public static final int WRITE_NON_BLOCKING = 1;
+
+    /** Stand-in knob: whether getTimestamp() succeeds. */
+    public static volatile boolean sTimestampSupported = true;
+    /** Stand-in knob: the most bytes one write() takes, as if the buffer were that full. */
+    public static volatile int sMaxWriteBytes = Integer.MAX_VALUE;
+
+    private final int mSampleRate;
+    private int mPlayState = PLAYSTATE_STOPPED;
+    private long mPlayStartNs;
+
+    public AudioTrack(int streamType, int sampleRateInHz, int channelConfig, int audioFormat,
+            int bufferSizeInBytes, int mode) {
+        mSampleRate = sampleRateInHz;
+    }
+
+    public static int getMinBufferSize(int sampleRateInHz, int channelConfig, int audioFormat) {
+        // about 20 ms of 16-bit stereo
+        return sampleRateInHz / 50 * 4;
+    }
+
+    /** Hidden framework method looked up by reflection; reports a fixed 40 ms. */
+    public int getLatency() {
+        return 40;
+    }
+
+    public int getPlaybackHeadPosition() {
+        if (mPlayState != PLAYSTATE_PLAYING) {
+            return 0;
+        }
+        return (int) ((System.nanoTime() - mPlayStartNs) * mSampleRate / 1000000000L);
+    }
+
+    public boolean getTimestamp(AudioTimestamp timestamp) {
+        if (!sTimestampSupported || mPlayState != PLAYSTATE_PLAYING) {
+            return false;
+        }
+        timestamp.nanoTime = System.nanoTime();
+        timestamp.framePosition = (timestamp.nanoTime - mPlayStartNs) * mSampleRate / 1000000000L;
+        return true;
+    }
+
+    public void play() {
+        mPlayState = PLAYSTATE_PLAYING;
+        mPlayStartNs = System.nanoTime();
+    }
+
+    public void pause() {
+        mPlayState = PLAYSTATE_PAUSED;
+    }
+
+    public void stop() {
+        mPlayState = PLAYSTATE_STOPPED;
+    }
+
+    public void flush() {
+    }
+
+    public void release() {
+        mPlayState = PLAYSTATE_STOPPED;
+    }
+
+    public int getPlayState() {
+        return mPlayState;
+    }
+
+    public int setBufferSizeInFrames(int bufferSizeInFrames) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int getBufferCapacityInFrames() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void setPlaybackParams(PlaybackParams params) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int getUnderrunCount() {
+        return 0;
+    }
+
+    public int write(ByteBuffer audioData, int sizeInBytes, int writeMode, long timestamp) {
+        int written = Math.min(sizeInBytes, sMaxWriteBytes);
+        audioData.position(audioData.position() + written);
+        return written;
+    }
+}
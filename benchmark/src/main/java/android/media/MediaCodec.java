@@ -0,0 +1,183 @@
+package android.media;
+
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the framework class, reduced to what the benchmarked code uses. Nothing is
+ * decoded: a created codec only follows the framework's configured, started and released
+ * states, throwing IllegalStateException where the framework would, and buffers are never
+ * handed out.
+ */
+public final class MediaCodec {
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    public static final class CryptoInfo {
+    }
+
+    public static final class CryptoException extends RuntimeException {
+        public CryptoException(int errorCode, String detailMessage) {
+            super(detailMessage);
+        }
+    }
+
+    public static class CodecException extends IllegalStateException {
+        public boolean isRecoverable() {
+            throw new UnsupportedOperationException("stand-in");
+        }
+
+        public boolean isTransient() {
+            throw new UnsupportedOperationException("stand-in");
+        }
+    }
+
+    public abstract static class Callback {
+        public abstract void onInputBufferAvailable(MediaCodec codec, int index);
+
+        public abstract void onOutputBufferAvailable(MediaCodec codec, int index,
+                BufferInfo info);
+
+        public abstract void onError(MediaCodec codec, CodecException e);
+
+        public abstract void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
+    }
+
+    private static final int INPUT_BUFFER_COUNT = 4;
+    private static final int OUTPUT_BUFFER_COUNT = 4;
+
+    private final String mName;
+    private boolean mConfigured;
+    private boolean mStarted;
+    private boolean mFlushed;
+    private boolean mReleased;
+
+    private MediaCodec(String name) {
+        mName = name;
+    }
+
+    public static MediaCodec createDecoderByType(String type) throws IOException {
+        return new MediaCodec("stand-in." + type);
+    }
+
+    public static MediaCodec createByCodecName(String name) throws IOException {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+        checkState(!mConfigured && !mReleased, "configure");
+        mConfigured = true;
+    }
+
+    public void setCallback(Callback callback) {
+        checkState(!mConfigured && !mReleased, "setCallback");
+    }
+
+    public void setCallback(Callback callback, Handler handler) {
+        checkState(!mConfigured && !mReleased, "setCallback");
+    }
+
+    public void start() {
+        // a flushed codec in asynchronous mode is resumed by start()
+        checkState(mConfigured && (!mStarted || mFlushed) && !mReleased, "start");
+        mStarted = true;
+        mFlushed = false;
+    }
+
+    public void stop() {
+        checkState(!mReleased, "stop");
+        mConfigured = false;
+        mStarted = false;
+    }
+
+    public void flush() {
+        checkState(mStarted, "flush");
+        mFlushed = true;
+    }
+
+    public void release() {
+        mConfigured = false;
+        mStarted = false;
+        mReleased = true;
+    }
+
+    public ByteBuffer[] getInputBuffers() {
+        checkState(mStarted, "getInputBuffers");
+        return new ByteBuffer[INPUT_BUFFER_COUNT];
+    }
+
+    public ByteBuffer[] getOutputBuffers() {
+        checkState(mStarted, "getOutputBuffers");
+        return new ByteBuffer[OUTPUT_BUFFER_COUNT];
+    }
+
+    public ByteBuffer getInputBuffer(int index) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int dequeueInputBuffer(long timeoutUs) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public MediaFormat getOutputFormat() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void queueSecureInputBuffer(int index, int offset, CryptoInfo info,
+            long presentationTimeUs, int flags) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void releaseOutputBuffer(int index, boolean render) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    private void checkState(boolean valid, String method) {
+        if (!valid) {
+            throw new IllegalStateException(method + "() in the wrong state: configured "
+                    + mConfigured + ", started " + mStarted + ", released " + mReleased);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class MediaCodecInfo {
+    private MediaCodecInfo() {
+    }
+
+    public String getName() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public boolean isEncoder() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public String[] getSupportedTypes() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public CodecCapabilities getCapabilitiesForType(String type) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public static final class CodecCapabilities {
+        public static final String FEATURE_SecurePlayback = "secure-playback";
+
+        public boolean isFeatureSupported(String name) {
+            throw new UnsupportedOperationException("stand-in");
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class; nothing is listed.
+ */
+public final class MediaCodecList {
+    public static final int REGULAR_CODECS = 0;
+    public static final int ALL_CODECS = 1;
+
+    public MediaCodecList(int kind) {
+    }
+
+    public MediaCodecInfo[] getCodecInfos() {
+        return new MediaCodecInfo[0];
+    }
+}
@@ -0,0 +1,7 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class MediaCrypto {
+}
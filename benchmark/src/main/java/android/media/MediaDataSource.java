@@ -0,0 +1,14 @@
+package android.media;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Stand-in for the framework class.
+ */
+public abstract class MediaDataSource implements Closeable {
+    public abstract int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException;
+
+    public abstract long getSize() throws IOException;
+}
@@ -0,0 +1,69 @@
+package android.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Stand-in for the framework class, reduced to what the benchmarked code uses. There is no
+ * container parser; extractor operations are unsupported.
+ */
+public final class MediaExtractor {
+    public static final int SAMPLE_FLAG_SYNC = 1;
+    public static final int SAMPLE_FLAG_ENCRYPTED = 2;
+    public static final int SEEK_TO_PREVIOUS_SYNC = 0;
+    public static final int SEEK_TO_NEXT_SYNC = 1;
+    public static final int SEEK_TO_CLOSEST_SYNC = 2;
+
+    public void setDataSource(String path, Map<String, String> headers) throws IOException {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void setDataSource(MediaDataSource dataSource) throws IOException {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int getTrackCount() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public MediaFormat getTrackFormat(int index) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void selectTrack(int index) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int getSampleTrackIndex() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public long getSampleTime() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public int getSampleFlags() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void seekTo(long timeUs, int mode) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public boolean advance() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public void release() {
+        throw new UnsupportedOperationException("stand-in");
+    }
+}
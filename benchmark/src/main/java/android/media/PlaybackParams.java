@@ -0,0 +1,27 @@
+package android.media;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class PlaybackParams {
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
+
+    public PlaybackParams setSpeed(float speed) {
+        mSpeed = speed;
+        return this;
+    }
+
+    public PlaybackParams setPitch(float pitch) {
+        mPitch = pitch;
+        return this;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public float getPitch() {
+        return mPitch;
+    }
+}
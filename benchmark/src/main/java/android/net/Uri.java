@@ -0,0 +1,47 @@
+package android.net;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class Uri {
+    private final String mUriString;
+
+    private Uri(String uriString) {
+        mUriString = uriString;
+    }
+
+    public static Uri parse(String uriString) {
+        return new Uri(uriString);
+    }
+
+    public String getScheme() {
+        int colon = mUriString.indexOf(':');
+        return colon > 0 ? mUriString.substring(0, colon) : null;
+    }
+
+    /** Returns what follows the scheme and authority, up to any query or fragment. */
+    public String getPath() {
+        String path = mUriString;
+        String scheme = getScheme();
+        if (scheme != null) {
+            path = path.substring(scheme.length() + 1);
+            if (path.startsWith("//")) {
+                int slash = path.indexOf('/', 2);
+                path = slash < 0 ? "" : path.substring(slash);
+            }
+        }
+        int end = path.length();
+        for (char c : new char[] {'?', '#'}) {
+            int index = path.indexOf(c);
+            if (index >= 0) {
+                end = Math.min(end, index);
+            }
+        }
+        return path.substring(0, end);
+    }
+
+    @Override
+    public String toString() {
+        return mUriString;
+    }
+}
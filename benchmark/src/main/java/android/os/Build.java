@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class. Reports the oldest release the app supports.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.M;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+    }
+}
@@ -0,0 +1,48 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class. Messages sent without a delay and posted runnables are
+ * handled synchronously on the calling thread; delayed messages are not supported.
+ */
+public class Handler {
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    private final Callback mCallback;
+
+    public Handler(Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        mCallback = callback;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        Message msg = new Message();
+        msg.what = what;
+        if (mCallback == null || !mCallback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+        return true;
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        throw new UnsupportedOperationException("stand-in");
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+
+    public final void removeMessages(int what) {
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+    }
+}
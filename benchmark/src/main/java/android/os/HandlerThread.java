@@ -0,0 +1,28 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class. There is no message loop; see {@link Handler}.
+ */
+public class HandlerThread extends Thread {
+    private final Looper mLooper = new Looper();
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    public Looper getLooper() {
+        return mLooper;
+    }
+
+    public boolean quit() {
+        return true;
+    }
+
+    public boolean quitSafely() {
+        return true;
+    }
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class.
+ */
+public final class Message {
+    public int what;
+}
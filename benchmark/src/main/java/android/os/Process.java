@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+}
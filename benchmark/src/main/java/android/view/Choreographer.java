@@ -0,0 +1,28 @@
+package android.view;
+
+/**
+ * Stand-in for the framework class. The first frame callback runs immediately with the
+ * current time as vsync time, so code sampling vsync sees a valid timestamp; delayed
+ * callbacks are dropped.
+ */
+public final class Choreographer {
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    private static final Choreographer INSTANCE = new Choreographer();
+
+    public static Choreographer getInstance() {
+        return INSTANCE;
+    }
+
+    public void postFrameCallback(FrameCallback callback) {
+        callback.doFrame(System.nanoTime());
+    }
+
+    public void postFrameCallbackDelayed(FrameCallback callback, long delayMillis) {
+    }
+
+    public void removeFrameCallback(FrameCallback callback) {
+    }
+}
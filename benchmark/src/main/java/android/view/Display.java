@@ -0,0 +1,10 @@
+package android.view;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class Display {
+    public float getRefreshRate() {
+        return 60f;
+    }
+}
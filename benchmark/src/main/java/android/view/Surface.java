@@ -0,0 +1,7 @@
+package android.view;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class Surface {
+}
@@ -0,0 +1,8 @@
+package android.view;
+
+/**
+ * Stand-in for the framework interface.
+ */
+public interface SurfaceHolder {
+    Surface getSurface();
+}
@@ -0,0 +1,10 @@
+package android.view;
+
+/**
+ * Stand-in for the framework interface.
+ */
+public class WindowManager {
+    public Display getDefaultDisplay() {
+        return new Display();
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.zhanghui.avplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving one decoded AAC frame (1024 stereo 16-bit samples) through the pooled audio
+ * queue: copy out of the codec's output buffer, hand to the AudioTrack, recycle the slot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AudioBufferQueueBenchmark {
+    private static final int FRAME_BYTES = 1024 * 2 * 2;
+
+    private AudioBufferQueue mQueue;
+    private ByteBuffer mCodecOutput;
+    private long mPts;
+
+    @Setup
+    public void setUp() {
+        mQueue = new AudioBufferQueue(64);
+        mCodecOutput = ByteBuffer.allocateDirect(FRAME_BYTES);
+    }
+
+    @Benchmark
+    public long offerAndConsume() {
+        mCodecOutput.clear();
+        mQueue.offer(mCodecOutput, FRAME_BYTES, mPts);
+        mPts += 21333;
+
+        AudioBufferQueue.QueueElement element = mQueue.peek();
+        long pts = element.pts;
+        element.data.position(element.data.limit());
+        mQueue.remove();
+        return pts;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioTrack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the audio clock through {@link NonBlockingAudioTrack#getAudioTimeUs()},
+ * which every video frame does. With {@code timestamp} set the position is extrapolated
+ * from an AudioTimestamp; otherwise it falls back to the playback head position minus the
+ * latency reported through reflection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AudioClockBenchmark {
+    @Param({"true", "false"})
+    public boolean timestamp;
+
+    private NonBlockingAudioTrack mAudioTrack;
+
+    @Setup
+    public void setUp() {
+        AudioTrack.sTimestampSupported = timestamp;
+        mAudioTrack = new NonBlockingAudioTrack(48000, 2);
+        mAudioTrack.play();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mAudioTrack.release();
+        AudioTrack.sTimestampSupported = true;
+    }
+
+    @Benchmark
+    public long getAudioTimeUs() {
+        return mAudioTrack.getAudioTimeUs();
+    }
+}
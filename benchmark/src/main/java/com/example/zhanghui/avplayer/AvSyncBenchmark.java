@@ -0,0 +1,58 @@
+package com.example.zhanghui.avplayer;
+
+import android.content.Context;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping a video frame's media time to its release time through
+ * {@link MediaCodecPlayer#getRealTimeUsForMediaTime}, including the vsync-aligned
+ * VideoFrameReleaseTimeHelper adjustment, for a 24 fps stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AvSyncBenchmark {
+    private static final long FRAME_DURATION_US = 41667;
+
+    private MediaCodecPlayer mPlayer;
+    private long mMediaTimeUs;
+
+    @Setup
+    public void setUp() {
+        SurfaceHolder holder = new SurfaceHolder() {
+            @Override
+            public Surface getSurface() {
+                return new Surface();
+            }
+        };
+        mPlayer = new MediaCodecPlayer(holder, new Context());
+    }
+
+    @Benchmark
+    public long getRealTimeUsForMediaTime() {
+        mMediaTimeUs += FRAME_DURATION_US;
+        return mPlayer.getRealTimeUsForMediaTime(mMediaTimeUs);
+    }
+
+    @Benchmark
+    public long getNowUs() {
+        return mPlayer.getNowUs();
+    }
+}
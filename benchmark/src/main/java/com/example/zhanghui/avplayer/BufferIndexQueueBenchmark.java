@@ -0,0 +1,97 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the LinkedList based buffer queues CodecState used to keep with
+ * {@link BufferIndexQueue}. One invocation is one second of 240 fps video: every frame
+ * dequeues an input buffer and feeds it, then dequeues an output buffer, which is released
+ * once the decoder pipeline holds more than a few frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BufferIndexQueueBenchmark {
+    private static final int FRAMES_PER_SECOND = 240;
+    private static final long FRAME_DURATION_US = 1000000L / FRAMES_PER_SECOND;
+    private static final int CODEC_BUFFER_COUNT = 8;
+    private static final int FRAME_SIZE = 4096;
+    // output buffers held before the oldest one is released
+    private static final int PIPELINE_DEPTH = 4;
+
+    private LinkedList<Integer> mInputIndices;
+    private LinkedList<Integer> mOutputIndices;
+    private LinkedList<MediaCodec.BufferInfo> mOutputInfos;
+
+    private BufferIndexQueue mInputQueue;
+    private BufferIndexQueue mOutputQueue;
+
+    @Setup
+    public void setUp() {
+        mInputIndices = new LinkedList<Integer>();
+        mOutputIndices = new LinkedList<Integer>();
+        mOutputInfos = new LinkedList<MediaCodec.BufferInfo>();
+        mInputQueue = new BufferIndexQueue(CODEC_BUFFER_COUNT);
+        mOutputQueue = new BufferIndexQueue(CODEC_BUFFER_COUNT);
+    }
+
+    @Benchmark
+    public long linkedList() {
+        long checksum = 0;
+        for (int frame = 0; frame < FRAMES_PER_SECOND; frame++) {
+            int index = frame % CODEC_BUFFER_COUNT;
+
+            mInputIndices.add(index);
+            checksum += mInputIndices.peekFirst().intValue();
+            mInputIndices.removeFirst();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.set(0, FRAME_SIZE, frame * FRAME_DURATION_US, 0);
+            mOutputIndices.add(index);
+            mOutputInfos.add(info);
+            if (mOutputIndices.size() > PIPELINE_DEPTH) {
+                checksum += mOutputIndices.peekFirst().intValue()
+                        + mOutputInfos.peekFirst().presentationTimeUs;
+                mOutputIndices.removeFirst();
+                mOutputInfos.removeFirst();
+            }
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    public long bufferIndexQueue() {
+        long checksum = 0;
+        for (int frame = 0; frame < FRAMES_PER_SECOND; frame++) {
+            int index = frame % CODEC_BUFFER_COUNT;
+
+            mInputQueue.add(index);
+            checksum += mInputQueue.peekIndex();
+            mInputQueue.removeFirst();
+
+            mOutputQueue.add(index, 0, FRAME_SIZE, frame * FRAME_DURATION_US, 0);
+            if (mOutputQueue.size() > PIPELINE_DEPTH) {
+                checksum += mOutputQueue.peekIndex() + mOutputQueue.peekPresentationTimeUs();
+                mOutputQueue.removeFirst();
+            }
+        }
+        return checksum;
+    }
+}
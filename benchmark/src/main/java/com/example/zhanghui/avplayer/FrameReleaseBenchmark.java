@@ -0,0 +1,68 @@
+package com.example.zhanghui.avplayer;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link VideoFrameReleaseTimeHelper#adjustReleaseTime} for a 24 fps stream whose
+ * release times jitter by up to a millisecond. With {@code vsync} set the stand-in display
+ * reports 60 Hz, so every call also snaps to the closest vsync. closestVsync() is measured
+ * on its own as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameReleaseBenchmark {
+    private static final long FRAME_DURATION_US = 41667;
+    private static final long VSYNC_DURATION_NS = 16666667;
+
+    @Param({"false", "true"})
+    public boolean vsync;
+
+    private VideoFrameReleaseTimeHelper mHelper;
+    private long mFramePresentationTimeUs;
+    private long mReleaseBaseNs;
+    private int mFrame;
+
+    @Setup
+    public void setUp() {
+        mHelper = vsync ? new VideoFrameReleaseTimeHelper(new Context())
+                : new VideoFrameReleaseTimeHelper();
+        mHelper.enable();
+        mReleaseBaseNs = System.nanoTime();
+    }
+
+    @Benchmark
+    public long adjustReleaseTime() {
+        mFrame++;
+        mFramePresentationTimeUs += FRAME_DURATION_US;
+        // deterministic jitter in [0, 1) ms around the ideal release time
+        long jitterNs = (mFrame * 7919L) % 1000000L;
+        long unadjustedReleaseTimeNs = mReleaseBaseNs + mFramePresentationTimeUs * 1000 + jitterNs;
+        return mHelper.adjustReleaseTime(mFramePresentationTimeUs, unadjustedReleaseTimeNs);
+    }
+
+    @Benchmark
+    public long closestVsync() {
+        mFrame++;
+        long releaseTimeNs = mReleaseBaseNs + mFrame * FRAME_DURATION_US * 1000;
+        return VideoFrameReleaseTimeHelper.closestVsync(releaseTimeNs, mReleaseBaseNs,
+                VSYNC_DURATION_NS);
+    }
+}
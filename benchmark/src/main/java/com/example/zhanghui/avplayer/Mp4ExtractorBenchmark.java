@@ -0,0 +1,116 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaExtractor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Demuxing throughput of {@link Mp4Extractor} on the sample clip, or the file named by the
+ * mp4.path system property: samples per second read from the audio and video tracks, as the
+ * prefetcher reads them, and the cost of opening and parsing the file. The file is in the page
+ * cache after the first pass, so this measures the demuxer rather than the storage.
+ *
+ * <p>readSample runs in each read mode and also reports the bytes copied and the read calls
+ * made per second. MediaExtractor cannot run here; READ_MODE_PER_SAMPLE does its one read per
+ * sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Mp4ExtractorBenchmark {
+    private static final String PATH = System.getProperty("mp4.path",
+            "../Sync-One2-Test-1080p-24-H_264_V.mp4");
+
+    @Param({"mapped", "readAhead", "perSample"})
+    public String readMode;
+
+    private Mp4Extractor mExtractor;
+    private ByteBuffer mBuffer;
+
+    /** I/O done per second by readSample. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class IoCounters {
+        public long bytesCopied;
+        public long readCalls;
+
+        private long mBaseBytesCopied = -1;
+        private long mBaseReadCalls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesCopied = 0;
+            readCalls = 0;
+            mBaseBytesCopied = -1;
+        }
+
+        void update(Mp4Extractor extractor) {
+            if (mBaseBytesCopied < 0) {
+                mBaseBytesCopied = extractor.getBytesCopied();
+                mBaseReadCalls = extractor.getReadCount();
+            }
+            bytesCopied = extractor.getBytesCopied() - mBaseBytesCopied;
+            readCalls = extractor.getReadCount() - mBaseReadCalls;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        int mode = readMode.equals("mapped") ? Mp4Extractor.READ_MODE_MAPPED
+                : readMode.equals("readAhead") ? Mp4Extractor.READ_MODE_READ_AHEAD
+                : Mp4Extractor.READ_MODE_PER_SAMPLE;
+        mExtractor = new Mp4Extractor(PATH, mode);
+        int maxSampleSize = 0;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            mExtractor.selectTrack(i);
+            maxSampleSize = Math.max(maxSampleSize, mExtractor.getTrack(i).getMaxSampleSize());
+        }
+        mBuffer = ByteBuffer.allocateDirect(2 * maxSampleSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExtractor.release();
+    }
+
+    /** Reads one sample and moves on, starting over at the end of the file. */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int readSample(IoCounters counters) {
+        int size = mExtractor.readSampleData(mBuffer, 0);
+        if (!mExtractor.advance()) {
+            mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        counters.update(mExtractor);
+        return size;
+    }
+
+    @Benchmark
+    public int openAndParse() throws IOException {
+        Mp4Extractor extractor = new Mp4Extractor(PATH);
+        int count = extractor.getTrackCount();
+        extractor.release();
+        return count;
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples per second through the prefetch path: {@link Mp4Extractor} read by a
+ * {@link SamplePrefetcher} thread into a {@link SampleQueue}, and each sample copied out of
+ * the queue as {@link CodecState} copies it into a codec input buffer. The video track of the
+ * sample clip, or of the file named by the mp4.path system property, is read over and over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SamplePrefetcherBenchmark {
+    private static final String PATH = System.getProperty("mp4.path",
+            "../Sync-One2-Test-1080p-24-H_264_V.mp4");
+
+    @Param({"mapped", "readAhead", "perSample"})
+    public String readMode;
+
+    private Mp4Extractor mExtractor;
+    private SampleQueue mQueue;
+    private SamplePrefetcher mPrefetcher;
+    private ByteBuffer mCodecBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        int mode = readMode.equals("mapped") ? Mp4Extractor.READ_MODE_MAPPED
+                : readMode.equals("readAhead") ? Mp4Extractor.READ_MODE_READ_AHEAD
+                : Mp4Extractor.READ_MODE_PER_SAMPLE;
+        mExtractor = new Mp4Extractor(PATH, mode);
+        int video = -1;
+        for (int i = 0; i < mExtractor.getTrackCount() && video < 0; i++) {
+            String mime = mExtractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime.startsWith("video/")) {
+                video = i;
+            }
+        }
+        if (video < 0) {
+            throw new IOException("no video track in " + PATH);
+        }
+        mExtractor.selectTrack(video);
+        int maxSampleSize = 2 * mExtractor.getTrack(video).getMaxSampleSize();
+        // the player's video queue
+        mQueue = new SampleQueue(120, 4 * 1024 * 1024);
+        mPrefetcher = new SamplePrefetcher(mExtractor, "Prefetch");
+        mPrefetcher.addTrack(video, mQueue, maxSampleSize);
+        mCodecBuffer = ByteBuffer.allocateDirect(maxSampleSize);
+        mPrefetcher.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPrefetcher.stop();
+        mExtractor.release();
+    }
+
+    /** Takes one sample out of the queue, starting over at the end of the file. */
+    @Benchmark
+    public int takeSample() {
+        SampleQueue.Sample sample;
+        while ((sample = mQueue.peek()) == null) {
+            Thread.yield();
+        }
+        if (sample.endOfStream) {
+            mQueue.release();
+            mPrefetcher.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            return 0;
+        }
+        sample.data.position(0);
+        sample.data.limit(sample.size);
+        mCodecBuffer.clear();
+        mCodecBuffer.put(sample.data);
+        int size = sample.size;
+        mQueue.release();
+        return size;
+    }
+}
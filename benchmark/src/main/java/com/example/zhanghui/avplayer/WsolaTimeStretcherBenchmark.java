@@ -0,0 +1,72 @@
+package com.example.zhanghui.avplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of time stretching one decoded AAC frame of 5.1 audio at 48 kHz (1024 frames, 21.3 ms
+ * of audio) in software. Anything well below 21333 us per call runs faster than real time on
+ * one core; the output is drained as the audio path does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WsolaTimeStretcherBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 6;
+    private static final int FRAMES = 1024;
+
+    @Param({"0.5", "1.0", "1.5", "2.0", "4.0"})
+    public float speed;
+
+    private WsolaTimeStretcher mStretcher;
+    private ByteBuffer mInput;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        mStretcher = new WsolaTimeStretcher(CHANNELS, SAMPLE_RATE, FRAMES);
+        mStretcher.setSpeed(speed);
+
+        // a few tones plus noise, so the similarity search has something to find
+        Random random = new Random(0);
+        mInput = ByteBuffer.allocateDirect(FRAMES * CHANNELS * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < FRAMES; i++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                double tone = Math.sin(2 * Math.PI * (220 * (c + 1)) * i / SAMPLE_RATE);
+                mInput.putShort((short) (8000 * tone + random.nextInt(2000) - 1000));
+            }
+        }
+        mOutput = ByteBuffer.allocateDirect(4 * FRAMES * CHANNELS * 2)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public int stretchBuffer() {
+        mInput.clear();
+        mOutput.clear();
+        int written = 0;
+        while (mInput.hasRemaining()) {
+            mStretcher.queueInput(mInput, mInput.remaining());
+            written += mStretcher.getOutput(mOutput);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.zhanghui.avplayer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that code run in a loop allocates nothing per iteration, from the bytes the current
+ * thread allocates meanwhile. Skips the check on JVMs that do not count them.
+ */
+final class AllocationProbe {
+    // what is left over a long loop that allocates nothing per iteration: runtime bookkeeping
+    // (e.g. JIT transitions) that does not grow with the number of iterations
+    private static final long MAX_FIXED_BYTES = 16 * 1024;
+
+    private AllocationProbe() {
+    }
+
+    /**
+     * Runs {@code work} and fails if the thread allocated more than a fixed amount meanwhile.
+     * Over a million iterations, a single object per iteration would add up to 16 MB.
+     */
+    static void assertAllocatesNothingPerIteration(Runnable work) {
+        com.sun.management.ThreadMXBean bean = getBean();
+        if (bean == null) {
+            work.run();
+            return;
+        }
+        // reading the counter allocates a little itself; take that out of the result
+        long calibrationStartBytes = getAllocatedBytes(bean);
+        long calibrationEndBytes = getAllocatedBytes(bean);
+        long readOverheadBytes = calibrationEndBytes - calibrationStartBytes;
+
+        long bytesBefore = getAllocatedBytes(bean);
+        work.run();
+        long bytesAfter = getAllocatedBytes(bean);
+
+        long allocatedBytes = bytesAfter - bytesBefore - readOverheadBytes;
+        assertTrue("allocated " + allocatedBytes + " bytes", allocatedBytes < MAX_FIXED_BYTES);
+    }
+
+    /** Returns the bean counting allocations per thread, or null if the JVM has none. */
+    private static com.sun.management.ThreadMXBean getBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
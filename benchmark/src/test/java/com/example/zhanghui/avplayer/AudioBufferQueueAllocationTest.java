@@ -0,0 +1,55 @@
+package com.example.zhanghui.avplayer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/** NonBlockingAudioTrackTest drives the same through the track. */
+public class AudioBufferQueueAllocationTest {
+    // one AAC frame of 16-bit stereo
+    private static final int FRAME_BYTES = 1024 * 2 * 2;
+
+    @Test
+    public void steadyStatePlaybackDoesNotAllocate() {
+        final AudioBufferQueue queue = new AudioBufferQueue(8);
+        final ByteBuffer codecOutput = ByteBuffer.allocateDirect(FRAME_BYTES);
+
+        // warm up: every slot gets its buffer once
+        runPlayback(queue, codecOutput, 1000);
+        AllocationCounter counter = queue.getAllocationCounter();
+        assertEquals(queue.capacity(), counter.getCount());
+
+        long allocationsBefore = counter.getCount();
+        AllocationProbe.assertAllocatesNothingPerIteration(new Runnable() {
+            @Override
+            public void run() {
+                runPlayback(queue, codecOutput, 1000000);
+            }
+        });
+        assertEquals(allocationsBefore, counter.getCount());
+    }
+
+    /**
+     * Mimics CodecState.drainOutputBuffer() feeding the queue and NonBlockingAudioTrack.process()
+     * handing it to an AudioTrack that accepts half a frame per write.
+     */
+    private static void runPlayback(AudioBufferQueue queue, ByteBuffer codecOutput, int frames) {
+        long pts = 0;
+        for (int i = 0; i < frames; i++) {
+            codecOutput.clear();
+            codecOutput.limit(FRAME_BYTES);
+            while (!queue.offer(codecOutput, FRAME_BYTES, pts)) {
+                AudioBufferQueue.QueueElement element = queue.peek();
+                int written = Math.min(element.size, FRAME_BYTES / 2);
+                element.data.position(element.data.position() + written);
+                element.size -= written;
+                if (element.size == 0) {
+                    queue.remove();
+                }
+            }
+            pts += 21333;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CodecStateTest {
+    private static final MediaTimeProvider CLOCK = new MediaTimeProvider() {
+        @Override
+        public long getNowUs() {
+            return System.nanoTime() / 1000;
+        }
+
+        @Override
+        public long getRealTimeUsForMediaTime(long mediaTimeUs) {
+            return mediaTimeUs;
+        }
+
+        @Override
+        public long getVsyncDurationNs() {
+            return 16666667;
+        }
+
+        @Override
+        public long getAudioVideoDriftUs(long mediaTimeUs, long realTimeUs) {
+            return 0;
+        }
+    };
+
+    @Test
+    public void seeksWhilePausedBeforeTheFirstStart() throws IOException {
+        seekBeforeStart(CodecState.MODE_SYNC);
+    }
+
+    @Test
+    public void seeksWhilePausedBeforeTheFirstStartInAsyncMode() throws IOException {
+        seekBeforeStart(CodecState.MODE_ASYNC);
+    }
+
+    /** What the player does for a seek that arrives after prepare() but before playing. */
+    private static void seekBeforeStart(int mode) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", 1280, 720);
+        MediaCodec codec = MediaCodec.createDecoderByType("video/avc");
+        CodecState state = new CodecState(CLOCK, null, 0, format, codec, false, mode);
+        codec.configure(format, null, null, 0);
+
+        state.pause();
+        state.flush();
+        state.setSeekTarget(5000000, true);
+        assertEquals(5000000, state.getCurrentPositionUs());
+
+        // the stand-in, like the framework, throws if the flush above started the codec
+        state.start();
+        // and if the codec was not started here
+        codec.flush();
+        state.pause();
+        state.flush();
+        state.release();
+    }
+}
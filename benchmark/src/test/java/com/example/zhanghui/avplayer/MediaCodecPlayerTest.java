@@ -0,0 +1,55 @@
+package com.example.zhanghui.avplayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MediaCodecPlayerTest {
+    private static final String PATH = "../Sync-One2-Test-1080p-24-H_264_V.mp4";
+
+    private MediaCodecPlayer mPlayer;
+
+    @Before
+    public void setUp() {
+        SurfaceHolder holder = new SurfaceHolder() {
+            @Override
+            public Surface getSurface() {
+                return null;
+            }
+        };
+        // the keyframe index is loaded from and saved to the cache directory
+        Context context = new Context() {
+            @Override
+            public File getCacheDir() {
+                throw new IllegalStateException("no cache directory");
+            }
+        };
+        mPlayer = new MediaCodecPlayer(holder, context);
+    }
+
+    @After
+    public void tearDown() {
+        mPlayer.reset();
+    }
+
+    @Test
+    public void preparesWithoutTheKeyframeIndexIfItCannotBeBuilt() throws Exception {
+        mPlayer.setDataSource(Uri.parse("file://" + new File(PATH).getAbsolutePath()), null);
+        mPlayer.setJavaDemuxerEnabled(true);
+        mPlayer.setKeyframeIndexEnabled(true);
+
+        assertTrue(mPlayer.prepare());
+        assertNull(mPlayer.getVideoKeyframeIndex());
+        // prepared players wait paused for start()
+        assertEquals(PlayerStateMachine.STATE_PAUSED, mPlayer.getState());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.zhanghui.avplayer;
+
+import android.media.AudioTrack;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class NonBlockingAudioTrackTest {
+    // one AAC frame of 16-bit stereo
+    private static final int FRAME_BYTES = 1024 * 2 * 2;
+
+    @After
+    public void tearDown() {
+        AudioTrack.sMaxWriteBytes = Integer.MAX_VALUE;
+    }
+
+    @Test
+    public void steadyStatePlaybackDoesNotAllocate() {
+        // the AudioTrack takes half a frame per write, so frames wait in the queue
+        AudioTrack.sMaxWriteBytes = FRAME_BYTES / 2;
+        final NonBlockingAudioTrack track = new NonBlockingAudioTrack(48000, 2);
+        track.play();
+        final ByteBuffer codecOutput = ByteBuffer.allocateDirect(FRAME_BYTES);
+
+        // warm up: every slot of the queue gets its buffer once
+        runPlayback(track, codecOutput, 1000);
+        AllocationCounter counter = track.getAllocationCounter();
+        long allocationsBefore = counter.getCount();
+        assertTrue(allocationsBefore > 0);
+
+        AllocationProbe.assertAllocatesNothingPerIteration(new Runnable() {
+            @Override
+            public void run() {
+                runPlayback(track, codecOutput, 1000000);
+            }
+        });
+        assertEquals(allocationsBefore, counter.getCount());
+        track.release();
+    }
+
+    @Test
+    public void partialWritesStayQueuedUntilProcessed() {
+        AudioTrack.sMaxWriteBytes = FRAME_BYTES / 4;
+        NonBlockingAudioTrack track = new NonBlockingAudioTrack(48000, 2);
+        track.play();
+        ByteBuffer codecOutput = ByteBuffer.allocateDirect(FRAME_BYTES);
+
+        assertTrue(track.write(codecOutput, FRAME_BYTES, 0));
+        assertEquals(FRAME_BYTES, track.getNumBytesQueued());
+        assertEquals(FRAME_BYTES, codecOutput.position());
+        track.process();
+        // one write per process(), as the AudioTrack took less than offered
+        assertEquals(3 * FRAME_BYTES / 4, track.getNumBytesQueued());
+        for (int i = 0; i < 3; i++) {
+            track.process();
+        }
+        assertEquals(0, track.getNumBytesQueued());
+        assertEquals(Long.MAX_VALUE, track.getNextWriteTimeUs(0));
+        track.release();
+    }
+
+    /**
+     * Feeds the track as CodecState.drainOutputBuffer() does: a decoded frame goes to write(),
+     * and while the queue is full the playback loop's process() makes room.
+     */
+    private static void runPlayback(NonBlockingAudioTrack track, ByteBuffer codecOutput,
+            int frames) {
+        long pts = 0;
+        for (int i = 0; i < frames; i++) {
+            codecOutput.clear();
+            while (!track.write(codecOutput, FRAME_BYTES, pts)) {
+                track.process();
+            }
+            pts += 21333;
+        }
+    }
+}